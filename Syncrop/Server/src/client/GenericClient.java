@@ -1,20 +1,20 @@
 package client;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.LinkedList;
-import java.util.List;
 
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
+import message.BinaryMessageCodec;
+import message.HashedWheelTimer;
 import message.Message;
+import message.MessageCodec;
+import message.MessageQueue;
+import message.MessageWriter;
 import message.Messenger;
+import message.SerializedMessageCodec;
 import message.TimeoutCalculator;
 
 /**
@@ -23,8 +23,12 @@ import message.TimeoutCalculator;
  */
 public class GenericClient implements Messenger{
 	TimeoutCalculator timeoutCalculator=new TimeoutCalculator();
-	private static boolean unshared=true;
 	String application;
+	/**
+	 * The name of the codec to ask the Server for or null to keep using serialization
+	 * @see MessageCodec
+	 */
+	private static String preferredCodec=BinaryMessageCodec.NAME;
 	/**
 	 * the host name, or null for the loopback address.
 	 */
@@ -41,32 +45,27 @@ public class GenericClient implements Messenger{
 	private String reasonToClose;
 	
 	/**
-	 * the time internal in miliseconds that read methods will check to see if there is 
-	 * a message to forward
+	 * the time internal in miliseconds that read methods will check to see if the
+	 * connection has been closed while waiting for a message
 	 */
-	private static long waitTime=50;
+	private static long waitTime=1000;
 	
 	/**
-	 * How many messages have been sent or received<br/>
-	 * When count is greater than maxCout, {@link #out} is reset
-	 * @see #maxCount
+	 * the codec every connection starts with
 	 */
-	volatile int count=0;
-	
+	private SerializedMessageCodec serializedCodec=null;
 	/**
-	 * The max number of messages sent before {@link #out} is reset
-	 * @see #count
+	 * writes to the server on its own thread so Messages printed together are flushed together
 	 */
-	int maxCount=10;
-	
+	private MessageWriter writer=null;
 	/**
-	 * used to print to server
+	 * how long to wait for {@link #writer} to write the remaining Messages when closing 
 	 */
-	private ObjectOutputStream out = null;
+	private static final long CLOSE_TIMEOUT=5000;
 	/**
 	 * used to recieve data from server
 	 */
-	private ObjectInputStream in = null;
+	private MessageCodec readCodec = null;
 	/**
 	 * the connection socket
 	 */
@@ -89,15 +88,15 @@ public class GenericClient implements Messenger{
 	/**
 	 * contains main messages
 	 */
-	volatile LinkedList<Message>main=new LinkedList<Message>();
+	final MessageQueue main=new MessageQueue("main");
 	/**
 	 * contains notification messages
 	 */
-	volatile List<Message>notifications=new LinkedList<Message>();
+	final MessageQueue notifications=new MessageQueue("notifications");
 	/**
 	 * contains messages retaining to connection info
 	 */
-	volatile List<Message>connectionInfo=new LinkedList<Message>();
+	final MessageQueue connectionInfo=new MessageQueue("connection info");
 	
 	/**
 	 * The last recored time of the last sent message
@@ -107,21 +106,20 @@ public class GenericClient implements Messenger{
 		
 	ReadMessageThread readMessageThread=new ReadMessageThread();
 	/**
-	 * Sleeps half of {@link #milliSecondsPerPing} and checks to see if a message has been
-	 * sent to Cloud. If not, a ping is sent.
+	 * Pings the Server every {@link TimeoutCalculator#getPingDelay()}ms on the shared timer.
+	 * The ping is skipped if the write queue is full; either the Server is not reading and 
+	 * {@link #printMessage(Message)} will close the connection or the queued Messages keep
+	 * the connection from being idle.
 	 */
-	Thread pingThread=new Thread("Ping thread"){
+	final Runnable ping=new Runnable(){
 		public void run(){
-			do{
-				try{
-					Thread.sleep(timeoutCalculator.getPingDelay());
-					if(isConnectedToServer())
-						printMessage(System.currentTimeMillis(),Message.TYPE_MESSAGE_TO_SERVER,Message.HEADER_PING);
-					
-				} catch (InterruptedException e) {}
-			}while(isConnectedToServer());
+			if(!isConnectedToServer())return;
+			if(writer.offer(new Message(System.currentTimeMillis(),USER_ID,Message.TYPE_MESSAGE_TO_SERVER,Message.HEADER_PING), 0))
+				timeLastMessageWasSent=System.currentTimeMillis();
+			pingTimeout=HashedWheelTimer.SHARED.schedule(this, timeoutCalculator.getPingDelay());
 		}
 	};
+	private volatile HashedWheelTimer.Timeout pingTimeout;
 	
 	public int getTimeout(){return timeoutCalculator.getTimeout();}
 	public int getExpectedRoundTripTime(){return timeoutCalculator.getExpectedMaxRoundTripTime();}
@@ -146,41 +144,41 @@ public class GenericClient implements Messenger{
 	}
 	
 	
+	/**
+	 * Sets the codec new connections will ask the Server for
+	 * @param codec the name of the codec or null to always use serialization
+	 */
+	public static void setPreferredCodec(String codec){preferredCodec=codec;}
+	/**
+	 * @return the name of the codec to append to the connection info or null
+	 */
+	protected static String getPreferredCodec(){return preferredCodec;}
+	
 	protected void startThreads(){
-		pingThread.start();
+		pingTimeout=HashedWheelTimer.SHARED.schedule(ping, timeoutCalculator.getPingDelay());
 		readMessageThread.start();
 	}
 	
 	
 	
 	/**
-	 * Waits until the specified ArrayList has a size greater than 0<br/>
-	 * This method is used to block the thread until a message is received;
-	 * @param arrayList the ArrayList to wait for
+	 * Reads the oldest message from the queue containing normal messages or notifications.
+	 * This method blocks if the queue is empty.
+	 * @param queue The queue to read from
+	 * @return the next message in the queue
+	 * @throws IOException if the connection closed while waiting 
 	 */
-	private void wait(List<Message> list)
+	private Message read(MessageQueue queue) throws IOException
 	{
-		while(list.isEmpty()&&isConnectedToServer())
+		Message message=null;
+		while(message==null)
+		{
 			try {
-				Thread.sleep(waitTime);
+				message=queue.poll(waitTime);
 			} catch (InterruptedException e) {}
-	}
-	/**
-	 * Reads the oldest message from the ArrayList containing normal messages or notifications.
-	 * This method blocks if the list is empty.
-	 * @param list The list to read from
-	 * @return the next message in the list
-	 * @throws IOException 
-	 */
-	private Message read(List<Message>list) throws IOException
-	{
-		if(list.isEmpty())
-		{
-			wait(list);
-			if(!isConnectedToServer())
+			if(message==null&&!isConnectedToServer())
 				throw new IOException("No data can be read because connection closed");
 		}
-		Message message=list.remove(0);
 		return message;
 	}
 	
@@ -250,39 +248,47 @@ public class GenericClient implements Messenger{
 	}
 	
 	/**
-	 * Prints a message to the server
-	 */
-	public synchronized void printMessage(Message messageToPrint){
-		try {
-			if(unshared)out.writeUnshared(messageToPrint);
-			else out.writeObject(messageToPrint);
-			out.flush();
-			count++;
-			if(count>maxCount){
-				out.reset();
-				count=0;
-			}
-			timeLastMessageWasSent=System.currentTimeMillis();
-		}
-		catch (SocketException e){
-			closeConnection(e.toString());
-		}
-		catch (Exception|Error e){
-			closeConnection(e.toString());
+	 * Queues a message to be sent to the server. If the server has not read the queued
+	 * messages within the timeout, the connection is closed.
+	 */
+	public void printMessage(Message messageToPrint){
+		print(messageToPrint,null);
+	}
+	private void print(Message messageToPrint,MessageCodec nextCodec){
+		if(!writer.offer(messageToPrint, nextCodec, getTimeout())){
+			if(isConnectedToServer())
+				closeConnection("Server is not reading messages fast enough");
 		}
+		else timeLastMessageWasSent=System.currentTimeMillis();
 	}
 	
 	
+	/**
+	 * Tells the Server that every following Message will be written with the codec 
+	 * the Server accepted and switches to it
+	 * @param name the name of the codec
+	 */
+	private void switchWriteCodec(String name){
+		print(new Message(name,USER_ID,Message.TYPE_MESSAGE_TO_SERVER,Message.HEADER_SET_CODEC),
+				new BinaryMessageCodec(null, serializedCodec.getRawOutputStream()));
+	}
+	
 	/**
 	 * @return true if there is regular message ready to be read
 	 */
-	public boolean isReady(){return main.size()!=0;}
+	public boolean isReady(){return !main.isEmpty();}
 	/**
 	 *  @return true if there is regular message ready to be read
 	 */
 	public boolean isNotificationReady()
 	{
-		return notifications.size()!=0;
+		return !notifications.isEmpty();
+	}
+	/**
+	 * @return the depth of each of the queues of this Client
+	 */
+	public String getQueueDepths(){
+		return main+"; "+notifications+"; "+connectionInfo+"; "+writer;
 	}
 	
 	public boolean isConnectionAccepted()
@@ -309,10 +315,16 @@ public class GenericClient implements Messenger{
 
 		socket.setSoTimeout(60*4*1000);
 		
-    	out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-    	out.flush();
-    	in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+    	serializedCodec=new SerializedMessageCodec(socket.getInputStream(), socket.getOutputStream());
+    	readCodec=serializedCodec;
+    	writer=new MessageWriter("Write Message Thread", serializedCodec, MessageWriter.DEFAULT_CAPACITY){
+			@Override
+			protected void onError(IOException e) {
+				closeConnection(e.toString());
+			}
+		};
     	connectedToServer=true;
+		writer.start();
 	}
 	
 	/**
@@ -346,7 +358,8 @@ public class GenericClient implements Messenger{
 		connectedToServer=false;
 		connectionAccepted=false;
 		
-		pingThread.interrupt();
+		if(pingTimeout!=null)
+			pingTimeout.cancel();
 		System.out.println("Closing connection");
 		if(socket.isClosed())return;
 		try 
@@ -361,8 +374,7 @@ public class GenericClient implements Messenger{
 	 * @throws IOException
 	 */
 	private void closeSocket() throws IOException{
-		in.close();
-		out.close();
+		writer.finish(CLOSE_TIMEOUT);
 		socket.close();
 	}
 	
@@ -390,9 +402,14 @@ public class GenericClient implements Messenger{
 				try 
 				{
 					
-					message=(Message)(unshared?in.readUnshared():in.readObject());	
+					message=readCodec.readMessage();
 					if(message.isMessageToClient()){
-						if(message.getHeader().equals(Message.HEADER_CLOSE_CONNECTION))
+						if(message.getHeader().equals(Message.HEADER_SET_CODEC)){
+							//the Server writes every Message after this one with the new codec
+							readCodec=new BinaryMessageCodec(serializedCodec.getRawInputStream(), null);
+							switchWriteCodec((String)message.getMessage());
+						}
+						else if(message.getHeader().equals(Message.HEADER_CLOSE_CONNECTION))
 							closeConnection("Closed by server:"+message.getMessage());
 						else if(message.getHeader().equals(Message.HEADER_PING))	
 							printMessage(message.getMessage(),Message.TYPE_MESSAGE_TO_SERVER,Message.HEADER_PONG);
@@ -67,7 +67,10 @@ public class PrimaryClient extends GenericClient
 
 	private void init() throws IOException{
 		connectToServer();
-		printMessage(new Object[]{application,true,maxConnections},Message.TYPE_CONNECTION_INFO);
+		Object[] info=getPreferredCodec()==null?
+				new Object[]{application,true,maxConnections}:
+				new Object[]{application,true,maxConnections,getPreferredCodec()};
+		printMessage(info,Message.TYPE_CONNECTION_INFO);
 		startThreads();
 	}
 	/**
@@ -80,10 +83,6 @@ public class PrimaryClient extends GenericClient
 			while(isConnectedToServer())
 			{
 				try {
-					while(connectionInfo.size()==0&&isConnectedToServer())
-						try {
-							Thread.sleep(1000);
-						} catch (InterruptedException e1) {}
 					Message message=readConnectionInfo();
 					
 					if(!isConnectedToServer())return;
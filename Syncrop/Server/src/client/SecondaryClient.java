@@ -19,7 +19,10 @@ public class SecondaryClient extends GenericClient
 	private void init() throws IOException{
 		connectToServer();
 		//tells the Server about this client
-		printMessage(new Object[]{application,false},Message.TYPE_CONNECTION_INFO);
+		Object[] info=getPreferredCodec()==null?
+				new Object[]{application,false}:
+				new Object[]{application,false,getPreferredCodec()};
+		printMessage(info,Message.TYPE_CONNECTION_INFO);
 		startThreads();
 		
 	}
@@ -0,0 +1,467 @@
+package message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * A compact codec for {@link Message}s. Each Message is sent as a length prefixed frame:
+ * <pre>
+ * int    length of the rest of the frame
+ * byte   type
+ * ref    header
+ * ref    userID
+ * varint number of targets to include, followed by a ref for each
+ * varint number of targets to exclude, followed by a ref for each
+ * value  the message
+ * </pre>
+ * A ref is a varint opcode that is either null ({@link #REF_NULL}), a String that follows
+ * inline ({@link #REF_LITERAL}), a String that follows inline and is remembered
+ * ({@link #REF_DEFINE}) or a previously remembered String. The headers defined in Message
+ * are remembered from the start so they always take a single byte. Each direction of a connection
+ * has its own table which is never reset.
+ * <br/>
+ * A value is a one byte tag followed by the value. The types found in syncData
+ * (Strings, Integers, Longs, Booleans and byte[]) as well as the arrays Messages
+ * are built from have their own tags; anything else falls back to Java serialization.
+ * A {@link FileRegion} is sent as a byte[] whose bytes are copied from the file as the frame is written.
+ * Values never refer to the table of Strings so the message of a Message that was read
+ * can be written to another connection without being decoded; see {@link Message#getPayload()}.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+	public static final String NAME="binary";
+
+	/**
+	 * The largest frame that will be read. Larger frames are assumed to be corrupted.
+	 */
+	public static final int MAX_FRAME_SIZE=64*1024*1024;
+	/**
+	 * The max number of Strings remembered in each direction
+	 */
+	private static final int MAX_TABLE_SIZE=4096;
+
+	static final int REF_NULL=0,REF_LITERAL=1,REF_DEFINE=2,REF_OFFSET=3;
+
+	static final byte TAG_NULL=0;
+	static final byte TAG_STRING=1;
+	static final byte TAG_TRUE=2;
+	static final byte TAG_FALSE=3;
+	static final byte TAG_INT=4;
+	static final byte TAG_LONG=5;
+	static final byte TAG_BYTES=6;
+	static final byte TAG_STRING_ARRAY=7;
+	static final byte TAG_OBJECT_ARRAY=8;
+	static final byte TAG_OBJECT_ARRAY_2D=9;
+	static final byte TAG_SERIALIZED=10;
+
+	/**
+	 * Strings that both ends know before any Message is sent
+	 */
+	private static final String[] PRESET_STRINGS={
+		Message.HEADER_SET_GROUP,Message.HEADER_AVAILABLE_CONNECTIONS,Message.HEADER_MAKE_CONNECTION,
+		Message.HEADER_CONNECTION_REQUEST,Message.HEADER_USER_LEFT,Message.HEADER_CLOSE_CONNECTION,
+		Message.HEADER_REMOVE_USER,Message.HEADER_NEW_USER,Message.HEADER_PING,Message.HEADER_PONG,
+		Message.HEADER_SET_CODEC,
+		Message.MESSAGE_NO_CLIENTS,Message.MESSAGE_CONNECTION_ACCEPTED,Message.MESSAGE_CONNECTION_REJECTED,
+		Message.MESSAGE_GET_CONNECTIONS,Message.MESSAGE_CONNECTION_MADE
+	};
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	/**
+	 * the frame currently being built
+	 */
+	private final Frame frame=new Frame();
+	private final DataOutputStream frameOut=new DataOutputStream(frame);
+	/**
+	 * the FileRegions of the frame being built and where their bytes belong in the frame
+	 */
+	private final ArrayList<FileRegion>regions=new ArrayList<FileRegion>();
+	private final ArrayList<Integer>regionOffsets=new ArrayList<Integer>();
+	/**
+	 * the channel FileRegions are transfered to
+	 */
+	private WritableByteChannel outChannel;
+
+	private long bytesWritten=0;
+
+	private final HashMap<String,Integer>writeTable=new HashMap<String,Integer>();
+	private final ArrayList<String>readTable=new ArrayList<String>();
+
+	/**
+	 * Creates a codec over the given streams. Either stream can be null if the codec is
+	 * only used in one direction.
+	 * @param in the stream to read frames from
+	 * @param out the stream to write frames to
+	 */
+	public BinaryMessageCodec(InputStream in,OutputStream out){
+		this.in=in==null?null:new DataInputStream(in);
+		this.out=out==null?null:new DataOutputStream(out);
+		for(String s:PRESET_STRINGS){
+			writeTable.put(s, writeTable.size());
+			readTable.add(s);
+		}
+	}
+
+	@Override
+	public String getName() {return NAME;}
+
+	@Override
+	public long getBytesWritten() {return bytesWritten;}
+
+	@Override
+	public void writeMessage(Message message) throws IOException {
+		frame.reset();
+		regions.clear();
+		regionOffsets.clear();
+		frameOut.writeByte(message.getType());
+		writeRef(message.getHeader(),true);
+		writeRef(message.getUserID(),true);
+		writeTargets(message.getTargetsToInclude());
+		writeTargets(message.getTargetsToExclude());
+		ByteBuffer payload=message.getPayload();
+		if(payload!=null)
+			//forwards the bytes that were read without decoding them
+			frameOut.write(payload.array(), payload.arrayOffset()+payload.position(), payload.remaining());
+		else writeValue(message.getMessage());
+		frameOut.flush();
+
+		long length=frame.size();
+		for(FileRegion region:regions)
+			length+=region.getLength();
+		if(length>MAX_FRAME_SIZE)
+			throw new IOException("Message is too large: "+length+" bytes");
+		out.writeInt((int)length);
+		if(regions.isEmpty())
+			frame.writeTo(out);
+		else {
+			if(outChannel==null)
+				outChannel=Channels.newChannel(out);
+			int start=0;
+			for(int i=0;i<regions.size();i++){
+				frame.writeTo(out, start, regionOffsets.get(i)-start);
+				start=regionOffsets.get(i);
+				regions.get(i).transferTo(outChannel);
+			}
+			frame.writeTo(out, start, frame.size()-start);
+		}
+		bytesWritten+=4+length;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public Message readMessage() throws IOException, ClassNotFoundException {
+		int length=in.readInt();
+		if(length<=0||length>MAX_FRAME_SIZE)
+			throw new StreamCorruptedException("Invalid frame length: "+length);
+		byte[] buffer=new byte[length];
+		in.readFully(buffer);
+		ByteArrayInputStream byteIn=new ByteArrayInputStream(buffer);
+		DataInputStream frameIn=new DataInputStream(byteIn);
+
+		byte type=frameIn.readByte();
+		String header=readRef(frameIn);
+		String userID=readRef(frameIn);
+		String[] targetsToInclude=readTargets(frameIn);
+		String[] targetsToExclude=readTargets(frameIn);
+		//the rest of the frame is the message which is only decoded when it is needed
+		int payloadStart=length-byteIn.available();
+		if(userID==null||payloadStart>=length||buffer[payloadStart]==TAG_NULL)
+			throw new StreamCorruptedException("Message or userID is null");
+		ByteBuffer payload=ByteBuffer.wrap(buffer, payloadStart, length-payloadStart).slice();
+		return new Message(payload, userID, type, header, targetsToInclude, targetsToExclude);
+	}
+
+	/**
+	 * The table of Strings is never reset because the other end would not know about it
+	 */
+	@Override
+	public void reset() throws IOException {}
+
+	private void writeTargets(Set<String>targets) throws IOException{
+		writeVarInt(frameOut, targets.size());
+		for(String target:targets)
+			writeRef(target,true);
+	}
+	private String[] readTargets(DataInputStream frameIn) throws IOException{
+		int size=readVarInt(frameIn);
+		if(size==0)return null;
+		if(size>MAX_TABLE_SIZE)
+			throw new StreamCorruptedException("Too many targets: "+size);
+		String[] targets=new String[size];
+		for(int i=0;i<size;i++)
+			targets[i]=readRef(frameIn);
+		return targets;
+	}
+
+	/**
+	 * Writes a reference to a String
+	 * @param s the String to write
+	 * @param remember whether s should be added to the table if it is not already there
+	 * @throws IOException
+	 */
+	private void writeRef(String s,boolean remember) throws IOException{
+		if(s==null){
+			writeVarInt(frameOut, REF_NULL);
+			return;
+		}
+		Integer id=writeTable.get(s);
+		if(id!=null)
+			writeVarInt(frameOut, id+REF_OFFSET);
+		else if(remember&&writeTable.size()<MAX_TABLE_SIZE){
+			writeTable.put(s, writeTable.size());
+			writeVarInt(frameOut, REF_DEFINE);
+			writeString(frameOut, s);
+		}
+		else {
+			writeVarInt(frameOut, REF_LITERAL);
+			writeString(frameOut, s);
+		}
+	}
+	private String readRef(DataInputStream frameIn) throws IOException{
+		int ref=readVarInt(frameIn);
+		switch(ref){
+			case REF_NULL:
+				return null;
+			case REF_LITERAL:
+				return readString(frameIn);
+			case REF_DEFINE:
+				String s=readString(frameIn);
+				if(readTable.size()<MAX_TABLE_SIZE)
+					readTable.add(s);
+				return s;
+			default:
+				int id=ref-REF_OFFSET;
+				if(id>=readTable.size())
+					throw new StreamCorruptedException("Unknown string reference: "+id);
+				return readTable.get(id);
+		}
+	}
+
+	/**
+	 * Writes a value without using the table of Strings so the bytes can be forwarded to
+	 * another connection as is
+	 */
+	private void writeValue(Object o) throws IOException{
+		if(o==null)
+			frameOut.writeByte(TAG_NULL);
+		else if(o instanceof String){
+			frameOut.writeByte(TAG_STRING);
+			writeString(frameOut, (String)o);
+		}
+		else if(o instanceof Boolean)
+			frameOut.writeByte((Boolean)o?TAG_TRUE:TAG_FALSE);
+		else if(o instanceof Integer){
+			frameOut.writeByte(TAG_INT);
+			writeVarLong(frameOut, (Integer)o);
+		}
+		else if(o instanceof Long){
+			frameOut.writeByte(TAG_LONG);
+			writeVarLong(frameOut, (Long)o);
+		}
+		else if(o instanceof FileRegion){
+			//sent like a byte[] but the bytes are copied from the file when the frame is written
+			FileRegion region=(FileRegion)o;
+			frameOut.writeByte(TAG_BYTES);
+			writeVarInt(frameOut, region.getLength());
+			frameOut.flush();
+			regions.add(region);
+			regionOffsets.add(frame.size());
+		}
+		else if(o instanceof byte[]){
+			byte[] bytes=(byte[])o;
+			frameOut.writeByte(TAG_BYTES);
+			writeVarInt(frameOut, bytes.length);
+			frameOut.write(bytes);
+		}
+		else if(o.getClass()==String[].class){
+			String[] array=(String[])o;
+			frameOut.writeByte(TAG_STRING_ARRAY);
+			writeVarInt(frameOut, array.length);
+			for(String s:array)
+				writeValue(s);
+		}
+		else if(o.getClass()==Object[].class){
+			Object[] array=(Object[])o;
+			frameOut.writeByte(TAG_OBJECT_ARRAY);
+			writeVarInt(frameOut, array.length);
+			for(Object element:array)
+				writeValue(element);
+		}
+		else if(o.getClass()==Object[][].class){
+			Object[][] array=(Object[][])o;
+			frameOut.writeByte(TAG_OBJECT_ARRAY_2D);
+			writeVarInt(frameOut, array.length);
+			for(Object[] element:array)
+				writeValue(element);
+		}
+		else {
+			ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+			ObjectOutputStream objectOut=new ObjectOutputStream(bytes);
+			objectOut.writeObject(o);
+			objectOut.close();
+			frameOut.writeByte(TAG_SERIALIZED);
+			writeVarInt(frameOut, bytes.size());
+			bytes.writeTo(frameOut);
+		}
+	}
+
+	/**
+	 * Decodes the message of a Message read by this codec
+	 * @param payload the bytes of the message 
+	 * @return the message
+	 * @throws IOException if the payload is corrupted
+	 * @throws ClassNotFoundException if the payload contains a serialized object of an unknown class
+	 */
+	static Object decodePayload(ByteBuffer payload) throws IOException, ClassNotFoundException{
+		DataInputStream in=new DataInputStream(
+				new ByteArrayInputStream(payload.array(), payload.arrayOffset()+payload.position(), payload.remaining()));
+		return readValue(in);
+	}
+
+	private static Object readValue(DataInputStream frameIn) throws IOException, ClassNotFoundException{
+		byte tag=frameIn.readByte();
+		int length;
+		switch(tag){
+			case TAG_NULL:
+				return null;
+			case TAG_STRING:
+				return readString(frameIn);
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_INT:
+				return (int)readVarLong(frameIn);
+			case TAG_LONG:
+				return readVarLong(frameIn);
+			case TAG_BYTES:
+				byte[] bytes=new byte[readLength(frameIn)];
+				frameIn.readFully(bytes);
+				return bytes;
+			case TAG_STRING_ARRAY:
+				String[] strings=new String[readLength(frameIn)];
+				for(int i=0;i<strings.length;i++)
+					strings[i]=(String)readValue(frameIn);
+				return strings;
+			case TAG_OBJECT_ARRAY:
+				Object[] objects=new Object[readLength(frameIn)];
+				for(int i=0;i<objects.length;i++)
+					objects[i]=readValue(frameIn);
+				return objects;
+			case TAG_OBJECT_ARRAY_2D:
+				length=readLength(frameIn);
+				Object[][] array=new Object[length][];
+				for(int i=0;i<length;i++)
+					array[i]=(Object[])readValue(frameIn);
+				return array;
+			case TAG_SERIALIZED:
+				byte[] serialized=new byte[readLength(frameIn)];
+				frameIn.readFully(serialized);
+				ObjectInputStream objectIn=new ObjectInputStream(new ByteArrayInputStream(serialized));
+				try {
+					return objectIn.readObject();
+				} finally {
+					objectIn.close();
+				}
+			default:
+				throw new StreamCorruptedException("Unknown tag: "+tag);
+		}
+	}
+
+	/**
+	 * Gives access to the bytes of a frame so a frame can be written in pieces
+	 */
+	private static class Frame extends ByteArrayOutputStream{
+		Frame(){super(1024);}
+		void writeTo(OutputStream out,int offset,int length) throws IOException{
+			out.write(buf, offset, length);
+		}
+	}
+
+	/**
+	 * Reads a length and makes sure it cannot be larger than the rest of the frame
+	 */
+	private static int readLength(DataInputStream frameIn) throws IOException{
+		int length=readVarInt(frameIn);
+		if(length<0||length>frameIn.available())
+			throw new StreamCorruptedException("Invalid length: "+length);
+		return length;
+	}
+
+	private static void writeString(DataOutputStream out,String s) throws IOException{
+		byte[] bytes=s.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+	private static String readString(DataInputStream in) throws IOException{
+		byte[] bytes=new byte[readLength(in)];
+		in.readFully(bytes);
+		return new String(bytes,StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a non negative int 7 bits at a time
+	 */
+	static void writeVarInt(DataOutputStream out,int value) throws IOException{
+		while((value&~0x7F)!=0){
+			out.writeByte((value&0x7F)|0x80);
+			value>>>=7;
+		}
+		out.writeByte(value);
+	}
+	static int readVarInt(DataInputStream in) throws IOException{
+		int value=0;
+		for(int shift=0;shift<32;shift+=7){
+			int b=in.read();
+			if(b<0)throw new EOFException();
+			value|=(b&0x7F)<<shift;
+			if((b&0x80)==0)
+				return value;
+		}
+		throw new StreamCorruptedException("Malformed varint");
+	}
+	/**
+	 * Writes a signed long using zigzag encoding so small negative values stay small
+	 */
+	static void writeVarLong(DataOutputStream out,long value) throws IOException{
+		value=(value<<1)^(value>>63);
+		while((value&~0x7FL)!=0){
+			out.writeByte((int)((value&0x7F)|0x80));
+			value>>>=7;
+		}
+		out.writeByte((int)value);
+	}
+	static long readVarLong(DataInputStream in) throws IOException{
+		long value=0;
+		for(int shift=0;shift<64;shift+=7){
+			int b=in.read();
+			if(b<0)throw new EOFException();
+			value|=(long)(b&0x7F)<<shift;
+			if((b&0x80)==0)
+				return (value>>>1)^-(value&1);
+		}
+		throw new StreamCorruptedException("Malformed varint");
+	}
+}
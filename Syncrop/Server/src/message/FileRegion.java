@@ -0,0 +1,167 @@
+package message;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A range of bytes of a file that can be used in place of a byte[] in a Message. The bytes are 
+ * not read when the Message is created; {@link BinaryMessageCodec} copies them straight from the
+ * file to the connection with {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+ * when the Message is written, so the bytes of a large file are never held in a byte[] 
+ * by the sender.
+ * <br/>
+ * The recipient receives a byte[]. When a FileRegion is serialized, it is replaced 
+ * by a byte[] containing the bytes of the range.
+ * <br/>
+ * The bytes can be read through a channel shared by the regions of a file, such as the regions of an upload,
+ * so the file is not opened for every region. The file is opened again if the channel is closed before
+ * the region is sent.
+ * <br/>
+ * If the file is shorter than the range when the bytes are sent, the missing bytes are sent as zeros so the
+ * frame can be finished and the connection is kept. The sender is expected to check that the file has not changed
+ * before each region is sent and to cancel the upload otherwise; the recipient checks the hash of the whole file.
+ */
+public class FileRegion implements Serializable{
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient Path path;
+	private final transient FileChannel channel;
+	private final long position;
+	private final int length;
+
+	/**
+	 * 
+	 * @param path the file to send bytes from 
+	 * @param position the index of the first byte to send
+	 * @param length the number of bytes to send
+	 */
+	public FileRegion(Path path,long position,int length){
+		this(null, path, position, length);
+	}
+	/**
+	 * 
+	 * @param channel a channel open for reading the file or null to open the file when the bytes are sent 
+	 * @param path the file to send bytes from 
+	 * @param position the index of the first byte to send
+	 * @param length the number of bytes to send
+	 */
+	public FileRegion(FileChannel channel,Path path,long position,int length){
+		if(position<0||length<0)
+			throw new IllegalArgumentException("Invalid region "+position+"+"+length);
+		this.channel=channel;
+		this.path=path;
+		this.position=position;
+		this.length=length;
+	}
+
+	public Path getPath(){return path;}
+	public long getPosition(){return position;}
+	/**
+	 * @return the number of bytes in this region
+	 */
+	public int getLength(){return length;}
+
+	/**
+	 * Writes the bytes of this region to target
+	 * @param target the channel to write to
+	 * @return false if the file was shorter than the region and the missing bytes were sent as zeros
+	 * @throws IOException if the file cannot be read or the bytes cannot be written
+	 */
+	public boolean transferTo(WritableByteChannel target) throws IOException{
+		FileChannel channel=open();
+		try {
+			long sent=0;
+			while(sent<length){
+				long count;
+				try {
+					count=channel.transferTo(position+sent, length-sent, target);
+				} catch (ClosedChannelException e) {
+					if(!isSharedChannelClosed(channel))
+						throw e;
+					channel=open();
+					continue;
+				}
+				if(count<=0){
+					ByteBuffer zeros=ByteBuffer.allocate((int)Math.min(length-sent, 64*1024));
+					while(sent<length){
+						zeros.clear();
+						zeros.limit((int)Math.min(zeros.capacity(), length-sent));
+						while(zeros.hasRemaining())
+							sent+=target.write(zeros);
+					}
+					return false;
+				}
+				sent+=count;
+			}
+			return true;
+		} finally {
+			if(channel!=this.channel)
+				channel.close();
+		}
+	}
+
+	/**
+	 * @return the bytes of this region; the bytes past the end of the file are zeros
+	 * @throws IOException if the file cannot be read
+	 */
+	public byte[] readBytes() throws IOException{
+		byte[] bytes=new byte[length];
+		FileChannel channel=open();
+		try {
+			ByteBuffer buffer=ByteBuffer.wrap(bytes);
+			while(buffer.hasRemaining())
+				try {
+					if(channel.read(buffer, position+buffer.position())<=0)
+						break;
+				} catch (ClosedChannelException e) {
+					if(!isSharedChannelClosed(channel))
+						throw e;
+					channel=open();
+				}
+		} finally {
+			if(channel!=this.channel)
+				channel.close();
+		}
+		return bytes;
+	}
+	/**
+	 * @return the shared channel if it is open or a new channel of the file
+	 */
+	private FileChannel open() throws IOException{
+		if(channel!=null&&channel.isOpen())
+			return channel;
+		return FileChannel.open(path, StandardOpenOption.READ);
+	}
+	/**
+	 * @return true if channel is the shared channel and it was closed by its owner
+	 */
+	private boolean isSharedChannelClosed(FileChannel channel){
+		return channel==this.channel&&!channel.isOpen()&&!Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * Peers using serialization receive the bytes of the region
+	 */
+	private Object writeReplace() throws ObjectStreamException{
+		try {
+			return readBytes();
+		} catch (IOException e) {
+			throw new StreamCorruptedException("Could not read "+this+": "+e);
+		}
+	}
+
+	@Override
+	public String toString(){
+		return path+"["+position+"+"+length+"]";
+	}
+}
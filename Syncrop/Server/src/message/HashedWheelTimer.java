@@ -0,0 +1,224 @@
+package message;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import logger.Logger;
+
+/**
+ * Runs tasks after a delay on a single thread shared by every connection.
+ * <br/>
+ * Timeouts are kept in a wheel of buckets, one per tick; a timeout is put in the bucket of the tick it
+ * expires in along with the number of turns of the wheel left before it does. Each tick only the
+ * timeouts in one bucket are looked at, so scheduling, cancelling and expiring a timeout are O(1)
+ * no matter how many connections there are. Timeouts expire up to one tick late.
+ * <br/>
+ * Tasks are run by the timer's thread and must not block; tasks that might should start a thread.
+ * An exception thrown by a task is logged and does not stop the timer.
+ */
+public class HashedWheelTimer {
+
+	/**
+	 * The timer used for pings, connection timeouts and handshake deadlines
+	 */
+	public static final HashedWheelTimer SHARED=new HashedWheelTimer("Timer", 100, 512);
+
+	private final long tickDuration;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timeout>scheduled=new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout>cancelled=new ConcurrentLinkedQueue<Timeout>();
+	private final Thread worker;
+	private volatile boolean started=false;
+	private long startTime;
+	private long tick=0;
+	private volatile Logger logger;
+
+	/**
+	 * @param name the name of the timer's thread
+	 * @param tickDuration the length of a tick in milliseconds
+	 * @param ticksPerWheel the number of buckets; rounded up to a power of 2
+	 */
+	public HashedWheelTimer(String name,long tickDuration,int ticksPerWheel){
+		if(tickDuration<=0||ticksPerWheel<=0)
+			throw new IllegalArgumentException("tickDuration and ticksPerWheel must be positive");
+		this.tickDuration=tickDuration;
+		int size=Integer.highestOneBit(ticksPerWheel);
+		if(size<ticksPerWheel)
+			size<<=1;
+		wheel=new Bucket[size];
+		for(int i=0;i<wheel.length;i++)
+			wheel[i]=new Bucket();
+		mask=size-1;
+		worker=new Thread(name){
+			public void run(){
+				work();
+			}
+		};
+		worker.setDaemon(true);
+	}
+
+	/**
+	 * A task waiting to be run
+	 */
+	public static class Timeout{
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next,prev;
+		/**
+		 * 0 while waiting, 1 once cancelled and 2 once expired
+		 */
+		private volatile int state=0;
+
+		Timeout(HashedWheelTimer timer,Runnable task,long deadline){
+			this.timer=timer;
+			this.task=task;
+			this.deadline=deadline;
+		}
+		/**
+		 * Stops the task from being run
+		 * @return false if the task has already been run or cancelled
+		 */
+		public boolean cancel(){
+			synchronized (this) {
+				if(state!=0)
+					return false;
+				state=1;
+			}
+			timer.cancelled.add(this);
+			return true;
+		}
+		public boolean isCancelled(){return state==1;}
+		public boolean isExpired(){return state==2;}
+		private synchronized boolean expire(){
+			if(state!=0)
+				return false;
+			state=2;
+			return true;
+		}
+	}
+
+	/**
+	 * A doubly linked list of the timeouts of a tick
+	 */
+	private static class Bucket{
+		private Timeout head,tail;
+		void add(Timeout timeout){
+			timeout.bucket=this;
+			if(head==null)
+				head=tail=timeout;
+			else {
+				tail.next=timeout;
+				timeout.prev=tail;
+				tail=timeout;
+			}
+		}
+		void remove(Timeout timeout){
+			if(timeout.prev!=null)
+				timeout.prev.next=timeout.next;
+			else head=timeout.next;
+			if(timeout.next!=null)
+				timeout.next.prev=timeout.prev;
+			else tail=timeout.prev;
+			timeout.next=timeout.prev=null;
+			timeout.bucket=null;
+		}
+		void expire(long deadline){
+			Timeout timeout=head;
+			while(timeout!=null){
+				Timeout next=timeout.next;
+				if(timeout.remainingRounds<=0&&timeout.deadline<=deadline){
+					remove(timeout);
+					if(timeout.expire())
+						try {
+							timeout.task.run();
+						} catch (Exception e) {
+							timeout.timer.logError(e);
+						}
+				}
+				else timeout.remainingRounds--;
+				timeout=next;
+			}
+		}
+	}
+
+	/**
+	 * @param logger the logger exceptions thrown by tasks are logged to
+	 */
+	public void setLogger(Logger logger){
+		this.logger=logger;
+	}
+	private void logError(Exception e){
+		Logger logger=this.logger;
+		if(logger!=null)
+			logger.logError(e, "timer task failed");
+		else e.printStackTrace();
+	}
+
+	/**
+	 * Runs a task once the delay has passed
+	 * @param task the task to run; it must not block
+	 * @param delay the delay in milliseconds
+	 * @return the handle to cancel the task with
+	 */
+	public Timeout schedule(Runnable task,long delay){
+		start();
+		Timeout timeout=new Timeout(this, task, System.currentTimeMillis()-startTime+Math.max(delay, 0));
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	private void start(){
+		if(started)
+			return;
+		synchronized (this) {
+			if(started)
+				return;
+			startTime=System.currentTimeMillis();
+			started=true;
+			worker.start();
+		}
+	}
+
+	private void work(){
+		while(true){
+			long deadline=waitForNextTick();
+			removeCancelled();
+			transferScheduled();
+			wheel[(int)(tick&mask)].expire(deadline);
+			tick++;
+		}
+	}
+	/**
+	 * @return the time since the timer started, in milliseconds, at the end of the current tick
+	 */
+	private long waitForNextTick(){
+		long deadline=tickDuration*(tick+1);
+		while(true){
+			long sleepTime=deadline-(System.currentTimeMillis()-startTime);
+			if(sleepTime<=0)
+				return deadline;
+			try {
+				Thread.sleep(sleepTime);
+			} catch (InterruptedException e) {}
+		}
+	}
+	private void removeCancelled(){
+		Timeout timeout;
+		while((timeout=cancelled.poll())!=null)
+			if(timeout.bucket!=null)
+				timeout.bucket.remove(timeout);
+	}
+	private void transferScheduled(){
+		Timeout timeout;
+		while((timeout=scheduled.poll())!=null){
+			if(timeout.state!=0)
+				continue;
+			long expireTick=Math.max(timeout.deadline/tickDuration, tick);
+			timeout.remainingRounds=(expireTick-tick)/wheel.length;
+			wheel[(int)(expireTick&mask)].add(timeout);
+		}
+	}
+}
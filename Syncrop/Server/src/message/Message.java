@@ -1,8 +1,13 @@
 package message;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
 
 import com.sun.istack.internal.NotNull;
 
@@ -116,8 +121,21 @@ public class Message implements Serializable
 	
 	public static final String HEADER_PING="PING";
 	public static final String HEADER_PONG="PONG";
+	/**
+	 * Used to switch the {@link MessageCodec} of a connection. Sent with type
+	 * {@link #TYPE_MESSAGE_TO_CLIENT} by the Server to accept the codec requested in the
+	 * connection info and with type {@link #TYPE_MESSAGE_TO_SERVER} by the Messenger to mark
+	 * the last Message it sent with the old codec. The message is the name of the codec.
+	 */
+	public static final String HEADER_SET_CODEC="SET CODEC";
 	
-	private Object message;
+	private volatile Object message;
+	/**
+	 * The encoded message of a Message read by a {@link BinaryMessageCodec}. The Server only
+	 * looks at the header, type and targets so the message is only decoded when 
+	 * {@link #getMessage()} is called and the same bytes are written when the Message is forwarded
+	 */
+	private transient ByteBuffer payload;
 	@NotNull
 	private String userID;
 	private String header=null;
@@ -166,6 +184,16 @@ public class Message implements Serializable
 		addTargetsToInclude(targetsToInclude);
 		addTargetsToExclude(targetsToExclude);
 	} 
+	/**
+	 * Creates a Message whose message has not been decoded
+	 * @see #payload
+	 */
+	Message(ByteBuffer payload,String username,int type,String header,String[] targetsToInclude,String[] targetsToExclude)
+	{
+		this.payload=payload;this.userID=username;this.type=(byte) type;this.header=header;
+		addTargetsToInclude(targetsToInclude);
+		addTargetsToExclude(targetsToExclude);
+	}
 	/**
 	 * Creates a new Message which is essentially a copy of message but ignores targets
 	 * to include and targets to exclude
@@ -173,7 +201,8 @@ public class Message implements Serializable
 	 */
 	public Message(Message message)
 	{
-		this(message.message,message.userID,message.type,message.header);
+		this.message=message.message;this.payload=message.payload;
+		this.userID=message.userID;this.type=message.type;this.header=message.header;
 	}
 	
 	/**
@@ -196,6 +225,15 @@ public class Message implements Serializable
 	}
 	
 	
+	/**
+	 * @return the names to send this message to
+	 */
+	public Set<String> getTargetsToInclude(){return Collections.unmodifiableSet(targetsToInclude);}
+	/**
+	 * @return the names to not send this message to
+	 */
+	public Set<String> getTargetsToExclude(){return Collections.unmodifiableSet(targetsToExclude);}
+	
 	/**
 	 * @return true if there is a target to this message
 	 */
@@ -224,7 +262,24 @@ public class Message implements Serializable
 	 * @return the Message of this Message
 	 * @see Message
 	 */
-	public Object getMessage(){return message;}
+	public Object getMessage(){
+		if(message==null)
+			synchronized (this) {
+				if(message==null)
+					try {
+						message=BinaryMessageCodec.decodePayload(payload.duplicate());
+					} catch (IOException|ClassNotFoundException e) {
+						throw new IllegalArgumentException("Message could not be decoded: "+e,e);
+					}
+			}
+		return message;
+	}
+	/**
+	 * @return the encoded message if this Message was read by a {@link BinaryMessageCodec} 
+	 * or null
+	 * @see #payload
+	 */
+	ByteBuffer getPayload(){return payload==null?null:payload.duplicate();}
 	/**
 	 * 
 	 * @return the name of the user who sent this message.
@@ -275,11 +330,18 @@ public class Message implements Serializable
 	 */
 	public boolean isMessageConnectionInfo(){return type==TYPE_CONNECTION_INFO;}
 	
+	private void writeObject(ObjectOutputStream out) throws IOException{
+		//peers using serialization need the decoded message
+		getMessage();
+		out.defaultWriteObject();
+	}
+	
 	@Override
 	public String toString()
 	{
 		return
-				"message:"+((message instanceof Object[])?Arrays.asList((Object[])message):message)+", "+
+				"message:"+(message==null?"<"+payload.remaining()+" bytes>":
+					(message instanceof Object[])?Arrays.asList((Object[])message):message)+", "+
 				"username:"+userID+","+
 				"type:"+type+", "+
 				"header:"+header;
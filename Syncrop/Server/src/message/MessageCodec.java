@@ -0,0 +1,61 @@
+package message;
+
+import java.io.IOException;
+
+/**
+ * Converts {@link Message}s to and from the bytes sent over a connection. A codec is bound
+ * to the streams of a single connection and may keep per-connection state (for example
+ * the class descriptors of an ObjectOutputStream or a table of already sent Strings).
+ * <br/>
+ * Every connection starts with {@link SerializedMessageCodec}. A Messenger can ask for a
+ * different codec by appending its name to the connection info it sends to the Server. If the
+ * Server supports it, it answers with a {@link Message#HEADER_SET_CODEC} Message and both
+ * ends switch codecs; Messengers and Servers that do not know about codecs simply never
+ * send or answer the request and keep using Java serialization.
+ *
+ * @see BinaryMessageCodec
+ * @see SerializedMessageCodec
+ */
+public interface MessageCodec {
+
+	/**
+	 *
+	 * @return the name used to request this codec during the handshake
+	 */
+	public String getName();
+
+	/**
+	 * Writes a Message to the underlying stream. The Message is not guaranteed to be sent
+	 * until {@link #flush()} is called.
+	 * @param message the message to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeMessage(Message message) throws IOException;
+
+	/**
+	 * Flushes all the Messages written so far to the underlying stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * @return the number of bytes written by this codec; bytes that have not been flushed 
+	 * may not be counted yet
+	 */
+	public long getBytesWritten();
+
+	/**
+	 * Reads the next Message. This method blocks until a whole Message is available.
+	 * @return the next Message
+	 * @throws IOException if an I/O error occurs or the bytes read do not form a valid Message
+	 * @throws ClassNotFoundException if the Message references a class that cannot be found
+	 */
+	public Message readMessage() throws IOException, ClassNotFoundException;
+
+	/**
+	 * Releases state that is only needed to make future Messages smaller (for example
+	 * back references to objects that have already been sent)
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void reset() throws IOException;
+}
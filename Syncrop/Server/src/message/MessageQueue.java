@@ -0,0 +1,124 @@
+package message;
+
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread safe inbox of {@link Message}s. Readers block until a Message arrives
+ * instead of polling; writers block when the queue is full which pushes back on the
+ * connection that is producing the Messages. Writers that must not block use {@link #offer(Message)}.
+ * <br/>
+ * The queue keeps track of its depth so slow consumers can be found.
+ */
+public class MessageQueue {
+
+	/**
+	 * The default number of Messages a queue can hold
+	 */
+	public static final int DEFAULT_CAPACITY=1024;
+
+	private final String name;
+	private final LinkedBlockingQueue<Message>queue;
+	/**
+	 * the largest number of Messages this queue held at once
+	 */
+	private volatile int maxDepth=0;
+	private final AtomicLong totalAdded=new AtomicLong();
+
+	public MessageQueue(String name){this(name,DEFAULT_CAPACITY);}
+	/**
+	 *
+	 * @param name the name of the queue used when reporting its depth
+	 * @param capacity the max number of Messages the queue can hold
+	 */
+	public MessageQueue(String name,int capacity){
+		this.name=name;
+		queue=new LinkedBlockingQueue<Message>(capacity);
+	}
+
+	/**
+	 * Adds a Message to the queue, waiting if the queue is full
+	 * @param message the message to add
+	 */
+	public void add(Message message){
+		boolean interrupted=false;
+		while(true)
+			try {
+				queue.put(message);
+				break;
+			} catch (InterruptedException e) {
+				interrupted=true;
+			}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+		added();
+	}
+	/**
+	 * Adds a Message to the queue if there is room without waiting
+	 * @param message the message to add
+	 * @return false if the queue is full
+	 */
+	public boolean offer(Message message){
+		if(!queue.offer(message))
+			return false;
+		added();
+		return true;
+	}
+	private void added(){
+		totalAdded.incrementAndGet();
+		int depth=queue.size();
+		if(depth>maxDepth)
+			maxDepth=depth;
+	}
+
+	/**
+	 * Retrieves and removes the oldest Message, waiting up to the specified time for one to arrive
+	 * @param timeout how long to wait in milliseconds
+	 * @return the oldest Message or null if none arrived in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Message poll(long timeout) throws InterruptedException{
+		return queue.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * Retrieves and removes the oldest Message, waiting until one arrives
+	 * @return the oldest Message
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Message take() throws InterruptedException{
+		return queue.take();
+	}
+
+	/**
+	 * Removes up to max Messages without waiting and adds them to c 
+	 * @param c the collection to add the Messages to
+	 * @param max the max number of Messages to remove
+	 * @return the number of Messages removed
+	 */
+	public int drainTo(Collection<Message>c,int max){
+		return queue.drainTo(c, max);
+	}
+	
+	public boolean isEmpty(){return queue.isEmpty();}
+	/**
+	 * @return the current depth of this queue
+	 */
+	public int size(){return queue.size();}
+	public void clear(){queue.clear();}
+
+	/**
+	 * @return the largest number of Messages this queue held at once
+	 */
+	public int getMaxDepth(){return maxDepth;}
+	/**
+	 * @return the number of Messages that have been added to this queue
+	 */
+	public long getTotalAdded(){return totalAdded.get();}
+
+	@Override
+	public String toString(){
+		return name+": depth="+size()+" max="+maxDepth+" total="+totalAdded.get();
+	}
+}
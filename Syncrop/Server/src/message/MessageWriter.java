@@ -0,0 +1,209 @@
+package message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes Messages to a connection on its own thread. Messages are added to a bounded queue
+ * so the thread printing a Message does not wait for the network; when the queue is full the
+ * connection is considered too slow and {@link #offer(Message, long)} fails.
+ * <br/>
+ * The Messages waiting in the queue are written together and flushed once. While Messages
+ * are arriving faster than they can be written, the writer waits up to {@link #MAX_LATENCY}
+ * for more Messages before flushing; an idle writer flushes a Message as soon as it is written.
+ * A batch is flushed early once it reaches {@link #MAX_BATCH_BYTES}.
+ */
+public abstract class MessageWriter extends Thread {
+
+	/**
+	 * The default number of Messages that can be waiting to be written
+	 */
+	public static final int DEFAULT_CAPACITY=1024;
+	/**
+	 * The max number of Messages written before flushing
+	 */
+	private static final int MAX_BATCH=256;
+	/**
+	 * The number of bytes after which a batch is flushed even if more Messages are waiting
+	 */
+	public static final int MAX_BATCH_BYTES=256*1024;
+	/**
+	 * The max time in milliseconds a Message waits for other Messages to be written with it
+	 */
+	public static final long MAX_LATENCY=2;
+	/**
+	 * How often an idle writer checks if it has been closed. The writer is never interrupted
+	 * because interrupting a thread writing to a channel closes the channel.
+	 */
+	private static final long CHECK_INTERVAL=100;
+
+	private final LinkedBlockingQueue<Entry>queue;
+	private volatile MessageCodec codec;
+	private volatile boolean closing=false;
+
+	private volatile long flushes=0,bytesFlushed=0,messagesWritten=0;
+
+	/**
+	 *
+	 * @param name the name of the thread
+	 * @param codec the codec used to write Messages
+	 * @param capacity the max number of Messages that can be waiting to be written
+	 */
+	public MessageWriter(String name,MessageCodec codec,int capacity){
+		super(name);
+		this.codec=codec;
+		queue=new LinkedBlockingQueue<Entry>(capacity);
+		setDaemon(true);
+	}
+
+	/**
+	 * Called on the writer thread when a Message cannot be written. No more Messages
+	 * are written after this is called.
+	 * @param e the exception that occurred
+	 */
+	protected abstract void onError(IOException e);
+
+	/**
+	 * Queues a Message to be written
+	 * @param message the message to write
+	 * @param timeout how long to wait in milliseconds if the queue is full
+	 * @return false if the queue was still full after waiting or this writer is closed
+	 */
+	public boolean offer(Message message,long timeout){
+		return offer(new Entry(message,null),timeout);
+	}
+	/**
+	 * Queues a Message to be written; every Message after it is written with nextCodec
+	 * @param message the last message to write with the current codec
+	 * @param nextCodec the codec to switch to
+	 * @param timeout how long to wait in milliseconds if the queue is full
+	 * @return false if the queue was still full after waiting or this writer is closed
+	 */
+	public boolean offer(Message message,MessageCodec nextCodec,long timeout){
+		return offer(new Entry(message,nextCodec),timeout);
+	}
+	private boolean offer(Entry entry,long timeout){
+		if(closing)return false;
+		try {
+			return queue.offer(entry, timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of Messages waiting to be written
+	 */
+	public int size(){return queue.size();}
+	/**
+	 * @return the average number of bytes sent each time the connection was flushed
+	 */
+	public long getBytesPerFlush(){
+		long flushes=this.flushes;
+		return flushes==0?0:bytesFlushed/flushes;
+	}
+	/**
+	 * @return the average number of Messages sent each time the connection was flushed
+	 */
+	public double getMessagesPerFlush(){
+		long flushes=this.flushes;
+		return flushes==0?0:(double)messagesWritten/flushes;
+	}
+	
+	@Override
+	public String toString(){
+		return getName()+": waiting="+size()+" flushes="+flushes+" bytes/flush="+getBytesPerFlush()+
+				" messages/flush="+String.format("%.1f", getMessagesPerFlush());
+	}
+
+	/**
+	 * Stops accepting Messages and waits for the queued Messages to be written
+	 * @param timeout the max time to wait in milliseconds
+	 */
+	public void finish(long timeout){
+		closing=true;
+		if(Thread.currentThread()!=this)
+			try {
+				join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+	}
+
+	@Override
+	public void run(){
+		ArrayList<Entry>batch=new ArrayList<Entry>(MAX_BATCH);
+		/*
+		 * true if the last batch had more than one Message; an idle writer does not wait 
+		 * for more Messages
+		 */
+		boolean busy=false;
+		try {
+			while(true){
+				Entry entry;
+				try {
+					entry=queue.poll(CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(entry==null){
+					busy=false;
+					if(closing)
+						break;
+					continue;
+				}
+				long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(MAX_LATENCY);
+				long start=codec.getBytesWritten();
+				int count=0;
+				while(true){
+					batch.add(entry);
+					queue.drainTo(batch, MAX_BATCH-count-1);
+					for(Entry e:batch){
+						codec.writeMessage(e.message);
+						if(e.nextCodec!=null){
+							bytesFlushed+=codec.getBytesWritten()-start;
+							codec.flush();
+							codec=e.nextCodec;
+							start=codec.getBytesWritten();
+						}
+					}
+					count+=batch.size();
+					batch.clear();
+					if(!busy||count>=MAX_BATCH||closing||codec.getBytesWritten()-start>=MAX_BATCH_BYTES)
+						break;
+					long wait=deadline-System.nanoTime();
+					if(wait<=0)
+						break;
+					try {
+						entry=queue.poll(wait, TimeUnit.NANOSECONDS);
+					} catch (InterruptedException e) {
+						entry=null;
+					}
+					if(entry==null)
+						break;
+				}
+				codec.flush();
+				bytesFlushed+=codec.getBytesWritten()-start;
+				messagesWritten+=count;
+				flushes++;
+				busy=count>1;
+			}
+		} catch (IOException e) {
+			closing=true;
+			queue.clear();
+			onError(e);
+		}
+	}
+
+	private static class Entry{
+		final Message message;
+		final MessageCodec nextCodec;
+		Entry(Message message,MessageCodec nextCodec){
+			this.message=message;
+			this.nextCodec=nextCodec;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * The original codec; Messages are sent with Java serialization. Every connection starts with
+ * this codec so that Messengers and Servers that do not negotiate a codec can still talk to each
+ * other.
+ * <br/>
+ * The buffered streams the Object streams wrap are kept so that another codec can be layered
+ * on top of them once the handshake has finished.
+ */
+public class SerializedMessageCodec implements MessageCodec {
+
+	public static final String NAME="serialized";
+
+	private static boolean unshared=true;
+
+	/**
+	 * The max number of messages sent before {@link #out} is reset. The reset is written before
+	 * the next Message rather than after the last one, so nothing follows a Message that switches
+	 * the connection to another codec.
+	 */
+	private static final int MAX_COUNT=10;
+	private int count=0;
+
+	private final InputStream rawIn;
+	private final OutputStream rawOut;
+	/**
+	 * the number of bytes the ObjectOutputStream has written to {@link #rawOut}
+	 */
+	private long bytesWritten=0;
+	private ObjectInputStream in;
+	private ObjectOutputStream out;
+
+	/**
+	 * Creates a codec over the streams of a socket. The ObjectOutputStream is created (and its
+	 * header flushed) before the ObjectInputStream so both ends of the connection can create
+	 * their codecs at the same time without deadlocking.
+	 * @param inputStream the stream to read Messages from
+	 * @param outputStream the stream to write Messages to
+	 * @throws IOException if the stream header cannot be written or read
+	 */
+	public SerializedMessageCodec(InputStream inputStream,OutputStream outputStream) throws IOException{
+		rawOut=new BufferedOutputStream(outputStream);
+		out=new ObjectOutputStream(new FilterOutputStream(rawOut){
+			@Override
+			public void write(int b) throws IOException{
+				out.write(b);
+				bytesWritten++;
+			}
+			@Override
+			public void write(byte[] b,int off,int len) throws IOException{
+				out.write(b, off, len);
+				bytesWritten+=len;
+			}
+		});
+		out.flush();
+		rawIn=new BufferedInputStream(inputStream);
+		in=new ObjectInputStream(rawIn);
+	}
+
+	@Override
+	public String getName() {return NAME;}
+
+	@Override
+	public long getBytesWritten() {return bytesWritten;}
+
+	/**
+	 * @return the buffered stream under the ObjectInputStream; only safe to read from directly
+	 * after a whole Message has been read
+	 */
+	public InputStream getRawInputStream(){return rawIn;}
+	/**
+	 * @return the buffered stream under the ObjectOutputStream; only safe to write to directly
+	 * after {@link #flush()}
+	 */
+	public OutputStream getRawOutputStream(){return rawOut;}
+
+	@Override
+	public void writeMessage(Message message) throws IOException {
+		if(count>=MAX_COUNT)
+			reset();
+		if(unshared)out.writeUnshared(message);
+		else out.writeObject(message);
+		count++;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public Message readMessage() throws IOException, ClassNotFoundException {
+		try {
+			return (Message)(unshared?in.readUnshared():in.readObject());
+		} catch (ClassCastException e) {
+			throw new ClassNotFoundException(e.toString(), e);
+		}
+	}
+
+	@Override
+	public void reset() throws IOException {
+		out.reset();
+		count=0;
+	}
+}
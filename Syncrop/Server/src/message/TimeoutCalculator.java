@@ -1,5 +1,10 @@
 package message;
 
+/**
+ * Estimates the state of a link. The round trip time is smoothed to compute timeouts and
+ * the min round trip time and the rate data is delivered at are tracked to compute the
+ * bandwidth-delay product of the link.
+ */
 public class TimeoutCalculator {
 
 	private volatile int timeout=100000;
@@ -12,6 +17,25 @@ public class TimeoutCalculator {
 	public static final long MAX_PING_DELAY=32000,MIN_PING_DELAY=1000;
 	private volatile long lastUpdate=System.currentTimeMillis();
 	private volatile long pingDelay=MIN_PING_DELAY;
+
+	/**
+	 * How long the min round trip time is kept before a larger sample replaces it
+	 */
+	public static final long MIN_RTT_WINDOW=10000;
+	/**
+	 * The number of delivery rate samples the max is taken over
+	 */
+	private static final int RATE_SAMPLES=10;
+	/**
+	 * The gains applied to the delivery rate, one per min round trip time; the link is probed for
+	 * more bandwidth then the queue that built up is drained
+	 */
+	private static final double[] PACING_GAINS={1.25,.75,1,1,1,1,1,1};
+	private volatile int minRtt=-1;
+	private volatile long minRttTime;
+	private final double[] rateSamples=new double[RATE_SAMPLES];
+	private int rateSampleCount=0;
+	private volatile double deliveryRate=0;
 	public TimeoutCalculator(){}
 	public TimeoutCalculator(float alpha,float beta){
 		this.alpha=alpha;
@@ -28,6 +52,46 @@ public class TimeoutCalculator {
 		expectedRoundTripTimeMax=newExpectedRoundTripTimeMax;
 		timeout=(int) Math.max(expectedRoundTripTimeMax,pingDelay)*2;
 		lastUpdate=System.currentTimeMillis();
+		if(minRtt==-1||rtt<=minRtt||lastUpdate-minRttTime>MIN_RTT_WINDOW){
+			minRtt=Math.max(rtt, 0);
+			minRttTime=lastUpdate;
+		}
+	}
+	/**
+	 * Records a sample of the rate data is delivered at; the delivery rate is the max of the recent samples
+	 * @param bytes the number of bytes acknowledged
+	 * @param nanos the time in nanoseconds it took to acknowledge them
+	 */
+	public synchronized void recordDelivery(long bytes,long nanos){
+		if(bytes<=0||nanos<=0)return;
+		rateSamples[rateSampleCount++%RATE_SAMPLES]=bytes*1e9/nanos;
+		double max=0;
+		for(int i=0;i<Math.min(rateSampleCount, RATE_SAMPLES);i++)
+			max=Math.max(max, rateSamples[i]);
+		deliveryRate=max;
+	}
+	/**
+	 * @return the min recent round trip time in milliseconds or -1 if unknown
+	 */
+	public int getMinRoundTripTime(){return minRtt;}
+	/**
+	 * @return the rate data is delivered at in bytes per second or 0 if unknown
+	 */
+	public double getDeliveryRate(){return deliveryRate;}
+	/**
+	 * @return the number of bytes that can be in flight without building up a queue or 0 if unknown
+	 */
+	public long getBandwidthDelayProduct(){
+		if(minRtt==-1)return 0;
+		return (long)(deliveryRate*Math.max(minRtt, 1)/1000);
+	}
+	/**
+	 * @return the rate to send at in bytes per second or 0 if unknown
+	 */
+	public double getPacingRate(){
+		if(deliveryRate==0)return 0;
+		long phase=System.currentTimeMillis()/Math.max(minRtt, 1);
+		return deliveryRate*PACING_GAINS[(int)(phase%PACING_GAINS.length)];
 	}
 	public long getTimeOfLastUpdate(){return lastUpdate;}
 	public int getExpectedMaxRoundTripTime(){return expectedRoundTripTimeMax;}
@@ -1,20 +1,20 @@
 package server;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.StreamCorruptedException;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 
 import logger.Logger;
+import message.BinaryMessageCodec;
+import message.HashedWheelTimer;
 import message.Message;
+import message.MessageCodec;
+import message.MessageQueue;
+import message.MessageWriter;
+import message.SerializedMessageCodec;
 import message.TimeoutCalculator;
 
 public abstract class GenericConnectionThread extends Thread 
@@ -22,8 +22,45 @@ public abstract class GenericConnectionThread extends Thread
 	TimeoutCalculator timeoutCalculator=new TimeoutCalculator();
 	public int getTimeout(){return timeoutCalculator.getTimeout();}
 	public int getExpectedRoundTripTime(){return timeoutCalculator.getExpectedMaxRoundTripTime();}
-	private static boolean unshared=true;
-	private static long waitTime=10;
+	/**
+	 * @return how long the client can go without pinging before the connection is considered dead
+	 */
+	long getIdleTimeout(){
+		return Math.max(getTimeout(), TimeoutCalculator.MAX_PING_DELAY+Math.max(getExpectedRoundTripTime(), 0));
+	}
+	/**
+	 * Checks the connection on the shared timer when the client should have pinged and closes it
+	 * if nothing has been read from the client since; otherwise the check is moved to the next
+	 * time the client should ping by. Any Message counts, since a client that is busy sending may skip pings.
+	 */
+	private final Runnable idleCheck=new Runnable(){
+		public void run(){
+			if(!isConnectedToClient())return;
+			long idle=System.currentTimeMillis()-lastRead;
+			if(idle<getIdleTimeout()){
+				log(username+" queues: "+getQueueDepths(), Logger.LOG_LEVEL_TRACE);
+				idleTimeout=HashedWheelTimer.SHARED.schedule(this, getIdleTimeout()-idle);
+				return;
+			}
+			final String reason="Timeout ("+getIdleTimeout()+"ms <"+idle+")";
+			//closing waits for the close message to be written so it cannot be done by the timer
+			new Thread("Timeout "+username){
+				public void run(){
+					terminateConnection(reason, true);
+					closeConnection(reason, true);
+				}
+			}.start();
+		}
+	};
+	private volatile HashedWheelTimer.Timeout idleTimeout;
+	/**
+	 * when the last Message was read from the client
+	 */
+	private volatile long lastRead=System.currentTimeMillis();
+	/**
+	 * how long read methods wait before checking if the connection has closed
+	 */
+	private static long waitTime=1000;
 	/**
 	 * the clients; this will be modified to accommodate more users
 	 */
@@ -44,14 +81,35 @@ public abstract class GenericConnectionThread extends Thread
 	//volatile private ArrayList<String>namesOfClients=null;
 	
 	
+	/**
+	 * the codec the connection was created with
+	 */
+	SerializedMessageCodec serializedCodec;
 	/**
 	 * write to client
 	 */
-	ObjectOutputStream out;
+	MessageCodec writeCodec;
 	/**
 	 * reads input from clients
 	 */
-	ObjectInputStream in;
+	volatile MessageCodec readCodec;
+	/**
+	 * reads and writes for this connection if it is handled by a {@link NioServerEngine}
+	 */
+	NioConnection transport=null;
+	/**
+	 * writes to the client so a slow client does not block the thread printing the Message;
+	 * null if the connection does not have a socket or is handled by a {@link NioServerEngine}
+	 */
+	MessageWriter writer=null;
+	/**
+	 * how long to wait for room in {@link #writer} before the client is considered too slow
+	 */
+	private static final long SLOW_CLIENT_TIMEOUT=1000;
+	/**
+	 * how long to wait for {@link #writer} to write the remaining Messages when closing 
+	 */
+	private static final long CLOSE_TIMEOUT=5000;
 	/**
 	 * Information passed in
 	 */
@@ -66,9 +124,9 @@ public abstract class GenericConnectionThread extends Thread
 	/**
 	 * used for reading
 	 */
-	volatile ArrayList<Message>input=new ArrayList<Message>(),
-			notifications=new ArrayList<Message>(),
-			connectionInfo=new ArrayList<Message>();
+	final MessageQueue input=new MessageQueue("input"),
+			notifications=new MessageQueue("notifications"),
+			connectionInfo=new MessageQueue("connection info");
 	/**
 	 *the max # of connections allowed. 
 	 */
@@ -81,20 +139,24 @@ public abstract class GenericConnectionThread extends Thread
 	 * @param s-clientSocket
 	 * @throws IOException 
 	 */
-	GenericConnectionThread (Socket s,ObjectInputStream in,ObjectOutputStream out) throws IOException
+	GenericConnectionThread (Socket s,SerializedMessageCodec codec) throws IOException
 	{
 		super("Connection thread socket");
 		clientSocket=s;
 		if(s!=null){
-			if(out==null){
-				this.out = new ObjectOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
-				this.out.flush();
-			}
-			else this.out=out;
-			
-			this.in = in==null?
-					new ObjectInputStream(new BufferedInputStream(clientSocket.getInputStream())):
-					in;
+			serializedCodec=codec==null?
+					new SerializedMessageCodec(clientSocket.getInputStream(), clientSocket.getOutputStream()):
+					codec;
+			writeCodec=readCodec=serializedCodec;
+			writer=new MessageWriter("Write thread", serializedCodec, MessageWriter.DEFAULT_CAPACITY){
+				@Override
+				protected void onError(IOException e) {
+					log("Error cannot print because of broken pipe\n; Connection is probaly closed on the other end");
+					if(isConnectedToClient())
+						terminateConnection("Client closed connection (broken pipe)",false);
+				}
+			};
+			writer.start();
 			readMessagesThread.start();
 			try {
 				Thread.sleep(100);
@@ -104,6 +166,29 @@ public abstract class GenericConnectionThread extends Thread
 	}
 	
 	
+	/**
+	 * Lets a {@link NioServerEngine} read and write for this connection instead of
+	 * {@link #readMessagesThread}. This connection must have been created without a socket.
+	 * @param transport the connection to read from and write to
+	 */
+	void attach(NioConnection transport)
+	{
+		this.transport=transport;
+		clientSocket=transport.getSocket();
+		writeCodec=transport.getWriteCodec();
+	}
+	
+	/**
+	 * Starts this thread and, if the client is remote, the checks for whether it has stopped pinging
+	 */
+	@Override
+	public synchronized void start()
+	{
+		super.start();
+		if(clientSocket!=null)
+			idleTimeout=HashedWheelTimer.SHARED.schedule(idleCheck, getIdleTimeout());
+	}
+	
 	@Override
 	public String toString()
 	{
@@ -200,6 +285,8 @@ public abstract class GenericConnectionThread extends Thread
 			try 
 			{
 				connectedToClient=false;
+				if(idleTimeout!=null)
+					idleTimeout.cancel();
 				if(localClose)
 					printMessage(new Message(reason,"Server",Message.TYPE_MESSAGE_TO_CLIENT,Message.HEADER_CLOSE_CONNECTION));
 				
@@ -207,7 +294,12 @@ public abstract class GenericConnectionThread extends Thread
 					log(username+"(primary) closed connection: reason "+reason);
 				else log(username+" is closing connection: reason "+reason);
 				
-				if(clientSocket!=null){
+				if(writer!=null)
+					writer.finish(CLOSE_TIMEOUT);
+				if(transport!=null)
+					//the socket is closed after the close message has been written
+					transport.closeAfterFlush();
+				else if(clientSocket!=null){
 					clientSocket.close();
 				}				
 			} catch (IOException e) {
@@ -221,20 +313,37 @@ public abstract class GenericConnectionThread extends Thread
 	 */
 	boolean isConnectedToClient(){return connectedToClient&&(clientSocket==null||!clientSocket.isClosed());}
 	
-	volatile int count=0;
+	/**
+	 * Switches the codec used to write to the client if the codec requested in the
+	 * connection info is supported. The client is told about the switch with a 
+	 * {@link Message#HEADER_SET_CODEC} Message which is the last Message written with the old codec.
+	 * Unknown codecs are ignored so the connection keeps using serialization. 
+	 * @param name the name of the requested codec or null if no codec was requested 
+	 */
+	synchronized void setCodec(String name)
+	{
+		if(!BinaryMessageCodec.NAME.equals(name)||writer==null||writeCodec!=serializedCodec)
+			return;
+		writeCodec=new BinaryMessageCodec(null, serializedCodec.getRawOutputStream());
+		writer.offer(new Message(name,Server.username,Message.TYPE_MESSAGE_TO_CLIENT,Message.HEADER_SET_CODEC),
+				writeCodec,SLOW_CLIENT_TIMEOUT);
+		log(username+" is now using codec "+name, Logger.LOG_LEVEL_TRACE);
+	}
+	
 	synchronized void printMessage(Message o)
 	{
-		if(isConnectedToClient())
+		if(!isConnectedToClient())
+			return;
+		if(writer!=null){
+			if(!writer.offer(o, SLOW_CLIENT_TIMEOUT)&&isConnectedToClient()){
+				log(username+" is not reading fast enough; "+writer.size()+" messages are waiting", Logger.LOG_LEVEL_WARN);
+				terminateConnection("Client is not reading messages fast enough",false);
+			}
+		}
+		else
 			try {
-				if(unshared)out.writeUnshared(o);
-				else out.writeObject(o);
-				
-				out.flush();
-				
-				if(count++>10){
-					out.reset();
-					count=0;
-				}
+				writeCodec.writeMessage(o);
+				writeCodec.flush();
 			} 
 			catch (IOException e) 
 			{
@@ -246,44 +355,84 @@ public abstract class GenericConnectionThread extends Thread
 	
 	Message readMessage() throws IOException
 	{
-		while(input.size()==0)
+		Message m=null;
+		while(m==null)
 			try {
-				if(!isConnectedToClient())
+				m=input.poll(waitTime);
+				if(m==null&&!isConnectedToClient())
 					throw new IOException("no data left to read");
-				//outputResults("empty");
-				Thread.sleep(waitTime);
 			} catch (InterruptedException e) {
 			}
-		return input.remove(0);
+		return m;
 	}
 	Message readNotification()
 	{
-		while(notifications.size()==0)
+		while(true)
 			try {
-				//outputResults("empty");
-				Thread.sleep(waitTime);
+				return notifications.take();
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
-		
-		return notifications.remove(0);
 	}
 	Message readConnectionInfo()
 	{
-		while(connectionInfo.size()==0)
+		while(true)
 			try {
-				Thread.sleep(waitTime);
+				return connectionInfo.take();
 			} catch (InterruptedException e) {
 				log(e.toString());
 			}
-		
-		return connectionInfo.remove(0);
+	}
+	/**
+	 * Adds a default Message or notification read from the client to the appropriate queue 
+	 * @param message the message to deliver
+	 * @return false if the queue is full and the Message was not delivered
+	 */
+	boolean deliver(Message message)
+	{
+		if(message.isNotification())
+			return enqueue(notifications, message);
+		else return enqueue(input, message);
+	}
+	/**
+	 * Adds a Message read from the client to a queue. The I/O thread of a {@link NioServerEngine}
+	 * reads many connections so it does not wait for room in the queue; the blocking thread of
+	 * this connection does.
+	 * @param queue the queue to add the Message to
+	 * @param message the message to add
+	 * @return false if the queue is full and the Message was not added
+	 */
+	boolean enqueue(MessageQueue queue,Message message){
+		if(transport!=null)
+			return queue.offer(message);
+		queue.add(message);
+		return true;
+	}
+	/**
+	 * Handles a Message read from the client
+	 * @param m the message that was read
+	 * @return false if the Message could not be handled because the queue it goes in is full;
+	 * only possible if this connection is handled by a {@link NioServerEngine}
+	 */
+	boolean receive(Message m)
+	{
+		log("Read message:"+m.toString(), Logger.LOG_LEVEL_ALL);
+		active=true;
+		lastRead=System.currentTimeMillis();
+		return readMessagesThread.readMessage(m);
 	}
 	/**
 	 * 
 	 * @return true if there is a normal messages ready to be read
 	 */
-	boolean isReady(){return input.size()!=0;}
+	boolean isReady(){return !input.isEmpty();}
+	
+	/**
+	 * @return the depth of each of the queues of this connection
+	 */
+	String getQueueDepths(){
+		return input+"; "+notifications+"; "+connectionInfo+(writer==null?"":"; "+writer);
+	}
 
 	
 	class ReadMessagesThread extends Thread
@@ -298,11 +447,11 @@ public abstract class GenericConnectionThread extends Thread
 			{
 				try 
 				{
-					Message m =(Message)(unshared?in.readUnshared():in.readObject());
-					log("Read message:"+m.toString(), Logger.LOG_LEVEL_ALL);
-					active=true;
-					readMessage(m);
-					count++;
+					Message m =readCodec.readMessage();
+					if(m.isMessageToServer()&&Message.HEADER_SET_CODEC.equals(m.getHeader()))
+						//every Message after this one uses the new codec
+						readCodec=new BinaryMessageCodec(serializedCodec.getRawInputStream(), null);
+					else receive(m);
 					m=null;
 				}
 				catch(StreamCorruptedException e){
@@ -336,7 +485,10 @@ public abstract class GenericConnectionThread extends Thread
 			if(isConnectedToClient())
 				terminateConnection("error in reading",false);
 		}
-		void readMessage(Message message)
+		/**
+		 * @return false if the queue the message goes in is full
+		 */
+		boolean readMessage(Message message)
 		{
 			boolean primary=GenericConnectionThread.this instanceof PrimaryConnectionThread;
 			if(message.isMessageToServer())
@@ -356,13 +508,7 @@ public abstract class GenericConnectionThread extends Thread
 				else if(primary&&message.getHeader().equals(Message.HEADER_SET_GROUP))
 				{
 					try {
-						String names[]=(String[]) message.getMessage();
-						String key=(String) names[0];
-						
-						clients.get(key).names.clear();
-						clients.get(key).names.addAll(Arrays.asList(names));
-						//System.out.println(key+" is a member of:"+names);
-						log(key+" is a member of:"+names);
+						((PrimaryConnectionThread)GenericConnectionThread.this).setGroup((String[]) message.getMessage());
 					} catch (ArrayIndexOutOfBoundsException e) {
 						log(username+": "+e.toString());
 					}
@@ -370,14 +516,11 @@ public abstract class GenericConnectionThread extends Thread
 			}
 			else if(message.isMessageConnectionInfo())
 			{
-				connectionInfo.add(message);
+				return enqueue(connectionInfo, message);
 			}
 			else if(!primary||clients.size()>0)
-			{
-				if(message.isNotification())
-					notifications.add(message);
-				else input.add(message);
-			}
+				return deliver(message);
+			return true;
 		}
 	}
 }
\ No newline at end of file
@@ -15,9 +15,16 @@ public class InternalServer extends Server implements Messenger {
 	private String reasonToClose;
 	
 	public InternalServer(int maxConnections, int port,Logger logger,String username,String application,boolean ssl) throws IOException{
-		super(maxConnections, port, logger,ssl);
+		this(maxConnections, port, logger, username, application, ssl, false);
+	}
+	/**
+	 * @param nio if true connections are handled by a {@link NioServerEngine}
+	 * @see Server#Server(int, int, Logger, boolean, boolean)
+	 */
+	public InternalServer(int maxConnections, int port,Logger logger,String username,String application,boolean ssl,boolean nio) throws IOException{
+		super(maxConnections, port, logger,ssl,nio);
 		Server.username=username;
-		primary=new PrimaryConnectionThread(null,null,null,username,application, maxConnections,true);
+		primary=new PrimaryConnectionThread(null,null,username,application, maxConnections,true);
 		primary.start();
 	}
 	
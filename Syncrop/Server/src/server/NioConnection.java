@@ -0,0 +1,518 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import logger.Logger;
+import message.BinaryMessageCodec;
+import message.HashedWheelTimer;
+import message.Message;
+import message.MessageCodec;
+
+/**
+ * A connection handled by a {@link NioServerEngine}. Instead of a {@link GenericConnectionThread.ReadMessagesThread}
+ * blocking on the socket, the bytes are read by one of the engine's I/O threads, split into
+ * Messages and handed to the {@link GenericConnectionThread} with
+ * {@link GenericConnectionThread#receive(Message)}. Messages printed to the connection are
+ * queued and written when the channel is writable.
+ * <br/>
+ * Every connection starts with Java serialization. Until the client marks the switch to the
+ * binary codec, the serialized bytes are kept and parsed again from the start of the stream
+ * every time more bytes arrive; this is only done for the handful of Messages sent during the
+ * handshake. Clients that do not ask for the binary codec are handed back to a blocking
+ * {@link GenericConnectionThread} (only possible without SSL).
+ * <br/>
+ * The I/O thread never waits for room in the queues of the connection. If a queue is full, the
+ * channel is not read from until the Message that did not fit has been handed over.
+ * <br/>
+ * All methods except {@link #enqueue(ByteBuffer)} and {@link #closeAfterFlush()}
+ * are only called by the I/O thread that owns this connection.
+ */
+class NioConnection {
+
+	private final NioServerEngine.IOThread ioThread;
+	private final SocketChannel channel;
+	SelectionKey key;
+
+	/**
+	 * null if the connection is not encrypted
+	 */
+	private final SSLEngine sslEngine;
+	/**
+	 * encrypted bytes read from or to be written to the channel; only used with SSL
+	 */
+	private ByteBuffer netIn,netOut;
+	/**
+	 * decrypted bytes that have not been made into a Message yet
+	 */
+	private ByteBuffer appIn;
+
+	/**
+	 * Buffers waiting to be written
+	 */
+	private final LinkedList<ByteBuffer>pendingWrites=new LinkedList<ByteBuffer>();
+	/**
+	 * the number of bytes in {@link #pendingWrites}
+	 */
+	private long pendingBytes=0;
+	/**
+	 * The max number of bytes that can be waiting to be written before the client is
+	 * considered too slow and disconnected
+	 */
+	static final long MAX_PENDING_BYTES=64*1024*1024;
+	private volatile boolean closeAfterFlush=false;
+	/**
+	 * how long to wait before trying again to hand a Message to a connection whose queue was full
+	 */
+	static final long RESUME_DELAY=100;
+	/**
+	 * the Message that did not fit in the queue of the connection; the channel is not read from until it does
+	 */
+	private Message stalled=null;
+
+	/**
+	 * the serialized bytes read since the start of the stream and how many Messages have been
+	 * parsed from them
+	 */
+	private ByteArrayOutputStream serializedBytes=new ByteArrayOutputStream();
+	private int serializedMessagesRead=0;
+	/**
+	 * writes the stream header the client is waiting for and the acknowledgment of the codec
+	 */
+	private final ByteArrayOutputStream serializedOut=new ByteArrayOutputStream();
+	private final ObjectOutputStream objectOut;
+
+	private final BinaryMessageCodec readCodec;
+	private final MessageCodec writeCodec;
+
+	private GenericConnectionThread connection;
+	/**
+	 * closes the connection if the client has not sent its connection info in time
+	 */
+	private final HashedWheelTimer.Timeout handshakeDeadline;
+
+	NioConnection(NioServerEngine.IOThread ioThread,SocketChannel channel,SSLEngine sslEngine) throws IOException{
+		this.ioThread=ioThread;
+		this.channel=channel;
+		this.sslEngine=sslEngine;
+		if(sslEngine!=null){
+			netIn=ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+			netOut=ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+			netOut.flip();
+			appIn=ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+		}
+		else appIn=ByteBuffer.allocate(16*1024);
+		readCodec=new BinaryMessageCodec(new AppInputStream(), null);
+		writeCodec=new BinaryMessageCodec(null, new ByteArrayOutputStream(){
+			@Override
+			public synchronized void flush() throws IOException{
+				if(size()==0)return;
+				enqueue(ByteBuffer.wrap(toByteArray()));
+				reset();
+			}
+		});
+		//the client does not send anything until it has read the stream header
+		objectOut=new ObjectOutputStream(serializedOut);
+		flushSerializedOut();
+		handshakeDeadline=HashedWheelTimer.SHARED.schedule(new Runnable(){
+			public void run(){
+				Server.log("Handshake took longer than "+Server.HANDSHAKE_TIMEOUT+"ms; closing connection", Logger.LOG_LEVEL_WARN);
+				closeAfterFlush();
+			}
+		}, Server.HANDSHAKE_TIMEOUT);
+	}
+	
+	private void flushSerializedOut() throws IOException{
+		objectOut.flush();
+		enqueue(ByteBuffer.wrap(serializedOut.toByteArray()));
+		serializedOut.reset();
+	}
+
+	Socket getSocket(){return channel.socket();}
+	MessageCodec getWriteCodec(){return writeCodec;}
+
+	/**
+	 * Queues bytes to be written and wakes up the I/O thread.
+	 * @param buffer the bytes to write
+	 * @throws IOException if the client is not reading fast enough
+	 */
+	void enqueue(ByteBuffer buffer) throws IOException{
+		synchronized (pendingWrites) {
+			if(pendingBytes+buffer.remaining()>MAX_PENDING_BYTES)
+				throw new IOException("Client is not reading messages fast enough; "+pendingBytes+" bytes are waiting");
+			pendingWrites.add(buffer);
+			pendingBytes+=buffer.remaining();
+		}
+		ioThread.requestWrite(this);
+	}
+
+	/**
+	 * Closes the channel once all pending writes have been written
+	 */
+	void closeAfterFlush(){
+		closeAfterFlush=true;
+		ioThread.requestWrite(this);
+	}
+
+	/**
+	 * Called when the channel is readable
+	 * @throws IOException if the channel is closed or the data read is invalid
+	 */
+	void onReadable() throws IOException, ClassNotFoundException{
+		int read;
+		if(sslEngine==null){
+			ensureAppInCapacity(1);
+			read=channel.read(appIn);
+		}
+		else {
+			read=channel.read(netIn);
+			unwrap();
+		}
+		if(read<0)
+			throw new EOFException("No data left to read");
+		processAppData();
+	}
+
+	/**
+	 * Called when the channel is writable or when new data has been queued
+	 * @return true if everything has been written
+	 * @throws IOException if the channel cannot be written to
+	 */
+	boolean onWritable() throws IOException, ClassNotFoundException{
+		while(true){
+			if(sslEngine!=null){
+				if(netOut.hasRemaining()){
+					channel.write(netOut);
+					if(netOut.hasRemaining())return false;
+				}
+				if(sslEngine.isOutboundDone())
+					break;
+				if(sslEngine.getHandshakeStatus()==HandshakeStatus.NEED_WRAP){
+					wrap(ByteBuffer.allocate(0));
+					if(sslEngine.getHandshakeStatus()==HandshakeStatus.NEED_UNWRAP&&netIn.position()>0){
+						//the rest of the handshake may already have been read
+						unwrap();
+						processAppData();
+					}
+					continue;
+				}
+			}
+			ByteBuffer buffer;
+			synchronized (pendingWrites) {
+				buffer=pendingWrites.peek();
+			}
+			if(buffer==null)
+				break;
+			if(sslEngine==null){
+				channel.write(buffer);
+				if(buffer.hasRemaining())return false;
+			}
+			else {
+				if(isHandshaking())
+					//application data cannot be sent until the handshake is finished
+					return true;
+				wrap(buffer);
+				if(buffer.hasRemaining())continue;
+			}
+			synchronized (pendingWrites) {
+				pendingBytes-=pendingWrites.remove().limit();
+			}
+		}
+		if(closeAfterFlush)
+			close();
+		return true;
+	}
+
+	/**
+	 * @return true if the channel should not be read from because a queue of the connection is full
+	 */
+	boolean isReadPaused(){return stalled!=null;}
+
+	/**
+	 * Hands a Message to the connection. If its queue is full, the channel is not read from
+	 * and the Message is handed over again by {@link #resume()}.
+	 * @return false if the Message did not fit
+	 */
+	private boolean receive(Message message){
+		if(connection.receive(message))
+			return true;
+		stalled=message;
+		if(key!=null&&key.isValid())
+			key.interestOps(key.interestOps()&~SelectionKey.OP_READ);
+		Server.log("Queue of "+connection.username+" is full; pausing reads", Logger.LOG_LEVEL_TRACE);
+		HashedWheelTimer.SHARED.schedule(new Runnable(){
+			public void run(){
+				ioThread.requestResume(NioConnection.this);
+			}
+		}, RESUME_DELAY);
+		return false;
+	}
+
+	/**
+	 * Tries again to hand the Message that did not fit to the connection and, if it does,
+	 * goes back to reading the channel
+	 * @throws IOException if the data already read is invalid
+	 */
+	void resume() throws IOException, ClassNotFoundException{
+		if(stalled==null||!channel.isOpen())
+			return;
+		Message message=stalled;
+		stalled=null;
+		if(!receive(message))
+			return;
+		if(key!=null&&key.isValid())
+			key.interestOps(key.interestOps()|SelectionKey.OP_READ);
+		//the frames read after the stalled Message
+		processAppData();
+	}
+
+	boolean hasPendingWrites(){
+		synchronized (pendingWrites) {
+			return !pendingWrites.isEmpty()||closeAfterFlush||(netOut!=null&&netOut.hasRemaining());
+		}
+	}
+
+	void close(){
+		handshakeDeadline.cancel();
+		if(key!=null)key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Server.log(e.toString());
+		}
+	}
+
+	/**
+	 * Called when an error occurs while reading or writing
+	 * @param reason the reason the connection is closed
+	 */
+	void fail(String reason){
+		if(connection!=null)
+			connection.terminateConnection(reason, false);
+		close();
+	}
+
+	private boolean isHandshaking(){
+		HandshakeStatus status=sslEngine.getHandshakeStatus();
+		return status!=HandshakeStatus.NOT_HANDSHAKING&&status!=HandshakeStatus.FINISHED;
+	}
+
+	private void unwrap() throws IOException{
+		netIn.flip();
+		try {
+			while(true){
+				SSLEngineResult result=sslEngine.unwrap(netIn, appIn);
+				runDelegatedTasks();
+				switch(result.getStatus()){
+					case BUFFER_OVERFLOW:
+						ensureAppInCapacity(sslEngine.getSession().getApplicationBufferSize());
+						continue;
+					case BUFFER_UNDERFLOW:
+						if(netIn.limit()==netIn.capacity()){
+							ByteBuffer bigger=ByteBuffer.allocate(netIn.capacity()*2);
+							bigger.put(netIn);
+							bigger.flip();
+							netIn=bigger;
+						}
+						return;
+					case CLOSED:
+						throw new EOFException("SSL connection closed");
+					default:
+						break;
+				}
+				if(!netIn.hasRemaining()||result.bytesConsumed()==0&&result.bytesProduced()==0)
+					return;
+			}
+		}
+		finally{
+			netIn.compact();
+			if(sslEngine.getHandshakeStatus()==HandshakeStatus.NEED_WRAP||hasPendingWrites())
+				ioThread.requestWrite(this);
+		}
+	}
+
+	private void wrap(ByteBuffer source) throws SSLException{
+		netOut.compact();
+		try {
+			while(true){
+				SSLEngineResult result=sslEngine.wrap(source, netOut);
+				runDelegatedTasks();
+				if(result.getStatus()==SSLEngineResult.Status.BUFFER_OVERFLOW){
+					ByteBuffer bigger=ByteBuffer.allocate(netOut.capacity()*2);
+					netOut.flip();
+					bigger.put(netOut);
+					netOut=bigger;
+					continue;
+				}
+				if(result.getStatus()==SSLEngineResult.Status.CLOSED)
+					throw new SSLException("SSL connection closed");
+				return;
+			}
+		}
+		finally {
+			netOut.flip();
+		}
+	}
+
+	/**
+	 * Runs the SSLEngine's tasks on the I/O thread; these only happen during the handshake
+	 */
+	private void runDelegatedTasks(){
+		Runnable task;
+		while((task=sslEngine.getDelegatedTask())!=null)
+			task.run();
+	}
+
+	private void ensureAppInCapacity(int needed){
+		if(appIn.remaining()>=needed)return;
+		ByteBuffer bigger=ByteBuffer.allocate(Math.max(appIn.capacity()*2, appIn.position()+needed));
+		appIn.flip();
+		bigger.put(appIn);
+		appIn=bigger;
+	}
+
+	/**
+	 * Turns the bytes in {@link #appIn} into Messages
+	 */
+	private void processAppData() throws IOException, ClassNotFoundException{
+		if(stalled!=null)
+			return;
+		if(serializedBytes!=null){
+			appIn.flip();
+			serializedBytes.write(appIn.array(), appIn.position(), appIn.remaining());
+			appIn.clear();
+			parseSerializedMessages();
+			if(serializedBytes!=null||connection==null)
+				return;
+		}
+		appIn.flip();
+		try {
+			while(appIn.remaining()>=4){
+				int length=appIn.getInt(appIn.position());
+				if(length<=0||length>BinaryMessageCodec.MAX_FRAME_SIZE)
+					throw new IOException("Invalid frame length: "+length);
+				if(appIn.remaining()<length+4){
+					if(appIn.capacity()<length+4){
+						appIn.compact();
+						ensureAppInCapacity(length+4);
+						appIn.flip();
+					}
+					break;
+				}
+				if(!receive(readCodec.readMessage()))
+					break;
+			}
+		}
+		finally{
+			appIn.compact();
+		}
+	}
+
+	/**
+	 * Parses the serialized Messages sent during the handshake
+	 */
+	private void parseSerializedMessages() throws IOException, ClassNotFoundException{
+		byte[] bytes=serializedBytes.toByteArray();
+		ByteArrayInputStream byteIn=new ByteArrayInputStream(bytes);
+		int messagesParsed=0;
+		try {
+			ObjectInputStream in=new ObjectInputStream(byteIn);
+			while(true){
+				Message message=(Message)in.readUnshared();
+				if(messagesParsed++<serializedMessagesRead)
+					continue;
+				serializedMessagesRead++;
+				if(connection==null){
+					if(!handshake(message,bytes))
+						return;
+				}
+				else if(message.isMessageToServer()&&Message.HEADER_SET_CODEC.equals(message.getHeader())){
+					//everything after this Message is binary
+					int consumed=bytes.length-byteIn.available();
+					serializedBytes=null;
+					appIn.clear();
+					ensureAppInCapacity(bytes.length-consumed);
+					appIn.put(bytes, consumed, bytes.length-consumed);
+					return;
+				}
+				else if(!receive(message))
+					return;
+			}
+		}
+		catch (EOFException e){
+			//wait for more data
+		}
+		catch(ClassCastException e){
+			throw new ClassNotFoundException(e.toString(),e);
+		}
+	}
+
+	/**
+	 * Handles the first Message of the connection
+	 * @param message the connection info
+	 * @param bytes all the bytes that have been read so far
+	 * @return true if this connection is still handled by the engine
+	 */
+	private boolean handshake(Message message,byte[] bytes) throws IOException{
+		handshakeDeadline.cancel();
+		Object o[]=(Object[])message.getMessage();
+		boolean primary=(Boolean)o[1];
+		int codecIndex=primary?3:2;
+		String requestedCodec=o.length>codecIndex?o[codecIndex]+"":null;
+		if(!BinaryMessageCodec.NAME.equals(requestedCodec)){
+			if(sslEngine!=null)
+				throw new IOException("Clients connecting over SSL must use the "+BinaryMessageCodec.NAME+" codec");
+			ioThread.handOff(this, Arrays.copyOf(bytes, bytes.length));
+			serializedBytes=null;
+			return false;
+		}
+		objectOut.writeUnshared(new Message(requestedCodec,Server.username,Message.TYPE_MESSAGE_TO_CLIENT,Message.HEADER_SET_CODEC));
+		flushSerializedOut();
+
+		String application=o[0]+"";
+		if(primary)
+			connection=new PrimaryConnectionThread(null,null, message.getUserID(), application, (int)o[2]);
+		else connection=new SecondaryConnectionThread(null,null,message.getUserID(),application);
+		connection.attach(this);
+		connection.start();
+		Server.log("NIO client connected: "+message.getUserID(), Logger.LOG_LEVEL_TRACE);
+		return true;
+	}
+
+	SocketChannel getChannel(){return channel;}
+
+	/**
+	 * Lets the codec read the complete frames in {@link #appIn}
+	 */
+	private class AppInputStream extends InputStream{
+		@Override
+		public int read(){
+			return appIn.hasRemaining()?appIn.get()&0xFF:-1;
+		}
+		@Override
+		public int read(byte[] b,int off,int len){
+			if(!appIn.hasRemaining())return -1;
+			len=Math.min(len, appIn.remaining());
+			appIn.get(b, off, len);
+			return len;
+		}
+		@Override
+		public int available(){return appIn.remaining();}
+	}
+}
@@ -0,0 +1,281 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import logger.Logger;
+
+/**
+ * Accepts connections for a {@link Server} without a thread per connection. One thread accepts
+ * connections and hands them to a small, fixed number of {@link IOThread}s; each I/O thread
+ * uses a {@link Selector} to read from and write to all of its connections.
+ * <br/>
+ * The Primary Connection still has its own relay thread and a Secondary Connection has a thread
+ * while it is choosing which Primary to connect to, but an established Secondary Connection
+ * does not use any threads of its own.
+ * <br/>
+ * When ssl is true, connections are encrypted with an {@link SSLEngine} created from the default
+ * SSLContext (the same keystore used by the blocking Server).
+ * @see NioConnection
+ */
+class NioServerEngine {
+
+	/**
+	 * The max number of I/O threads
+	 */
+	static final int MAX_IO_THREADS=4;
+
+	private final Server server;
+	private final int port;
+	private final boolean ssl;
+	private ServerSocketChannel serverChannel;
+	private final IOThread ioThreads[];
+	private int nextIOThread=0;
+	private SSLContext sslContext;
+
+	NioServerEngine(Server server,int port,boolean ssl){
+		this.server=server;
+		this.port=port;
+		this.ssl=ssl;
+		ioThreads=new IOThread[Math.max(1,Math.min(MAX_IO_THREADS, Runtime.getRuntime().availableProcessors()))];
+	}
+
+	/**
+	 * Binds the port and starts the threads
+	 * @throws IOException if the port cannot be bound or the I/O threads cannot open a Selector
+	 */
+	void start() throws IOException{
+		if(ssl)
+			try {
+				sslContext=SSLContext.getDefault();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e.toString(),e);
+			}
+		serverChannel=ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port),100);
+		for(int i=0;i<ioThreads.length;i++){
+			ioThreads[i]=new IOThread(i);
+			ioThreads[i].start();
+		}
+		new Thread("Wait for connections (NIO)"){
+			public void run(){
+				Server.log("Now accepting connections (NIO with "+ioThreads.length+" I/O threads)");
+				while(serverChannel.isOpen()){
+					try {
+						SocketChannel channel=serverChannel.accept();
+						if(!server.isAcceptingConnections()){
+							Server.log("Rejecting connection; too many connections", Logger.LOG_LEVEL_WARN);
+							channel.close();
+							continue;
+						}
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+						SSLEngine sslEngine=null;
+						if(ssl){
+							sslEngine=sslContext.createSSLEngine();
+							sslEngine.setUseClientMode(false);
+							sslEngine.beginHandshake();
+						}
+						IOThread ioThread=ioThreads[nextIOThread++%ioThreads.length];
+						ioThread.register(new NioConnection(ioThread, channel, sslEngine));
+					}
+					catch (ClosedChannelException e) {break;}
+					catch (IOException e) {Server.log(e);}
+					catch (Exception e) {Server.log(e);}
+				}
+				Server.log("Finished accepting connections");
+			}
+		}.start();
+	}
+
+	void close() throws IOException{
+		if(serverChannel!=null)
+			serverChannel.close();
+		for(IOThread ioThread:ioThreads)
+			if(ioThread!=null)
+				ioThread.close();
+	}
+
+	/**
+	 * Reads and writes the connections registered to its Selector
+	 */
+	class IOThread extends Thread{
+		private final Selector selector;
+		private volatile boolean running=true;
+		private final ConcurrentLinkedQueue<NioConnection>newConnections=new ConcurrentLinkedQueue<NioConnection>();
+		private final ConcurrentLinkedQueue<NioConnection>writeRequests=new ConcurrentLinkedQueue<NioConnection>();
+		private final ConcurrentLinkedQueue<NioConnection>resumeRequests=new ConcurrentLinkedQueue<NioConnection>();
+		/**
+		 * connections to be handed back to a blocking thread and the bytes already read from them
+		 */
+		private final ArrayList<NioConnection>handOffs=new ArrayList<NioConnection>();
+		private final ArrayList<byte[]>handOffBytes=new ArrayList<byte[]>();
+
+		IOThread(int id) throws IOException{
+			super("NIO I/O thread "+id);
+			selector=Selector.open();
+		}
+
+		void register(NioConnection connection){
+			newConnections.add(connection);
+			selector.wakeup();
+		}
+		/**
+		 * Called by any thread after it has queued data for connection
+		 */
+		void requestWrite(NioConnection connection){
+			writeRequests.add(connection);
+			if(Thread.currentThread()!=this)
+				selector.wakeup();
+		}
+		/**
+		 * Called by any thread when a connection whose reads are paused should try to resume them
+		 */
+		void requestResume(NioConnection connection){
+			resumeRequests.add(connection);
+			selector.wakeup();
+		}
+		/**
+		 * Called by this thread when connection did not ask for a codec the engine can handle
+		 */
+		void handOff(NioConnection connection,byte[] bytesRead){
+			handOffs.add(connection);
+			handOffBytes.add(bytesRead);
+		}
+
+		void close(){
+			running=false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run(){
+			while(running){
+				try {
+					if(writeRequests.isEmpty()&&resumeRequests.isEmpty()&&selector.selectedKeys().isEmpty())
+						selector.select();
+					else selector.selectNow();
+					NioConnection connection;
+					while((connection=newConnections.poll())!=null){
+						connection.key=connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+						//writes requested before the connection was registered
+						if(connection.hasPendingWrites())
+							write(connection);
+					}
+					while((connection=writeRequests.poll())!=null)
+						write(connection);
+					while((connection=resumeRequests.poll())!=null)
+						try {
+							connection.resume();
+						} catch (IOException|ClassNotFoundException|ClassCastException e) {
+							connection.fail(e.toString());
+						}
+
+					Iterator<SelectionKey>iterator=selector.selectedKeys().iterator();
+					while(iterator.hasNext()){
+						SelectionKey key=iterator.next();
+						iterator.remove();
+						connection=(NioConnection)key.attachment();
+						if(!key.isValid())continue;
+						try {
+							if(key.isReadable())
+								connection.onReadable();
+							if(key.isValid()&&key.isWritable())
+								write(connection);
+						} catch (IOException|ClassNotFoundException|ClassCastException e) {
+							connection.fail(e.toString());
+						}
+					}
+					if(!handOffs.isEmpty())
+						finishHandOffs();
+				}
+				catch (IOException e) {Server.log(e);}
+				catch (Exception|Error e) {Server.log(e);}
+			}
+			for(SelectionKey key:selector.keys())
+				((NioConnection)key.attachment()).fail("Server is shutting down");
+			try {
+				selector.close();
+			} catch (IOException e) {
+				Server.log(e);
+			}
+		}
+
+		private void write(NioConnection connection){
+			SelectionKey key=connection.key;
+			if(key==null||!key.isValid())return;
+			try {
+				boolean flushed=connection.onWritable();
+				int read=connection.isReadPaused()?0:SelectionKey.OP_READ;
+				key.interestOps(flushed?read:read|SelectionKey.OP_WRITE);
+			} catch (IOException|ClassNotFoundException|ClassCastException e) {
+				connection.fail(e.toString());
+			}
+			catch (CancelledKeyException e){}
+		}
+
+		/**
+		 * Removes the handed off connections from the Selector and lets the Server accept
+		 * them as if they were accepted by a blocking ServerSocket
+		 */
+		private void finishHandOffs() throws IOException{
+			for(NioConnection connection:handOffs)
+				connection.key.cancel();
+			//removes the cancelled keys so the channels can be made blocking
+			selector.selectNow();
+			for(int i=0;i<handOffs.size();i++){
+				final NioConnection connection=handOffs.get(i);
+				final byte[] bytesRead=handOffBytes.get(i);
+				connection.getChannel().configureBlocking(true);
+				new Thread("Accept legacy connection"){
+					public void run(){
+						Socket socket=connection.getSocket();
+						try {
+							//the stream header has already been sent by the NioConnection
+							OutputStream out=new FilterOutputStream(socket.getOutputStream()){
+								int headerBytesLeft=4;
+								@Override
+								public void write(int b) throws IOException{
+									if(headerBytesLeft>0)headerBytesLeft--;
+									else super.write(b);
+								}
+								@Override
+								public void write(byte[] b,int off,int len) throws IOException{
+									int skip=Math.min(headerBytesLeft, len);
+									headerBytesLeft-=skip;
+									out.write(b,off+skip,len-skip);
+								}
+							};
+							server.acceptConnection(socket,
+									new SequenceInputStream(new ByteArrayInputStream(bytesRead), socket.getInputStream()),out);
+						} catch (IOException|ClassNotFoundException e) {
+							Server.log(e);
+							connection.close();
+						}
+					}
+				}.start();
+			}
+			handOffs.clear();
+			handOffBytes.clear();
+		}
+	}
+}
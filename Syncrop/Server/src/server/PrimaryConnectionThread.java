@@ -1,25 +1,41 @@
 package server;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.ConcurrentModificationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 
 import logger.Logger;
 import message.Message;
-import message.TimeoutCalculator;
+import message.MessageQueue;
+import message.SerializedMessageCodec;
 
 public class PrimaryConnectionThread extends GenericConnectionThread{
 	
-	CheckThreadsThread checkThreadsThread=null;
 	private boolean internal;
-	public PrimaryConnectionThread(Socket s,ObjectInputStream in,ObjectOutputStream out,String username,String application,int maxConnections) throws IOException {
-		this(s, in, out, username, application, maxConnections, false);
+	/**
+	 * Messages from Secondary Connections waiting to be relayed to the primary
+	 */
+	final MessageQueue relay=new MessageQueue("relay",4*MessageQueue.DEFAULT_CAPACITY);
+	/**
+	 * The max number of Messages relayed at once
+	 */
+	private static final int MAX_RELAY_BATCH=256;
+	/**
+	 * How long the relay waits for a Message before checking if the connection has closed 
+	 */
+	private static final long RELAY_WAIT=1000;
+	/**
+	 * finds the recipients of targeted Messages
+	 */
+	final RoutingIndex<SecondaryConnectionThread>routes=new RoutingIndex<SecondaryConnectionThread>();
+	public PrimaryConnectionThread(Socket s,SerializedMessageCodec codec,String username,String application,int maxConnections) throws IOException {
+		this(s, codec, username, application, maxConnections, false);
 	}
-	public PrimaryConnectionThread(Socket s,ObjectInputStream in,ObjectOutputStream out,String username,String application,int maxConnections,boolean internal) throws IOException {
-		super(s,in,out);
+	public PrimaryConnectionThread(Socket s,SerializedMessageCodec codec,String username,String application,int maxConnections,boolean internal) throws IOException {
+		super(s,codec);
 		if(username==null||username.isEmpty())
 			username=System.currentTimeMillis()+"";
 		this.application=application;
@@ -47,35 +63,45 @@ public class PrimaryConnectionThread extends GenericConnectionThread{
 			notifications.add(m);
 		else input.add(m);
 	}
+	/**
+	 * Messages from an external primary are sent to the Secondary Connections as soon as they are read
+	 */
+	@Override
+	boolean deliver(Message message){
+		if(message.isNotification())
+			return super.deliver(message);
+		printMessageToClients(message);
+		return true;
+	}
+	
+	/**
+	 * Waits for Messages from the Secondary Connections and relays them in batches
+	 */
 	@Override
 	public void run()
 	{
-		(checkThreadsThread=new CheckThreadsThread(!internal)).start();
+		ArrayList<Message>batch=new ArrayList<Message>(MAX_RELAY_BATCH);
 		while (!isConnectionClosed())//relays info
 		{
 			try 
 			{
-				if(clients.size()==0)
+				if(clients.size()==0&&!input.isEmpty())
 				{
-					if(input.size()!=0){
-						log("Clearing input because there are no clients", Logger.LOG_LEVEL_WARN);
-						input.clear();
-					}
-					Thread.sleep(1000);
-					continue;
+					log("Clearing input because there are no clients", Logger.LOG_LEVEL_WARN);
+					input.clear();
 				}
-				if(clientSocket!=null)
-					if(isReady())//prints messages to clients
-					{
-						printNextMessageToClients();
-					}				
-				Message m=readClientMessages();
-				if(m!=null)
+				Message m=relay.poll(RELAY_WAIT);
+				if(m==null)
+					continue;
+				batch.add(m);
+				relay.drainTo(batch, MAX_RELAY_BATCH-1);
+				for(Message message:batch)
 					if(clientSocket==null)
-						input.add(m);
-					else printMessage(m);
-				Thread.sleep(20);
+						input.add(message);
+					else printMessageToClients(message);
+				batch.clear();
 			}
+			catch (InterruptedException e){}
 			catch (OutOfMemoryError e) {Server.log(e);terminateConnection("out of memory",true);}
 			catch (Error|Exception e) {log(e);terminateConnection(e.toString(), true);}
 			
@@ -88,44 +114,44 @@ public class PrimaryConnectionThread extends GenericConnectionThread{
 				clients.get(key).printMessage(message);
 		else //only writes to targeted messages 
 		{
-			//System.out.println(clients.keySet());
+			Collection<SecondaryConnectionThread>recipients=
+					routes.getRecipients(message.getTargetsToInclude(), message.getTargetsToExclude());
+			if(recipients.isEmpty())return;
 			Message undirectedMessage=new Message(message);
-			for(String key:clients.keySet())
-				if(message.isTarget(clients.get(key).names))
-				{
-					clients.get(key).printMessage(undirectedMessage);
-				}
+			for(SecondaryConnectionThread client:recipients)
+				client.printMessage(undirectedMessage);
 		}
 	}
-	protected void printNextMessageToClients() throws IOException{
-		//read
-		Message message=readMessage();
-		printMessageToClients(message);
+	/**
+	 * Adds a Secondary Connection that has been accepted by this Primary
+	 * @param client the Secondary Connection
+	 */
+	void addClient(SecondaryConnectionThread client){
+		routes.put(client, client.names);
+		clients.put(client.username,client);
 	}
-	
-	public Message readClientMessages() throws IOException{
-		for(String key:clients.keySet())
-		{
-			SecondaryConnectionThread client=clients.get(key);
-			if(client==null)continue;
-		    if(client.isReady()){
-		    	Message m= client.readMessage();
-		    	if(!key.equals(m.getUserID()))
-		    		client.closeConnection("invalid id", true);
-		    	else
-			    	if(!m.getUserID().equals(key))
-			    		terminateConnection("User:"+key+" is sending messages with "
-			    				+ "different id-"+m.getUserID(), true);
-			    	else {
-			    		log("Primary read message:"+m, Logger.LOG_LEVEL_TRACE);
-			    		return m;
-			    	}
-		    }
+	/**
+	 * Sets the names a Secondary Connection can be reached by
+	 * @param names the username of the Secondary Connection followed by the names of its groups
+	 */
+	void setGroup(String names[]){
+		SecondaryConnectionThread client=clients.get(names[0]);
+		if(client==null){
+			log("Cannot set group of unknown client "+names[0], Logger.LOG_LEVEL_WARN);
+			return;
 		}
-		
-		return null;
+		client.names.clear();
+		client.names.addAll(Arrays.asList(names));
+		routes.put(client, client.names);
+		log(names[0]+" is a member of:"+client.names);
+	}
+	@Override
+	protected boolean remove(String key,String reason,boolean localClose){
+		SecondaryConnectionThread client=clients.get(key);
+		if(client!=null)
+			routes.remove(client);
+		return super.remove(key, reason, localClose);
 	}
-	
 	boolean isConnectionClosed(){
 		if(clientSocket==null)
 			return !connectedToClient;
@@ -145,51 +171,11 @@ public class PrimaryConnectionThread extends GenericConnectionThread{
 			clients.get(key).closeConnection("Error with primary: "+reason,true);
 		
 		closeConnection(reason,localClose);
-		checkThreadsThread.interrupt();
 		if(clientSocket!=null)
 			input.clear();
-		checkThreadsThread.interrupt();
+		relay.clear();
 		clients.clear();
+		routes.clear();
 		Server.connections.remove(username);
 	}
-	
-	
-	/**
-	 * checks for and removes inactive threads every 20s
-	 */
-	
-	class CheckThreadsThread extends Thread
-	{
-		boolean checkPrimary;
-		public CheckThreadsThread(boolean checkPrimary) 
-		{
-			super("CheckThreads");
-			this.checkPrimary=checkPrimary;
-		}
-		@Override
-		public void run()
-		{
-			while(isConnectedToClient()){
-				try{
-					long currentTime=System.currentTimeMillis();
-					
-					for(SecondaryConnectionThread client:clients.values()){
-						if(currentTime-client.timeoutCalculator.getTimeOfLastUpdate()<=TimeoutCalculator.MAX_PING_DELAY+client.getExpectedRoundTripTime()){
-							log("pinging",Logger.LOG_LEVEL_TRACE);
-							//client.printMessage(new Message(System.currentTimeMillis(), Server.username, Message.TYPE_MESSAGE_TO_CLIENT,Message.HEADER_PING));
-						}
-						else client.closeConnection("Timeout ("+client.getTimeout()+"ms <"+(currentTime-client.timeoutCalculator.getTimeOfLastUpdate())+")", true);
-					}
-					if(checkPrimary&&clientSocket!=null)
-						if(currentTime-timeoutCalculator.getTimeOfLastUpdate()<=getTimeout())
-							;//printMessage(new Message(System.currentTimeMillis(), Server.username, Message.TYPE_MESSAGE_TO_CLIENT,Message.HEADER_PING));
-						else terminateConnection("Timeout (primary) ("+getTimeout()+"ms)", true);
-					Thread.sleep(5*60*1000);//terminating an idle connection is not high priority
-				} 
-				catch (InterruptedException e){log("Check threads threads has been interrupted");}
-				catch (ConcurrentModificationException e) {log(e.toString());}
-				catch (Exception|Error e) {Server.log(e);terminateConnection(e.toString(),false);}
-			}
-		}
-	}
-}
\ No newline at end of file
+}
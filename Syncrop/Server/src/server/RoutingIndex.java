@@ -0,0 +1,75 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Maps the names (username and groups) of the clients of a Primary Connection to the clients 
+ * so the recipients of a targeted Message can be found without checking every client. 
+ * The index has to be updated whenever a client joins, leaves or changes its groups.
+ * <br/>
+ * A client is a recipient if one of its names is a target to include and none of its names
+ * is a target to exclude; this matches {@link message.Message#isTarget(HashSet)}.
+ * @param <T> the type of the clients
+ */
+class RoutingIndex<T> {
+	private final HashMap<String,HashSet<T>>clientsByName=new HashMap<String,HashSet<T>>();
+	private final HashMap<T,ArrayList<String>>namesByClient=new HashMap<T,ArrayList<String>>();
+
+	/**
+	 * Adds a client or replaces the names of a client that has already been added
+	 * @param client the client to add
+	 * @param names the names the client can be reached by
+	 */
+	synchronized void put(T client,Collection<String> names){
+		remove(client);
+		ArrayList<String>copy=new ArrayList<String>(names);
+		namesByClient.put(client, copy);
+		for(String name:copy){
+			HashSet<T>clients=clientsByName.get(name);
+			if(clients==null)
+				clientsByName.put(name, clients=new HashSet<T>(2));
+			clients.add(client);
+		}
+	}
+	synchronized void remove(T client){
+		ArrayList<String>names=namesByClient.remove(client);
+		if(names!=null)
+			for(String name:names){
+				HashSet<T>clients=clientsByName.get(name);
+				if(clients!=null&&clients.remove(client)&&clients.isEmpty())
+					clientsByName.remove(name);
+			}
+	}
+	synchronized void clear(){
+		clientsByName.clear();
+		namesByClient.clear();
+	}
+
+	/**
+	 * @param targetsToInclude the names to send to 
+	 * @param targetsToExclude the names to not send to
+	 * @return the clients that should receive a Message with these targets 
+	 */
+	synchronized Collection<T> getRecipients(Set<String>targetsToInclude,Set<String>targetsToExclude){
+		LinkedHashSet<T>recipients=new LinkedHashSet<T>();
+		for(String name:targetsToInclude){
+			HashSet<T>clients=clientsByName.get(name);
+			if(clients!=null)
+				recipients.addAll(clients);
+		}
+		if(!recipients.isEmpty())
+			for(String name:targetsToExclude){
+				HashSet<T>clients=clientsByName.get(name);
+				if(clients!=null)
+					recipients.removeAll(clients);
+			}
+		return recipients;
+	}
+
+	synchronized int size(){return namesByClient.size();}
+}
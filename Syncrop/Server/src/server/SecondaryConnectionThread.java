@@ -1,19 +1,18 @@
 package server;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 
 import logger.Logger;
 import message.Message;
+import message.SerializedMessageCodec;
 
 public class SecondaryConnectionThread extends GenericConnectionThread{
 
-	private PrimaryConnectionThread primaryClient;
-	public SecondaryConnectionThread(Socket s,ObjectInputStream in,ObjectOutputStream out, String username, String application) throws IOException {
-		super(s,in,out);
+	private volatile PrimaryConnectionThread primaryClient;
+	public SecondaryConnectionThread(Socket s,SerializedMessageCodec codec, String username, String application) throws IOException {
+		super(s,codec);
 		this.username=username;
 		this.application=application;
 		//id=username+"_"+application+System.currentTimeMillis();
@@ -26,6 +25,31 @@ public class SecondaryConnectionThread extends GenericConnectionThread{
 			e.printStackTrace();
 		}
 	}
+	/**
+	 * Once this connection has been accepted by a Primary, Messages are handed directly to 
+	 * the Primary's relay queue instead of waiting in {@link #input}
+	 */
+	@Override
+	boolean deliver(Message message){
+		synchronized (input) {
+			if(primaryClient==null||message.isNotification())
+				return super.deliver(message);
+		}
+		return relay(primaryClient,message,false);
+	}
+	/**
+	 * @param wait if the Message should be waited on to be added even if the I/O thread of a {@link NioServerEngine} is calling
+	 * @return false if the relay queue is full and the Message was not added
+	 */
+	private boolean relay(PrimaryConnectionThread primary,Message message,boolean wait){
+		if(!username.equals(message.getUserID()))
+			closeConnection("invalid id", true);
+		else if(wait)
+			primary.relay.add(message);
+		else return enqueue(primary.relay, message);
+		return true;
+	}
+	
 	@Override
 	public void terminateConnection(String reason,boolean localClose){
 		if(primaryClient!=null)
@@ -78,8 +102,21 @@ public class SecondaryConnectionThread extends GenericConnectionThread{
 				if(connectionAnswer.getMessage().equals(Message.MESSAGE_CONNECTION_ACCEPTED))
 				{
 					printMessage(new Message(Message.MESSAGE_CONNECTION_MADE,Server.username,Message.TYPE_CONNECTION_INFO));
-					c.clients.put(username,this);
-					primaryClient=c;
+					c.addClient(this);
+					//relays the Messages that arrived before the connection was accepted; most are relayed
+					//without holding the lock deliver() is called with so the I/O thread is not kept waiting
+					ArrayList<Message>early=new ArrayList<Message>(input.size());
+					while(input.drainTo(early, Integer.MAX_VALUE)>0){
+						for(Message message:early)
+							relay(c,message,true);
+						early.clear();
+					}
+					synchronized (input) {
+						input.drainTo(early, Integer.MAX_VALUE);
+						for(Message message:early)
+							relay(c,message,true);
+						primaryClient=c;
+					}
 					c.printMessage(new Message(username,Server.username,Message.TYPE_NOTIFICATION,Message.HEADER_NEW_USER));
 					
 					log("Connection made. "+username+" to "+c.username+"("+c.username+")" );
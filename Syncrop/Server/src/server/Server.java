@@ -1,10 +1,8 @@
 package server;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashMap;
@@ -13,7 +11,9 @@ import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLServerSocketFactory;
 
 import logger.Logger;
+import message.HashedWheelTimer;
 import message.Message;
+import message.SerializedMessageCodec;
 
 
 /**
@@ -29,11 +29,21 @@ public abstract class Server
 	private int port;
 	private int maxConnections=-1;
 	public static final int UNLIMITED_CONNECTIONS=-1;
+	/**
+	 * How long a new connection has to finish its handshake and send its connection info
+	 * before it is closed
+	 */
+	static final long HANDSHAKE_TIMEOUT=30000;
 	static Logger logger;
 	boolean isClosed=false;
 	
 	static String username="SERVER";
 	private boolean ssl=false;
+	/**
+	 * Accepts connections with a {@link NioServerEngine} instead of a thread per connection;
+	 * null if the blocking ServerSocket is used 
+	 */
+	private NioServerEngine nioEngine=null;
 	/**
 	 * Creates a Server with an unlimited number of connections
 	 */
@@ -56,11 +66,28 @@ public abstract class Server
 	public Server(int maxConnections){this(maxConnections,50001,null,false);}
 	
 	public Server(int maxConnections, int port,Logger logger,boolean ssl)
+	{
+		this(maxConnections, port, logger, ssl, false);
+	}
+	/**
+	 * 
+	 * @param maxConnections -the max number of connection this Server can have at 
+	 * one time
+	 * @param port the port to listen to
+	 * @param logger the logger
+	 * @param ssl whether connections are encrypted
+	 * @param nio if true connections are handled by a small number of threads using
+	 * java.nio instead of a thread per connection 
+	 */
+	public Server(int maxConnections, int port,Logger logger,boolean ssl,boolean nio)
 	{
 		Server.logger=logger;
+		HashedWheelTimer.SHARED.setLogger(logger);
 		this.maxConnections=maxConnections;
 		this.port=port;
 		this.ssl=ssl;
+		if(nio)
+			nioEngine=new NioServerEngine(this, port, ssl);
 		start();
 	}
 	
@@ -70,6 +97,8 @@ public abstract class Server
 		log("Shutting down Server Socket");
 		if(serverSocket!=null)
 			serverSocket.close();
+		if(nioEngine!=null)
+			nioEngine.close();
 		isClosed=true;
 	}
 	public boolean isClosed() {
@@ -78,10 +107,38 @@ public abstract class Server
 	private void start()
 	{
 		log("Server on");
-		
+		if(nioEngine!=null){
+			startNioEngine();
+			return;
+		}
 		listenToPort();
 		waitForConnection();
 	}
+	/**
+	 * Starts {@link #nioEngine}; like {@link #listenToPort()} this method keeps trying until
+	 * the port can be bound
+	 */
+	private void startNioEngine()
+	{
+		while(true)
+			try {
+				nioEngine.start();
+				return;
+			} catch (IOException e) {
+				log("Could not listen on port: "+port);
+				log(e);
+				try {
+					nioEngine.close();
+					Thread.sleep(10000);
+				} catch (InterruptedException|IOException e1) {log(e1);}
+			}
+	}
+	/**
+	 * @return true if another Primary Connection can be added
+	 */
+	boolean isAcceptingConnections(){
+		return maxConnections==UNLIMITED_CONNECTIONS||maxConnections>connections.size();
+	}
 	/**
 	 * continually waits for a connection;<br/>
 	 * When it connects, it makes an instance of Connection and waits again
@@ -111,12 +168,36 @@ public abstract class Server
 		}.start();
 	}
 	void acceptConnection(Socket clientSocket) throws IOException, ClassNotFoundException{
+		acceptConnection(clientSocket, clientSocket.getInputStream(),clientSocket.getOutputStream());
+	}
+	/**
+	 * Reads the connection info of a new connection and starts a thread for it
+	 * @param clientSocket the socket of the connection
+	 * @param in the stream to read from; this may contain bytes that were already read from the socket
+	 * @param out the stream to write to
+	 * @throws IOException if an I/O error occurs
+	 * @throws ClassNotFoundException if the connection info cannot be read
+	 */
+	void acceptConnection(final Socket clientSocket,InputStream in,OutputStream out) throws IOException, ClassNotFoundException{
 		clientSocket.setSoTimeout(60*4*1000);
-		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
-		out.flush();
-		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(clientSocket.getInputStream()));
-		logger.log("client connected");
-		Message message=(Message) in.readObject();
+		HashedWheelTimer.Timeout handshakeDeadline=HashedWheelTimer.SHARED.schedule(new Runnable(){
+			public void run(){
+				log("Handshake took longer than "+HANDSHAKE_TIMEOUT+"ms; closing connection", Logger.LOG_LEVEL_WARN);
+				try {
+					clientSocket.close();
+				} catch (IOException e) {}
+			}
+		}, HANDSHAKE_TIMEOUT);
+		SerializedMessageCodec codec;
+		Message message;
+		try {
+			codec=new SerializedMessageCodec(in, out);
+			logger.log("client connected");
+			message=codec.readMessage();
+		}
+		finally {
+			handshakeDeadline.cancel();
+		}
 	
 		if(message==null)
 			return;//closeConnection("Message was null while initializing connection; Connection aborted", false);
@@ -124,9 +205,15 @@ public abstract class Server
 		Object o[]=(Object[])message.getMessage();
 		String application=o[0]+"";
 		boolean primary=(Boolean)o[1];
+		//newer clients append the name of the codec they would like to use
+		int codecIndex=primary?3:2;
+		String requestedCodec=o.length>codecIndex?o[codecIndex]+"":null;
+		GenericConnectionThread connection;
 		if(primary)
-			new PrimaryConnectionThread(clientSocket, in, out, message.getUserID(), application, (int)o[2]).start();
-		else new SecondaryConnectionThread(clientSocket,in,out,message.getUserID(),application).start();
+			connection=new PrimaryConnectionThread(clientSocket, codec, message.getUserID(), application, (int)o[2]);
+		else connection=new SecondaryConnectionThread(clientSocket,codec,message.getUserID(),application);
+		connection.setCodec(requestedCodec);
+		connection.start();
 	
 	}
 	
@@ -342,6 +342,8 @@ public class Account
 	 */
 	public boolean isPathEnabled(final String path)
 	{
+		if(path.endsWith(SyncropItem.PART_ENDING))
+			return false;
 		boolean removable=ResourceManager.isFileRemovable(path);
 		if(!isPathContainedInDirectory(path,removable))
 			return false;
@@ -356,6 +358,8 @@ public class Account
 	public boolean isAbsPathEnabled(final Path absPath)
 	{
 		String path=absPath.toString();
+		if(path.endsWith(SyncropItem.PART_ENDING))
+			return false;
 		if(Syncrop.isInstanceOfCloud()) 
 			return absPath.toString().startsWith(ResourceManager.getHome(getName(), true))||
 				absPath.toString().startsWith(ResourceManager.getHome(getName(), false));
@@ -0,0 +1,369 @@
+package daemon;
+
+import static syncrop.Syncrop.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import file.SyncropItem;
+import syncrop.Syncrop;
+
+/**
+ * Writes downloaded files off the thread that reads messages.
+ * <br/>
+ * Each file is written to a temporary file next to it and synced by one of a few writer threads.
+ * The temporary file is given the modification date of the download and the permissions of the file
+ * it replaces before the rename, so the file is never seen partially written or with the wrong attributes.
+ * A committer thread renames groups of synced files into place, syncs their directories once
+ * per group and only then calls back, so a download is only confirmed once it is durable.
+ * A group is committed once it has {@value #MAX_GROUP_SIZE} files or its first file has waited
+ * {@value #MAX_COMMIT_DELAY}ms for others to join it.
+ * <br/>
+ * Large files are moved next to the file they replace instead of being written, and checked against their hash
+ * first if that was not done as they were downloaded.
+ * <br/>
+ * Callbacks are called in the order the files were written. The queues are not bounded here; downloaded
+ * packets only grant credits to their sender once the files before them are committed, so each sender
+ * can have at most its credit window waiting to be written.
+ */
+public class DiskWriter {
+
+	/**
+	 * The max number of files committed together
+	 */
+	public static final int MAX_GROUP_SIZE=64;
+	/**
+	 * The max time in milliseconds a written file waits for other files before being committed
+	 */
+	public static final long MAX_COMMIT_DELAY=10;
+	private static final int WRITERS=3;
+	/**
+	 * Temporary files whose name does not contain this were left behind by an earlier run
+	 */
+	private static final String RUN_ID="."+Long.toString(System.currentTimeMillis(), 36)+"-";
+	private static final AtomicInteger nextTemporaryFileId=new AtomicInteger();
+
+	/**
+	 * Called by the committer thread
+	 */
+	public interface Callback{
+		/**
+		 * Called once the file is durable or could not be written
+		 * @param written true if the file was written
+		 */
+		void onWritten(boolean written);
+		/**
+		 * Called after every file of the group has been committed and the file watcher has had time to
+		 * see the changes
+		 */
+		void afterGroup();
+	}
+	/**
+	 * Called back about a file replaced by {@link DiskWriter#replace(File, File, long, String, ReplaceCallback)}
+	 */
+	public interface ReplaceCallback extends Callback{
+		/**
+		 * Called by the writer thread before {@link #onWritten(boolean)} if the downloaded file does
+		 * not have the expected content; the file is not replaced
+		 */
+		void onContentMismatch();
+	}
+
+	private static class Write{
+		final File file,temp,source;
+		final byte[] bytes;
+		final long dateModified;
+		final String contentHash;
+		final Callback callback;
+		private boolean done=false,written=false;
+		Write(File file,File temp,byte[] bytes,long dateModified,Callback callback){
+			this(file, temp, null, bytes, dateModified, null, callback);
+		}
+		Write(File file,File temp,File source,byte[] bytes,long dateModified,String contentHash,Callback callback){
+			this.file=file;
+			this.temp=temp;
+			this.source=source;
+			this.bytes=bytes;
+			this.dateModified=dateModified;
+			this.contentHash=contentHash;
+			this.callback=callback;
+		}
+		synchronized void setWritten(boolean written){
+			this.written=written;
+			done=true;
+			notifyAll();
+		}
+		synchronized boolean awaitWritten() throws InterruptedException{
+			while(!done)
+				wait();
+			return written;
+		}
+	}
+
+	private final LinkedBlockingQueue<Write>toWrite=new LinkedBlockingQueue<Write>();
+	private final LinkedBlockingQueue<Write>toCommit=new LinkedBlockingQueue<Write>();
+	/**
+	 * The number of writes of each file, by absolute path, that have not been committed
+	 */
+	private final HashMap<String, Integer>pendingWrites=new HashMap<String, Integer>();
+
+	/**
+	 * Starts the writer and committer threads
+	 */
+	public void start(){
+		for(int i=0;i<WRITERS;i++)
+			new Thread("disk writer "+i){
+				public void run(){
+					while(!Syncrop.isShuttingDown())
+						try {
+							Write write=toWrite.poll(1, TimeUnit.SECONDS);
+							if(write!=null)
+								write.setWritten(write(write));
+						} catch (InterruptedException e) {
+							return;
+						}
+				}
+			}.start();
+		new Thread("disk committer"){
+			public void run(){
+				ArrayList<Write>group=new ArrayList<Write>(MAX_GROUP_SIZE);
+				while(!Syncrop.isShuttingDown())
+					try {
+						Write first=toCommit.poll(1, TimeUnit.SECONDS);
+						if(first==null)
+							continue;
+						group.add(first);
+						long deadline=System.currentTimeMillis()+MAX_COMMIT_DELAY;
+						while(group.size()<MAX_GROUP_SIZE){
+							Write write=toCommit.poll(deadline-System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+							if(write==null)
+								break;
+							group.add(write);
+						}
+						commit(group);
+						group.clear();
+					} catch (InterruptedException e) {
+						return;
+					} catch (Exception|Error e) {
+						logger.logFatalError(e, "occured while committing downloaded files");
+						System.exit(0);
+					}
+			}
+		}.start();
+	}
+
+	/**
+	 * Writes a file asynchronously; the parent directory of the file has to exist
+	 * @param file the file to replace
+	 * @param bytes the new content of the file
+	 * @param dateModified the modification date to give the file
+	 * @param callback called once the file is durable or could not be written
+	 */
+	public void write(File file,byte[] bytes,long dateModified,Callback callback){
+		add(new Write(file, getPartFile(file), bytes, dateModified, callback));
+	}
+	/**
+	 * Replaces a file with a downloaded file asynchronously; the parent directory of the file has to exist.
+	 * The downloaded file is moved next to the file by a writer thread, renamed if it is on the same file system,
+	 * and committed like a written file.
+	 * @param source the downloaded file; it is moved or copied
+	 * @param file the file to replace
+	 * @param dateModified the modification date to give the file
+	 * @param contentHash the hash the downloaded file is checked against by the writer thread, in the format of 
+	 * {@link SyncropItem#getContentHash()}, or null if it has already been checked
+	 * @param callback called once the file is durable or could not be written
+	 */
+	public void replace(File source,File file,long dateModified,String contentHash,ReplaceCallback callback){
+		add(new Write(file, getPartFile(file), source, null, dateModified, contentHash, callback));
+	}
+	private void add(Write write){
+		File file=write.file;
+		synchronized (pendingWrites) {
+			Integer count=pendingWrites.get(file.getAbsolutePath());
+			pendingWrites.put(file.getAbsolutePath(), count==null?1:count+1);
+		}
+		toCommit.add(write);
+		toWrite.add(write);
+	}
+	/**
+	 * Waits until the writes of a file that have not been committed are committed
+	 * @param file the file
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitPendingWrites(File file) throws InterruptedException{
+		synchronized (pendingWrites) {
+			while(pendingWrites.containsKey(file.getAbsolutePath()))
+				pendingWrites.wait();
+		}
+	}
+	/**
+	 * @param callback called after all files that have been passed to {@link #write(File, byte[], long, Callback)}
+	 * have been committed
+	 */
+	public void afterPendingWrites(Callback callback){
+		Write write=new Write(null, null, null, 0, callback);
+		write.setWritten(true);
+		toCommit.add(write);
+	}
+
+	private boolean write(Write write){
+		if(write.source!=null)
+			return moveToPartFile(write);
+		try {
+			FileChannel channel=FileChannel.open(write.temp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				ByteBuffer buffer=ByteBuffer.wrap(write.bytes);
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+				Files.setLastModifiedTime(write.temp.toPath(), FileTime.fromMillis(write.dateModified));
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+			return true;
+		} catch (IOException e) {
+			logger.logError(e, "occured while writing "+write.file);
+			deleteTemporaryFile(write);
+			return false;
+		}
+	}
+	private boolean moveToPartFile(Write write){
+		try {
+			//large files are hashed here instead of on the thread that reads messages
+			if(write.contentHash!=null&&!write.contentHash.equals(SyncropItem.hashContent(write.source))){
+				logger.log("the download of "+write.file+" does not have the content that was sent");
+				((ReplaceCallback)write.callback).onContentMismatch();
+				return false;
+			}
+			try {
+				Files.move(write.source.toPath(), write.temp.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.copy(write.source.toPath(), write.temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.setLastModifiedTime(write.temp.toPath(), FileTime.fromMillis(write.dateModified));
+			sync(write.temp);
+			return true;
+		} catch (IOException e) {
+			logger.logError(e, "occured while replacing "+write.file);
+			deleteTemporaryFile(write);
+			return false;
+		}
+	}
+	private void commit(ArrayList<Write>group) throws InterruptedException{
+		boolean[] written=new boolean[group.size()];
+		LinkedHashSet<File>dirs=new LinkedHashSet<File>();
+		for(int i=0;i<group.size();i++){
+			Write write=group.get(i);
+			written[i]=write.awaitWritten();
+			if(!written[i]||write.file==null)
+				continue;
+			try {
+				copyPermissions(write.file, write.temp);
+				move(write.temp, write.file);
+				dirs.add(write.file.getParentFile());
+			} catch (IOException e) {
+				logger.logError(e, "occured while replacing "+write.file);
+				deleteTemporaryFile(write);
+				written[i]=false;
+			}
+		}
+		//the renames are only durable once the directories are synced
+		for(File dir:dirs)
+			syncDir(dir);
+		for(int i=0;i<group.size();i++)
+			group.get(i).callback.onWritten(written[i]);
+		Syncrop.sleepVeryShort();
+		for(Write write:group)
+			write.callback.afterGroup();
+		synchronized (pendingWrites) {
+			for(Write write:group)
+				if(write.file!=null){
+					Integer count=pendingWrites.remove(write.file.getAbsolutePath());
+					if(count!=null&&count>1)
+						pendingWrites.put(write.file.getAbsolutePath(), count-1);
+				}
+			pendingWrites.notifyAll();
+		}
+	}
+
+	/**
+	 * @param file the file being downloaded
+	 * @return a new temporary file next to the file
+	 */
+	private static File getPartFile(File file){
+		return new File(file.getParentFile(),"."+file.getName()+RUN_ID+nextTemporaryFileId.getAndIncrement()+SyncropItem.PART_ENDING);
+	}
+	/**
+	 * @param file a file ending with {@link SyncropItem#PART_ENDING}
+	 * @return true if the file was left behind by a download interrupted by a crash or shutdown
+	 */
+	public static boolean isStalePartFile(File file){
+		return !file.getName().contains(RUN_ID);
+	}
+	private static void move(File source,File target) throws IOException{
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	/**
+	 * Gives the temporary file the permissions of the file it replaces
+	 */
+	private static void copyPermissions(File file,File temp){
+		if(!file.exists())
+			return;
+		try {
+			Files.setPosixFilePermissions(temp.toPath(), Files.getPosixFilePermissions(file.toPath()));
+		} catch (UnsupportedOperationException e) {
+			//not a posix file system
+		} catch (IOException e) {
+			logger.logWarning("could not copy the permissions of "+file+"; "+e);
+		}
+	}
+	private static void sync(File file) throws IOException{
+		FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+	}
+	private static void syncDir(File dir){
+		try {
+			FileChannel channel=FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			//directories cannot be opened on some platforms
+			logger.logTrace("could not sync dir "+dir+"; "+e);
+		}
+	}
+	private static void deleteTemporaryFile(Write write){
+		try {
+			Files.deleteIfExists(write.temp.toPath());
+		} catch (IOException e) {
+			logger.logError(e, "could not delete "+write.temp);
+		}
+	}
+}
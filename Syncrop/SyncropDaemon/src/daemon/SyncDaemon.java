@@ -2,14 +2,20 @@ package daemon;
 
 import static notification.Notification.displayNotification;
 import static settings.Settings.getMaxFileSize;
+import static settings.Settings.getMaxTransferSize;
 import static transferManager.FileTransferManager.HEADER_FILE_SUCCESSFULLY_UPLOADED;
+import static transferManager.FileTransferManager.HEADER_REQUEST_BUNDLE_DOWNLOAD;
 import static transferManager.FileTransferManager.HEADER_REQUEST_SMALL_FILE_DOWNLOAD;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 
 import account.Account;
 import daemon.client.SyncropClientDaemon;
@@ -24,8 +30,11 @@ import message.Message;
 import message.Messenger;
 import notification.NotificationManager;
 import settings.Settings;
+import syncrop.FileMetadataManager;
 import syncrop.ResourceManager;
 import syncrop.Syncrop;
+import daemon.cloud.ChunkStore;
+import transferManager.BlockSignatures;
 import transferManager.FileTransferManager;
 
 public abstract class SyncDaemon extends Syncrop{
@@ -51,6 +60,10 @@ public abstract class SyncDaemon extends Syncrop{
 	 * Handles how files will be transfered
 	 */
 	protected final FileTransferManager fileTransferManager=new FileTransferManager(this);
+	/**
+	 * Writes downloaded small files to disk
+	 */
+	protected final DiskWriter diskWriter=new DiskWriter();
 	
 	/**
 	 * Handles connection between Client and Server
@@ -89,11 +102,34 @@ public abstract class SyncDaemon extends Syncrop{
 	 */
 	public final static String HEADER_SYNC_GET_CLOUD_FILES="sync cloud's files";
 	public final static String HEADER_SET_ENABLED_PATHS="set enabled paths";
+	/**
+	 * Sends the hashes of directories to Cloud as an Object[][] of {path, hash}. Cloud replies with 
+	 * {@link #HEADER_SYNC_DIFFERING_DIRS} so only the directories whose files differ are synced.
+	 * @see FileMetadataManager#getDirHash(String, String)
+	 */
+	public final static String HEADER_SYNC_DIR_HASHES="sync directory hashes";
+	/**
+	 * The String[] of the directories whose hashes differ from Cloud's
+	 */
+	public final static String HEADER_SYNC_DIFFERING_DIRS="differing directory hashes";
+	/**
+	 * Asks Cloud for the changes since a cursor of its sequence; sent with an Object[] of 
+	 * {the id of Cloud's sequence, the number of Cloud's sequence, the number of the client's sequence}.
+	 * The id is null if the client just synced all its files and only needs a cursor.
+	 * Cloud sends the files changed since the cursor and then replies with {@link #HEADER_SYNC_CURSOR}.
+	 * @see FileMetadataManager#getFilesChangedSince(long, long, String)
+	 */
+	public final static String HEADER_SYNC_CHANGES_SINCE="sync changes since cursor";
+	/**
+	 * Cloud's reply to {@link #HEADER_SYNC_CHANGES_SINCE} once the changes have been sent; an Object[] of 
+	 * {the id of Cloud's sequence or null if the cursor was not valid, the number of Cloud's sequence, 
+	 * the number of the client's sequence that was sent}
+	 */
+	public final static String HEADER_SYNC_CURSOR="sync cursor";
 	
 	public final static String HEADER_CLEAN_CLOUD_FILES="clean cloud's files";
 	
-	UploadLargeFileThread uploadLargeFileThread;
-	
+
 	public SyncDaemon(String instance,boolean clean){
 		super(instance);
 		
@@ -135,7 +171,6 @@ public abstract class SyncDaemon extends Syncrop{
 			fileWatcher.interrupt();
 			mainSocketListener.interrupt();
 			fileTransferManager.quit();
-			uploadLargeFileThread.interrupt();
 			if(SyncropClientDaemon.isConnectionActive()){
     			int timeToLive=100+getExpectedFileTransferTime()*fileTransferManager.getOutstandingFiles();
     			
@@ -158,7 +193,8 @@ public abstract class SyncDaemon extends Syncrop{
 			
 			if(communication!=null)
 				communication.close();
-			ResourceManager.deleteAllTemporaryFiles();
+			//partial downloads are kept so they can be resumed
+			ResourceManager.closeAllTemporaryFileChannels();
 		} 
 		catch (NullPointerException e) 
 		{
@@ -230,6 +266,7 @@ public abstract class SyncDaemon extends Syncrop{
 		
 		mainSocketListener.start();
 		fileTransferManager.start();
+		diskWriter.start();
 		notificationManager.start();
 	}
 		
@@ -255,7 +292,12 @@ public abstract class SyncDaemon extends Syncrop{
 	 * @param item the file to set permissions for
 	 */
 	public void setPropperPermissions(SyncropItem item){}
-	public void startDownloadOfLargeFile(String id,String path,String owner, long dateModified, int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists, long size){
+	/**
+	 * Prepares the temporary file of a large file being downloaded
+	 * @return the number of bytes of the file that have already been downloaded or
+	 * -1 if the file will not be downloaded
+	 */
+	public long startDownloadOfLargeFile(String id,String path,String owner, long dateModified, int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists, long size,String contentHash){
 		
 		try {
 			SyncropItem localFile=ResourceManager.getFile(path, owner);
@@ -267,16 +309,52 @@ public abstract class SyncDaemon extends Syncrop{
 					logger.log("same version of large file: "+path);
 					fileTransferManager.cancelDownload(id, path, true);
 					ResourceManager.unlockFile(path, owner);
-					return;
+					return -1;
 				}
 			}
+			ResourceManager.closeTemporaryFileChannel(id, path);
+			long offset=ResourceManager.getTemporaryFileOffset(id, path, owner, key, dateModified, size);
+			if(offset>0){
+				logger.log("resuming download of "+path+" at "+offset+"/"+size);
+				return offset;
+			}
 			File tempFile=ResourceManager.getTemporaryFile(id,path);
 			tempFile.delete();
+			if(contentHash!=null&&copyFileWithSameContent(tempFile, owner, contentHash, size)){
+				//the copy is not synced; if the download is resumed it starts over
+				ResourceManager.writeTemporaryFileInfo(id, path, owner, key, dateModified, size, 0);
+				logger.log("content of "+path+" is already stored; nothing needs to be sent");
+				return size;
+			}
 			tempFile.createNewFile();
-			
+			ResourceManager.writeTemporaryFileInfo(id, path, owner, key, dateModified, size, 0);
+			return 0;
 		} catch (IOException e) {
 			logger.logError(e, "download of large file failed.");
 		}
+		return -1;
+	}
+	/**
+	 * Copies a file already stored with the given content to the temporary file of a download
+	 * @param tempFile the temporary file
+	 * @param owner the owner of the file being downloaded
+	 * @param contentHash the hash of the content of the file being downloaded
+	 * @param size the size of the file being downloaded
+	 * @return true if the content was copied
+	 */
+	private boolean copyFileWithSameContent(File tempFile,String owner,String contentHash,long size) throws IOException{
+		LinkedList<SyncropItem>items=FileMetadataManager.getFilesWithContentHash(contentHash, owner);
+		if(items==null)
+			return false;
+		for(SyncropItem item:items)
+			if(item.getSize()==size&&contentHash.equals(item.getCachedContentHash())){
+				Files.copy(item.getFile().toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				//the file could have changed while being copied
+				if(contentHash.equals(item.getCachedContentHash()))
+					return true;
+			}
+		tempFile.delete();
+		return false;
 	}
 	/**
 	 * 
@@ -286,26 +364,28 @@ public abstract class SyncDaemon extends Syncrop{
 	 * @param dateModified the modification date of the file
 	 * @param key the key of the file
 	 * @param bytes the bytes to download
+	 * @param position the position of the bytes in the file or null if unknown
 	 * @param size the size of the file
-	 * @param end if these are the last bytes to download
 	 */
-	public void downloadLargeFile(String id,String path,String owner, long dateModified, int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists, byte[]bytes,long size)
+	public void downloadLargeFile(String id,String path,String owner, long dateModified, int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists, byte[]bytes,Long position,long size)
 	{
 		SyncropItem localFile=ResourceManager.getFile(path, owner);
 		if(fileTransferManager.canDownloadPacket(localFile, id, path, owner, dateModified, key, bytes,size))
 			try {
-				if(!ResourceManager.getTemporaryFile(id,path).exists()){
-					logger.log("Error not receiving begining of file first");
-					fileTransferManager.cancelDownload(id,path,true);
+				FileChannel channel=getTemporaryFileChannel(id, path, position);
+				if(channel==null)
 					return;
-				}
-				Files.write(ResourceManager.getTemporaryFile(id,path).toPath(), bytes,StandardOpenOption.APPEND);
-				if(ResourceManager.getTemporaryFile(id,path).length()>getMaxFileSize()){
+				ByteBuffer buffer=ByteBuffer.wrap(bytes);
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+				if(channel.size()>getMaxFileSize()){
 					logger.log("Download failed because tempFile is too large; deleting");
 					fileTransferManager.cancelDownload(id,path,true);
 					removeUser(id,"Hacking attempt");
 					return;
 				}
+				ResourceManager.hashTemporaryFile(id, path);
+				ResourceManager.syncTemporaryFile(id, path, false);
 				//sleepShort();
 				logger.logAll("Adding "+bytes.length+" bytes to temp file");
 			
@@ -316,23 +396,141 @@ public abstract class SyncDaemon extends Syncrop{
 		fileTransferManager.cancelDownload(id,path,true);
 	}
 	
-	public void endDownloadOfLargeFile(String id,String path,String owner,long dateModified,int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists,long length){
+	/**
+	 * Copies blocks of the local copy of a large file being downloaded to the temporary file 
+	 * @param firstBlock the index of the first block to copy
+	 * @param count the number of blocks to copy
+	 * @param position the position of the blocks in the file being downloaded
+	 * @see BlockSignatures
+	 */
+	public void copyBlocksToLargeFile(String id,String path,String owner, long dateModified, int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists,int firstBlock,int count,long position,long size){
+		SyncropItem localFile=ResourceManager.getFile(path, owner);
+		BlockSignatures signatures=fileTransferManager.getDeltaBase(id, path);
+		if(signatures==null||localFile==null){
+			logger.log("Cannot copy blocks of "+path+" because there is no local copy");
+			fileTransferManager.cancelDownload(id,path,true);
+			return;
+		}
+		if(fileTransferManager.canDownloadPacket(localFile, id, path, owner, dateModified, key, null,size))
+			try {
+				FileChannel channel=getTemporaryFileChannel(id, path, position);
+				if(channel==null)
+					return;
+				if(!signatures.copyBlocks(localFile.getFile().toPath(), channel, firstBlock, count)){
+					logger.log("Download of "+path+" failed because the local copy changed");
+					fileTransferManager.cancelDownload(id,path,true);
+					return;
+				}
+				if(channel.size()>getMaxFileSize()){
+					logger.log("Download failed because tempFile is too large; deleting");
+					fileTransferManager.cancelDownload(id,path,true);
+					removeUser(id,"Hacking attempt");
+					return;
+				}
+				ResourceManager.hashTemporaryFile(id, path);
+				ResourceManager.syncTemporaryFile(id, path, false);
+				logger.logAll("Copied "+count+" blocks to temp file");
+				return;
+			} catch (IOException e) {
+				logger.logError(e, "download of large file failed.");
+			}
+		fileTransferManager.cancelDownload(id,path,true);
+	}
+	/**
+	 * Copies a chunk the cloud already has to the temporary file of a large file being downloaded
+	 * @param hash the hash of the chunk
+	 * @param length the length of the chunk
+	 * @param position the position of the chunk in the file being downloaded
+	 * @see ChunkStore
+	 */
+	public void copyChunkToLargeFile(String id,String path,String owner, long dateModified, int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists,byte[]hash,int length,long position,long size){
+		SyncropItem localFile=ResourceManager.getFile(path, owner);
+		if(getChunkStore()==null){
+			logger.log("Cannot copy chunk of "+path+" because there is no chunk store");
+			fileTransferManager.cancelDownload(id,path,true);
+			return;
+		}
+		if(fileTransferManager.canDownloadPacket(localFile, id, path, owner, dateModified, key, null,size))
+			try {
+				FileChannel channel=getTemporaryFileChannel(id, path, position);
+				if(channel==null)
+					return;
+				if(!getChunkStore().copyChunk(hash, length, owner, channel)){
+					logger.log("Download of "+path+" failed because a chunk is no longer stored");
+					fileTransferManager.cancelDownload(id,path,true);
+					return;
+				}
+				if(channel.size()>getMaxFileSize()){
+					logger.log("Download failed because tempFile is too large; deleting");
+					fileTransferManager.cancelDownload(id,path,true);
+					removeUser(id,"Hacking attempt");
+					return;
+				}
+				ResourceManager.hashTemporaryFile(id, path);
+				ResourceManager.syncTemporaryFile(id, path, false);
+				logger.logAll("Copied chunk of "+length+" bytes to temp file");
+				return;
+			} catch (IOException e) {
+				logger.logError(e, "download of large file failed.");
+			}
+		fileTransferManager.cancelDownload(id,path,true);
+	}
+	/**
+	 * @param position the position the next bytes are written at or null if unknown
+	 * @return the channel of the temporary file or null if the download was canceled
+	 */
+	private FileChannel getTemporaryFileChannel(String id,String path,Long position) throws IOException{
+		if(!ResourceManager.getTemporaryFile(id,path).exists()){
+			logger.log("Error not receiving begining of file first");
+			fileTransferManager.cancelDownload(id,path,true);
+			return null;
+		}
+		FileChannel channel=ResourceManager.getTemporaryFileChannel(id, path);
+		if(position!=null&&position!=channel.size()){
+			if(position>channel.size()){
+				logger.log("Download of "+path+" failed because bytes are missing before "+position);
+				fileTransferManager.cancelDownload(id,path,true);
+				return null;
+			}
+			//the sender did not resume where this daemon left off
+			logger.log("Restarting download of "+path+" at "+position);
+			ResourceManager.truncateTemporaryFile(id, path, position);
+		}
+		return channel;
+	}
+	
+	public void endDownloadOfLargeFile(String id,String path,String owner,long dateModified,int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists,long length,String contentHash){
+		ResourceManager.closeTemporaryFileChannel(id, path);
 		if(ResourceManager.getTemporaryFile(id,path).exists())
-			downloadFile(id, path, owner, dateModified, key,modifiedSinceLastUpdate,filePermissions, exists, null, length,null, true,true);
+			downloadFile(id, path, owner, dateModified, key,modifiedSinceLastUpdate,filePermissions, exists, null, length,null,contentHash, true,true);
 		else logger.log("File has already been canceled");
 	}
 	
-	public void downloadFile(String id,String path,String owner,long dateModified,int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists,byte[] bytes,long length,String linkTarget,boolean copyFromFile,boolean echo){
+	public void downloadFile(String id,String path,String owner,long dateModified,int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists,byte[] bytes,long length,String linkTarget,String contentHash,boolean copyFromFile,boolean echo){
+		downloadFile(id, path, owner, dateModified, key, modifiedSinceLastUpdate, filePermissions, exists, bytes, length, linkTarget, contentHash, copyFromFile, echo, null);
+	}
+	/**
+	 * Small files are written by the {@link DiskWriter}, so the download may finish after this method returns
+	 * @param confirmations if not null, the confirmation that the file was downloaded is added to it
+	 * instead of being sent and the file is left locked so the files of a bundle can be unlocked together
+	 */
+	public void downloadFile(String id,String path,String owner,long dateModified,int key,boolean modifiedSinceLastUpdate,int filePermissions,boolean exists,byte[] bytes,long length,String linkTarget,String contentHash,boolean copyFromFile,boolean echo,List<Object[]>confirmations){
 		if(exists)
 			logger.log("request to download file "+path);
 		else 
 			logger.log("request to delete file "+path);
 		ResourceManager.lockFile(path,owner);
+		try {
+			//the file is compared to what it will be once earlier downloads are written
+			diskWriter.awaitPendingWrites(new File(ResourceManager.getAbsolutePath(path, owner)));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		
 		SyncropItem localFile=ResourceManager.getFile(path,owner);
 		SyncropItem.SyncropPostCompare result=null;
 		try {
-			result = SyncropItem.compare(id,localFile, path, owner, dateModified, key, modifiedSinceLastUpdate, filePermissions, exists, length,linkTarget,bytes,true);
+			result = SyncropItem.compare(id,localFile, path, owner, dateModified, key, modifiedSinceLastUpdate, filePermissions, exists, length,linkTarget,bytes,contentHash,true);
 		} catch (IOException e) {
 			logger.logError(e);
 		}
@@ -352,6 +550,8 @@ public abstract class SyncDaemon extends Syncrop{
 				break;
 			case SYNCED:
 				localFile.save();
+				if(copyFromFile)
+					ResourceManager.deleteTemporaryFile(id, path);
 				break;
 			case SKIP:
 			default:
@@ -363,8 +563,16 @@ public abstract class SyncDaemon extends Syncrop{
 				downloadNotCanceled=true;
 				break;
 			case DOWNLOAD_REMOTE_FILE:	
+				if(exists&&!copyFromFile&&bytes!=null&&localFile instanceof SyncropFile){
+					writeToDisk(id, localFile, dateModified, key, filePermissions, bytes, echo, confirmations);
+					return;
+				}
+				if(exists&&copyFromFile&&localFile instanceof SyncropFile){
+					replaceFromTemporaryFile(id, localFile, dateModified, key, filePermissions, contentHash, echo, confirmations);
+					return;
+				}
 				try {
-					saveToDisk(id, localFile, bytes, copyFromFile,exists);
+					saveToDisk(id, localFile, bytes, dateModified, exists);
 					downloadNotCanceled=true;
 				} catch (IOException e) {
 					logger.logError(e);
@@ -377,7 +585,98 @@ public abstract class SyncDaemon extends Syncrop{
 				
 				break;
 		}
-		
+		finishDownload(id, localFile, dateModified, key, filePermissions, exists, bytes, null, downloadNotCanceled, echo, confirmations);
+		if(confirmations!=null)
+			return;
+		Syncrop.sleepVeryShort();
+		logger.logTrace("unlocking file"+localFile);
+		ResourceManager.unlockFile(path, owner);	
+	}
+	/**
+	 * Writes a small file with the {@link DiskWriter}; the download is finished and the file is unlocked once
+	 * the file is durable
+	 */
+	private void writeToDisk(final String id,final SyncropItem localFile,final long dateModified,final int key,final int filePermissions,
+			final byte[] bytes,final boolean echo,final List<Object[]>confirmations){
+		localFile.getFile().getParentFile().mkdirs();
+		diskWriter.write(localFile.getFile(), bytes, dateModified, new DiskWriter.Callback() {
+			public void onWritten(boolean written) {
+				finishDownload(id, localFile, dateModified, key, filePermissions, true, bytes, null, written, echo, confirmations);
+			}
+			public void afterGroup() {
+				if(confirmations!=null)
+					return;
+				logger.logTrace("unlocking file"+localFile);
+				ResourceManager.unlockFile(localFile.getPath(), localFile.getOwner());
+			}
+		});
+	}
+	/**
+	 * Replaces a large file with its temporary file with the {@link DiskWriter}; the download is finished and the file
+	 * is unlocked once the file is durable. 
+	 * <br/>
+	 * The temporary file is assembled from resumed, copied and received bytes, so it is checked against
+	 * the hash sent by the sender. If it does not match, it is deleted and the sender is asked to send the file again.
+	 * @param contentHash the hash of the content sent by the sender or null if unknown
+	 */
+	private void replaceFromTemporaryFile(final String id,final SyncropItem localFile,final long dateModified,final int key,final int filePermissions,
+			final String contentHash,final boolean echo,final List<Object[]>confirmations){
+		final String path=localFile.getPath();
+		ResourceManager.closeTemporaryFileChannel(id, path);
+		//the hash computed as the bytes were appended; files resumed from an earlier run are hashed by the DiskWriter
+		final String receivedHash=ResourceManager.getTemporaryFileHash(id, path);
+		if(receivedHash!=null&&contentHash!=null&&!receivedHash.equals(contentHash)){
+			logger.log("the download of "+path+" does not have the content that was sent");
+			restartDownload(id, localFile);
+			finishDownload(id, localFile, dateModified, key, filePermissions, true, null, null, false, echo, confirmations);
+			if(confirmations==null)
+				ResourceManager.unlockFile(path, localFile.getOwner());
+			return;
+		}
+		localFile.getFile().getParentFile().mkdirs();
+		diskWriter.replace(ResourceManager.getTemporaryFile(id, path), localFile.getFile(), dateModified,
+				receivedHash==null?contentHash:null, new DiskWriter.ReplaceCallback() {
+			volatile boolean contentMismatch=false;
+			public void onContentMismatch() {
+				contentMismatch=true;
+				restartDownload(id, localFile);
+			}
+			public void onWritten(boolean written) {
+				if(!contentMismatch)
+					ResourceManager.deleteTemporaryFile(id, path);
+				if(written)
+					onLargeFileSaved(localFile);
+				finishDownload(id, localFile, dateModified, key, filePermissions, true, null, 
+						receivedHash==null?contentHash:receivedHash, written, echo, confirmations);
+			}
+			public void afterGroup() {
+				if(confirmations!=null)
+					return;
+				logger.logTrace("unlocking file"+localFile);
+				ResourceManager.unlockFile(path, localFile.getOwner());
+			}
+		});
+	}
+	/**
+	 * Deletes the temporary file of a download that does not have the content that was sent and asks
+	 * the sender to send the file again
+	 */
+	private void restartDownload(String id,SyncropItem localFile){
+		ResourceManager.deleteTemporaryFile(id, localFile.getPath());
+		String path=isNotWindows()?localFile.getPath():SyncropItem.toLinuxPath(localFile.getPath());
+		mainClient.printMessage(new String[]{path,localFile.getOwner()},
+				FileTransferManager.HEADER_ADD_TO_SEND_QUEUE, id);
+	}
+	/**
+	 * Updates the metadata of a file after it has been downloaded and confirms the download
+	 * @param bytes the content of the file or null if it was not sent with the file
+	 * @param contentHash the verified hash of the content of the file or null if unknown; large files
+	 * are only hashed once their hash is needed
+	 * @param downloadNotCanceled true if the file was downloaded
+	 */
+	private void finishDownload(String id,SyncropItem localFile,long dateModified,int key,int filePermissions,boolean exists,byte[] bytes,
+			String contentHash,boolean downloadNotCanceled,boolean echo,List<Object[]>confirmations){
+		String path=localFile.getPath(),owner=localFile.getOwner();
 		if(downloadNotCanceled){
 			if(localFile.exists()){
 				logger.log("file downloaded: "+localFile);
@@ -389,6 +688,15 @@ public abstract class SyncDaemon extends Syncrop{
 			localFile.setDateModified(dateModified);
 			if(!localFile.isDir()&&exists&&localFile.getDateModified()!=dateModified)
 				logger.logWarning("The modification date of file "+localFile.getFile()+" was not set correctly");			
+			if(localFile instanceof SyncropFile&&exists)
+				try {
+					if(contentHash!=null)
+						localFile.updateContentHash(contentHash);
+					else if(bytes!=null)
+						localFile.updateContentHash(bytes);
+				} catch (IOException e) {
+					logger.logError(e, "could not compute the content hash of "+path);
+				}
 						
 			Account account=ResourceManager.getAccount(owner);
 			account.setRecordedSize(account.getRecordedSize()-localFile.getLastKnownSize()+localFile.getSize());
@@ -400,55 +708,52 @@ public abstract class SyncDaemon extends Syncrop{
 			
 			fileTransferManager.updateDownloadFileTransferStatistics(path);
 			logger.logTrace("Sending confirmation message for "+localFile);
-			mainClient.printMessage(localFile.toSyncData(), HEADER_FILE_SUCCESSFULLY_UPLOADED,id);
+			if(confirmations!=null)
+				confirmations.add(localFile.toSyncData());
+			else mainClient.printMessage(localFile.toSyncData(), HEADER_FILE_SUCCESSFULLY_UPLOADED,id);
 			
 		}
-		if(localFile.hasBeenUpdated()){
+		if(localFile.hasBeenUpdated()||downloadNotCanceled){
 			logger.logTrace("saving file");
 			localFile.save();
 			if(echo)
 				updateAllClients(localFile, id);
 		}
-		Syncrop.sleepVeryShort();
-		logger.logTrace("unlocking file"+localFile);
-		ResourceManager.unlockFile(path, owner);	
 	}
 	
-	private void saveToDisk(String id,SyncropItem localFile,byte[] bytes,boolean copyFromFile,boolean exists) throws IOException{
+	private void saveToDisk(String id,SyncropItem localFile,byte[] bytes,long dateModified,boolean exists) throws IOException{
 		if(!exists){
 			localFile.delete(localFile.getDateModified());
 			return;
 		}
-		if(!localFile.exists())
+		//files replace the real file once they have been fully written so an empty file is never seen
+		if(localFile instanceof SyncropFile)
+			localFile.getFile().getParentFile().mkdirs();
+		else if(!localFile.exists())
 			localFile.createFile();
 		if(localFile instanceof SyncropSymbolicLink || localFile instanceof SyncropDir){
 			logger.log(localFile.getClass().getSimpleName()+" created");
 		}
-		else{
-			
-			File file=localFile.getFile();
-			
-			if(copyFromFile){
-				Files.copy(ResourceManager.getTemporaryFile(id,localFile.getPath()).toPath(), file.toPath(),StandardCopyOption.REPLACE_EXISTING);	
-				ResourceManager.deleteTemporaryFile(id,localFile.getPath());
-			}
-			else {				
-				if(bytes==null){
-					throw new NullPointerException("cannot write to file "+localFile+" with null bytes");
-				}
-				Files.write(file.toPath(), bytes,
-					StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.WRITE,
-					StandardOpenOption.SYNC);
-			}
-		}
+		//files with their content are written by writeToDisk and large files by replaceFromTemporaryFile
+		else throw new IOException("cannot write to file "+localFile+" without its content");
 	}
 	
 	
 	public void updateAllClients(SyncropItem file,String targetToExclude){}
+	/**
+	 * @return the index of the chunks of the files stored by this daemon or null if it does not keep one
+	 */
+	public ChunkStore getChunkStore(){return null;}
+	/**
+	 * Called after a large file has been downloaded and saved
+	 * @param item the file that was saved
+	 */
+	protected void onLargeFileSaved(SyncropItem item){}
 	
 	
 	public void sendMetadata(SyncropItem localFile, String target){
 		logger.logTrace("Sending just metadata for "+localFile);
+		fileTransferManager.getCreditWindow(target).sent(0);
 		mainClient.printMessage(
 			localFile.toSyncData(null)
 			,HEADER_REQUEST_SMALL_FILE_DOWNLOAD,
@@ -484,6 +789,7 @@ public abstract class SyncDaemon extends Syncrop{
 		try {
 			
 			if(!file.exists()||file.isDir()||file instanceof SyncropSymbolicLink){
+				fileTransferManager.getCreditWindow(target).sent(0);
 				mainClient.printMessage(
 						file.toSyncData()
 						,HEADER_REQUEST_SMALL_FILE_DOWNLOAD,
@@ -492,21 +798,79 @@ public abstract class SyncDaemon extends Syncrop{
 			}
 			else if(file.isSmallFile())
 			{
+				byte[] bytes=((SyncropFile) file).readAllBytesFromFile();
+				fileTransferManager.getCreditWindow(target).sent(bytes.length);
+				fileTransferManager.throttleUpload(target, bytes.length);
 				mainClient.printMessage(
-					file.toSyncData(((SyncropFile) file).readAllBytesFromFile())
+					file.toSyncData(bytes)
 					,HEADER_REQUEST_SMALL_FILE_DOWNLOAD,
 					target);		
 			}
 			else if(file.getSize()<=getMaxFileSize())
-				(uploadLargeFileThread= new UploadLargeFileThread((SyncropFile) file, target, fileTransferManager)).start();
+				new UploadLargeFileThread((SyncropFile) file, target, fileTransferManager).start();
 			else
 				logger.log("Files is too big to upload; path="+path);
 		}
+		catch (InterruptedException e)
+		{
+			logger.log("upload of "+path+" was interrupted");
+		}
 		catch (Exception e)
 		{
 			logger.logFatalError(e,"occured while trying to upload file="+file);
 		}
 	}
+	/**
+	 * tells the recipient to download many small files with as few messages as possible
+	 * @param files the files to send; files that are no longer small are sent separately
+	 * @param target who to send the files to
+	 */
+	public void uploadFiles(List<SyncropItem> files,String target)
+	{
+		if(!isConnectionActive())
+		{
+			logger.log(files.size()+" files cannot be sent because connection is not active");
+			return;
+		}
+		ArrayList<Object[]>bundle=new ArrayList<Object[]>(files.size());
+		long bytesInBundle=0;
+		try {
+			for(SyncropItem file:files){
+				if(!file.isEnabled()){
+					logger.log("upload failed; file is not enabled; file:"+file);
+					continue;
+				}
+				if(!file.exists()||file.isDir()||file instanceof SyncropSymbolicLink)
+					bundle.add(file.toSyncData());
+				else if(file.isSmallFile()){
+					byte[] bytes=((SyncropFile) file).readAllBytesFromFile();
+					if(bytesInBundle+bytes.length>getMaxTransferSize()){
+						sendBundle(bundle, bytesInBundle, target);
+						bundle.clear();
+						bytesInBundle=0;
+					}
+					bundle.add(file.toSyncData(bytes));
+					bytesInBundle+=bytes.length;
+				}
+				else uploadFile(file, target);
+			}
+			sendBundle(bundle, bytesInBundle, target);
+		}
+		catch (InterruptedException e)
+		{
+			logger.log("upload of bundle was interrupted");
+		}
+		catch (Exception e)
+		{
+			logger.logFatalError(e,"occured while trying to upload bundle of "+files.size()+" files");
+		}
+	}
+	private void sendBundle(ArrayList<Object[]>bundle,long bytes,String target) throws InterruptedException{
+		if(bundle.isEmpty())return;
+		fileTransferManager.getCreditWindow(target).sent(bytes);
+		fileTransferManager.throttleUpload(target, bytes);
+		mainClient.printMessage(bundle.toArray(new Object[bundle.size()][]), HEADER_REQUEST_BUNDLE_DOWNLOAD, target);
+	}
 		
 	
 //		
@@ -536,7 +900,9 @@ public abstract class SyncDaemon extends Syncrop{
 	
 	protected boolean handleResponse(Message message){
 	
-		if(message.getHeader().contains("queue"))
+		if(message.getHeader().equals(FileTransferManager.HEADER_GRANT_CREDITS))
+			fileTransferManager.grantCredits(message);
+		else if(message.getHeader().contains("queue"))
 			fileTransferManager.addToQueueRequest(message);
 		
 		else if(message.getHeader().contains("upload"))
@@ -560,9 +926,10 @@ public abstract class SyncDaemon extends Syncrop{
 		return mainClient==null?4000:Math.max(mainClient.getExpectedRoundTripTime(),50);
 	}
 	public boolean isSendingLargeFile(){
-		return uploadLargeFileThread!=null&&uploadLargeFileThread.isAlive();
+		return fileTransferManager.getLargeFileUploadCount()>0;
 	}
 	public FileTransferManager getFileTransferManager(){return fileTransferManager;}
+	public DiskWriter getDiskWriter(){return diskWriter;}
 	public boolean haveAllFilesFinishedTranferring(){
 		return fileTransferManager.haveAllFilesFinishedTranferring()&&fileWatcher.isFileQueueEmpty();
 	}
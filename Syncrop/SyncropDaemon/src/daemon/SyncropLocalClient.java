@@ -52,6 +52,35 @@ public class SyncropLocalClient extends Thread{
 	public void clean() throws IOException{
 		write(CLEAN);
 	}
+	/**
+	 * Changes a setting of the running daemon; the change is not saved
+	 * @param name the name of the setting
+	 * @param value the new value
+	 * @return true if the setting was changed
+	 * @throws IOException if an io error occurs
+	 */
+	public synchronized boolean setSetting(String name,String value) throws IOException{
+		if(singleUse)
+			connect();
+		out.writeInt(SET_SETTING);
+		out.writeUTF(name);
+		out.writeUTF(value);
+		out.flush();
+		boolean set=in.readBoolean();
+		if(singleUse)
+			socket.close();
+		return set;
+	}
+	public synchronized String getBandwidthLimits() throws IOException{
+		if(singleUse)
+			connect();
+		out.writeInt(GET_BANDWIDTH_LIMITS);
+		out.flush();
+		String limits=in.readUTF();
+		if(singleUse)
+			socket.close();
+		return limits;
+	}
 	public void sync(boolean force) throws IOException{
 		if(force)
 			write(FORCE_SYNC);
@@ -9,6 +9,7 @@ import java.net.Socket;
 
 import daemon.client.SyncropClientDaemon;
 import settings.Settings;
+import settings.SettingsManager;
 import syncrop.ResourceManager;
 import syncrop.Syncrop;
 
@@ -29,6 +30,15 @@ public class SyncropLocalServer extends Thread
 	public static final int FORCE_SYNC=5;
 	public static final int FORCE_SYNC_HARD=6;
 	public static final int FORCE_SYNC_COMPLETE=7;
+	/**
+	 * Changes a setting of the running daemon. Followed by the name and value of the setting;
+	 * replies with a boolean indicating success
+	 */
+	public static final int SET_SETTING=8;
+	/**
+	 * Replies with the current bandwidth limits
+	 */
+	public static final int GET_BANDWIDTH_LIMITS=9;
 	
 	public static final String STATE_OFFLINE="Offline";
 	public static final String STATE_INITIALIZING="Initializing";
@@ -110,6 +120,23 @@ public class SyncropLocalServer extends Thread
 					case GET_ACCOUNT_SIZE:
 						out.writeLong(ResourceManager.getAccount().getRecordedSize());
 						break;
+					case SET_SETTING:
+						String name=in.readUTF(),value=in.readUTF();
+						boolean set;
+						try {
+							set=SettingsManager.dynamicallyLoadSetting(name, value);
+						} catch (IllegalArgumentException e) {
+							Syncrop.logger.logWarning("Could not set "+name+" to "+value+": "+e);
+							set=false;
+						}
+						Syncrop.logger.log("setting "+name+"="+value+(set?"":" failed"));
+						out.writeBoolean(set);
+						out.flush();
+						break;
+					case GET_BANDWIDTH_LIMITS:
+						out.writeUTF(daemon.getFileTransferManager().getBandwidthLimits());
+						out.flush();
+						break;
 					case SYNC:
 					case FORCE_SYNC:
 						if(daemon instanceof SyncropClientDaemon) {
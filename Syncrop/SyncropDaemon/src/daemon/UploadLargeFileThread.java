@@ -4,115 +4,371 @@ package daemon;
 import static daemon.SyncDaemon.mainClient;
 import static syncrop.Syncrop.isShuttingDown;
 import static syncrop.Syncrop.logger;
+import static transferManager.FileTransferManager.HEADER_COPY_LARGE_FILE_BLOCKS;
+import static transferManager.FileTransferManager.HEADER_COPY_LARGE_FILE_CHUNK;
+import static transferManager.FileTransferManager.HEADER_QUERY_CHUNKS;
 import static transferManager.FileTransferManager.HEADER_REQUEST_END_LARGE_FILE_DOWNLOAD;
 import static transferManager.FileTransferManager.HEADER_REQUEST_LARGE_FILE_DOWNLOAD;
 import static transferManager.FileTransferManager.HEADER_REQUEST_LARGE_FILE_DOWNLOAD_START;
 
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import daemon.client.SyncropClientDaemon;
 import file.SyncropFile;
+import file.SyncropItem;
+import message.TimeoutCalculator;
 import settings.Settings;
+import syncrop.FileMetadataManager;
 import syncrop.Syncrop;
+import transferManager.BlockSignatures;
+import transferManager.ContentDefinedChunker;
+import transferManager.ContentDefinedChunker.Chunk;
+import transferManager.CreditWindow;
 import transferManager.FileTransferManager;
 
 public class UploadLargeFileThread extends Thread
 {
+	/**
+	 * How long to wait for the recipient to compute the signatures of its copy of the file
+	 */
+	private static final long SIGNATURES_TIMEOUT=60000;
+	/**
+	 * The max number of bytes of the recipient's copy copied by a single packet
+	 */
+	private static final long MAX_COPY_SIZE=16*Syncrop.MEGABYTE;
+	/**
+	 * The smallest packet of file data sent once the link has been estimated
+	 */
+	private static final int MIN_CHUNK_SIZE=32*1024;
+	/**
+	 * Packets are made large enough to take at least this long (in milliseconds) to deliver,
+	 * so the per packet overhead does not limit fast links with a small delay
+	 */
+	private static final long CHUNK_TIME=20;
+
 	SyncropFile file;
 	String path;
 	String target;
 	int totalTimeOfTransfer;
 	FileTransferManager fileTransferManager;
-	
+	/**
+	 * sent with every packet so the recipient can tell the packets of concurrent uploads apart
+	 */
+	public final int streamId;
+	/**
+	 * the number of bytes the recipient already has; set when the recipient replies to the start of the upload
+	 */
+	private volatile long resumeOffset=0;
+	/**
+	 * true if the recipient will send the signatures of its copy of the file
+	 */
+	private volatile boolean signaturesFollow=false;
+	private volatile BlockSignatures signatures;
+	/**
+	 * true if the recipient can be asked which chunks of the file it already has
+	 */
+	private volatile boolean queryChunks=false;
+	private volatile byte[] knownChunks;
+	private final CountDownLatch resumed=new CountDownLatch(1),signed=new CountDownLatch(1),
+			answered=new CountDownLatch(1);
+
+	private CreditWindow credits;
+	private long dateMod,size;
+	/**
+	 * the file is read through this channel by every packet of the upload
+	 */
+	private FileChannel channel;
+	/**
+	 * the modification date of the file on disk when the upload started
+	 */
+	private long lastModified;
+	/**
+	 * when the next packet of file data may be sent in nanoseconds
+	 */
+	private long nextSendTime=0;
+
 	public UploadLargeFileThread(SyncropFile file,String target,FileTransferManager fileTransferManager)
 	{
 		super("upload large file thread");
-		this.file=file; 
+		this.file=file;
 		this.path=file.getPath();
 		this.target=target;
 		this.fileTransferManager=fileTransferManager;
-		fileTransferManager.setLargeFileTransferInfo(target, path);
+		streamId=fileTransferManager.startLargeFileUpload(target, path, this);
+	}
+	private Object[] withStreamId(Object[] syncData){
+		syncData[SyncropItem.INDEX_STREAM_ID]=streamId;
+		return syncData;
+	}
+	/**
+	 * Called when the recipient replies with the number of bytes of the file it already has
+	 * @param offset the position to continue the upload from
+	 * @param signaturesFollow true if the recipient will send the signatures of its copy of the file
+	 * @param queryChunks true if the recipient can be asked which chunks of the file it already has
+	 */
+	public void resume(long offset,boolean signaturesFollow,boolean queryChunks){
+		resumeOffset=offset;
+		this.signaturesFollow=signaturesFollow;
+		this.queryChunks=queryChunks;
+		resumed.countDown();
+	}
+	/**
+	 * Called when the recipient replies with the chunks of the file it already has
+	 * @param knownChunks 1 for each chunk the recipient has and 0 for the rest or null if it cannot tell
+	 */
+	public void setKnownChunks(byte[] knownChunks){
+		this.knownChunks=knownChunks;
+		answered.countDown();
+	}
+	/**
+	 * Called when the recipient sends the signatures of its copy of the file
+	 * @param signatures the signatures or null if the recipient could not compute them
+	 */
+	public void setBlockSignatures(BlockSignatures signatures){
+		this.signatures=signatures;
+		signed.countDown();
 	}
-	MappedByteBuffer map;
 	public void run()
 	{
 		try {
-			map=file.mapAllBytesFromFile();
 			uploadFile(fileTransferManager);
-			map.clear();
 		} catch (Exception|Error e) {
 			logger.logFatalError(e, "");
 			System.exit(0);
 		}
 	}
-	
+
 	public void uploadFile(FileTransferManager fileTransferManager)
 	{
-		try 
+		try
 		{
 
 			long startTime=System.currentTimeMillis();
-			
+
 			//files have to be less than 2GB, which is the maxim Integer
-			long size=(int)file.getSize();
-			int offset=(int)Settings.getMaxTransferSize();
+			size=(int)file.getSize();
 			logger.log("uploading large file; size="+size);
 			//mainClient.pausePrinting(true);
 			//mainClient.logs();
-			
-			long dateMod=file.getDateModified();
-			mainClient.printMessage(file.toSyncData(),HEADER_REQUEST_LARGE_FILE_DOWNLOAD_START,target);
+
+			dateMod=file.getDateModified();
+			lastModified=file.getFile().lastModified();
+			channel=FileChannel.open(file.getFile().toPath(), StandardOpenOption.READ);
+			//lets the recipient copy the content from a file it already has instead
+			String contentHash=file.getCachedContentHash();
+			if(contentHash==null&&file.getContentHash()!=null)
+				FileMetadataManager.updateContentHash(file);
+			credits=fileTransferManager.getCreditWindow(target);
+			credits.sent(0);
+			mainClient.printMessage(withStreamId(file.toSyncData()),HEADER_REQUEST_LARGE_FILE_DOWNLOAD_START,target);
 			logger.log("wait time:"+fileTransferManager.getDaemon().getExpectedFileTransferTime());
-			SyncropClientDaemon.sleep(fileTransferManager.getDaemon().getExpectedFileTransferTime());
-			
-			for(int i=0;i<size;i+=offset){	
-				if(SyncropClientDaemon.isConnectionActive());
-				if(Settings.isLimitingCPU()&&Math.random()>.9){
-					if(file.getDateModified()!=dateMod||file.getSize()!=size){
-						fileTransferManager.cancelUpload(target, path, true);
-						logger.log("large file has been updated during upload");
-						return;
-					}
-					Syncrop.sleepShort();
-				}
-				if(isShuttingDown()){
-					logger.log("Large file upload aborted; shutting down");
-					return;
-				}
-				//checks to make sure that the file being sent is still the file 
-				//that should be sent and that the connection has not closed
-				else if(!mainClient.isConnectionAccepted())
-					throw new IOException("connection lost with server");
-				else if(!file.exists()){
-					fileTransferManager.cancelUpload(target,path, true);
-					logger.log("file was deleted so it was not sent "+file.getPath());
-					return;
-				}
-				else if(!fileTransferManager.isLargeFileUploadOngoing(target,path)){
-					logger.log("Large file upload of "+path+" has been canceled"+fileTransferManager.getPathOfLargeFileBeingSent(target));
-					return;
-				}
-				else {
-					byte[]bytes=new byte[(int)Math.min(offset, size-i)];
-					
-					//Quickly load all bytes; This method has the benefit of memorizing 
-					//memory usage and is not affected by concurrent changes in the file
-					map.get(bytes, 0, bytes.length);
-									
-					//sends the packet or sends the packet with a signal that the upload is finished
-					mainClient.printMessage(file.toSyncData(bytes),HEADER_REQUEST_LARGE_FILE_DOWNLOAD,target);				
-				}
+			//older versions do not reply so the upload starts from the beginning after waiting
+			long start=0;
+			if(resumed.await(fileTransferManager.getDaemon().getExpectedFileTransferTime(),TimeUnit.MILLISECONDS)){
+				start=resumeOffset;
+				if(start<0||start>size)
+					start=0;
+				else if(start>0)
+					logger.log("resuming upload of "+path+" at "+start+"/"+size);
 			}
-			mainClient.printMessage(file.toSyncData(),HEADER_REQUEST_END_LARGE_FILE_DOWNLOAD,target);
+
+			boolean sent;
+			if(start==0&&signaturesFollow&&signed.await(SIGNATURES_TIMEOUT, TimeUnit.MILLISECONDS)&&signatures!=null)
+				sent=sendDelta(signatures);
+			else if(start==0&&queryChunks)
+				sent=sendNewChunks();
+			else sent=sendRange(start, size);
+			if(!sent)
+				return;
+			credits.sent(0);
+			mainClient.printMessage(withStreamId(file.toSyncData()),HEADER_REQUEST_END_LARGE_FILE_DOWNLOAD,target);
 			logger.log("done total time:"+(System.currentTimeMillis()-startTime)/1000.0+"s");
 			Syncrop.sleep();
 		}
+		catch (InterruptedException e){
+			logger.log("Large file upload of "+path+" interrupted");
+		}
 		catch (OutOfMemoryError | SecurityException | IOException e)
 		{
 			logger.logError(e,"occured while trying to upload large file path="+path) ;
 			if(mainClient.isConnectionAccepted())
 				fileTransferManager.cancelUpload(target,path,true);
 		}
-	}	
-}
\ No newline at end of file
+		finally {
+			//packets that have not been sent yet open the file again
+			if(channel!=null)
+				try {
+					channel.close();
+				} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Sends the parts of the file the recipient does not have and tells it to copy the rest from
+	 * its copy. Sends the whole file instead if few blocks match.
+	 * @return false if the upload was stopped
+	 */
+	private boolean sendDelta(BlockSignatures signatures) throws IOException, InterruptedException{
+		int blockSize=signatures.getBlockSize();
+		ArrayList<long[]>matches=signatures.findMatches(file.getFile().toPath());
+		long matched=(long)matches.size()*blockSize;
+		if(matched<size/4){
+			logger.log("only "+matched+"/"+size+" bytes of "+path+" match the recipient's copy; sending the whole file");
+			return sendRange(0, size);
+		}
+		logger.log("sending delta of "+path+"; "+matched+"/"+size+" bytes match the recipient's copy");
+		long position=0;
+		int maxCount=(int)Math.max(1, MAX_COPY_SIZE/blockSize);
+		for(int m=0;m<matches.size();){
+			long matchPosition=matches.get(m)[0];
+			int firstBlock=(int)matches.get(m)[1],count=1;
+			while(m+count<matches.size()&&count<maxCount&&matches.get(m+count)[0]==matchPosition+(long)count*blockSize&&
+					matches.get(m+count)[1]==firstBlock+count)
+				count++;
+			if(!sendRange(position, matchPosition))
+				return false;
+			Object[] syncData=file.toSyncData();
+			syncData[SyncropItem.INDEX_BYTES]=new Object[]{firstBlock,count};
+			syncData[SyncropItem.INDEX_POSITION]=matchPosition;
+			if(!send(syncData, HEADER_COPY_LARGE_FILE_BLOCKS, 0))
+				return false;
+			position=matchPosition+(long)count*blockSize;
+			m+=count;
+		}
+		return sendRange(position, size);
+	}
+	/**
+	 * Asks the recipient which chunks of the file it already has and tells it to copy those
+	 * instead of sending them
+	 * @return false if the upload was stopped
+	 */
+	private boolean sendNewChunks() throws IOException, InterruptedException{
+		ArrayList<Chunk>chunks=ContentDefinedChunker.chunk(file.getFile().toPath());
+		byte[] hashes=new byte[chunks.size()*ContentDefinedChunker.HASH_LENGTH];
+		for(int i=0;i<chunks.size();i++)
+			System.arraycopy(chunks.get(i).hash, 0, hashes, i*ContentDefinedChunker.HASH_LENGTH, ContentDefinedChunker.HASH_LENGTH);
+		Object[] syncData=file.toSyncData();
+		mainClient.printMessage(new Object[]{syncData[SyncropItem.INDEX_PATH],syncData[SyncropItem.INDEX_OWNER],streamId,hashes},
+				HEADER_QUERY_CHUNKS,target);
+		byte[] known=answered.await(SIGNATURES_TIMEOUT, TimeUnit.MILLISECONDS)?knownChunks:null;
+		if(known==null||known.length!=chunks.size())
+			return sendRange(0, size);
+		long position=0;
+		int copied=0;
+		for(int i=0;i<chunks.size();i++){
+			Chunk chunk=chunks.get(i);
+			if(known[i]==0)
+				continue;
+			if(!sendRange(position, chunk.position))
+				return false;
+			syncData=file.toSyncData();
+			syncData[SyncropItem.INDEX_BYTES]=new Object[]{chunk.hash,chunk.length};
+			syncData[SyncropItem.INDEX_POSITION]=chunk.position;
+			if(!send(syncData, HEADER_COPY_LARGE_FILE_CHUNK, 0))
+				return false;
+			position=chunk.position+chunk.length;
+			copied++;
+		}
+		logger.log(copied+"/"+chunks.size()+" chunks of "+path+" were already on the recipient");
+		return sendRange(position, size);
+	}
+	/**
+	 * Sends the bytes of the file between from and to
+	 * @return false if the upload was stopped
+	 */
+	private boolean sendRange(long from,long to) throws IOException, InterruptedException{
+		for(long i=from;i<to;){
+			int length=(int)Math.min(getChunkSize(), to-i);
+			pace(length);
+			//regions are only queued while the file is still the version being uploaded
+			if(channel.size()!=size||file.getFile().lastModified()!=lastModified){
+				logger.log("large file has been updated during upload; canceling "+path);
+				fileTransferManager.cancelUpload(target, path, true);
+				return false;
+			}
+			//the bytes are copied from the file to the connection when the packet is sent
+			if(!send(file.toSyncData(channel,i,length), HEADER_REQUEST_LARGE_FILE_DOWNLOAD, length))
+				return false;
+			i+=length;
+		}
+		return true;
+	}
+	/**
+	 * About a quarter of the bandwidth-delay product is sent per packet so several packets are in flight,
+	 * but not less than what the link delivers in {@value #CHUNK_TIME}ms
+	 * @return the number of bytes of file data to send in the next packet
+	 */
+	private int getChunkSize(){
+		int max=(int)Settings.getMaxTransferSize();
+		TimeoutCalculator link=credits.getLinkEstimator();
+		if(link.getDeliveryRate()==0)
+			return max;
+		long chunkSize=Math.max(link.getBandwidthDelayProduct()/4, (long)(link.getDeliveryRate()*CHUNK_TIME/1000));
+		return (int)Math.min(max, Math.max(Math.min(MIN_CHUNK_SIZE, max), chunkSize));
+	}
+	/**
+	 * Spaces packets out at the pacing rate of the link, so they do not arrive in bursts that fill the
+	 * queues along the path
+	 * @param length the number of bytes of file data in the next packet
+	 */
+	private void pace(int length) throws InterruptedException{
+		double rate=credits.getLinkEstimator().getPacingRate();
+		long now=System.nanoTime();
+		if(rate==0){
+			nextSendTime=now;
+			return;
+		}
+		//the rate may have dropped since the last packet was sent
+		long wait=Math.min(nextSendTime-now, 1000000000);
+		//sleeps are too coarse for fast links so the debt is paid once it reaches a millisecond
+		if(wait>=1000000)
+			Thread.sleep(wait/1000000, (int)(wait%1000000));
+		nextSendTime=Math.max(nextSendTime, now-1000000)+(long)(length*1e9/rate);
+	}
+	/**
+	 * Sends a packet once the recipient has granted credits for it
+	 * @param length the number of bytes of file data in the packet
+	 * @return false if the upload was stopped
+	 */
+	private boolean send(Object[] syncData,String header,int length) throws IOException, InterruptedException{
+		while(true){
+			if(SyncropClientDaemon.isConnectionActive());
+			if(Settings.isLimitingCPU()&&Math.random()>.9){
+				if(file.getDateModified()!=dateMod||file.getSize()!=size){
+					fileTransferManager.cancelUpload(target, path, true);
+					logger.log("large file has been updated during upload");
+					return false;
+				}
+				Syncrop.sleepShort();
+			}
+			if(isShuttingDown()){
+				logger.log("Large file upload aborted; shutting down");
+				return false;
+			}
+			//checks to make sure that the file being sent is still the file
+			//that should be sent and that the connection has not closed
+			else if(!mainClient.isConnectionAccepted())
+				throw new IOException("connection lost with server");
+			else if(!file.exists()){
+				fileTransferManager.cancelUpload(target,path, true);
+				logger.log("file was deleted so it was not sent "+file.getPath());
+				return false;
+			}
+			else if(!fileTransferManager.isLargeFileUploadOngoing(target,path,this)){
+				logger.log("Large file upload of "+path+" (stream "+streamId+") has been canceled");
+				return false;
+			}
+			//waits for the recipient to grant credits; the checks above are repeated while waiting
+			else if(credits.acquire(length, 100)){
+				fileTransferManager.throttleUpload(target, length);
+				mainClient.printMessage(withStreamId(syncData),header,target);
+				return true;
+			}
+		}
+	}
+}
@@ -3,9 +3,17 @@ package daemon.client;
 import static notification.Notification.displayNotification;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLHandshakeException;
 
@@ -17,11 +25,13 @@ import file.Directory;
 import file.SyncropItem;
 import logger.Logger;
 import message.Message;
+import message.Messenger;
 import settings.Settings;
 import syncrop.FileMetadataManager;
 import syncrop.ResourceManager;
 import syncrop.Syncrop;
 import syncrop.SyncropCloseException;
+import transferManager.FileTransferManager;
 
 /**
  * 
@@ -35,6 +45,39 @@ public class SyncropClientDaemon extends SyncDaemon{
 	 * If SyncropClientDaemon is in the process of authenticating to Cloud
 	 */
 	static volatile boolean authenticating;
+	/**
+	 * How long to wait for Cloud to reply to the hash of the root directory before syncing the 
+	 * metadata of all files instead; older versions of Cloud do not reply
+	 */
+	private static final long DIR_HASHES_TIMEOUT=60000;
+	/**
+	 * the max number of files or directories sent in one message while syncing
+	 */
+	private static final int MAX_SYNC_MESSAGE_LENGTH=1024;
+	/**
+	 * the number of messages of directory hashes that Cloud has not replied to yet
+	 */
+	private final AtomicInteger outstandingDirHashes=new AtomicInteger();
+	private volatile CountDownLatch dirHashesReplied;
+	private volatile boolean dirHashesSupported=true;
+	/**
+	 * the number of this client's sequence when the current sync of all directories started
+	 */
+	private volatile long syncSequence;
+	/**
+	 * The names of the cursors of Cloud's sequence and of this client's sequence; they are the points
+	 * each side last synced to
+	 */
+	private static final String CLOUD_CURSOR="cloud",LOCAL_CURSOR="local";
+	/**
+	 * The name of the cursor whose id is the hash of the enabled paths and restrictions the other cursors
+	 * were saved with; files that were not synced before are not changes since the cursors
+	 */
+	private static final String SCOPE_CURSOR="scope";
+	/**
+	 * the hash of the enabled paths and restrictions of the current sync
+	 */
+	private volatile String syncScope;
 	
 	
 	public static void main (String args[]) throws IOException
@@ -207,6 +250,9 @@ public class SyncropClientDaemon extends SyncDaemon{
 			
 			try {
 				if(authenticate()){
+					outstandingDirHashes.set(0);
+					//the cloud connected to may have been updated since it last ignored the hashes
+					dirHashesSupported=true;
 					sendSettings();
 					syncAllFilesToCloud(Settings.isForceSync());//sync();
 					
@@ -313,6 +359,10 @@ public class SyncropClientDaemon extends SyncDaemon{
 	 * with its data and orders file deletion,conflicts, upload, and download accordingly  
 	 * This method calls {@link #syncDirsToCloud(String, String...)} to Sync directories
 	 * after the regular files are synced
+	 * <br/>
+	 * Unless forced, only the changes since the last sync are exchanged if there was one; see 
+	 * {@link #syncChangesSinceCursor()}. Otherwise the hashes of the enabled directories are sent first and only
+	 * the directories whose hashes differ from Cloud's are synced; see {@link #syncDifferingDirs(String[])}
 	 * @param parentDir only syncs files in the parent dir
 	 * @param pathsToSync  only have the cloud sync files that are in this domain 
 	 * @throws IOException 
@@ -320,9 +370,174 @@ public class SyncropClientDaemon extends SyncDaemon{
 	public void syncFilesToCloud(boolean force,String... pathsToSync) throws IOException{
 		
 		mainClient.printMessage(pathsToSync, HEADER_SET_ENABLED_PATHS);
-		Iterable<SyncropItem>items=FileMetadataManager.iterateThroughAllFileMetadata(null);
-		final int maxTransferSize=1024;
-		Object[][] message=new Object[maxTransferSize][];
+		syncScope=getSyncScope(pathsToSync);
+		if(!force&&syncChangesSinceCursor())
+			return;
+		syncAllFiles(force);
+	}
+	/**
+	 * Sends the metadata of the files changed since the last sync and asks Cloud for the files changed
+	 * on its side
+	 * @return false if there was no last sync
+	 */
+	private boolean syncChangesSinceCursor(){
+		String owner=ResourceManager.getAccount().getName();
+		Object[] cloudCursor=FileMetadataManager.getSyncCursor(CLOUD_CURSOR);
+		Object[] localCursor=FileMetadataManager.getSyncCursor(LOCAL_CURSOR);
+		String databaseId=FileMetadataManager.getDatabaseId(owner);
+		if(cloudCursor==null||localCursor==null||databaseId==null||!databaseId.equals(localCursor[0]))
+			return false;
+		Object[] scopeCursor=FileMetadataManager.getSyncCursor(SCOPE_CURSOR);
+		if(scopeCursor==null||!scopeCursor[0].equals(syncScope)){
+			logger.log("Enabled paths or restrictions changed since the last sync; syncing all files");
+			FileMetadataManager.setSyncCursor(CLOUD_CURSOR, null, 0);
+			FileMetadataManager.setSyncCursor(LOCAL_CURSOR, null, 0);
+			return false;
+		}
+		long sequence=FileMetadataManager.getSequence(owner);
+		LinkedList<SyncropItem>items=FileMetadataManager.getFilesChangedSince((long)localCursor[1], sequence, owner);
+		if(items==null)
+			return false;
+		logger.log("Syncing changes since "+localCursor[1]+"; Cloud's cursor is "+cloudCursor[1]);
+		syncMetadata(items, false);
+		mainClient.printMessage(new Object[]{cloudCursor[0],cloudCursor[1],sequence}, HEADER_SYNC_CHANGES_SINCE);
+		return true;
+	}
+	/**
+	 * @param pathsToSync the enabled paths sent to Cloud
+	 * @return the hash of the enabled paths and the restrictions
+	 */
+	private static String getSyncScope(String[] pathsToSync){
+		StringBuilder scope=new StringBuilder();
+		for(String path:new TreeSet<String>(Arrays.asList(pathsToSync)))
+			scope.append(path).append('\t');
+		scope.append('\n');
+		for(String restriction:new TreeSet<String>(Arrays.asList(ResourceManager.getAccount().getRestrictionsList())))
+			scope.append(restriction).append('\t');
+		return String.format("%032x", new BigInteger(1, FileTransferManager.getHash(scope.toString().getBytes())));
+	}
+	/**
+	 * Syncs the metadata of all files; the directories whose hashes match Cloud's are skipped unless forced
+	 */
+	private void syncAllFiles(boolean force){
+		syncSequence=FileMetadataManager.getSequence(ResourceManager.getAccount().getName());
+		if(force||!dirHashesSupported){
+			syncMetadata(FileMetadataManager.iterateThroughAllFileMetadata(null), force);
+			requestCloudFiles();
+			return;
+		}
+		final CountDownLatch replied=new CountDownLatch(1);
+		dirHashesReplied=replied;
+		outstandingDirHashes.incrementAndGet();
+		String owner=ResourceManager.getAccount().getName();
+		TreeSet<String>dirs=getHashedDirs();
+		//the directories containing the enabled directories are not under any of them
+		LinkedList<SyncropItem>parents=new LinkedList<SyncropItem>();
+		for(String dir:dirs)
+			for(String parent=FileMetadataManager.getParentDir(dir);!parent.isEmpty();parent=FileMetadataManager.getParentDir(parent)){
+				SyncropItem item=FileMetadataManager.getFile(isNotWindows()?parent:SyncropItem.toWindowsPath(parent), owner);
+				if(item!=null)
+					parents.add(item);
+			}
+		syncMetadata(parents, false);
+		Object[][] message=new Object[dirs.size()][];
+		int count=0;
+		for(String dir:dirs)
+			message[count++]=new Object[]{dir,FileMetadataManager.getDirHash(dir, owner)};
+		mainClient.printMessage(message, HEADER_SYNC_DIR_HASHES);
+		new Thread("directory hashes timeout"){
+			public void run(){
+				try {
+					if(!replied.await(DIR_HASHES_TIMEOUT, TimeUnit.MILLISECONDS)&&isConnectionAccepted()){
+						logger.log("Cloud did not reply to the directory hashes; syncing all files");
+						dirHashesSupported=false;
+						outstandingDirHashes.set(0);
+						syncMetadata(FileMetadataManager.iterateThroughAllFileMetadata(null), false);
+						requestCloudFiles();
+					}
+				} catch (InterruptedException e) {}
+			}
+		}.start();
+	}
+	/**
+	 * Cloud's hash of the root covers the files of every client of the account, so the hashes of the
+	 * enabled directories are compared instead. The root is compared if a directory is a pattern.
+	 * @return the enabled directories using '/' as the separator, without the ones under another one
+	 */
+	private static TreeSet<String> getHashedDirs(){
+		Account account=ResourceManager.getAccount();
+		ArrayList<Directory>enabled=new ArrayList<Directory>(account.getDirectories());
+		HashSet<String>removable=account.getRemovableDirectoriesThatExists();
+		for(Directory dir:account.getRemovableDirectories())
+			if(removable.contains(dir.getDir()))
+				enabled.add(dir);
+		TreeSet<String>dirs=new TreeSet<String>();
+		for(Directory dir:enabled){
+			if(!dir.isLiteral()||dir.getDir().isEmpty())
+				return new TreeSet<String>(Arrays.asList(""));
+			dirs.add(isNotWindows()?dir.getDir():SyncropItem.toLinuxPath(dir.getDir()));
+		}
+		TreeSet<String>hashedDirs=new TreeSet<String>();
+		for(String dir:dirs){
+			boolean nested=false;
+			for(String parent=FileMetadataManager.getParentDir(dir);!parent.isEmpty()&&!nested;parent=FileMetadataManager.getParentDir(parent))
+				nested=dirs.contains(parent);
+			if(!nested)
+				hashedDirs.add(dir);
+		}
+		return hashedDirs;
+	}
+	/**
+	 * Called when Cloud replies with the directories whose hashes differ. Sends the metadata of the
+	 * files directly in them and the hashes of their subdirectories. Once Cloud has replied to all
+	 * the hashes, Cloud is told to send the files this client does not have.
+	 * @param dirs the directories that differ
+	 */
+	private void syncDifferingDirs(String[] dirs){
+		CountDownLatch replied=dirHashesReplied;
+		if(replied!=null)
+			replied.countDown();
+		if(!dirHashesSupported){
+			logger.log("Ignoring late reply to directory hashes");
+			return;
+		}
+		String owner=ResourceManager.getAccount().getName();
+		LinkedList<SyncropItem>items=new LinkedList<SyncropItem>();
+		LinkedList<String>childDirs=new LinkedList<String>();
+		for(String dir:dirs){
+			LinkedList<SyncropItem>files=FileMetadataManager.getFilesIn(dir, owner);
+			if(files!=null)
+				items.addAll(files);
+			childDirs.addAll(FileMetadataManager.getChildDirs(dir, owner));
+		}
+		syncMetadata(items, false);
+		logger.logTrace(dirs.length+" directories differ; checking "+childDirs.size()+" subdirectories");
+		
+		Object[][] message=new Object[Math.min(MAX_SYNC_MESSAGE_LENGTH, childDirs.size())][];
+		int count=0;
+		for(String dir:childDirs){
+			message[count++]=new Object[]{dir,FileMetadataManager.getDirHash(dir, owner)};
+			if(count==message.length){
+				outstandingDirHashes.incrementAndGet();
+				mainClient.printMessage(message, HEADER_SYNC_DIR_HASHES);
+				count=0;
+				message=new Object[message.length][];
+			}
+		}
+		if(count!=0){
+			outstandingDirHashes.incrementAndGet();
+			mainClient.printMessage(Arrays.copyOf(message, count), HEADER_SYNC_DIR_HASHES);
+		}
+		if(outstandingDirHashes.decrementAndGet()==0)
+			requestCloudFiles();
+	}
+	/**
+	 * Sends the metadata of the enabled files to Cloud
+	 * @param items the files to sync
+	 * @param force if Cloud should treat the files as the newest version
+	 */
+	private void syncMetadata(Iterable<SyncropItem>items,boolean force){
+		Object[][] message=new Object[MAX_SYNC_MESSAGE_LENGTH][];
 		int count=0,totalCount=0;
 		for (SyncropItem item:items) {
 			if(item==null||!item.isEnabled()||!item.syncOnFileModification())continue;
@@ -330,20 +545,70 @@ public class SyncropClientDaemon extends SyncDaemon{
 				item.save();
 			message[count++]=item.toSyncData();
 			
-			if(count==maxTransferSize){
+			if(count==MAX_SYNC_MESSAGE_LENGTH){
 				mainClient.printMessage(message, force?HEADER_FORCE_SYNC_FILES:HEADER_SYNC_FILES);
 				count=0;
-				message=new Object[maxTransferSize][];
+				message=new Object[MAX_SYNC_MESSAGE_LENGTH][];
 			}
 			totalCount++;
 		}
 		if(count!=0)
 			mainClient.printMessage(message, force?HEADER_FORCE_SYNC_FILES:HEADER_SYNC_FILES);
 		logger.log("Syncing "+totalCount+" files");
-		//Tells Cloud to send any files that this client does not have
+	}
+	/**
+	 * Tells Cloud to send any files that this client does not have and asks for a cursor
+	 * to sync from next time
+	 */
+	private void requestCloudFiles(){
 		sleepShort();
 		mainClient.printMessage(
 			ResourceManager.getAccount().getRestrictionsList(), HEADER_SYNC_GET_CLOUD_FILES);	
+		mainClient.printMessage(new Object[]{null,-1L,syncSequence}, HEADER_SYNC_CHANGES_SINCE);
+	}
+	/**
+	 * Called when Cloud replies with a cursor of its sequence. The cursors are saved once the files this
+	 * client was asked to upload have been uploaded; they are not saved if the connection is lost first
+	 * so the same changes are synced again next time.
+	 * @param cursor {the id of Cloud's sequence or null if the cursor that was sent is not valid, 
+	 * the number of Cloud's sequence, the number of this client's sequence}
+	 */
+	private void saveSyncCursor(Object[] cursor){
+		final String cloudDatabaseId=(String)cursor[0];
+		final long cloudSequence=(long)cursor[1],localSequence=(long)cursor[2];
+		if(cloudDatabaseId==null){
+			logger.log("Cloud cannot sync changes since the last sync; syncing all files");
+			FileMetadataManager.setSyncCursor(CLOUD_CURSOR, null, 0);
+			syncAllFiles(false);
+			return;
+		}
+		final Messenger client=mainClient;
+		final String scope=syncScope;
+		new Thread("save sync cursor"){
+			public void run(){
+				while(!fileTransferManager.haveAllFilesFinishedTranferring()){
+					if(isShuttingDown()||mainClient!=client||!isConnectionAccepted())
+						return;
+					Syncrop.sleep();
+				}
+				FileMetadataManager.setSyncCursor(CLOUD_CURSOR, cloudDatabaseId, cloudSequence);
+				FileMetadataManager.setSyncCursor(LOCAL_CURSOR, FileMetadataManager.getDatabaseId(ResourceManager.getAccount().getName()), localSequence);
+				FileMetadataManager.setSyncCursor(SCOPE_CURSOR, scope, 0);
+				logger.log("Synced to "+localSequence+"; Cloud's cursor is "+cloudSequence);
+			}
+		}.start();
+	}
+	
+	@Override
+	protected boolean handleResponse(Message message){
+		if(super.handleResponse(message))
+			return true;
+		else if(message.getHeader().equals(HEADER_SYNC_DIFFERING_DIRS))
+			syncDifferingDirs((String[])message.getMessage());
+		else if(message.getHeader().equals(HEADER_SYNC_CURSOR))
+			saveSyncCursor((Object[])message.getMessage());
+		else return false;
+		return true;
 	}
 
 	
@@ -0,0 +1,227 @@
+package daemon.cloud;
+
+import static syncrop.Syncrop.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import file.SyncropItem;
+import syncrop.FileMetadataManager;
+import syncrop.ResourceManager;
+import transferManager.ContentDefinedChunker;
+import transferManager.ContentDefinedChunker.Chunk;
+
+/**
+ * A content addressed index of the chunks of the files stored on the cloud.
+ * <br/>
+ * Each chunk is found by its hash and refers to the places in the users' files it is stored;
+ * the number of references is the chunk's reference count. Clients ask which chunks of a
+ * file the cloud already has before uploading it and the cloud copies those chunks from its
+ * own files instead of receiving them again.
+ * <br/>
+ * Chunks are only shared between the files of the same owner; otherwise a client that knows
+ * the hash of a chunk could read it from another account's files.
+ * <br/>
+ * The files themselves are still stored as plain copies. References to files that have since
+ * changed are found when the chunk is copied, since the bytes no longer match the hash, and
+ * are removed then.
+ * @see ContentDefinedChunker
+ */
+public class ChunkStore {
+
+	static final String TABLE_NAME="Chunks";
+
+	/**
+	 * Creates the table of chunks if it does not exist
+	 * @throws SQLException if the table cannot be created
+	 */
+	public void initialize() throws SQLException{
+		Connection conn = FileMetadataManager.getConnectionInstance(false);
+		Statement stat = conn.createStatement();
+		stat.executeUpdate("CREATE TABLE IF NOT EXISTS "+TABLE_NAME+
+				" ( Hash Varchar (64), Path Varchar (255), Owner Varchar(25),"
+				+ " Position BIGINT UNSIGNED, Length INT UNSIGNED,"
+				+ " PRIMARY KEY (Path, Owner, Position));");
+		stat.executeUpdate("CREATE INDEX IF NOT EXISTS ChunkHash ON "+TABLE_NAME+" (Hash);");
+		stat.close();
+		conn.close();
+	}
+
+	/**
+	 * Adds the chunks of a file; the chunks previously added for the file are removed
+	 * @param item the file that was saved
+	 */
+	public synchronized void addFile(SyncropItem item){
+		try {
+			ArrayList<Chunk>chunks=ContentDefinedChunker.chunk(item.getFile().toPath());
+			Connection conn = FileMetadataManager.getConnectionInstance(false);
+			conn.setAutoCommit(false);
+			removeFile(item.getPath(), item.getOwner(), conn);
+			PreparedStatement prep = conn.prepareStatement(
+					"INSERT INTO "+TABLE_NAME+" (`Hash`, `Path`, `Owner`, `Position`, `Length`) VALUES (?,?,?,?,?);");
+			for(Chunk chunk:chunks){
+				prep.setString(1, toHex(chunk.hash));
+				prep.setString(2, item.getPath());
+				prep.setString(3, item.getOwner());
+				prep.setLong(4, chunk.position);
+				prep.setInt(5, chunk.length);
+				prep.addBatch();
+			}
+			prep.executeBatch();
+			prep.close();
+			conn.commit();
+			conn.close();
+			logger.logTrace("Added "+chunks.size()+" chunks of "+item.getPath());
+		} catch (IOException|SQLException e) {
+			logger.logError(e, "chunks of "+item.getPath()+" could not be added");
+		}
+	}
+	/**
+	 * Removes the chunks of a file
+	 * @param path the path of the file
+	 * @param owner the owner of the file
+	 */
+	public synchronized void removeFile(String path,String owner){
+		try {
+			Connection conn = FileMetadataManager.getConnectionInstance(false);
+			removeFile(path, owner, conn);
+			conn.close();
+		} catch (SQLException e) {
+			logger.logError(e, "chunks of "+path+" could not be removed");
+		}
+	}
+	private void removeFile(String path,String owner,Connection conn) throws SQLException{
+		PreparedStatement prep = conn.prepareStatement("DELETE FROM "+TABLE_NAME+" WHERE Path=? AND Owner=?;");
+		prep.setString(1, path);
+		prep.setString(2, owner);
+		prep.executeUpdate();
+		prep.close();
+	}
+
+	/**
+	 * @param hashes the hashes of the chunks, one after another
+	 * @param owner the owner of the file the chunks belong to
+	 * @return 1 for each chunk the store has and 0 for each it does not
+	 */
+	public byte[] have(byte[] hashes,String owner){
+		int length=ContentDefinedChunker.HASH_LENGTH;
+		byte[] have=new byte[hashes.length/length];
+		try {
+			Connection conn = FileMetadataManager.getConnectionInstance(true);
+			PreparedStatement prep = conn.prepareStatement("SELECT 1 FROM "+TABLE_NAME+" WHERE Hash=? AND Owner=? LIMIT 1;");
+			prep.setString(2, owner);
+			for(int i=0;i<have.length;i++){
+				prep.setString(1, toHex(Arrays.copyOfRange(hashes, i*length, (i+1)*length)));
+				ResultSet rs=prep.executeQuery();
+				if(rs.next())
+					have[i]=1;
+				rs.close();
+			}
+			prep.close();
+			conn.close();
+		} catch (SQLException e) {
+			logger.logError(e, "could not read chunks");
+		}
+		return have;
+	}
+	/**
+	 * @param hash the hash of a chunk
+	 * @return the number of places the chunk is stored
+	 */
+	public int getReferenceCount(byte[] hash){
+		try {
+			Connection conn = FileMetadataManager.getConnectionInstance(true);
+			PreparedStatement prep = conn.prepareStatement("SELECT COUNT(*) FROM "+TABLE_NAME+" WHERE Hash=?;");
+			prep.setString(1, toHex(hash));
+			ResultSet rs=prep.executeQuery();
+			int count=rs.next()?rs.getInt(1):0;
+			prep.close();
+			conn.close();
+			return count;
+		} catch (SQLException e) {
+			logger.logError(e, "could not read chunks");
+		}
+		return 0;
+	}
+
+	/**
+	 * Copies a chunk from one of the files it is stored in
+	 * @param hash the hash of the chunk
+	 * @param length the length of the chunk
+	 * @param owner the owner of the file the chunk belongs to
+	 * @param out the channel to copy to
+	 * @return false if no file has the chunk
+	 * @throws IOException if the chunk cannot be written
+	 */
+	public boolean copyChunk(byte[] hash,int length,String owner,FileChannel out) throws IOException{
+		if(length<=0||length>ContentDefinedChunker.MAX_CHUNK_SIZE)
+			return false;
+		String hex=toHex(hash);
+		ArrayList<Object[]>references=new ArrayList<Object[]>();
+		try {
+			Connection conn = FileMetadataManager.getConnectionInstance(true);
+			PreparedStatement prep = conn.prepareStatement(
+					"SELECT Path, Position FROM "+TABLE_NAME+" WHERE Hash=? AND Length=? AND Owner=?;");
+			prep.setString(1, hex);
+			prep.setInt(2, length);
+			prep.setString(3, owner);
+			ResultSet rs=prep.executeQuery();
+			while(rs.next())
+				references.add(new Object[]{rs.getString(1),rs.getLong(2)});
+			prep.close();
+			conn.close();
+		} catch (SQLException e) {
+			logger.logError(e, "could not read chunks");
+			return false;
+		}
+		byte[] bytes=new byte[length];
+		for(Object[] reference:references){
+			String path=(String)reference[0];
+			File file=new File(ResourceManager.getAbsolutePath(path, owner));
+			if(read(file, (long)reference[1], bytes)&&Arrays.equals(hash, ContentDefinedChunker.hash(bytes))){
+				ByteBuffer buffer=ByteBuffer.wrap(bytes);
+				while(buffer.hasRemaining())
+					out.write(buffer);
+				return true;
+			}
+			logger.logTrace("Chunk "+hex+" is no longer in "+path);
+			removeFile(path, owner);
+		}
+		return false;
+	}
+	private static boolean read(File file,long position,byte[] bytes){
+		if(!file.isFile())
+			return false;
+		try {
+			FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				ByteBuffer buffer=ByteBuffer.wrap(bytes);
+				while(buffer.hasRemaining())
+					if(channel.read(buffer, position+buffer.position())==-1)
+						return false;
+				return true;
+			}
+			finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	private static String toHex(byte[] hash){
+		StringBuilder builder=new StringBuilder(hash.length*2);
+		for(byte b:hash)
+			builder.append(String.format("%02x", b));
+		return builder.toString();
+	}
+}
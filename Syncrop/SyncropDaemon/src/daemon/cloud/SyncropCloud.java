@@ -12,10 +12,12 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Set;
 
 import account.Account;
@@ -58,6 +60,10 @@ public final class SyncropCloud extends SyncDaemon
 	 */
 	private static final HashMap<String, SyncropUser> clients=new HashMap<>();
 	private final HashMap<String,HashSet<String>> syncedFiles=new HashMap<String,HashSet<String>>();;
+	/**
+	 * null if the table of chunks could not be created
+	 */
+	private ChunkStore chunkStore;
 		
 	
 	/**
@@ -73,6 +79,19 @@ public final class SyncropCloud extends SyncDaemon
 	public String getUsername(){
 		return CLOUD_USERNAME;
 	}
+	@Override
+	public ChunkStore getChunkStore(){
+		return chunkStore;
+	}
+	@Override
+	protected void onLargeFileSaved(final SyncropItem item){
+		if(chunkStore!=null)
+			new Thread("chunk store"){
+				public void run(){
+					chunkStore.addFile(item);
+				}
+			}.start();
+	}
 	
 	
 	@Override
@@ -98,7 +117,7 @@ public final class SyncropCloud extends SyncDaemon
 				if(!triedToConnectToServer)
 					logger.log("trying to connected to server:");
 				else sleep();
-				mainClient=new InternalServer(Server.UNLIMITED_CONNECTIONS, Settings.isSSLConnection()?Settings.getSSLPort():Settings.getPort(), logger,getUsername(),application,Settings.isSSLConnection());
+				mainClient=new InternalServer(Server.UNLIMITED_CONNECTIONS, Settings.isSSLConnection()?Settings.getSSLPort():Settings.getPort(), logger,getUsername(),application,Settings.isSSLConnection(),Settings.isNioServer());
 			} catch (IOException e) {
 				if(!triedToConnectToServer){
 					logger.log("Could not connect to server");
@@ -118,6 +137,13 @@ public final class SyncropCloud extends SyncDaemon
 	@Override
 	protected void startThreads()
 	{
+		try {
+			ChunkStore chunkStore=new ChunkStore();
+			chunkStore.initialize();
+			this.chunkStore=chunkStore;
+		} catch (SQLException e) {
+			logger.logError(e, "occured while creating the chunk store; duplicate chunks will be resent");
+		}
 		super.startThreads();
 		mainSocketListenerNotification();
 	}
@@ -190,6 +216,7 @@ public final class SyncropCloud extends SyncDaemon
 			super.removeUser(username, reason);
 			clients.remove(username);
 			syncedFiles.remove(username);
+			fileTransferManager.removeCreditWindow(username);
 			logger.log(username+" was removed from cloud",SyncropLogger.LOG_LEVEL_DEBUG);
 		}
 	}
@@ -282,7 +309,9 @@ public final class SyncropCloud extends SyncDaemon
 		logger.logTrace("client restrinction"+user.getRestrictions().toString());
 		final String accountName=user.getAccountName();
 		
-		Iterable<SyncropItem>items=FileMetadataManager.iterateThroughAllFileMetadata(accountName);
+		//clients that sent directory hashes have already synced the directories that matched
+		Iterable<SyncropItem>items=user.checkedDirs.isEmpty()?
+				FileMetadataManager.iterateThroughAllFileMetadata(accountName):getFilesInDifferingDirs(user);
 		int synced=0,totalEnabled=0,total=0;
 		for (SyncropItem item:items) {
 			total++;
@@ -294,9 +323,93 @@ public final class SyncropCloud extends SyncDaemon
 		}
 		logger.log("Synced "+synced+ " out of "+total+"("+totalEnabled+")"+" files for "+accountName);
 		this.syncedFiles.get(message.getUserID()).clear();
+		user.checkedDirs.clear();
+		user.differingDirs.clear();
 		logger.log("files from Cloud have been synced with "+message.getUserID()+"("+accountName+")");
 		
 	}
+	/**
+	 * Compares the hashes of the client's directories with the cloud's and replies with the 
+	 * directories that differ. The client then sends the metadata of the files directly in those
+	 * directories and the hashes of their subdirectories.
+	 */
+	protected void compareDirHashes(Message message){
+		final SyncropUser user=clients.get(message.getUserID());
+		Object[][] dirHashes=(Object[][])message.getMessage();
+		ArrayList<String>differingDirs=new ArrayList<String>();
+		for(Object[] dirHash:dirHashes){
+			String dir=(String)dirHash[0];
+			user.checkedDirs.add(dir);
+			if(FileMetadataManager.getDirHash(dir, user.getAccountName())!=(long)dirHash[1]){
+				user.differingDirs.add(dir);
+				differingDirs.add(dir);
+			}
+		}
+		logger.logTrace(differingDirs.size()+" out of "+dirHashes.length+" directories differ");
+		mainClient.printMessage(differingDirs.toArray(new String[differingDirs.size()]), HEADER_SYNC_DIFFERING_DIRS, message.getUserID());
+	}
+	/**
+	 * Sends the files changed since the client's cursor of the cloud's sequence and replies with the current
+	 * cursor once the client has received them. If the cursor is not valid, nothing is sent and the reply says so.
+	 * @see SyncDaemon#HEADER_SYNC_CHANGES_SINCE
+	 */
+	protected void syncChangesSince(final Message message){
+		final String id=message.getUserID();
+		final SyncropUser user=clients.get(id);
+		final String accountName=user.getAccountName();
+		Object[] cursor=(Object[])message.getMessage();
+		String clientDatabaseId=(String)cursor[0];
+		long sequence=(long)cursor[1];
+		final Long clientSequence=(Long)cursor[2];
+		
+		final String databaseId=FileMetadataManager.getDatabaseId(accountName);
+		final long currentSequence=FileMetadataManager.getSequence(accountName);
+		if(clientDatabaseId!=null){
+			LinkedList<SyncropItem>items=null;
+			if(clientDatabaseId.equals(databaseId)&&sequence<=currentSequence)
+				items=FileMetadataManager.getFilesChangedSince(sequence, currentSequence, accountName);
+			if(items==null){
+				logger.log("Cursor of "+id+" is not valid");
+				mainClient.printMessage(new Object[]{null,-1L,clientSequence}, HEADER_SYNC_CURSOR, id);
+				return;
+			}
+			int synced=0;
+			for(SyncropItem item:items)
+				//deleted files are sent as well so the client deletes them 
+				if(!syncedFiles.get(id).contains(item.getPath())&&item.isEnabled()&&item.syncOnFileModification()
+						&&user.isPathEnabled(item.getPath())){
+					fileTransferManager.addToSendQueue(item, id);
+					synced++;
+				}
+			logger.log("Sending "+synced+" out of "+items.size()+" files changed since "+sequence+" to "+id);
+			syncedFiles.get(id).clear();
+		}
+		//only the files sent to this client are waited for
+		fileTransferManager.afterPendingFiles(id, new Runnable() {
+			public void run() {
+				mainClient.printMessage(new Object[]{databaseId,currentSequence,clientSequence}, HEADER_SYNC_CURSOR, id);
+			}
+		});
+	}
+	/**
+	 * @return the files directly in the directories whose hashes differed and the files under
+	 * their subdirectories that the client did not send the hashes of
+	 */
+	private LinkedList<SyncropItem> getFilesInDifferingDirs(SyncropUser user){
+		String accountName=user.getAccountName();
+		LinkedList<SyncropItem>items=new LinkedList<SyncropItem>();
+		for(String dir:user.differingDirs){
+			addAll(items, FileMetadataManager.getFilesIn(dir, accountName));
+			for(String child:FileMetadataManager.getChildDirs(dir, accountName))
+				if(!user.checkedDirs.contains(child))
+					addAll(items, FileMetadataManager.getFilesStartingWith(child.equals("/")?child:child+"/", accountName));
+		}
+		return items;
+	}
+	private static void addAll(LinkedList<SyncropItem>items,LinkedList<SyncropItem>itemsToAdd){
+		if(itemsToAdd!=null)
+			items.addAll(itemsToAdd);
+	}
 		
 	boolean syncFilesToClient(final String id,SyncropUser user,SyncropItem file){
 		
@@ -508,6 +621,12 @@ public final class SyncropCloud extends SyncDaemon
 				case HEADER_SET_ENABLED_PATHS:
 					setEnabledDirectories(message);
 					break;
+				case HEADER_SYNC_DIR_HASHES:
+					compareDirHashes(message);
+					break;
+				case HEADER_SYNC_CHANGES_SINCE:
+					syncChangesSince(message);
+					break;
 				case HEADER_AUTHENTICATION:
 					authenticate(message);
 					break;
@@ -66,6 +66,14 @@ public class SyncropUser implements Comparable<SyncropUser> {
 	public void setConflictsAllowed(boolean conflictsAllowed){allowConflicts=conflictsAllowed;}
 	*/
 	boolean deletingFilesNotOnClient=Settings.isDeletingFilesNotOnClient();
+	/**
+	 * the directories the client sent the hashes of during the current sync
+	 */
+	final HashSet<String> checkedDirs=new HashSet<String>();
+	/**
+	 * the checked directories whose hashes differed from the cloud's
+	 */
+	final HashSet<String> differingDirs=new HashSet<String>();
 	public boolean isDeletingFilesNotOnClient(){return deletingFilesNotOnClient;}
 	public void setDeletingFilesNotOnClient(boolean b){deletingFilesNotOnClient=b;}
 	
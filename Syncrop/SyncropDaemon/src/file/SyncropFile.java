@@ -11,6 +11,7 @@ import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.StandardCopyOption;
 
+import message.FileRegion;
 import syncrop.ResourceManager;
 
 public class SyncropFile extends SyncropItem 
@@ -65,6 +66,22 @@ public class SyncropFile extends SyncropItem
 		stream.close();
 		return mbb;
 	}
+	/**
+	 * Saves key information of file to an object array along with a range of the bytes of the file.
+	 * The bytes are not read until the message containing the array is sent
+	 * @param channel the channel the bytes are read through or null to open the file when they are sent
+	 * @param position the index of the first byte to send
+	 * @param length the number of bytes to send
+	 * @return an object array with defining information of the file
+	 * @see FileRegion
+	 */
+	public Object[] toSyncData(FileChannel channel,long position,int length)
+	{
+		Object[] syncData=toSyncData();
+		syncData[INDEX_BYTES]=new FileRegion(channel, file.toPath(), position, length);
+		syncData[INDEX_POSITION]=position;
+		return syncData;
+	}
 	
 	/**
 	 * Atomically creates a new, empty file named by this path if and only if a file with this name does not yet exist. 
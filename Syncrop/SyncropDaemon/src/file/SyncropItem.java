@@ -16,11 +16,17 @@ import static syncrop.Syncrop.logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.NoSuchElementException;
@@ -48,11 +54,30 @@ public abstract class SyncropItem
 	public final static int INDEX_PATH=0,INDEX_OWNER=1,INDEX_DATE_MODIFIED=2,INDEX_KEY=3,
 			INDEX_FILE_PERMISSIONS=4,INDEX_EXISTS=5,INDEX_MODIFIED_SINCE_LAST_KEY_UPDATE=6,
 			INDEX_SYMBOLIC_LINK_TARGET=7,
-					INDEX_SIZE=8,INDEX_BYTES=9;
+					INDEX_SIZE=8,INDEX_BYTES=9,
+					/**
+					 * the id of the large file upload the packet belongs to; null for other packets 
+					 * and packets from older versions which send one large file at a time
+					 */
+					INDEX_STREAM_ID=10,
+					/**
+					 * the position in the file of the bytes of a large file packet; null for other packets
+					 */
+					INDEX_POSITION=11,
+					/**
+					 * the hash of the content of the file or null if it is not known; packets from older
+					 * versions do not have it
+					 */
+					INDEX_CONTENT_HASH=12;
 	
-	public final static int INDEX_LENGTH=10;
+	public final static int INDEX_LENGTH=13;
 	
 	public static final String CONFLICT_ENDING=".SYNCROPconflict";
+	/**
+	 * The ending of the temporary files downloads are written to before they replace the real file;
+	 * these files are never synced
+	 */
+	public static final String PART_ENDING=".SYNCROPpart";
 		
 	//String illegalCharsRegex="<|>|\\\\|/|:|\"|\\||\\?|\\*";
 	protected final String path;
@@ -72,6 +97,13 @@ public abstract class SyncropItem
 	private boolean knownToExists=false;
 	private boolean hasBeenUpdated=false;
 	private int filePermissions;
+	/**
+	 * the SHA-256 hash of the content of the file; it is only used while the size, modification date 
+	 * and file key (inode) of the file are the same as when it was computed
+	 */
+	private String contentHash;
+	private long hashSize=-1,hashDateModified=-1;
+	private String hashFileKey;
 	
 	private final static PosixFilePermission orderedPermissions[]={OWNER_READ,OWNER_WRITE,OWNER_EXECUTE,    
             GROUP_READ,GROUP_WRITE,GROUP_EXECUTE,
@@ -590,6 +622,140 @@ public static SyncropItem getInstance(Object[] syncData){
 	public File getFile() {return file;}
 	public byte[] readAllBytesFile() throws IOException {return Files.readAllBytes(file.toPath());}
 	
+	/**
+	 * Sets the cached hash of the content of the file
+	 * @param contentHash the hash or null if not known
+	 * @param size the size of the file when the hash was computed
+	 * @param dateModified the modification date (in milliseconds) of the file when the hash was computed
+	 * @param fileKey the file key of the file when the hash was computed
+	 */
+	public void setContentHash(String contentHash,long size,long dateModified,String fileKey){
+		this.contentHash=contentHash;
+		hashSize=size;
+		hashDateModified=dateModified;
+		hashFileKey=fileKey;
+	}
+	/**
+	 * @return the cached hash even if the file has changed since it was computed
+	 */
+	public String getStoredContentHash(){return contentHash;}
+	public long getContentHashSize(){return hashSize;}
+	public long getContentHashDateModified(){return hashDateModified;}
+	public String getContentHashFileKey(){return hashFileKey;}
+	
+	/**
+	 * @return the cached hash of the content of the file or null if it is not known or 
+	 * the file has changed since it was computed
+	 */
+	public String getCachedContentHash(){
+		if(contentHash==null)
+			return null;
+		try {
+			BasicFileAttributes attributes=readAttributes();
+			if(isHashOf(attributes))
+				return contentHash;
+		} catch (IOException e) {}
+		return null;
+	}
+	private BasicFileAttributes readAttributes() throws IOException{
+		return Files.readAttributes(file.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+	}
+	private boolean isHashOf(BasicFileAttributes attributes){
+		return attributes.isRegularFile()&&attributes.size()==hashSize&&
+				attributes.lastModifiedTime().toMillis()==hashDateModified&&
+				String.valueOf(attributes.fileKey()).equals(hashFileKey);
+	}
+	/**
+	 * Gets the hash of the content of the file; it is only computed if the cached hash is no longer valid
+	 * @return the hash or null if the file is not a regular file
+	 * @throws IOException if the file cannot be read
+	 */
+	public synchronized String getContentHash() throws IOException{
+		String hash=getCachedContentHash();
+		if(hash!=null)
+			return hash;
+		if(!Files.isRegularFile(file.toPath(), LinkOption.NOFOLLOW_LINKS))
+			return null;
+		BasicFileAttributes attributes=readAttributes();
+		hash=hashContent(file);
+		//the file changed while being read
+		if(!isHashOf(attributes, readAttributes()))
+			return hash;
+		setContentHash(hash, attributes.size(), attributes.lastModifiedTime().toMillis(), String.valueOf(attributes.fileKey()));
+		return hash;
+	}
+	/**
+	 * @param file a regular file
+	 * @return the hash of the content of the file in the format of {@link #getContentHash()}
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String hashContent(File file) throws IOException{
+		MessageDigest md=getContentDigest();
+		FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer buffer=ByteBuffer.allocate(1024*1024);
+			while(channel.read(buffer)!=-1){
+				buffer.flip();
+				md.update(buffer);
+				buffer.clear();
+			}
+		}
+		finally {
+			channel.close();
+		}
+		return toHex(md.digest());
+	}
+	private static boolean isHashOf(BasicFileAttributes before,BasicFileAttributes after){
+		return before.size()==after.size()&&before.lastModifiedTime().equals(after.lastModifiedTime());
+	}
+	/**
+	 * Caches the hash of the content that was just written to the file 
+	 * @param bytes the content of the file or null to read it from the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public void updateContentHash(byte[] bytes) throws IOException{
+		if(bytes==null){
+			getContentHash();
+			return;
+		}
+		BasicFileAttributes attributes=readAttributes();
+		if(attributes.isRegularFile()&&attributes.size()==bytes.length)
+			setContentHash(toHex(getContentDigest().digest(bytes)), attributes.size(), 
+					attributes.lastModifiedTime().toMillis(), String.valueOf(attributes.fileKey()));
+	}
+	/**
+	 * Caches the hash of the content that was just written to the file
+	 * @param hash the hash of the content, in the format of {@link #getContentHash()}, or null if it is not known
+	 * @throws IOException if the attributes of the file cannot be read
+	 */
+	public void updateContentHash(String hash) throws IOException{
+		if(hash==null)
+			return;
+		BasicFileAttributes attributes=readAttributes();
+		if(attributes.isRegularFile())
+			setContentHash(hash, attributes.size(), attributes.lastModifiedTime().toMillis(), String.valueOf(attributes.fileKey()));
+	}
+	/**
+	 * @return a new digest of the kind content hashes are computed with
+	 */
+	public static MessageDigest getContentDigest(){
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	/**
+	 * @param hash the result of a digest returned by {@link #getContentDigest()}
+	 * @return the hash in the format of {@link #getContentHash()}
+	 */
+	public static String toHex(byte[] hash){
+		StringBuilder builder=new StringBuilder(hash.length*2);
+		for(byte b:hash)
+			builder.append(String.format("%02x", b));
+		return builder.toString();
+	}
+	
 	public boolean deleteMetadata(){
 		return FileMetadataManager.deleteFileMetadata(this);
 	}
@@ -632,6 +798,7 @@ public static SyncropItem getInstance(Object[] syncData){
 		syncData[INDEX_MODIFIED_SINCE_LAST_KEY_UPDATE]=modifiedSinceLastKeyUpdate();
 		syncData[INDEX_SYMBOLIC_LINK_TARGET]=getLinkTarget();
 		syncData[INDEX_SIZE]=getSize();
+		syncData[INDEX_CONTENT_HASH]=getCachedContentHash();
 	}
 	
 	
@@ -724,15 +891,18 @@ public static SyncropItem getInstance(Object[] syncData){
 		byte[]bytes=null;
 		if(syncData.length>INDEX_BYTES)
 			bytes=(byte[])syncData[INDEX_BYTES];
+		String contentHash=null;
+		if(syncData.length>INDEX_CONTENT_HASH)
+			contentHash=(String)syncData[INDEX_CONTENT_HASH];
 		
 		return SyncropItem.compare(id,localFile, path, owner, remoteDateMod, remoteKey, remoteUpdatedSinceLastUpdate, 
-				remoteFilePermissions, remoteFileExists, remoteLength,linkTarget,bytes,false);
+				remoteFilePermissions, remoteFileExists, remoteLength,linkTarget,bytes,contentHash,false);
 				
 	}
 	
 	public static SyncropPostCompare compare(String id,SyncropItem localFile,String path,String owner,long remoteDateMod,int remoteKey,
 			boolean remoteUpdatedSinceLastUpdate,int remoteFilePermissions,boolean remoteFileExists,long remoteLength,String linkTarget,byte[]bytes
-			,boolean assertRemoteIsNewer) throws IOException{
+			,String contentHash,boolean assertRemoteIsNewer) throws IOException{
 		boolean remoteDir=represetsDir(remoteKey);
 		if(localFile==null)
 			if(remoteFileExists)
@@ -799,7 +969,7 @@ public static SyncropItem getInstance(Object[] syncData){
 			if(localFile.isInConflictWith(remoteKey,remoteLength,remoteUpdatedSinceLastUpdate))
 				if(replaceLocalFileOnConflict(id,isLocalFileNewerVersion)){
 					
-					if(bytes!=null&&localFile.exists()&&Arrays.equals(localFile.readAllBytesFile(),bytes)
+					if(isContentEqual(localFile, remoteLength, bytes, contentHash)
 							||linkTarget!=null &&linkTarget.equals(localFile.getLinkTarget())){
 						if(localFile instanceof SyncropFile)
 							((SyncropFile) localFile).mergeMetadata(remoteDateMod, remoteKey);
@@ -835,6 +1005,19 @@ public static SyncropItem getInstance(Object[] syncData){
 				}
 		}
 	}
+	/**
+	 * Checks if the local file has the same content as the remote file. The hashes are compared when
+	 * the remote hash is known so the file does not have to be read if its hash is cached.
+	 * @param bytes the content of the remote file or null if not sent
+	 * @param contentHash the hash of the remote file or null if not known
+	 */
+	private static boolean isContentEqual(SyncropItem localFile,long remoteLength,byte[]bytes,String contentHash) throws IOException{
+		if(!localFile.exists())
+			return false;
+		if(contentHash!=null)
+			return localFile.getSize()==remoteLength&&contentHash.equals(localFile.getContentHash());
+		return bytes!=null&&Arrays.equals(localFile.readAllBytesFile(),bytes);
+	}
 	private static boolean replaceLocalFileOnConflict(String id,boolean isLocalFileNewerVersion){
 		if(Syncrop.isInstanceOfCloud()){
 			int remoteConflictResolution=SyncropCloud.getSyncropUser(id).getConflictResolution();
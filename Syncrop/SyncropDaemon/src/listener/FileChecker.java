@@ -13,6 +13,7 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Stack;
 
 import account.Account;
+import daemon.DiskWriter;
 import file.SyncropItem;
 import listener.actions.SyncROPFileAction;
 import settings.Settings;
@@ -50,7 +51,7 @@ public class FileChecker extends SimpleFileVisitor<Path>{
 		return getItem(getPath(dir),dir.toFile());
 	}
 	protected SyncropItem getItem(String path,File file) {
-		if(ResourceManager.isLocked(path,account.getName()))
+		if(ResourceManager.isLocked(path,account.getName())||path.endsWith(SyncropItem.PART_ENDING))
 			return null;
 		SyncropItem item=ResourceManager.getFile(path, account.getName());
 		if(item==null){
@@ -87,6 +88,13 @@ public class FileChecker extends SimpleFileVisitor<Path>{
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+    	if(file.getFileName().toString().endsWith(SyncropItem.PART_ENDING)){
+    		if(DiskWriter.isStalePartFile(file.toFile())){
+    			logger.log("Deleting partial download "+file);
+    			Files.deleteIfExists(file);
+    		}
+    		return FileVisitResult.CONTINUE;
+    	}
 
     	SyncropItem item=getItem(file);
     	
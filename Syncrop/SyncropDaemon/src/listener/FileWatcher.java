@@ -226,7 +226,8 @@ public class FileWatcher extends Thread{
 			try{
 				if(dir==null)continue;//resync maybe?
 				String path=dir.getPath()+File.separator+e.context();
-				if(!ResourceManager.isLocked(path, dir.getAccountName()))
+				//files being downloaded are written to temporary files first
+				if(!ResourceManager.isLocked(path, dir.getAccountName())&&!path.endsWith(SyncropItem.PART_ENDING))
 					addEvent(dir, path, e.kind());
 			}
 			catch (Exception e1){
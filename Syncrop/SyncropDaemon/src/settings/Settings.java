@@ -52,6 +52,23 @@ public class Settings {
 	private static boolean allowEncription;
 	private static String encryptionAlgorithm;
 	private static boolean sslConnection;
+	/**
+	 * if true the cloud handles connections with a few java.nio threads instead of a 
+	 * thread per connection. Clients connecting over SSL must support the binary codec.
+	 */
+	private static boolean nioServer;
+	/**
+	 * the max number of large files that can be uploaded at once
+	 */
+	private static int maxConcurrentStreams;
+	/**
+	 * the max number of bytes per second sent/received; 0 for unlimited
+	 */
+	private static long maxUploadRate,maxDownloadRate;
+	/**
+	 * the max number of bytes per second the cloud sends to a single user; 0 for unlimited
+	 */
+	private static long maxUploadRatePerUser;
 	
 	private static boolean limitCPUUsage = true;
 	
@@ -158,6 +175,40 @@ public class Settings {
 	}
 		
 	
+	public static int getMaxConcurrentStreams(){
+		return maxConcurrentStreams;
+	}
+	public static void setMaxConcurrentStreams(int streams){
+		if(streams<1)
+			throw new IllegalArgumentException("value must be at least 1");
+		maxConcurrentStreams=streams;
+	}
+	
+	public static long getMaxUploadRate(){
+		return maxUploadRate;
+	}
+	public static void setMaxUploadRate(long rate){
+		if(rate<0)
+			throw new IllegalArgumentException("value must not be negative");
+		maxUploadRate=rate;
+	}
+	public static long getMaxDownloadRate(){
+		return maxDownloadRate;
+	}
+	public static void setMaxDownloadRate(long rate){
+		if(rate<0)
+			throw new IllegalArgumentException("value must not be negative");
+		maxDownloadRate=rate;
+	}
+	public static long getMaxUploadRatePerUser(){
+		return maxUploadRatePerUser;
+	}
+	public static void setMaxUploadRatePerUser(long rate){
+		if(rate<0)
+			throw new IllegalArgumentException("value must not be negative");
+		maxUploadRatePerUser=rate;
+	}
+	
 	public static int getNotificationLevel(){
 		return notificationLevel;
 	}
@@ -187,6 +238,13 @@ public class Settings {
 		sslConnection=b;
 	}
 	
+	public static boolean isNioServer(){
+		return nioServer;
+	}
+	public static void setNioServer(boolean b){
+		nioServer=b;
+	}
+	
 	public static String getCloudHomeDir() {
 		return cloudHomeDir;
 	}
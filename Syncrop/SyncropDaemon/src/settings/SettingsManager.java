@@ -34,6 +34,7 @@ public class SettingsManager {
 		
 		SSL_CONNECTION("SSL Connection",boolean.class,"isSSLConnection","setSSLConnection",TYPE_ADVANCED),
 		SSL_PORT("SSL Port",int.class,"getSSLPort","setSSLPort",TYPE_ADVANCED),
+		NIO_SERVER("Non-blocking Server",boolean.class,"isNioServer","setNioServer",TYPE_CLOUD),
 		SYNCROP_COMMUNICATION_PORT("Syncrop Communication Port",int.class,"getSyncropCommunicationPort","setSyncropCommunicationPort",TYPE_ADVANCED),
 		ALLOW_SYNCROP_COMMUNICATION("Allow Syncrop Communication",boolean.class,"allowSyncropCommunication","setAllowSyncropCommunication",TYPE_ADVANCED),
 		
@@ -43,6 +44,10 @@ public class SettingsManager {
 		MAX_ACCOUNT_SIZE("Max Account Size (MB)",long.class,"getMaxAccountSize","setMaxAccountSize",TYPE_ADVANCED),
 		MAX_FILE_SIZE("Max File Size (MB)",long.class,"getMaxFileSize","setMaxFileSize",TYPE_ADVANCED),
 		MAX_TRANSFER_SIZE("Max Transfer Size (MB)",long.class,"getMaxTransferSize","setMaxTransferSize",TYPE_ADVANCED),
+		MAX_CONCURRENT_STREAMS("Max Concurrent Large File Uploads",int.class,"getMaxConcurrentStreams","setMaxConcurrentStreams",TYPE_ADVANCED),
+		MAX_UPLOAD_RATE("Max Upload Rate (per second; 0 for unlimited)",long.class,"getMaxUploadRate","setMaxUploadRate",TYPE_ADVANCED),
+		MAX_DOWNLOAD_RATE("Max Download Rate (per second; 0 for unlimited)",long.class,"getMaxDownloadRate","setMaxDownloadRate",TYPE_ADVANCED),
+		MAX_UPLOAD_RATE_PER_USER("Max Upload Rate per User (per second; 0 for unlimited)",long.class,"getMaxUploadRatePerUser","setMaxUploadRatePerUser",TYPE_CLOUD),
 		
 		LIMIT_CPU_USAGE("Limit CPU Usage",boolean.class,"isLimitingCPU","setLimitingCPU",TYPE_ADVANCED),
 		
@@ -153,11 +158,16 @@ public class SettingsManager {
 		Settings.setSyncropCommunicationPort(50001);
 		Settings.setAllowSyncropCommunication(!Syncrop.isInstanceOfCloud());
 		Settings.setSSLConnection(true);
+		Settings.setNioServer(false);
 		Settings.setCloudHomeDir(File.separatorChar+"home/syncrop");
 		Settings.setHomeDir(System.getProperty("user.home"));
 		Settings.setMaxFileSize(Integer.MAX_VALUE);
 		Settings.setMaxAccountSize(4L*GIGABYTE);
 		Settings.setMaxTransferSize(MEGABYTE);
+		Settings.setMaxConcurrentStreams(4);
+		Settings.setMaxUploadRate(0);
+		Settings.setMaxDownloadRate(0);
+		Settings.setMaxUploadRatePerUser(0);
 		Settings.setNotificationLevel(SyncropLogger.LOG_LEVEL_INFO);
 		Settings.setAutoQuit(false);
 		Settings.setWindowsCompatible(false);
@@ -0,0 +1,271 @@
+package syncrop;
+
+import static syncrop.Syncrop.logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import settings.Settings;
+
+/**
+ * Keeps the connections to the metadata database open between uses.
+ * <br/>
+ * {@link #getConnection(boolean)} lends out an open connection; closing it returns the connection
+ * to the pool. Read only and writable connections are pooled separately. The statements prepared
+ * with a connection are kept with it; closing one only resets it, so the next use of the same SQL
+ * does not parse and plan it again.
+ * <br/>
+ * SQLite databases use write-ahead logging so reads do not wait for writes, and MySQL
+ * connections ask the driver to use server side prepared statements and to rewrite batches.
+ */
+class ConnectionPool {
+
+	/**
+	 * The max number of connections of each kind kept open while not in use
+	 */
+	static final int MAX_IDLE=4;
+	/**
+	 * The max number of statements kept with each connection
+	 */
+	static final int MAX_STATEMENTS=64;
+	/**
+	 * How long in milliseconds a SQLite connection waits for the database to be unlocked
+	 */
+	static final int BUSY_TIMEOUT=10000;
+	/**
+	 * Connections that have not been used for this long are checked before being lent out
+	 */
+	private static final long VALIDATION_INTERVAL=30000;
+
+	private final ArrayDeque<PooledConnection>idleReaders=new ArrayDeque<PooledConnection>();
+	private final ArrayDeque<PooledConnection>idleWriters=new ArrayDeque<PooledConnection>();
+	private boolean closed=false;
+
+	private static class PooledConnection{
+		final Connection conn;
+		final boolean readOnly;
+		/**
+		 * reset statements by their SQL
+		 */
+		final HashMap<String, PreparedStatement>statements=new HashMap<String, PreparedStatement>();
+		long lastUsed=System.currentTimeMillis();
+		PooledConnection(Connection conn,boolean readOnly){
+			this.conn=conn;
+			this.readOnly=readOnly;
+		}
+	}
+
+	/**
+	 * @param readOnly if the connection will only be read from
+	 * @return a connection that is returned to the pool when it is closed
+	 * @throws SQLException if a new connection cannot be opened
+	 */
+	Connection getConnection(boolean readOnly) throws SQLException{
+		PooledConnection pooled=poll(readOnly);
+		if(pooled==null)
+			pooled=open(readOnly);
+		return lend(pooled);
+	}
+
+	/**
+	 * Closes the connections that are not in use; connections in use are closed when they are returned
+	 */
+	void close(){
+		ArrayList<PooledConnection>idle=new ArrayList<PooledConnection>();
+		synchronized (this) {
+			closed=true;
+			idle.addAll(idleReaders);
+			idle.addAll(idleWriters);
+			idleReaders.clear();
+			idleWriters.clear();
+		}
+		for(PooledConnection pooled:idle)
+			discard(pooled);
+	}
+
+	private PooledConnection poll(boolean readOnly){
+		while(true){
+			PooledConnection pooled;
+			synchronized (this) {
+				//the most recently used connection is the most likely to still be open
+				pooled=(readOnly?idleReaders:idleWriters).pollFirst();
+			}
+			if(pooled==null)
+				return null;
+			if(System.currentTimeMillis()-pooled.lastUsed<VALIDATION_INTERVAL)
+				return pooled;
+			try {
+				if(pooled.conn.isValid(1))
+					return pooled;
+			} catch (SQLException e) {}
+			discard(pooled);
+		}
+	}
+
+	private PooledConnection open(boolean readOnly) throws SQLException{
+		Connection conn = DriverManager.getConnection(getUrl(),Settings.getDatabaseUsername(),Settings.getDatabasePassword());
+		try {
+			if(isSQLite()){
+				Statement stat=conn.createStatement();
+				stat.execute("PRAGMA busy_timeout="+BUSY_TIMEOUT+";");
+				if(readOnly)
+					//the driver cannot change the read only flag of an open connection
+					stat.execute("PRAGMA query_only=1;");
+				else {
+					stat.execute("PRAGMA journal_mode=WAL;");
+					//commits are still atomic; only the last ones can be lost on power loss
+					stat.execute("PRAGMA synchronous=NORMAL;");
+				}
+				stat.close();
+			}
+			else conn.setReadOnly(readOnly);
+		} catch (SQLException e) {
+			conn.close();
+			throw e;
+		}
+		return new PooledConnection(conn, readOnly);
+	}
+	private static boolean isSQLite(){
+		return Settings.getDatabasePath().startsWith("sqlite:");
+	}
+	private static String getUrl(){
+		String url="jdbc:"+Settings.getDatabasePath();
+		if(Settings.getDatabasePath().startsWith("mysql:"))
+			url+=(url.contains("?")?"&":"?")+"useServerPrepStmts=true&cachePrepStmts=true&rewriteBatchedStatements=true";
+		return url;
+	}
+
+	private void release(PooledConnection pooled,ArrayList<Object[]>statementsInUse){
+		try {
+			for(Object[] statement:statementsInUse)
+				keep(pooled, statement);
+			if(!pooled.conn.getAutoCommit()){
+				//a transaction that was not committed is not seen by the next user
+				pooled.conn.rollback();
+				pooled.conn.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			logger.logWarning("closing database connection that could not be reset; "+e);
+			discard(pooled);
+			return;
+		}
+		pooled.lastUsed=System.currentTimeMillis();
+		synchronized (this) {
+			ArrayDeque<PooledConnection>idle=pooled.readOnly?idleReaders:idleWriters;
+			if(!closed&&idle.size()<MAX_IDLE){
+				idle.addFirst(pooled);
+				return;
+			}
+		}
+		discard(pooled);
+	}
+	private static void discard(PooledConnection pooled){
+		try {
+			pooled.conn.close();
+		} catch (SQLException e) {
+			logger.logTrace("could not close database connection; "+e);
+		}
+	}
+	/**
+	 * Resets a statement and keeps it with its connection
+	 * @param statement {sql, statement, the last ResultSet returned by the statement or null}
+	 */
+	private static void keep(PooledConnection pooled,Object[] statement) throws SQLException{
+		keep(pooled, (String)statement[0], (PreparedStatement)statement[1], (ResultSet)statement[2]);
+	}
+	private static void keep(PooledConnection pooled,String sql,PreparedStatement statement,ResultSet rs) throws SQLException{
+		//an open ResultSet would keep SQLite reading from an old snapshot of the database
+		if(rs!=null)
+			rs.close();
+		statement.clearBatch();
+		statement.clearParameters();
+		if(pooled.statements.size()<MAX_STATEMENTS&&!pooled.statements.containsKey(sql))
+			pooled.statements.put(sql, statement);
+		else statement.close();
+	}
+
+	private static Object invokeObjectMethod(Object proxy,Method method,Object[] args){
+		if(method.getName().equals("equals"))
+			return proxy==args[0];
+		if(method.getName().equals("hashCode"))
+			return System.identityHashCode(proxy);
+		return proxy.getClass().getName()+"@"+Integer.toHexString(System.identityHashCode(proxy));
+	}
+
+	/**
+	 * @return a proxy of the connection that returns it to the pool instead of closing it
+	 */
+	private Connection lend(final PooledConnection pooled){
+		return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+				new InvocationHandler() {
+			/**
+			 * {sql, statement, last ResultSet} of the statements prepared with this proxy that have not been closed
+			 */
+			private final ArrayList<Object[]>statementsInUse=new ArrayList<Object[]>();
+			private boolean returned=false;
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name=method.getName();
+				if(method.getDeclaringClass()==Object.class)
+					return invokeObjectMethod(proxy, method, args);
+				if(name.equals("close")){
+					if(!returned){
+						returned=true;
+						release(pooled, statementsInUse);
+					}
+					return null;
+				}
+				if(name.equals("isClosed"))
+					return returned||pooled.conn.isClosed();
+				if(returned)
+					throw new SQLException("connection has been returned to the pool");
+				if(name.equals("prepareStatement")&&args.length==1)
+					return prepare((String)args[0]);
+				try {
+					return method.invoke(pooled.conn, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+			private PreparedStatement prepare(final String sql) throws SQLException{
+				final PreparedStatement statement;
+				PreparedStatement kept=pooled.statements.remove(sql);
+				statement=kept!=null?kept:pooled.conn.prepareStatement(sql);
+				final Object[] inUse={sql,statement,null};
+				statementsInUse.add(inUse);
+				return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+						new Class<?>[]{PreparedStatement.class}, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if(method.getDeclaringClass()==Object.class)
+							return invokeObjectMethod(proxy, method, args);
+						if(method.getName().equals("close")){
+							if(statementsInUse.remove(inUse))
+								keep(pooled, inUse);
+							return null;
+						}
+						try {
+							Object result=method.invoke(statement, args);
+							if(result instanceof ResultSet)
+								inUse[2]=result;
+							return result;
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+			}
+		});
+	}
+}
@@ -3,45 +3,184 @@ package syncrop;
 import static syncrop.Syncrop.logger;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.UUID;
 
 import file.SyncropItem;
-import settings.Settings;
 
+/**
+ * Stores the metadata of files.
+ * <br/>
+ * The metadata of the files under each directory is also summarized by a hash so two daemons can
+ * compare whole directories at once. The hash of a directory is the sum of the hashes of the 
+ * sync relevant metadata (path, modification date, existence, size and link target) of all the 
+ * files under it; it is updated whenever the metadata of a file changes.
+ * Paths of directories always use '/' as the separator. 
+ * <br/>
+ * Each change to the metadata of a file is given the next number of its owner's sequence so
+ * the files changed since a point of the sequence (a cursor) can be found. A sequence belongs 
+ * to one database; cursors of other databases, such as one that was recreated, are not valid.
+ */
 public class FileMetadataManager {
 	static final String TABLE_NAME= "FileInfo";
+	static final String DIR_TABLE_NAME= "DirHashes";
+	static final String SEQUENCE_TABLE_NAME= "Sequences";
+	static final String CURSOR_TABLE_NAME= "SyncCursors";
+	/**
+	 * The number of pending saves and deletes at which they are written without waiting for 
+	 * {@link #MAX_WRITE_DELAY}
+	 */
+	static final int MAX_PENDING_WRITES=512;
+	/**
+	 * The max time in milliseconds a save or delete waits to be written with others
+	 */
+	static final long MAX_WRITE_DELAY=500;
+	
+	private static final Object pendingLock=new Object();
+	/**
+	 * The metadata that has been saved or deleted but not written, by {@link #getKey(String, String)}
+	 */
+	private static LinkedHashMap<String, Metadata>pending=new LinkedHashMap<String, Metadata>();
+	/**
+	 * The metadata being written
+	 */
+	private static LinkedHashMap<String, Metadata>writing=new LinkedHashMap<String, Metadata>();
+	private static long firstPendingTime;
+	private static Thread writer=null;
+	
+	private static final ConnectionPool pool=new ConnectionPool();
+	/**
+	 * The metadata of the most recently used files
+	 */
+	private static final MetadataCache cache=new MetadataCache(MetadataCache.DEFAULT_CAPACITY);
 	
 	private FileMetadataManager(){}
 	
-	/*
-	private static Connection getNewReadOnlyConnectionInstance() throws SQLException{
-		return getNewConnectionInstance(true);
-	}
-	private static Connection getNewConnectionInstance(boolean readonly) throws SQLException{
-		Properties config = new Properties();
-		config.setProperty(Pragma.JOURNAL_MODE.pragmaName, JournalMode.TRUNCATE.name());
-		if(readonly)
-			config.setProperty("open_mode", "1");
-		return DriverManager.getConnection("jdbc:sqlite:"+getDatabasePath()+"?journal_mode=WAL",config);
-	}
-	*/
-	public static synchronized Connection getConnectionInstance(boolean readOnly) throws SQLException{
-		Connection conn = DriverManager.getConnection("jdbc:"+Settings.getDatabasePath(),Settings.getDatabaseUsername(),Settings.getDatabasePassword());
-		conn.setReadOnly(readOnly);
-		return conn;
-		
+	/**
+	 * @param readOnly if the connection will only be read from
+	 * @return an open connection; closing it returns it to the pool
+	 * @throws SQLException if a new connection cannot be opened
+	 * @see ConnectionPool
+	 */
+	public static Connection getConnectionInstance(boolean readOnly) throws SQLException{
+		return pool.getConnection(readOnly);
+	}
+	/**
+	 * Writes the pending metadata and closes the connections to the database
+	 */
+	public static void shutDown(){
+		flush();
+		pool.close();
+		logger.log(cache.toString());
+	}
+	
+	/**
+	 * A copy of the metadata of a file as it is stored in the database
+	 */
+	static class Metadata{
+		final String path,owner;
+		/**
+		 * false if the metadata is deleted
+		 */
+		final boolean saved;
+		/**
+		 * in seconds
+		 */
+		long dateModified;
+		int key;
+		boolean modifiedSinceLastKeyUpdate;
+		long size;
+		int filePermissions;
+		boolean exists;
+		String linkTarget;
+		String contentHash;
+		long hashSize,hashDateModified;
+		String hashFileKey;
+		Metadata(String path,String owner){
+			this.path=path;
+			this.owner=owner;
+			saved=false;
+		}
+		Metadata(SyncropItem item){
+			path=item.getPath();
+			owner=item.getOwner();
+			saved=true;
+			dateModified=item.getDateModified()/1000;
+			key=item.getKey();
+			modifiedSinceLastKeyUpdate=item.modifiedSinceLastKeyUpdate();
+			size=item.getSize();
+			filePermissions=item.getFilePermissions();
+			exists=item.exists();
+			linkTarget=item.getLinkTarget();
+			setContentHash(item);
+		}
+		/**
+		 * Copies the metadata of a file and replaces its hash with the one stored by item
+		 */
+		Metadata(Metadata metadata,SyncropItem item){
+			path=metadata.path;
+			owner=metadata.owner;
+			saved=metadata.saved;
+			dateModified=metadata.dateModified;
+			key=metadata.key;
+			modifiedSinceLastKeyUpdate=metadata.modifiedSinceLastKeyUpdate;
+			size=metadata.size;
+			filePermissions=metadata.filePermissions;
+			exists=metadata.exists;
+			linkTarget=metadata.linkTarget;
+			setContentHash(item);
+		}
+		Metadata(ResultSet rs) throws SQLException{
+			path=rs.getString(1);
+			owner=rs.getString(2);
+			saved=true;
+			dateModified=rs.getLong(3);
+			key=rs.getInt(4);
+			modifiedSinceLastKeyUpdate=rs.getBoolean(5);
+			size=rs.getLong(6);
+			filePermissions=rs.getInt(7);
+			exists=rs.getBoolean(8);
+			linkTarget=rs.getString(9);
+			contentHash=rs.getString(10);
+			hashSize=rs.getLong(11);
+			hashDateModified=rs.getLong(12);
+			hashFileKey=rs.getString(13);
+		}
+		void setContentHash(SyncropItem item){
+			contentHash=item.getStoredContentHash();
+			hashSize=item.getContentHashSize();
+			hashDateModified=item.getContentHashDateModified();
+			hashFileKey=item.getContentHashFileKey();
+		}
+		/**
+		 * @return the item {@link FileMetadataManager#getFile(String, String)} would return once this is written
+		 */
+		SyncropItem toItem(){
+			SyncropItem item=SyncropItem.getInstance(path, owner, dateModified*1000, key, modifiedSinceLastKeyUpdate, size, filePermissions, exists, linkTarget);
+			if(item!=null)
+				item.setContentHash(contentHash, hashSize, hashDateModified, hashFileKey);
+			return item;
+		}
 	}
 	
 	
 	
 	public static void recreateDatabase() throws SQLException{
+		cache.clear();
 		deleteDatabase();
 		createDatabase();
 	}
@@ -50,6 +189,9 @@ public class FileMetadataManager {
 		Connection conn = getConnectionInstance(false);
 		Statement stat = conn.createStatement();
 		stat.executeUpdate("DROP TABLE IF EXISTS "+TABLE_NAME);
+		stat.executeUpdate("DROP TABLE IF EXISTS "+DIR_TABLE_NAME);
+		stat.executeUpdate("DROP TABLE IF EXISTS "+SEQUENCE_TABLE_NAME);
+		stat.executeUpdate("DROP TABLE IF EXISTS "+CURSOR_TABLE_NAME);
 		conn.close();
 	
 	}
@@ -62,7 +204,20 @@ public class FileMetadataManager {
         		+ "`SyncropKey` INT UNSIGNED, ModifiedSinceLastKeyUpdate Boolean, "
         		+ "LastRecordedSize INT UNSIGNED,FilePermissions SMALLINT,"
         		+ "`FileExists` Boolean, `LinkTarget` Varchar (255) NULL,"
+        		+ "ContentHash Varchar (64) NULL, HashSize BIGINT, HashDateModified BIGINT, HashFileKey Varchar (255) NULL,"
+        		+ "Sequence BIGINT,"
         		+ " PRIMARY KEY (Path, Owner));");
+        stat.executeUpdate("CREATE INDEX IF NOT EXISTS ContentHash ON "+TABLE_NAME+" (ContentHash);");
+        stat.executeUpdate("CREATE INDEX IF NOT EXISTS FileSequence ON "+TABLE_NAME+" (Owner, Sequence);");
+        stat.executeUpdate("CREATE TABLE IF NOT EXISTS "+DIR_TABLE_NAME+
+        		" ( Path Varchar (255) ,Owner Varchar(25), Hash BIGINT,"
+        		+ " PRIMARY KEY (Path, Owner));");
+        stat.executeUpdate("CREATE TABLE IF NOT EXISTS "+SEQUENCE_TABLE_NAME+
+        		" ( Owner Varchar(25), DatabaseId Varchar (64), Sequence BIGINT,"
+        		+ " PRIMARY KEY (Owner));");
+        stat.executeUpdate("CREATE TABLE IF NOT EXISTS "+CURSOR_TABLE_NAME+
+        		" ( Name Varchar(25), DatabaseId Varchar (64), Sequence BIGINT,"
+        		+ " PRIMARY KEY (Name));");
         stat.close();
         
         conn.close();
@@ -72,50 +227,595 @@ public class FileMetadataManager {
 		return deleteFileMetadata(item.getPath(), item.getOwner());
 	}
 	private static boolean deleteFileMetadata(String path,String owner){
+		addPendingWrite(new Metadata(path, owner));
+		return true;
+	}
+	/**
+	 * Saves the metadata of a file. It is written along with other saves and deletes within 
+	 * {@value #MAX_WRITE_DELAY}ms; {@link #getFile(String, String)} returns it until then.
+	 */
+	public static boolean updateFileMetadata(SyncropItem item){
+		addPendingWrite(new Metadata(item));
+		return true;
+	}
+	private static void addPendingWrite(Metadata metadata){
+		boolean full;
+		String key=getKey(metadata.path, metadata.owner);
+		synchronized (pendingLock) {
+			cache.put(key, metadata);
+			//the last change of a file is given the last number of the sequence 
+			pending.remove(key);
+			if(pending.isEmpty())
+				firstPendingTime=System.currentTimeMillis();
+			pending.put(key, metadata);
+			if(writer==null)
+				startWriter();
+			if(pending.size()==1||pending.size()==MAX_PENDING_WRITES)
+				pendingLock.notifyAll();
+			full=pending.size()>=4*MAX_PENDING_WRITES;
+		}
+		//the writer is falling behind
+		if(full)
+			flush();
+	}
+	private static void startWriter(){
+		writer=new Thread("Metadata writer"){
+			public void run(){
+				while(true)
+					try {
+						synchronized (pendingLock) {
+							while(pending.isEmpty())
+								pendingLock.wait();
+							long wait;
+							while(pending.size()<MAX_PENDING_WRITES&&
+									(wait=firstPendingTime+MAX_WRITE_DELAY-System.currentTimeMillis())>0)
+								pendingLock.wait(wait);
+						}
+						flush();
+					} catch (InterruptedException e) {
+						return;
+					}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+	/**
+	 * @return the key of the metadata of a file in the cache and the pending writes; like the queries
+	 * that read metadata, clients look files up by path alone since all their files have the same owner
+	 */
+	private static String getKey(String path,String owner){
+		return Syncrop.isInstanceOfCloud()?owner+"\0"+path:path;
+	}
+	/**
+	 * @return the key of a directory in the changes of the hashes of directories
+	 */
+	private static String getDirKey(String dir,String owner){
+		return owner+"\0"+dir;
+	}
+	/**
+	 * @return the metadata of a file that has been saved or deleted but not written yet or null
+	 */
+	private static Metadata getPendingWrite(String path,String owner){
+		String key=getKey(path, owner);
+		synchronized (pendingLock) {
+			Metadata metadata=pending.get(key);
+			return metadata!=null?metadata:writing.get(key);
+		}
+	}
+	/**
+	 * Writes the pending saves and deletes and waits for writes that have already started.
+	 * Queries other than {@link #getFile(String, String)} call this first so they see every change.
+	 */
+	public static void flush(){
+		synchronized (pendingLock) {
+			if(pending.isEmpty()&&writing.isEmpty())
+				return;
+		}
+		writePending();
+	}
+	private static synchronized void writePending(){
+		synchronized (pendingLock) {
+			if(pending.isEmpty())
+				return;
+			writing=pending;
+			pending=new LinkedHashMap<String, Metadata>();
+		}
 		try {
-			Connection conn = getConnectionInstance(false);
-			PreparedStatement prep = conn.prepareStatement(
+			write(writing.values());
+		} catch (SQLException e) {
+			logger.logError(e, "occured while writing the metadata of "+writing.size()+" files; writing them one at a time");
+			for(Metadata metadata:writing.values())
+				try {
+					write(Collections.singleton(metadata));
+				} catch (SQLException e1) {
+					logger.logError(e1, "could not write the metadata of "+metadata.owner+"'s file "+metadata.path);
+				}
+		}
+		synchronized (pendingLock) {
+			writing=new LinkedHashMap<String, Metadata>();
+		}
+	}
+	/**
+	 * Writes the metadata of files in one transaction
+	 * @param writes the metadata to write; there is at most one for each file
+	 */
+	private static void write(Collection<Metadata>writes) throws SQLException{
+		Connection conn = getConnectionInstance(false);
+		try {
+			conn.setAutoCommit(false);
+			PreparedStatement replace = conn.prepareStatement(
+		            "REPLACE INTO "+TABLE_NAME+" (`Path`, `Owner`, `DateModified`, `SyncropKey`,"
+		            		+ " `ModifiedSinceLastKeyUpdate`, `LastRecordedSize`, "
+		            		+ "`FilePermissions`, `FileExists`, `LinkTarget`, "
+		            		+ "`ContentHash`, `HashSize`, `HashDateModified`, `HashFileKey`, `Sequence`) "
+		            		+ "VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?);");
+			PreparedStatement delete = conn.prepareStatement(
 			        "DELETE FROM "+TABLE_NAME+" WHERE Path=? AND Owner=? ;");
-			prep.setString(1,path);
+			int replaced=0,deleted=0;
+			HashMap<String, Long>sequences=new HashMap<String, Long>();
+			HashMap<String, Long>dirDeltas=new LinkedHashMap<String, Long>();
+			for(Metadata metadata:writes){
+				long oldHash=getMetadataHash(metadata.path, metadata.owner, conn);
+				long newHash=0;
+				if(metadata.saved){
+					replace.setString(1, metadata.path);
+					replace.setString(2, metadata.owner);
+					replace.setLong(3, metadata.dateModified);
+					replace.setLong(4, metadata.key);
+					replace.setBoolean(5, metadata.modifiedSinceLastKeyUpdate);
+					replace.setLong(6, metadata.size);
+					replace.setInt(7, metadata.filePermissions);
+					replace.setBoolean(8, metadata.exists);
+					replace.setString(9, metadata.linkTarget);
+					replace.setString(10, metadata.contentHash);
+					replace.setLong(11, metadata.hashSize);
+					replace.setLong(12, metadata.hashDateModified);
+					replace.setString(13, metadata.hashFileKey);
+					replace.setLong(14, nextSequence(metadata.owner, sequences, conn));
+					replace.addBatch();
+					replaced++;
+					newHash=getMetadataHash(metadata.path, metadata.dateModified, metadata.exists, metadata.size, metadata.linkTarget);
+				}
+				else {
+					delete.setString(1, metadata.path);
+					delete.setString(2, metadata.owner);
+					delete.addBatch();
+					deleted++;
+				}
+				addDirDeltas(metadata.path, metadata.owner, newHash-oldHash, dirDeltas);
+			}
+			if(replaced>0)
+				replace.executeBatch();
+			if(deleted>0)
+				delete.executeBatch();
+			replace.close();
+			delete.close();
+			saveSequences(sequences, conn);
+			updateDirHashes(dirDeltas, conn);
+			conn.commit();
+		}
+		finally {
+			//the transaction is rolled back if it was not committed
+			conn.close();
+		}
+	}
+	
+	
+	/**
+	 * @param sequences the last number given out of the sequence of each owner in the transaction
+	 * @return the next number of the owner's sequence
+	 */
+	private static long nextSequence(String owner,HashMap<String, Long>sequences,Connection conn) throws SQLException{
+		Long sequence=sequences.get(owner);
+		if(sequence==null){
+			getDatabaseId(owner, conn);
+			sequence=getSequence(owner, conn);
+		}
+		sequences.put(owner, sequence+1);
+		return sequence+1;
+	}
+	private static void saveSequences(HashMap<String, Long>sequences,Connection conn) throws SQLException{
+		PreparedStatement prep = conn.prepareStatement("UPDATE "+SEQUENCE_TABLE_NAME+" SET Sequence=? WHERE Owner=?;");
+		for(String owner:sequences.keySet()){
+			prep.setLong(1, sequences.get(owner));
 			prep.setString(2, owner);
-			prep.addBatch();
-			prep.executeBatch();
+			prep.executeUpdate();
+		}
+		prep.close();
+	}
+	private static long getSequence(String owner,Connection conn) throws SQLException{
+		PreparedStatement prep = conn.prepareStatement("SELECT Sequence FROM "+SEQUENCE_TABLE_NAME+" WHERE Owner=?;");
+		prep.setString(1, owner);
+		ResultSet rs=prep.executeQuery();
+		long sequence=rs.next()?rs.getLong(1):0;
+		prep.close();
+		return sequence;
+	}
+	/**
+	 * Gets the id of the owner's sequence; the sequence is created if it does not exist
+	 */
+	private static String getDatabaseId(String owner,Connection conn) throws SQLException{
+		PreparedStatement prep = conn.prepareStatement("SELECT DatabaseId FROM "+SEQUENCE_TABLE_NAME+" WHERE Owner=?;");
+		prep.setString(1, owner);
+		ResultSet rs=prep.executeQuery();
+		String databaseId=rs.next()?rs.getString(1):null;
+		prep.close();
+		if(databaseId==null){
+			databaseId=UUID.randomUUID().toString();
+			prep = conn.prepareStatement("INSERT INTO "+SEQUENCE_TABLE_NAME+" (`Owner`, `DatabaseId`, `Sequence`) VALUES (?,?,0);");
+			prep.setString(1, owner);
+			prep.setString(2, databaseId);
+			prep.executeUpdate();
 			prep.close();
+		}
+		return databaseId;
+	}
+	/**
+	 * @param owner the owner of the files
+	 * @return the number of the last change to the metadata of the owner's files
+	 */
+	public static synchronized long getSequence(String owner){
+		flush();
+		try {
+			Connection conn = getConnectionInstance(true);
+			long sequence=getSequence(owner, conn);
 			conn.close();
-			return true;
+			return sequence;
 		} catch (SQLException e) {
-			logger.logError(e, "could not delete info on "+owner+"'s file "+path);
+			logger.logError(e, "could not read the sequence of "+owner);
 		}
-		return false;
+		return 0;
+	}
+	/**
+	 * @param owner the owner of the files
+	 * @return the id of the owner's sequence or null if it cannot be read
+	 */
+	public static synchronized String getDatabaseId(String owner){
+		try {
+			Connection conn = getConnectionInstance(false);
+			String databaseId=getDatabaseId(owner, conn);
+			conn.close();
+			return databaseId;
+		} catch (SQLException e) {
+			logger.logError(e, "could not read the sequence of "+owner);
+		}
+		return null;
+	}
+	/**
+	 * @param sequence the files changed after this number of the sequence are returned
+	 * @param lastSequence the files changed after this number of the sequence are not returned
+	 * @param owner the owner of the files
+	 * @return the files changed between the two numbers of the owner's sequence or null if the database cannot be read
+	 */
+	public static LinkedList<SyncropItem> getFilesChangedSince(long sequence,long lastSequence,String owner) {
+		String query="SELECT * FROM "+TABLE_NAME+" WHERE Owner=? AND Sequence>? AND Sequence<=? ORDER BY Sequence;";
+		flush();
+		try {
+			Connection conn = getConnectionInstance(true);
+			PreparedStatement preparedStatement=conn.prepareStatement(query);
+			preparedStatement.setString(1, owner);
+			preparedStatement.setLong(2, sequence);
+			preparedStatement.setLong(3, lastSequence);
+			ResultSet rs = preparedStatement.executeQuery();
+			LinkedList<SyncropItem>items=new LinkedList<>();
+			while (rs.next())
+				items.add(getFile(rs));
+			preparedStatement.close();
+			conn.close();
+			return items;
+		} catch (SQLException e) {
+			logger.logError(e, "could not read from database; query="+query);
+		}
+		return null;
+	}
+	/**
+	 * Gets a cursor saved by {@link #setSyncCursor(String, String, long)}
+	 * @param name the name of the cursor
+	 * @return {the id of the sequence, the number of the sequence} or null if there is no cursor
+	 */
+	public static Object[] getSyncCursor(String name){
+		try {
+			Connection conn = getConnectionInstance(true);
+			PreparedStatement prep = conn.prepareStatement("SELECT DatabaseId, Sequence FROM "+CURSOR_TABLE_NAME+" WHERE Name=?;");
+			prep.setString(1, name);
+			ResultSet rs=prep.executeQuery();
+			Object[] cursor=rs.next()?new Object[]{rs.getString(1),rs.getLong(2)}:null;
+			prep.close();
+			conn.close();
+			return cursor;
+		} catch (SQLException e) {
+			logger.logError(e, "could not read the sync cursor "+name);
+		}
+		return null;
+	}
+	/**
+	 * Saves a point of a sequence, which may be another daemon's
+	 * @param name the name of the cursor
+	 * @param databaseId the id of the sequence or null to remove the cursor
+	 * @param sequence the number of the sequence
+	 */
+	public static void setSyncCursor(String name,String databaseId,long sequence){
+		try {
+			Connection conn = getConnectionInstance(false);
+			PreparedStatement prep;
+			if(databaseId==null){
+				prep = conn.prepareStatement("DELETE FROM "+CURSOR_TABLE_NAME+" WHERE Name=?;");
+				prep.setString(1, name);
+			}
+			else {
+				prep = conn.prepareStatement("REPLACE INTO "+CURSOR_TABLE_NAME+" (`Name`, `DatabaseId`, `Sequence`) VALUES (?,?,?);");
+				prep.setString(1, name);
+				prep.setString(2, databaseId);
+				prep.setLong(3, sequence);
+			}
+			prep.executeUpdate();
+			prep.close();
+			conn.close();
+		} catch (SQLException e) {
+			logger.logError(e, "could not save the sync cursor "+name);
+		}
+	}
+	/**
+	 * @return the hash of the stored metadata of a file or 0 if none is stored
+	 */
+	private static long getMetadataHash(String path,String owner,Connection conn) throws SQLException{
+		PreparedStatement prep = conn.prepareStatement(
+				"SELECT DateModified, FileExists, LastRecordedSize, LinkTarget FROM "+TABLE_NAME+" WHERE Path=? AND Owner=?;");
+		prep.setString(1, path);
+		prep.setString(2, owner);
+		ResultSet rs=prep.executeQuery();
+		long hash=rs.next()?getMetadataHash(path, rs.getLong(1), rs.getBoolean(2), rs.getLong(3), rs.getString(4)):0;
+		prep.close();
+		return hash;
+	}
+	/**
+	 * @param dateModified the modification date in seconds
+	 * @return the hash of the sync relevant metadata of a file
+	 */
+	private static long getMetadataHash(String path,long dateModified,boolean exists,long size,String linkTarget){
+		String metadata=toTreePath(path)+"\0"+dateModified+"\0"+exists+"\0"+size+"\0"+linkTarget;
+		try {
+			byte[] digest=MessageDigest.getInstance("SHA-256").digest(metadata.getBytes(StandardCharsets.UTF_8));
+			return ByteBuffer.wrap(digest).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	/**
+	 * Adds the change of the hash of a file to the changes of all the directories containing it
+	 * @param path the path of the file
+	 * @param delta the change of the hash of the file
+	 * @param dirDeltas the changes of the hashes of directories by {@link #getDirKey(String, String)}
+	 */
+	private static void addDirDeltas(String path,String owner,long delta,HashMap<String, Long>dirDeltas){
+		if(delta==0)
+			return;
+		String dir=toTreePath(path);
+		do {
+			dir=getParentDir(dir);
+			String key=getDirKey(dir, owner);
+			Long sum=dirDeltas.get(key);
+			dirDeltas.put(key, (sum==null?0:sum)+delta);
+		}while(!dir.isEmpty());
+	}
+	/**
+	 * Adds to the hashes of directories
+	 * @param dirDeltas the changes of the hashes of directories by {@link #getDirKey(String, String)}
+	 */
+	private static void updateDirHashes(HashMap<String, Long>dirDeltas,Connection conn) throws SQLException{
+		PreparedStatement select = conn.prepareStatement("SELECT Hash FROM "+DIR_TABLE_NAME+" WHERE Path=? AND Owner=?;");
+		PreparedStatement replace = conn.prepareStatement("REPLACE INTO "+DIR_TABLE_NAME+" (`Path`, `Owner`, `Hash`) VALUES (?,?,?);");
+		PreparedStatement delete = conn.prepareStatement("DELETE FROM "+DIR_TABLE_NAME+" WHERE Path=? AND Owner=?;");
+		for(String key:dirDeltas.keySet()){
+			long delta=dirDeltas.get(key);
+			//the changes of the files in the directory cancelled out
+			if(delta==0)
+				continue;
+			String owner=key.substring(0, key.indexOf('\0'));
+			String dir=key.substring(owner.length()+1);
+			select.setString(1, dir);
+			select.setString(2, owner);
+			ResultSet rs=select.executeQuery();
+			long hash=(rs.next()?rs.getLong(1):0)+delta;
+			rs.close();
+			//the directory no longer contains any files
+			if(hash==0){
+				delete.setString(1, dir);
+				delete.setString(2, owner);
+				delete.executeUpdate();
+			}
+			else {
+				replace.setString(1, dir);
+				replace.setString(2, owner);
+				replace.setLong(3, hash);
+				replace.executeUpdate();
+			}
+		}
+		select.close();
+		replace.close();
+		delete.close();
+	}
+	private static String toTreePath(String path){
+		return Syncrop.isNotWindows()?path:SyncropItem.toLinuxPath(path);
+	}
+	/**
+	 * @param path a path using '/' as the separator
+	 * @return the directory containing the path; "" is the root which contains all paths
+	 */
+	public static String getParentDir(String path){
+		int index=path.lastIndexOf('/');
+		if(index>0)
+			return path.substring(0, index);
+		else if(index==0&&path.length()>1)
+			return "/";
+		else return "";
+	}
+	/**
+	 * @param dir the path of the directory using '/' as the separator
+	 * @param owner the owner of the files
+	 * @return the hash of the metadata of all the files under the directory or 0 if it has no files
+	 */
+	public static long getDirHash(String dir,String owner){
+		flush();
+		try {
+			Connection conn = getConnectionInstance(true);
+			PreparedStatement prep = conn.prepareStatement("SELECT Hash FROM "+DIR_TABLE_NAME+" WHERE Path=? AND Owner=?;");
+			prep.setString(1, dir);
+			prep.setString(2, owner);
+			ResultSet rs=prep.executeQuery();
+			long hash=rs.next()?rs.getLong(1):0;
+			prep.close();
+			conn.close();
+			return hash;
+		} catch (SQLException e) {
+			logger.logError(e, "could not read the hash of "+dir);
+		}
+		return 0;
+	}
+	/**
+	 * @param dir the path of the directory using '/' as the separator
+	 * @param owner the owner of the files
+	 * @return the directories directly in dir that have files under them
+	 */
+	public static LinkedList<String> getChildDirs(String dir,String owner){
+		LinkedList<String>dirs=new LinkedList<>();
+		flush();
+		try {
+			Connection conn = getConnectionInstance(true);
+			PreparedStatement prep = conn.prepareStatement("SELECT Path FROM "+DIR_TABLE_NAME+" WHERE Path LIKE ? AND Path NOT LIKE ? AND Owner=?;");
+			prep.setString(1, getChildPrefix(dir)+"%");
+			prep.setString(2, getChildPrefix(dir)+"%/%");
+			prep.setString(3, owner);
+			ResultSet rs=prep.executeQuery();
+			while(rs.next()){
+				String path=rs.getString(1);
+				if(!path.equals(dir)&&getParentDir(path).equals(dir))
+					dirs.add(path);
+			}
+			prep.close();
+			conn.close();
+		} catch (SQLException e) {
+			logger.logError(e, "could not read the directories in "+dir);
+		}
+		return dirs;
+	}
+	/**
+	 * @param dir the path of the directory using '/' as the separator
+	 * @param owner the owner of the files
+	 * @return the files directly in dir
+	 */
+	public static LinkedList<SyncropItem> getFilesIn(String dir,String owner){
+		String query="SELECT * FROM "+TABLE_NAME+" WHERE Path LIKE ? AND Path NOT LIKE ? "
+				+(Syncrop.isInstanceOfCloud()?"AND Owner=?":"")+";";
+		String prefix=getChildPrefix(dir);
+		flush();
+		try {
+			Connection conn = getConnectionInstance(true);
+			PreparedStatement preparedStatement=conn.prepareStatement(query);
+			preparedStatement.setString(1, toLocalPath(prefix+"%"));
+			preparedStatement.setString(2, toLocalPath(prefix+"%/%"));
+			if(Syncrop.isInstanceOfCloud())
+				preparedStatement.setString(3, owner);
+			ResultSet rs = preparedStatement.executeQuery();
+			LinkedList<SyncropItem>items=new LinkedList<>();
+			while (rs.next()){
+				SyncropItem item=getFile(rs);
+				//'_' and '%' in the prefix match other paths as well
+				if(item!=null&&getParentDir(toTreePath(item.getPath())).equals(dir))
+					items.add(item);
+			}
+			preparedStatement.close();
+			conn.close();
+			return items;
+		} catch (SQLException e) {
+			logger.logError(e, "could not read from database; query="+query);
+		}
+		return null;
+	}
+	/**
+	 * @return the start of the paths of the children of dir
+	 */
+	private static String getChildPrefix(String dir){
+		return dir.isEmpty()||dir.equals("/")?dir:dir+"/";
 	}
-	public static synchronized boolean updateFileMetadata(SyncropItem item){
-		try {					
+	private static String toLocalPath(String path){
+		return Syncrop.isNotWindows()?path:SyncropItem.toWindowsPath(path);
+	}
+	
+	/**
+	 * Stores just the cached hash of the content of a file; nothing is stored if the file has no metadata
+	 * @param item the file whose hash was computed
+	 */
+	public static synchronized boolean updateContentHash(SyncropItem item){
+		synchronized (pendingLock) {
+			//no write is in progress while this holds the lock of the class
+			String key=getKey(item.getPath(), item.getOwner());
+			Metadata metadata=pending.get(key);
+			if(metadata!=null){
+				if(metadata.saved){
+					//cached instances may be in use by other threads, so a copy with the new hash replaces it
+					metadata=new Metadata(metadata, item);
+					pending.put(key, metadata);
+					cache.put(key, metadata);
+				}
+				return true;
+			}
+			Metadata cached=cache.peek(key);
+			if(cached==null)
+				//keeps metadata being read from the database with the old hash from being cached
+				cache.remove(key);
+			else if(cached.saved)
+				cache.put(key, new Metadata(cached, item));
+		}
+		try {
 			Connection conn = getConnectionInstance(false);
 			PreparedStatement prep = conn.prepareStatement(
-		            "REPLACE INTO "+TABLE_NAME+" (`Path`, `Owner`, `DateModified`, `SyncropKey`,"
-		            		+ " `ModifiedSinceLastKeyUpdate`, `LastRecordedSize`, "
-		            		+ "`FilePermissions`, `FileExists`, `LinkTarget`) "
-		            		+ "VALUES (?,?,?,?,?,?,?,?,?);");
-			prep.setString(1, item.getPath());
-			prep.setString(2, item.getOwner());
-			prep.setLong(3, item.getDateModified()/1000);
-			prep.setLong(4, item.getKey());
-			prep.setBoolean(5, item.modifiedSinceLastKeyUpdate());
-			prep.setLong(6, item.getSize());
-			prep.setInt(7, item.getFilePermissions());
-			prep.setBoolean(8, item.exists());
-			prep.setString(9, item.getLinkTarget());
-			prep.addBatch();
-			prep.executeBatch();
+		            "UPDATE "+TABLE_NAME+" SET `ContentHash`=?, `HashSize`=?, `HashDateModified`=?, `HashFileKey`=? "
+		            		+ "WHERE Path=? AND Owner=?;");
+			prep.setString(1, item.getStoredContentHash());
+			prep.setLong(2, item.getContentHashSize());
+			prep.setLong(3, item.getContentHashDateModified());
+			prep.setString(4, item.getContentHashFileKey());
+			prep.setString(5, item.getPath());
+			prep.setString(6, item.getOwner());
+			prep.executeUpdate();
 			prep.close();
 			conn.close();
 			return true;
 		} catch (SQLException e) {
-			logger.logError(e, "occured while trying to Update File Metadata");
+			logger.logError(e, "occured while trying to update the content hash of "+item.getPath());
 		}
 		return false;
 	}
-	
+	/**
+	 * Gets the files whose cached content hash is the given hash; the hashes may no longer be valid
+	 * @param contentHash the hash of the content
+	 * @param owner the owner of the files
+	 * @return the files with the hash or null if the database cannot be read
+	 */
+	public static LinkedList<SyncropItem> getFilesWithContentHash(String contentHash,String owner) {
+		String query="SELECT * FROM "+TABLE_NAME+" WHERE ContentHash=? "
+				+(Syncrop.isInstanceOfCloud()?"AND Owner=?":"")+";";
+		flush();
+		try {
+			Connection conn = getConnectionInstance(true);
+			PreparedStatement preparedStatement=conn.prepareStatement(query);
+			preparedStatement.setString(1, contentHash);
+			if(Syncrop.isInstanceOfCloud())
+				preparedStatement.setString(2, owner);
+			ResultSet rs = preparedStatement.executeQuery();
+			LinkedList<SyncropItem>items=new LinkedList<>();
+			while (rs.next())
+				items.add(getFile(rs));
+			preparedStatement.close();
+			conn.close();
+			return items;
+		} catch (SQLException e) {
+			logger.logError(e, "could not read from database; query="+query);
+		}
+		return null;
+	}
 	
 	public static Iterable<SyncropItem> iterateThroughAllFileMetadata(String owner){
 		return getFilesStartingWith(null,owner);
@@ -143,7 +843,7 @@ public class FileMetadataManager {
 			}
 		}
 		query+=" ORDER BY PATH DESC;";
-	
+		flush();
 		try {		
 			Connection conn = getConnectionInstance(true);
 			PreparedStatement preparedStatement=conn.prepareStatement(query);
@@ -173,11 +873,21 @@ public class FileMetadataManager {
 	 * @return
 	 */
 	public static SyncropItem getFile(String relativePath,String owner) {
+		Metadata metadata=getPendingWrite(relativePath, owner);
+		if(metadata==null)
+			metadata=cache.get(getKey(relativePath, owner));
+		if(metadata!=null)
+			return metadata.saved?metadata.toItem():null;
 		try {
+			long modCount=cache.getModCount();
 			Connection conn = getConnectionInstance(true);
-			SyncropItem file = getFile(relativePath, owner, conn);
+			metadata=readMetadata(relativePath, owner, conn);
 			conn.close();
-			return file;
+			if(metadata==null)
+				return null;
+			//the file may have been saved or its hash updated while it was read
+			cache.putIfUnmodified(getKey(relativePath, owner), metadata, modCount);
+			return metadata.toItem();
 		} catch (SQLException e) {
 			logger.logFatalError(e, "could not read from database;");
 			System.exit(0);
@@ -186,9 +896,14 @@ public class FileMetadataManager {
 			
 	}
 	public static SyncropItem getFile(String relativePath,String owner,Connection conn) throws SQLException {
+		Metadata metadata=readMetadata(relativePath, owner, conn);
+		conn.close();
+		return metadata==null?null:metadata.toItem();
+	}
+	private static Metadata readMetadata(String relativePath,String owner,Connection conn) throws SQLException {
 		ResultSet rs=null;
 		
-		SyncropItem item=null;
+		Metadata metadata=null;
 		String query="SELECT * FROM "+TABLE_NAME
 				+ " WHERE Path=? "
 				+(Syncrop.isInstanceOfCloud()?"AND Owner=?":"")+";";
@@ -207,25 +922,14 @@ public class FileMetadataManager {
 		}
 		
 		if(rs.next())
-			item= getFile(rs);
+			metadata=new Metadata(rs);
 		preparedStatement.close();
-		conn.close();
-		return item;
+		return metadata;
 		
 	}
 	
 	private static SyncropItem getFile(ResultSet rs) throws SQLException{
-		String path=rs.getString(1);
-		String owner=rs.getString(2);
-		long dateModified=rs.getLong(3)*1000;
-		int key=rs.getInt(4);
-		boolean modifedSinceLastKeyUpdate=rs.getBoolean(5);
-		long lastRecordedSize=rs.getLong(6);
-		int filePermissions=rs.getInt(7);
-		boolean knownToExists=rs.getBoolean(8);
-		String linkTarget=rs.getString(9);
-		return SyncropItem.getInstance(path, owner, dateModified, key, modifedSinceLastKeyUpdate, lastRecordedSize, filePermissions, knownToExists, linkTarget);
-
+		return new Metadata(rs).toItem();
 	}
 
 }
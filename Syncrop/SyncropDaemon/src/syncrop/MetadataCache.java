@@ -0,0 +1,97 @@
+package syncrop;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import syncrop.FileMetadataManager.Metadata;
+
+/**
+ * The metadata of the most recently used files, so looking up a file again does not read the database.
+ * <br/>
+ * {@link FileMetadataManager} puts the metadata of every file it saves or deletes in the cache, so a
+ * cached file always has its latest metadata; a deleted file is cached as deleted. Metadata read 
+ * from the database is only added if nothing was put in or removed from the cache while it was
+ * being read, since the file may have been saved or its hash updated in the meantime. Once the cache
+ * is full the least recently used file is evicted.
+ */
+class MetadataCache {
+
+	static final int DEFAULT_CAPACITY=16384;
+
+	private final int capacity;
+	/**
+	 * by owner and path; in order of last use
+	 */
+	private final LinkedHashMap<String, Metadata>files;
+	private long hits=0,misses=0,evictions=0;
+	/**
+	 * incremented every time metadata is put in or removed from the cache
+	 */
+	private long modCount=0;
+
+	MetadataCache(final int capacity){
+		this.capacity=capacity;
+		files=new LinkedHashMap<String, Metadata>(16, .75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest){
+				if(size()<=capacity)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached metadata or null if the file is not cached
+	 */
+	synchronized Metadata get(String key){
+		Metadata metadata=files.get(key);
+		if(metadata==null)
+			misses++;
+		else hits++;
+		return metadata;
+	}
+	/**
+	 * @return the cached metadata or null if the file is not cached; not counted as a hit or miss
+	 */
+	synchronized Metadata peek(String key){
+		return files.get(key);
+	}
+	synchronized void put(String key,Metadata metadata){
+		modCount++;
+		files.put(key, metadata);
+	}
+	/**
+	 * Adds metadata read from the database
+	 * @param modCount the value of {@link #getModCount()} before the metadata was read
+	 */
+	synchronized void putIfUnmodified(String key,Metadata metadata,long modCount){
+		if(this.modCount==modCount&&!files.containsKey(key))
+			files.put(key, metadata);
+	}
+	synchronized void remove(String key){
+		modCount++;
+		files.remove(key);
+	}
+	synchronized void clear(){
+		modCount++;
+		files.clear();
+	}
+	/**
+	 * @return the number of times metadata has been put in or removed from the cache
+	 */
+	synchronized long getModCount(){return modCount;}
+
+	synchronized long getHits(){return hits;}
+	synchronized long getMisses(){return misses;}
+	synchronized long getEvictions(){return evictions;}
+
+	@Override
+	public synchronized String toString(){
+		long lookups=hits+misses;
+		return "metadata cache: "+files.size()+"/"+capacity+" files; "+hits+" hits, "+misses+" misses ("+
+				(lookups==0?0:hits*100/lookups)+"% hit rate), "+evictions+" evictions";
+	}
+}
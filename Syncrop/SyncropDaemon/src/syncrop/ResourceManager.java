@@ -10,13 +10,20 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
@@ -59,6 +66,42 @@ public class ResourceManager
 	private static String configFilesDirName=CONFIG_FILES_BASE_DIR_NAME;
 	
 	private static File temp;
+	/**
+	 * the open channels of the temporary files of large files being downloaded
+	 */
+	private static final HashMap<File,FileChannel>temporaryFileChannels=new HashMap<File,FileChannel>();
+	/**
+	 * the offsets recorded in the info of the temporary files with open channels
+	 */
+	private static final HashMap<File,Long>recordedOffsets=new HashMap<File,Long>();
+	/**
+	 * The number of bytes appended to a temporary file before it is synced and its offset is recorded
+	 */
+	public static final long TEMPORARY_FILE_SYNC_INTERVAL=16*Syncrop.MEGABYTE;
+	/**
+	 * the hashes of the temporary files that have been downloaded from their start by this run
+	 */
+	private static final HashMap<File,TemporaryFileHash>temporaryFileHashes=new HashMap<File,TemporaryFileHash>();
+	
+	/**
+	 * The hash of the bytes of a temporary file, computed as they are appended
+	 */
+	private static class TemporaryFileHash{
+		final MessageDigest md=SyncropItem.getContentDigest();
+		final ByteBuffer buffer=ByteBuffer.allocate(64*1024);
+		/**
+		 * the number of bytes that have been hashed
+		 */
+		long length=0;
+		FileChannel in;
+		synchronized void close(){
+			if(in!=null)
+				try {
+					in.close();
+				} catch (IOException e) {}
+			in=null;
+		}
+	}
 	
 	
 	/**
@@ -86,8 +129,11 @@ public class ResourceManager
 	 */
 	public static long lastRecordedModificationDateOfConfigFile;
 	
-	private volatile static String lockedPath;
-	private volatile static String lockedOwner;
+	/**
+	 * The number of times each file, by owner and path, is locked; files stay locked while their download
+	 * is being written
+	 */
+	private static final HashMap<String, Integer>lockedFiles=new HashMap<String, Integer>();
 	
 	/**
 	 * Gets a single specified Account from a username.
@@ -333,20 +379,23 @@ public class ResourceManager
 	
 	
 		
-	public static synchronized void lockFile(String path,String owner){
-		lockedPath=path;
-		lockedOwner=owner;
-		//logger.logTrace("locking file path:"+lockedPath+" owner:"+lockedOwner);
+	public static void lockFile(String path,String owner){
+		synchronized (lockedFiles) {
+			Integer count=lockedFiles.get(owner+"\0"+path);
+			lockedFiles.put(owner+"\0"+path, count==null?1:count+1);
+		}
 	}
 	public static void unlockFile(String path,String owner){
-		if(isLocked(path,owner)){
-			//logger.logTrace("unlocking file path:"+lockedPath+" owner:"+lockedOwner);
-			lockedPath=null;
-			lockedOwner=null;
+		synchronized (lockedFiles) {
+			Integer count=lockedFiles.remove(owner+"\0"+path);
+			if(count!=null&&count>1)
+				lockedFiles.put(owner+"\0"+path, count-1);
 		}
 	}
 	public static boolean isLocked(String path,String owner){
-		return owner.equals(lockedOwner)&&path.equals(lockedPath);
+		synchronized (lockedFiles) {
+			return lockedFiles.containsKey(owner+"\0"+path);
+		}
 	}
 	
 	
@@ -368,7 +417,7 @@ public class ResourceManager
 		try {
 			if(!temp.exists())temp.mkdir();
 			if(!configFile.exists())configFile.createNewFile();
-			deleteAllTemporaryFiles();
+			deleteStaleTemporaryFiles();
 			Notification.initilize();
 			
 		}
@@ -421,21 +470,210 @@ public class ResourceManager
 	 * @return true if the temporaryFile was deleted successfully
 	 */
 	public static void deleteAllTemporaryFiles(){
+		closeAllTemporaryFileChannels();
+		try {
+			for(File f:temp.listFiles())
+				if(f.getName().endsWith(".temp")||f.getName().endsWith(TEMPORARY_FILE_INFO_ENDING))
+					Files.deleteIfExists(f.toPath());
+		} catch (IOException e) {
+			logger.logError(e,"temps file failed to be deleted: ");
+		}
+	}
+	/**
+	 * Deletes the temporary files that cannot be resumed; temporary files without info and 
+	 * ones that have not been written to in {@link #PARTIAL_DOWNLOAD_LIFETIME}
+	 */
+	public static void deleteStaleTemporaryFiles(){
+		closeAllTemporaryFileChannels();
 		try {
 			for(File f:temp.listFiles())
-				if(f.getName().endsWith(".temp"))
+				if(f.getName().endsWith(".temp")){
+					File info=new File(temp,f.getName()+TEMPORARY_FILE_INFO_ENDING);
+					if(!info.exists()||System.currentTimeMillis()-f.lastModified()>PARTIAL_DOWNLOAD_LIFETIME){
+						Files.deleteIfExists(f.toPath());
+						Files.deleteIfExists(info.toPath());
+					}
+				}
+				else if(f.getName().endsWith(TEMPORARY_FILE_INFO_ENDING)&&
+						!new File(temp,f.getName().substring(0,f.getName().length()-TEMPORARY_FILE_INFO_ENDING.length())).exists())
 					Files.deleteIfExists(f.toPath());
 		} catch (IOException e) {
 			logger.logError(e,"temps file failed to be deleted: ");
 		}
 	}
 	public static void deleteTemporaryFile(String user,String path){
+		closeTemporaryFileChannel(user, path, false);
 		try {
 			Files.deleteIfExists(getTemporaryFile(user,path).toPath());
+			Files.deleteIfExists(getTemporaryFileInfo(user,path).toPath());
 		} catch (IOException e) {
 			logger.logError(e,"temp file failed to be deleted: "+getTemporaryFile(user,path));
 		}
 	}
+	private static File getTemporaryFileInfo(String user,String path){
+		return new File(temp,getTemporaryFilename(user,path)+TEMPORARY_FILE_INFO_ENDING);
+	}
+	/**
+	 * Records which version of a file the temporary file holds and how many of its bytes are
+	 * durable so the download can be resumed if the connection is lost or the daemon crashes.
+	 * The info replaces the old info atomically.
+	 * @param user the user sending the file
+	 * @param path the path of the file being downloaded
+	 * @param owner the owner of the file
+	 * @param key the key of the file
+	 * @param dateModified the modification date of the file
+	 * @param size the size of the file
+	 * @param offset the number of bytes of the temporary file that have been synced
+	 * @throws IOException if the info cannot be written
+	 */
+	public static void writeTemporaryFileInfo(String user,String path,String owner,int key,long dateModified,long size,long offset) throws IOException{
+		File info=getTemporaryFileInfo(user, path);
+		File next=new File(temp,getTemporaryFilename(user,path)+".next"+TEMPORARY_FILE_INFO_ENDING);
+		FileOutputStream stream=new FileOutputStream(next);
+		try {
+			PrintWriter out=new PrintWriter(stream);
+			out.println(path);
+			out.println(owner);
+			out.println(key);
+			out.println(dateModified);
+			out.println(size);
+			out.println(offset);
+			out.flush();
+			stream.getFD().sync();
+		}
+		finally {
+			stream.close();
+		}
+		try {
+			Files.move(next.toPath(), info.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(next.toPath(), info.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		synchronized (temporaryFileChannels) {
+			recordedOffsets.put(getTemporaryFile(user, path), offset);
+		}
+	}
+	/**
+	 * Syncs the temporary file of a download and records its length as its offset, if enough bytes
+	 * have been appended since the offset was last recorded
+	 * @param user the user sending the file
+	 * @param path the path of the file being downloaded
+	 * @param always true to record the offset no matter how few bytes have been appended
+	 * @throws IOException if the file cannot be synced or the info cannot be written
+	 */
+	public static void syncTemporaryFile(String user,String path,boolean always) throws IOException{
+		File tempFile=getTemporaryFile(user, path);
+		FileChannel channel;
+		Long recorded;
+		synchronized (temporaryFileChannels) {
+			channel=temporaryFileChannels.get(tempFile);
+			recorded=recordedOffsets.get(tempFile);
+		}
+		if(channel==null||!channel.isOpen())
+			return;
+		long offset=channel.size();
+		if(!always&&recorded!=null&&offset-recorded<TEMPORARY_FILE_SYNC_INTERVAL)
+			return;
+		if(recorded!=null&&recorded==offset)
+			return;
+		//the recorded offset must never be ahead of the bytes that are durable
+		channel.force(false);
+		String info[]=readTemporaryFileInfo(user, path);
+		if(info==null)
+			return;
+		writeTemporaryFileInfo(user, path, info[1], Integer.parseInt(info[2]), Long.parseLong(info[3]), Long.parseLong(info[4]), offset);
+	}
+	/**
+	 * @return the lines of the info of a temporary file or null if it cannot be read
+	 */
+	private static String[] readTemporaryFileInfo(String user,String path){
+		File info=getTemporaryFileInfo(user, path);
+		try {
+			Scanner in=new Scanner(info);
+			try {
+				String lines[]=new String[6];
+				for(int i=0;i<5;i++)
+					lines[i]=in.nextLine();
+				//older info does not have the offset; none of the file is known to be durable
+				lines[5]=in.hasNextLine()?in.nextLine():"0";
+				return lines;
+			}
+			finally {
+				in.close();
+			}
+		} catch (IOException|NoSuchElementException e) {
+			logger.logWarning("info of temporary file could not be read: "+info+" "+e);
+			return null;
+		}
+	}
+	/**
+	 * The received offset of a temporary file is the offset recorded in its info; bytes are only
+	 * ever appended to it. Bytes after the offset may not have been written before a crash and are removed.
+	 * @param user the user sending the file
+	 * @param path the path of the file being downloaded
+	 * @param owner the owner of the file
+	 * @param key the key of the file
+	 * @param dateModified the modification date of the file
+	 * @param size the size of the file
+	 * @return the number of bytes of the file already downloaded or -1 if the temporary file
+	 * does not hold the same version of the file
+	 */
+	public static long getTemporaryFileOffset(String user,String path,String owner,int key,long dateModified,long size){
+		long offset=readTemporaryFileOffset(user, path, owner, key, dateModified, size);
+		File tempFile=getTemporaryFile(user, path);
+		TemporaryFileHash hash;
+		synchronized (temporaryFileChannels) {
+			hash=temporaryFileHashes.get(tempFile);
+		}
+		//only a hash of exactly the kept bytes can be continued, such as one from an earlier connection in this run
+		if(hash!=null&&hash.length!=offset)
+			removeTemporaryFileHash(tempFile);
+		return offset;
+	}
+	private static long readTemporaryFileOffset(String user,String path,String owner,int key,long dateModified,long size){
+		File tempFile=getTemporaryFile(user, path),info=getTemporaryFileInfo(user, path);
+		if(!tempFile.exists()||!info.exists())
+			return -1;
+		String lines[]=readTemporaryFileInfo(user, path);
+		long offset;
+		try {
+			if(lines==null||!lines[0].equals(path)||!lines[1].equals(owner)||
+					Integer.parseInt(lines[2])!=key||Long.parseLong(lines[3])!=dateModified||
+					Long.parseLong(lines[4])!=size)
+				return -1;
+			offset=Math.min(Long.parseLong(lines[5]), tempFile.length());
+		} catch (NumberFormatException e) {
+			logger.logWarning("info of temporary file could not be read: "+info+" "+e);
+			return -1;
+		}
+		if(offset>size)
+			return -1;
+		if(tempFile.length()>offset)
+			try {
+				FileChannel channel=FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+				try {
+					channel.truncate(offset);
+				}
+				finally {
+					channel.close();
+				}
+			} catch (IOException e) {
+				logger.logWarning("temporary file could not be truncated to its recorded offset: "+tempFile+" "+e);
+				return -1;
+			}
+		synchronized (temporaryFileChannels) {
+			recordedOffsets.put(tempFile, offset);
+		}
+		return offset;
+	}
+	/**
+	 * the ending of the file recording which version of a file a temporary file holds
+	 */
+	private static final String TEMPORARY_FILE_INFO_ENDING=".info";
+	/**
+	 * How long a partial download is kept after it was last written to (a week)
+	 */
+	public static final long PARTIAL_DOWNLOAD_LIFETIME=7*24*60*60*1000L;
 	public static String getTemporaryFilename(String user,String path){
 		return "~"+user+path.hashCode()+".temp";
 	}
@@ -444,6 +682,168 @@ public class ResourceManager
 	}
 	
 	
+	/**
+	 * Returns a channel that appends to the temporary file of a large file being downloaded.
+	 * The channel stays open until the download finishes so the file is not reopened for 
+	 * every packet.
+	 * @param user the user sending the file
+	 * @param path the path of the file being downloaded
+	 * @return an open channel positioned at the end of the temporary file
+	 * @throws IOException if the temporary file cannot be opened
+	 */
+	public static FileChannel getTemporaryFileChannel(String user,String path) throws IOException{
+		File tempFile=getTemporaryFile(user, path);
+		synchronized (temporaryFileChannels) {
+			FileChannel channel=temporaryFileChannels.get(tempFile);
+			if(channel==null||!channel.isOpen()){
+				channel=FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE,StandardOpenOption.APPEND);
+				temporaryFileChannels.put(tempFile, channel);
+				TemporaryFileHash hash=temporaryFileHashes.get(tempFile);
+				//bytes that were copied or written before the hash was started are hashed once the file is complete
+				if(hash!=null&&hash.length!=channel.size()){
+					removeTemporaryFileHash(tempFile);
+					hash=null;
+				}
+				if(hash==null&&channel.size()==0)
+					temporaryFileHashes.put(tempFile, new TemporaryFileHash());
+			}
+			return channel;
+		}
+	}
+	/**
+	 * Removes the bytes of the temporary file after a position, so the download continues from there
+	 * @param user the user sending the file
+	 * @param path the path of the file being downloaded
+	 * @param position the new length of the temporary file
+	 * @throws IOException if the temporary file cannot be truncated
+	 */
+	public static void truncateTemporaryFile(String user,String path,long position) throws IOException{
+		File tempFile=getTemporaryFile(user, path);
+		getTemporaryFileChannel(user, path).truncate(position);
+		TemporaryFileHash hash;
+		synchronized (temporaryFileChannels) {
+			hash=temporaryFileHashes.get(tempFile);
+		}
+		if(hash!=null&&hash.length>position)
+			removeTemporaryFileHash(tempFile);
+		//the recorded offset may be past the new end
+		syncTemporaryFile(user, path, true);
+	}
+	/**
+	 * Adds the bytes appended to the temporary file since this was last called to the hash of the file.
+	 * The bytes are read back right after they were written, so they are usually still in the page cache.
+	 * @param user the user sending the file
+	 * @param path the path of the file being downloaded
+	 * @throws IOException if the temporary file cannot be read
+	 */
+	public static void hashTemporaryFile(String user,String path) throws IOException{
+		File tempFile=getTemporaryFile(user, path);
+		TemporaryFileHash hash;
+		synchronized (temporaryFileChannels) {
+			hash=temporaryFileHashes.get(tempFile);
+		}
+		if(hash==null)
+			return;
+		synchronized (hash) {
+			if(hash.in==null)
+				hash.in=FileChannel.open(tempFile.toPath(), StandardOpenOption.READ);
+			int read;
+			while((read=hash.in.read(hash.buffer, hash.length))>0){
+				hash.buffer.flip();
+				hash.md.update(hash.buffer);
+				hash.buffer.clear();
+				hash.length+=read;
+			}
+		}
+	}
+	/**
+	 * @param user the user sending the file
+	 * @param path the path of the file being downloaded
+	 * @return the hash of the temporary file in the format of {@link SyncropItem#getContentHash()} or null
+	 * if not all of its bytes were hashed as they were appended
+	 */
+	public static String getTemporaryFileHash(String user,String path){
+		File tempFile=getTemporaryFile(user, path);
+		TemporaryFileHash hash;
+		synchronized (temporaryFileChannels) {
+			hash=temporaryFileHashes.get(tempFile);
+		}
+		if(hash==null)
+			return null;
+		synchronized (hash) {
+			if(hash.length!=tempFile.length())
+				return null;
+			try {
+				return SyncropItem.toHex(((MessageDigest)hash.md.clone()).digest());
+			} catch (CloneNotSupportedException e) {
+				return null;
+			}
+		}
+	}
+	private static void removeTemporaryFileHash(File tempFile){
+		TemporaryFileHash hash;
+		synchronized (temporaryFileChannels) {
+			hash=temporaryFileHashes.remove(tempFile);
+		}
+		if(hash!=null)
+			hash.close();
+	}
+	/**
+	 * Closes the channel returned by {@link #getTemporaryFileChannel(String, String)} if it is open.
+	 * The offset of the temporary file is recorded first so the download can be resumed from its end.
+	 * @param user the user sending the file
+	 * @param path the path of the file being downloaded
+	 */
+	public static void closeTemporaryFileChannel(String user,String path){
+		closeTemporaryFileChannel(user, path, true);
+	}
+	/**
+	 * @param record false if the temporary file is about to be deleted
+	 */
+	private static void closeTemporaryFileChannel(String user,String path,boolean record){
+		if(record)
+			try {
+				syncTemporaryFile(user, path, true);
+			} catch (IOException|NumberFormatException e) {
+				logger.logWarning("offset of temp file could not be recorded: "+getTemporaryFile(user,path)+" "+e);
+			}
+		FileChannel channel;
+		TemporaryFileHash hash;
+		synchronized (temporaryFileChannels) {
+			channel=temporaryFileChannels.remove(getTemporaryFile(user, path));
+			recordedOffsets.remove(getTemporaryFile(user, path));
+			//the hash is kept until the temporary file is deleted in case the download is resumed
+			hash=record?temporaryFileHashes.get(getTemporaryFile(user, path)):temporaryFileHashes.remove(getTemporaryFile(user, path));
+		}
+		if(hash!=null)
+			hash.close();
+		if(channel!=null)
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.logError(e,"temp file failed to be closed: "+getTemporaryFile(user,path));
+			}
+	}
+	/**
+	 * Closes all channels returned by {@link #getTemporaryFileChannel(String, String)}.
+	 * The temporary files are kept so the downloads can be resumed from the offsets last recorded.
+	 */
+	public static void closeAllTemporaryFileChannels(){
+		synchronized (temporaryFileChannels) {
+			for(FileChannel channel:temporaryFileChannels.values())
+				try {
+					channel.close();
+				} catch (IOException e) {
+					logger.logError(e,"temp file failed to be closed");
+				}
+			temporaryFileChannels.clear();
+			recordedOffsets.clear();
+			for(TemporaryFileHash hash:temporaryFileHashes.values())
+				hash.close();
+			temporaryFileHashes.clear();
+		}
+	}
+	
 	public static File createTemporaryFile(File file){
 		File tempFile=new File(temp,(""+Math.random()).substring(2)+file.getName());
 		tempFile.deleteOnExit();
@@ -554,6 +954,7 @@ public class ResourceManager
 	}
 
 	public static void shutDown(){
+		FileMetadataManager.shutDown();
 		logger.close();
 	}
 	
@@ -28,7 +28,7 @@ public abstract class Syncrop {
 	 * is not compatible. Clearing the metadata directory is prone to cause conflicts
 	 * @see {@link ResourceManager#getMetadataDirectory()}
 	 */
-	static final private String METADATA_VERSION="6";
+	static final private String METADATA_VERSION="9";
 	
 	static private boolean slaveMode = false;
 	
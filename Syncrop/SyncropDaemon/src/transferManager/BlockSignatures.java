@@ -0,0 +1,271 @@
+package transferManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The rsync style signatures of the blocks of the recipient's copy of a file. They let the
+ * sender of a modified file send only the parts of the file the recipient does not have.
+ * <br/>
+ * The recipient splits its copy into blocks and computes a weak rolling checksum and a
+ * strong hash (MD5) of each full block. The sender rolls the weak checksum over every
+ * offset of its file; a block matches when both the weak checksum and the strong hash
+ * are the same. Matched blocks are copied by the recipient from its copy and the rest of
+ * the file is sent as usual.
+ */
+public class BlockSignatures {
+
+	/**
+	 * The smallest block size used
+	 */
+	public static final int MIN_BLOCK_SIZE=2048;
+	/**
+	 * The largest block size used
+	 */
+	public static final int MAX_BLOCK_SIZE=128*1024;
+	private static final int STRONG_LENGTH=16;
+	private static final int SIGNATURE_LENGTH=4+STRONG_LENGTH;
+	/**
+	 * The number of bytes read from a file at a time
+	 */
+	private static final int BUFFER_SIZE=1024*1024;
+
+	private final int blockSize;
+	private final byte[] signatures;
+	private HashMap<Integer, int[]>blocksByWeakChecksum;
+
+	/**
+	 * @param blockSize the size of each block
+	 * @param signatures the weak checksum (4 bytes) followed by the strong hash (16 bytes) of each block
+	 */
+	public BlockSignatures(int blockSize,byte[] signatures){
+		if(blockSize<=0||signatures.length%SIGNATURE_LENGTH!=0)
+			throw new IllegalArgumentException("invalid signatures");
+		this.blockSize=blockSize;
+		this.signatures=signatures;
+	}
+
+	/**
+	 * @param size the size of the file
+	 * @return the block size for a file of the given size; about the square root of the size
+	 */
+	public static int getBlockSize(long size){
+		int blockSize=(int)Math.sqrt(size);
+		blockSize=(blockSize+1023)/1024*1024;
+		return Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, blockSize));
+	}
+
+	/**
+	 * Computes the signatures of the full blocks of a file; a partial last block is not included
+	 * @param file the recipient's copy of the file
+	 * @return the signatures of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public static BlockSignatures compute(Path file) throws IOException{
+		FileChannel channel=FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			int blockSize=getBlockSize(channel.size());
+			int blocks=(int)(channel.size()/blockSize);
+			ByteBuffer signatures=ByteBuffer.allocate(blocks*SIGNATURE_LENGTH);
+			MessageDigest md=getDigest();
+			byte[] block=new byte[blockSize];
+			for(int i=0;i<blocks;i++){
+				readFully(channel, ByteBuffer.wrap(block), (long)i*blockSize);
+				signatures.putInt(weakChecksum(block, 0, blockSize));
+				signatures.put(md.digest(block));
+			}
+			return new BlockSignatures(blockSize, signatures.array());
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	public int getBlockSize(){return blockSize;}
+	public int getBlockCount(){return signatures.length/SIGNATURE_LENGTH;}
+	/**
+	 * @return the weak checksum (4 bytes) followed by the strong hash (16 bytes) of each block
+	 */
+	public byte[] getSignatures(){return signatures;}
+
+	private int getWeakChecksum(int block){
+		return ByteBuffer.wrap(signatures, block*SIGNATURE_LENGTH, 4).getInt();
+	}
+	private boolean isStrongHashEqual(int block,byte[] hash){
+		int start=block*SIGNATURE_LENGTH+4;
+		for(int i=0;i<STRONG_LENGTH;i++)
+			if(signatures[start+i]!=hash[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Finds the blocks of the recipient's copy in the sender's file
+	 * @param file the sender's file
+	 * @return the matches sorted by position; each is {position in file, block index}.
+	 * Matches do not overlap.
+	 * @throws IOException if the file cannot be read
+	 */
+	public synchronized ArrayList<long[]> findMatches(Path file) throws IOException{
+		if(blocksByWeakChecksum==null)
+			indexWeakChecksums();
+		ArrayList<long[]>matches=new ArrayList<long[]>();
+		FileChannel channel=FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			MessageDigest md=getDigest();
+			byte[] buffer=new byte[Math.max(BUFFER_SIZE, 4*blockSize)];
+			long size=channel.size();
+			//the window is buffer[start,start+blockSize) and is at bufferPosition+start in the file
+			long bufferPosition=0;
+			int start=0,end=fill(channel, buffer, 0, 0);
+			boolean rolling=false;
+			int a=0,b=0;
+			long previousBlock=-2;
+			while(true){
+				//keeps the window and the byte after it in the buffer
+				if(start+blockSize>=end&&bufferPosition+end<size){
+					System.arraycopy(buffer, start, buffer, 0, end-start);
+					bufferPosition+=start;
+					end=fill(channel, buffer, end-start, bufferPosition+end-start);
+					start=0;
+				}
+				if(start+blockSize>end)
+					break;
+				if(!rolling){
+					int weak=weakChecksum(buffer, start, blockSize);
+					a=weak&0xffff;
+					b=weak>>>16;
+					rolling=true;
+				}
+				int block=findBlock((b<<16)|a, buffer, start, md, previousBlock);
+				if(block!=-1){
+					matches.add(new long[]{bufferPosition+start,block});
+					previousBlock=block;
+					start+=blockSize;
+					rolling=false;
+					continue;
+				}
+				if(start+blockSize==end)
+					break;
+				int out=buffer[start]&0xff,in=buffer[start+blockSize]&0xff;
+				a=(a-out+in)&0xffff;
+				b=(b-blockSize*out+a)&0xffff;
+				start++;
+			}
+		}
+		finally {
+			channel.close();
+		}
+		return matches;
+	}
+	private int findBlock(int weak,byte[] buffer,int start,MessageDigest md,long previousBlock){
+		int[] blocks=blocksByWeakChecksum.get(weak);
+		if(blocks==null)
+			return -1;
+		md.update(buffer, start, blockSize);
+		byte[] hash=md.digest();
+		//prefers the block after the last match so matches form runs
+		if(previousBlock+1<getBlockCount()&&previousBlock>=-1&&getWeakChecksum((int)previousBlock+1)==weak&&
+				isStrongHashEqual((int)previousBlock+1, hash))
+			return (int)previousBlock+1;
+		for(int block:blocks)
+			if(isStrongHashEqual(block, hash))
+				return block;
+		return -1;
+	}
+	private void indexWeakChecksums(){
+		blocksByWeakChecksum=new HashMap<Integer, int[]>();
+		for(int i=0;i<getBlockCount();i++){
+			int weak=getWeakChecksum(i);
+			int[] blocks=blocksByWeakChecksum.get(weak);
+			if(blocks==null)
+				blocks=new int[]{i};
+			else {
+				blocks=Arrays.copyOf(blocks, blocks.length+1);
+				blocks[blocks.length-1]=i;
+			}
+			blocksByWeakChecksum.put(weak, blocks);
+		}
+	}
+
+	/**
+	 * Copies blocks of the recipient's copy of a file to a channel. Each block is checked against
+	 * its signature in case the copy has changed since the signatures were computed.
+	 * @param file the recipient's copy of the file
+	 * @param out the channel to copy to
+	 * @param firstBlock the index of the first block to copy
+	 * @param count the number of consecutive blocks to copy
+	 * @return false if a block no longer matches its signature
+	 * @throws IOException if the blocks cannot be copied
+	 */
+	public boolean copyBlocks(Path file,FileChannel out,int firstBlock,int count) throws IOException{
+		if(firstBlock<0||count<0||firstBlock+count>getBlockCount())
+			return false;
+		FileChannel channel=FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			MessageDigest md=getDigest();
+			byte[] block=new byte[blockSize];
+			for(int i=firstBlock;i<firstBlock+count;i++){
+				if(!readFully(channel, ByteBuffer.wrap(block), (long)i*blockSize))
+					return false;
+				if(!isStrongHashEqual(i, md.digest(block)))
+					return false;
+				ByteBuffer buffer=ByteBuffer.wrap(block);
+				while(buffer.hasRemaining())
+					out.write(buffer);
+			}
+			return true;
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * The weak checksum from rsync; two 16 bit sums that can be rolled one byte at a time
+	 */
+	static int weakChecksum(byte[] bytes,int offset,int length){
+		int a=0,b=0;
+		for(int i=0;i<length;i++){
+			a+=bytes[offset+i]&0xff;
+			b+=(length-i)*(bytes[offset+i]&0xff);
+		}
+		return ((b&0xffff)<<16)|(a&0xffff);
+	}
+	private static MessageDigest getDigest(){
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	private static boolean readFully(FileChannel channel,ByteBuffer buffer,long position) throws IOException{
+		while(buffer.hasRemaining()){
+			int read=channel.read(buffer, position+buffer.position());
+			if(read==-1)
+				return false;
+		}
+		return true;
+	}
+	/**
+	 * Reads from the channel into buffer[offset,buffer.length)
+	 * @return the number of bytes in the buffer
+	 */
+	private static int fill(FileChannel channel,byte[] buffer,int offset,long position) throws IOException{
+		ByteBuffer b=ByteBuffer.wrap(buffer, offset, buffer.length-offset);
+		while(b.hasRemaining()){
+			int read=channel.read(b, position+b.position()-offset);
+			if(read==-1)
+				break;
+		}
+		return b.position();
+	}
+}
@@ -0,0 +1,114 @@
+package transferManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Splits files into chunks whose boundaries depend on their content instead of their position,
+ * so inserting or removing bytes only changes the chunks around the edit. Identical data in
+ * different files, or at different positions of the same file, produces identical chunks.
+ * <br/>
+ * A gear hash is rolled over the bytes; a chunk ends where the low bits of the hash are zero.
+ * Chunks are identified by their SHA-256 hash.
+ */
+public class ContentDefinedChunker {
+
+	public static final int MIN_CHUNK_SIZE=16*1024;
+	/**
+	 * the average size of a chunk
+	 */
+	public static final int CHUNK_SIZE=64*1024;
+	public static final int MAX_CHUNK_SIZE=256*1024;
+	public static final int HASH_LENGTH=32;
+	private static final long MASK=CHUNK_SIZE-1;
+	/**
+	 * Random values for each byte; the seed is fixed so every daemon finds the same boundaries
+	 */
+	private static final long[] GEAR=new long[256];
+	static{
+		Random random=new Random(0x5379_6e63_726f_70L);
+		for(int i=0;i<GEAR.length;i++)
+			GEAR[i]=random.nextLong();
+	}
+
+	private ContentDefinedChunker(){}
+
+	/**
+	 * A chunk of a file
+	 */
+	public static class Chunk{
+		public final long position;
+		public final int length;
+		public final byte[] hash;
+		Chunk(long position,int length,byte[] hash){
+			this.position=position;
+			this.length=length;
+			this.hash=hash;
+		}
+	}
+
+	/**
+	 * @param file the file to split
+	 * @return the chunks of the file in order
+	 * @throws IOException if the file cannot be read
+	 */
+	public static ArrayList<Chunk> chunk(Path file) throws IOException{
+		ArrayList<Chunk>chunks=new ArrayList<Chunk>();
+		FileChannel channel=FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			MessageDigest md=getDigest();
+			ByteBuffer buffer=ByteBuffer.allocate(1024*1024);
+			long position=0,chunkStart=0;
+			long hash=0;
+			int length=0;
+			while(channel.read(buffer)!=-1){
+				buffer.flip();
+				byte[] bytes=buffer.array();
+				int start=0,end=buffer.limit();
+				for(int i=0;i<end;i++){
+					hash=(hash<<1)+GEAR[bytes[i]&0xff];
+					length++;
+					if(length>=MIN_CHUNK_SIZE&&(hash&MASK)==0||length>=MAX_CHUNK_SIZE){
+						md.update(bytes, start, i+1-start);
+						chunks.add(new Chunk(chunkStart, length, md.digest()));
+						start=i+1;
+						chunkStart=position+i+1;
+						length=0;
+						hash=0;
+					}
+				}
+				md.update(bytes, start, end-start);
+				position+=end;
+				buffer.clear();
+			}
+			if(length>0)
+				chunks.add(new Chunk(chunkStart, length, md.digest()));
+		}
+		finally {
+			channel.close();
+		}
+		return chunks;
+	}
+
+	/**
+	 * @param bytes the bytes of a chunk
+	 * @return the hash identifying the chunk
+	 */
+	public static byte[] hash(byte[] bytes){
+		return getDigest().digest(bytes);
+	}
+	private static MessageDigest getDigest(){
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
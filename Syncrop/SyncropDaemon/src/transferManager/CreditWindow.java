@@ -0,0 +1,187 @@
+package transferManager;
+
+import java.util.ArrayDeque;
+
+import message.TimeoutCalculator;
+import settings.Settings;
+import syncrop.Syncrop;
+
+/**
+ * Credit based flow control for the file packets sent to and received from one peer.
+ * <br/>
+ * The receiver counts the packets (and the bytes of file data in them) it has finished
+ * processing, and whose files are durable, and periodically grants them back with {@link FileTransferManager#HEADER_GRANT_CREDITS}.
+ * A grant contains the total number of bytes and packets consumed so far as well as the size
+ * of the receiver's window, so a lost or late grant is corrected by the next one.
+ * <br/>
+ * The sender keeps at most a window of bytes and packets in flight. Until the first grant
+ * arrives the peer is assumed to be an older version that does not grant credits and
+ * the window is not enforced.
+ * <br/>
+ * The receiver holds back grants until a quarter of the window has been consumed, so the
+ * sender may always send when less than a quarter of the window is in flight; this lets a
+ * packet larger than the window through without deadlocking.
+ * <br/>
+ * Grants double as acknowledgements; the round trip time of the packet that caused a
+ * grant and the rate bytes are consumed at between grants are fed to a link estimator.
+ * <br/>
+ * Grants also tell the sender whether the receiver accepts bundles of small files, see
+ * {@link FileTransferManager#HEADER_REQUEST_BUNDLE_DOWNLOAD}.
+ */
+public class CreditWindow {
+
+	/**
+	 * The min number of bytes of file data a receiver lets a sender have in flight
+	 */
+	public static final long MIN_WINDOW_BYTES=8*Syncrop.MEGABYTE;
+	/**
+	 * The number of packets a receiver lets a sender have in flight
+	 */
+	public static final int WINDOW_MESSAGES=64;
+
+	//sending
+	private boolean enabled=false;
+	private long bytesSent=0,messagesSent=0;
+	private long bytesConsumedByPeer=0,messagesConsumedByPeer=0;
+	private long peerWindowBytes=MIN_WINDOW_BYTES,peerWindowMessages=WINDOW_MESSAGES;
+	private final TimeoutCalculator link=new TimeoutCalculator();
+	/**
+	 * {number of packets sent, time sent} of the packets in flight
+	 */
+	private final ArrayDeque<long[]>sendTimes=new ArrayDeque<long[]>();
+	private long lastGrantTime;
+	private boolean acceptsBundles=false;
+
+	//receiving
+	private long bytesConsumed=0,messagesConsumed=0;
+	private long bytesGranted=0,messagesGranted=0;
+
+	/**
+	 * @return the window this daemon grants to senders
+	 */
+	public static long getWindowBytes(){
+		return Math.max(MIN_WINDOW_BYTES, 4*Settings.getMaxTransferSize());
+	}
+
+	/**
+	 * @return true if the peer grants credits
+	 */
+	public synchronized boolean isEnabled(){return enabled;}
+	/**
+	 * @return true if the peer accepts bundles of small files
+	 */
+	public synchronized boolean acceptsBundles(){return acceptsBundles;}
+
+	public synchronized long getBytesInFlight(){return bytesSent-bytesConsumedByPeer;}
+	public synchronized long getMessagesInFlight(){return messagesSent-messagesConsumedByPeer;}
+	/**
+	 * @return the estimate of the link to the peer; only updated once the peer grants credits
+	 */
+	public TimeoutCalculator getLinkEstimator(){return link;}
+
+	/**
+	 * @param bytes the number of bytes of file data in the packet
+	 * @return true if a packet can be sent without overrunning the peer's window
+	 */
+	public synchronized boolean canSend(long bytes){
+		if(!enabled)return true;
+		long bytesInFlight=getBytesInFlight(),messagesInFlight=getMessagesInFlight();
+		if(bytesInFlight+bytes<=peerWindowBytes&&messagesInFlight<peerWindowMessages)
+			return true;
+		//the receiver may be holding back a grant for up to a quarter of the window
+		return bytesInFlight<peerWindowBytes/4&&messagesInFlight<peerWindowMessages/4;
+	}
+	/**
+	 * Waits until a packet can be sent and records that it has been sent
+	 * @param bytes the number of bytes of file data in the packet
+	 * @param timeout the max time to wait in milliseconds
+	 * @return false if there were not enough credits after waiting
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized boolean acquire(long bytes,long timeout) throws InterruptedException{
+		long end=System.currentTimeMillis()+timeout;
+		while(!canSend(bytes)){
+			long wait=end-System.currentTimeMillis();
+			if(wait<=0)
+				return false;
+			wait(wait);
+		}
+		sent(bytes);
+		return true;
+	}
+	/**
+	 * Records that a packet has been sent without checking for credits
+	 * @param bytes the number of bytes of file data in the packet
+	 */
+	public synchronized void sent(long bytes){
+		bytesSent+=bytes;
+		messagesSent++;
+		//older peers never grant credits
+		if(sendTimes.size()>=4*WINDOW_MESSAGES)
+			sendTimes.poll();
+		sendTimes.add(new long[]{messagesSent,System.nanoTime()});
+	}
+	/**
+	 * Called when the peer grants credits
+	 * @param bytesConsumed the total number of bytes the peer has consumed
+	 * @param messagesConsumed the total number of packets the peer has consumed
+	 * @param windowBytes the number of bytes the peer lets this daemon have in flight
+	 * @param windowMessages the number of packets the peer lets this daemon have in flight
+	 * @param acceptsBundles true if the peer accepts bundles of small files
+	 */
+	public synchronized void granted(long bytesConsumed,long messagesConsumed,long windowBytes,long windowMessages,boolean acceptsBundles){
+		long now=System.nanoTime();
+		if(bytesConsumed<bytesConsumedByPeer||messagesConsumed<messagesConsumedByPeer||
+				bytesConsumed>bytesSent||messagesConsumed>messagesSent){
+			//the peer has restarted; assumes nothing is in flight
+			bytesSent=bytesConsumed;
+			messagesSent=messagesConsumed;
+			sendTimes.clear();
+		}
+		else {
+			long[] acknowledged=null;
+			while(!sendTimes.isEmpty()&&sendTimes.peek()[0]<=messagesConsumed)
+				acknowledged=sendTimes.poll();
+			//the grant was sent as soon as the last packet was consumed
+			if(acknowledged!=null&&acknowledged[0]==messagesConsumed)
+				link.calculateTimeout((int)((now-acknowledged[1])/1000000));
+			//the time between grants only measures the link if data was in flight the whole time
+			if(enabled&&getBytesInFlight()>0)
+				link.recordDelivery(bytesConsumed-bytesConsumedByPeer, now-lastGrantTime);
+		}
+		lastGrantTime=now;
+		bytesConsumedByPeer=bytesConsumed;
+		messagesConsumedByPeer=messagesConsumed;
+		peerWindowBytes=windowBytes;
+		peerWindowMessages=windowMessages;
+		this.acceptsBundles=acceptsBundles;
+		enabled=true;
+		notifyAll();
+	}
+
+	/**
+	 * Records that a packet from the peer has been processed
+	 * @param bytes the number of bytes of file data in the packet
+	 * @return the message to send with {@link FileTransferManager#HEADER_GRANT_CREDITS} or null if the
+	 * grant should be held back
+	 */
+	public synchronized Object[] consumed(long bytes){
+		bytesConsumed+=bytes;
+		messagesConsumed++;
+		long windowBytes=getWindowBytes();
+		//the first grant is sent right away so the sender knows this daemon grants credits
+		if(messagesGranted==0||bytesConsumed-bytesGranted>=windowBytes/4||
+				messagesConsumed-messagesGranted>=WINDOW_MESSAGES/4){
+			bytesGranted=bytesConsumed;
+			messagesGranted=messagesConsumed;
+			return new Object[]{bytesConsumed,messagesConsumed,windowBytes,(long)WINDOW_MESSAGES,true};
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "in flight="+getBytesInFlight()+"B/"+getMessagesInFlight()+
+				" window="+peerWindowBytes+"B/"+peerWindowMessages+(enabled?"":" (not enabled)");
+	}
+}
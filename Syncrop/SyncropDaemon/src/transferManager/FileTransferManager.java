@@ -2,6 +2,7 @@ package transferManager;
 
 
 import static file.SyncropItem.INDEX_BYTES;
+import static file.SyncropItem.INDEX_CONTENT_HASH;
 import static file.SyncropItem.INDEX_DATE_MODIFIED;
 import static file.SyncropItem.INDEX_EXISTS;
 import static file.SyncropItem.INDEX_FILE_PERMISSIONS;
@@ -10,21 +11,34 @@ import static file.SyncropItem.INDEX_MODIFIED_SINCE_LAST_KEY_UPDATE;
 import static file.SyncropItem.INDEX_OWNER;
 import static file.SyncropItem.INDEX_PATH;
 import static file.SyncropItem.INDEX_SIZE;
+import static file.SyncropItem.INDEX_POSITION;
+import static file.SyncropItem.INDEX_STREAM_ID;
 import static file.SyncropItem.INDEX_SYMBOLIC_LINK_TARGET;
 import static syncrop.ResourceManager.getFile;
 import static syncrop.Syncrop.isNotWindows;
 import static syncrop.Syncrop.logger;
 
+import java.io.File;
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import daemon.DiskWriter;
 import daemon.SyncDaemon;
+import daemon.UploadLargeFileThread;
 import daemon.client.SyncropClientDaemon;
 import daemon.cloud.SyncropCloud;
 import file.SyncropFile;
 import file.SyncropItem;
+import message.FileRegion;
 import message.Message;
 import settings.Settings;
 import syncrop.ResourceManager;
@@ -33,8 +47,9 @@ import transferManager.queue.QueueMember;
 import transferManager.queue.SendQueue;
 /**
  * This class has a queue for sent and receive files. File transfer requests will be
- * sent in the order in which they appear. Only file can be transfered at a time and 
- * the receive and send queues alternate: send, then receive, then send...
+ * sent in the order in which they appear. Up to {@link Settings#getMaxConcurrentStreams()} large
+ * files can be uploaded at once; their packets are interleaved on the connection and
+ * are told apart by the stream id of each upload.
  * @author taaparthur
  *
  */
@@ -136,6 +151,64 @@ public class FileTransferManager extends Thread{
 	 * @see Message
 	 */
 	public final static String HEADER_REQUEST_FILE_UPLOAD="request file upload";
+	/**
+	 * Sent by the recipient of file packets to let the sender send more.
+	 * The message is defined by {@link CreditWindow#consumed(long)}
+	 * @see CreditWindow
+	 */
+	public final static String HEADER_GRANT_CREDITS="grant credits";
+	/**
+	 * Sent in reply to {@link #HEADER_REQUEST_LARGE_FILE_DOWNLOAD_START} with the number of bytes
+	 * of the file the recipient already has. The message is {path, stream id, offset, signatures follow, 
+	 * chunks can be queried}
+	 */
+	public final static String HEADER_RESUME_LARGE_FILE_UPLOAD="resume large file upload";
+	/**
+	 * Sent by the recipient of a large file with the signatures of its copy of the file so only
+	 * the differences need to be sent. The message is {path, stream id, block size, signatures}
+	 * @see BlockSignatures
+	 */
+	public final static String HEADER_BLOCK_SIGNATURES="block signatures for upload";
+	/**
+	 * Tells the recipient of a large file to copy blocks of its copy of the file to the temporary file.
+	 * The bytes of the packet are {first block, number of blocks}
+	 */
+	public final static String HEADER_COPY_LARGE_FILE_BLOCKS="copy blocks large file download";
+	/**
+	 * Asks the recipient of a large file which chunks of the file it already has.
+	 * The message is {path, owner, stream id, hashes}
+	 * @see ContentDefinedChunker
+	 */
+	public final static String HEADER_QUERY_CHUNKS="chunk query for download";
+	/**
+	 * The reply to {@link #HEADER_QUERY_CHUNKS}. The message is {path, stream id, have} where
+	 * have is 1 for each chunk the recipient has and 0 for the rest, or null if it cannot tell
+	 */
+	public final static String HEADER_HAVE_CHUNKS="have chunks for upload";
+	/**
+	 * Tells the recipient of a large file to copy a chunk it already has to the temporary file.
+	 * The bytes of the packet are {hash, length}
+	 */
+	public final static String HEADER_COPY_LARGE_FILE_CHUNK="copy chunk large file download";
+	/**
+	 * Requests recipient to download many small files at once. The message is an Object[][] 
+	 * with an entry, defined by {@link SyncropItem#toSyncData(byte[])}, for each file. 
+	 * Only sent to recipients that accept bundles; see {@link CreditWindow#acceptsBundles()}
+	 */
+	public final static String HEADER_REQUEST_BUNDLE_DOWNLOAD="request bundle download";
+	/**
+	 * The reply to {@link #HEADER_REQUEST_BUNDLE_DOWNLOAD}. The message is an Object[][] with the
+	 * message of {@link #HEADER_FILE_SUCCESSFULLY_UPLOADED} for each file that was downloaded
+	 */
+	public final static String HEADER_BUNDLE_SUCCESSFULLY_UPLOADED="bundle uploaded success";
+	/**
+	 * The max number of files waiting for confirmation when the recipient does not grant credits
+	 */
+	private static final int MAX_OUTSTANDING_FILES=12;
+	/**
+	 * The max number of files sent in one bundle
+	 */
+	private static final int MAX_BUNDLE_FILES=256;
 
 	
 	final LinkedHashSet<String>downloadedFiles=new LinkedHashSet<>();
@@ -157,8 +230,75 @@ public class FileTransferManager extends Thread{
 	
 	private volatile int outStandingFiles=0;
 	private long timeLastFileWasSent;
-	private HashMap<String, String>pathsOfLargeFilesBeingSent=null;
-	private String pathOfLargeFilesBeingSent=null;
+	/**
+	 * the large files being uploaded keyed by {@link #getStreamKey(String, String)}. Several large
+	 * files can be uploaded at once; each upload has a stream id that is sent with each of its
+	 * packets.
+	 */
+	private final HashMap<String, UploadLargeFileThread>largeFileUploads=new HashMap<>();
+	/**
+	 * the stream ids of the large files being downloaded keyed by {@link #getStreamKey(String, String)}
+	 */
+	private final HashMap<String, Integer>largeFileDownloads=new HashMap<>();
+	/**
+	 * the paths of the files queued for or sent to each target that it has not acknowledged or canceled
+	 */
+	private final HashMap<String, HashSet<String>>pendingFiles=new HashMap<>();
+	/**
+	 * called once a target has no pending files, keyed by target
+	 * @see #afterPendingFiles(String, Runnable)
+	 */
+	private final HashMap<String, ArrayList<Runnable>>afterPendingFiles=new HashMap<>();
+	private final AtomicInteger nextStreamId=new AtomicInteger();
+	/**
+	 * the flow control of the file packets sent to and received from each peer
+	 */
+	private final HashMap<String, CreditWindow>creditWindows=new HashMap<>();
+	/**
+	 * the signatures sent to the senders of large files; used to check the blocks copied
+	 */
+	private final HashMap<String, BlockSignatures>deltaBases=new HashMap<>();
+	/**
+	 * limit the bandwidth used by file transfers
+	 * @see Settings#getMaxUploadRate()
+	 */
+	private final TokenBucket uploadLimit=new TokenBucket("upload",0);
+	/**
+	 * limit the bandwidth used to send files to each user of the cloud
+	 * @see Settings#getMaxUploadRatePerUser()
+	 */
+	private final HashMap<String, TokenBucket>userUploadLimits=new HashMap<>();
+	/**
+	 * limit the bandwidth each peer uses to send files to this daemon
+	 * @see Settings#getMaxDownloadRate()
+	 */
+	private final HashMap<String, TokenBucket>downloadLimits=new HashMap<>();
+	/**
+	 * the packets that are counted as consumed once their sender is back under the download limit
+	 */
+	private final DelayQueue<HeldBackPacket>heldBackPackets=new DelayQueue<>();
+	
+	private static class HeldBackPacket implements Delayed{
+		final String sender;
+		final long bytes;
+		/**
+		 * when the packet is counted as consumed, in nanoseconds
+		 */
+		final long time;
+		HeldBackPacket(String sender,long bytes,long delay){
+			this.sender=sender;
+			this.bytes=bytes;
+			time=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(delay);
+		}
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time-System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(time, ((HeldBackPacket)o).time);
+		}
+	}
 	
 	
 	/**
@@ -185,16 +325,18 @@ public class FileTransferManager extends Thread{
 	{
 		super("file transfer manager");
 		this.daemon=daemon;
-		if(Syncrop.isInstanceOfCloud())
-			pathsOfLargeFilesBeingSent=new HashMap<>();
-		
 	}
 	/**
 	 * Will be called when Daemon is shutting down;
 	 * Cleans up transfer manager
 	 */
 	public void quit(){
-		unsetLargeFileTransferInfo(null);
+		synchronized (largeFileUploads) {
+			//wakes the upload threads; they know to end since shuttingDown is true
+			for(UploadLargeFileThread thread:largeFileUploads.values())
+				thread.interrupt();
+			largeFileUploads.clear();
+		}
 		sendQueue.clear();
 		this.interrupt();
 	}
@@ -206,12 +348,26 @@ public class FileTransferManager extends Thread{
 	public void reset()
 	{
 		logger.log("File transfer manager reseting");
-		ResourceManager.deleteAllTemporaryFiles();
-		if(Syncrop.isInstanceOfCloud())
-			pathsOfLargeFilesBeingSent.clear();
-		else pathOfLargeFilesBeingSent=null;
+		//partial downloads are kept so they can be resumed when the sender reconnects
+		ResourceManager.closeAllTemporaryFileChannels();
+		synchronized (largeFileUploads) {
+			largeFileUploads.clear();
+		}
+		synchronized (largeFileDownloads) {
+			largeFileDownloads.clear();
+		}
+		synchronized (creditWindows) {
+			creditWindows.clear();
+		}
+		synchronized (deltaBases) {
+			deltaBases.clear();
+		}
 		
 		sendQueue.clear();
+		synchronized (pendingFiles) {
+			pendingFiles.clear();
+			afterPendingFiles.clear();
+		}
 		
 		timeOfLastCompletedFileTransfer=0;
 		outStandingFiles=0;
@@ -238,17 +394,258 @@ public class FileTransferManager extends Thread{
 	{
 		return sendQueue.isEmpty();
 	}
-	public void setLargeFileTransferInfo(String id,String path){
-		if(Syncrop.isInstanceOfCloud())
-			pathsOfLargeFilesBeingSent.put(id,path);
-		else pathOfLargeFilesBeingSent=path;
+	/**
+	 * @param id the peer
+	 * @return the flow control of the file packets sent to and received from id
+	 */
+	public CreditWindow getCreditWindow(String id){
+		synchronized (creditWindows) {
+			CreditWindow credits=creditWindows.get(id);
+			if(credits==null)
+				creditWindows.put(id, credits=new CreditWindow());
+			return credits;
+		}
+	}
+	/**
+	 * Forgets the flow control state and the pending files of a peer that has left
+	 * @param id the peer
+	 */
+	public void removeCreditWindow(String id){
+		synchronized (creditWindows) {
+			creditWindows.remove(id);
+		}
+		synchronized (pendingFiles) {
+			pendingFiles.remove(id);
+			afterPendingFiles.remove(id);
+		}
+		synchronized (userUploadLimits) {
+			userUploadLimits.remove(id);
+		}
+		synchronized (downloadLimits) {
+			downloadLimits.remove(id);
+		}
+	}
+	/**
+	 * Waits until the bytes can be sent to target without exceeding the upload limits.
+	 * The limits are read from {@link Settings} each time so they can be changed while running.
+	 * @param target the user the bytes are sent to
+	 * @param bytes the number of bytes of file data being sent
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void throttleUpload(String target,long bytes) throws InterruptedException{
+		if(Syncrop.isInstanceOfCloud()&&target!=null){
+			TokenBucket userLimit;
+			synchronized (userUploadLimits) {
+				userLimit=userUploadLimits.get(target);
+				if(userLimit==null)
+					userUploadLimits.put(target, userLimit=new TokenBucket("upload to "+target,0));
+			}
+			userLimit.setRate(Settings.getMaxUploadRatePerUser());
+			userLimit.acquire(bytes);
+		}
+		uploadLimit.setRate(Settings.getMaxUploadRate());
+		uploadLimit.acquire(bytes);
+	}
+	/**
+	 * Takes the bytes received from sender from its download limit without waiting; the limit is
+	 * read from {@link Settings} each time so it can be changed while running
+	 * @param sender the peer that sent the bytes
+	 * @param bytes the number of bytes of file data received
+	 * @return how long in milliseconds the packet should be held back before it is counted as consumed
+	 */
+	private long reserveDownload(String sender,long bytes){
+		TokenBucket limit;
+		synchronized (downloadLimits) {
+			limit=downloadLimits.get(sender);
+			if(limit==null)
+				downloadLimits.put(sender, limit=new TokenBucket("download from "+sender,0));
+		}
+		limit.setRate(Settings.getMaxDownloadRate());
+		return limit.reserve(bytes);
+	}
+	/**
+	 * @return the upload and download limits
+	 */
+	public String getBandwidthLimits(){
+		StringBuilder limits=new StringBuilder(uploadLimit.toString());
+		synchronized (downloadLimits) {
+			if(downloadLimits.isEmpty())
+				limits.append("\ndownload: rate="+(Settings.getMaxDownloadRate()==0?"unlimited":Settings.getMaxDownloadRate()+"B/s"));
+			for(TokenBucket limit:downloadLimits.values())
+				limits.append("\n").append(limit);
+		}
+		return limits.toString();
+	}
+	/**
+	 * @param syncData the message of a file packet
+	 * @return the number of bytes of file data in the packet
+	 */
+	public static long getPacketSize(Object[] syncData){
+		if(syncData.length<=INDEX_BYTES)return 0;
+		Object bytes=syncData[INDEX_BYTES];
+		if(bytes instanceof byte[])
+			return ((byte[])bytes).length;
+		else if(bytes instanceof FileRegion)
+			return ((FileRegion)bytes).getLength();
+		return 0;
+	}
+	/**
+	 * Counts a packet from sender as consumed once the files the {@link DiskWriter} was given before
+	 * this call are durable, so the files waiting to be written are limited by the window of the sender.
+	 * <br/>
+	 * If the sender is over the download limit, the packet is held back until it is not, which holds back
+	 * the sender's credits; the sender slows down without the thread reading messages from it waiting.
+	 * @param bytes the number of bytes of file data in the packet
+	 */
+	private void consumedOnceWritten(final String sender,final long bytes){
+		daemon.getDiskWriter().afterPendingWrites(new DiskWriter.Callback() {
+			public void onWritten(boolean written) {
+				long delay=reserveDownload(sender, bytes);
+				if(delay>0)
+					heldBackPackets.add(new HeldBackPacket(sender, bytes, delay));
+				else consumed(sender, bytes);
+			}
+			public void afterGroup() {}
+		});
+	}
+	/**
+	 * Counts a packet from sender as consumed and grants the credits if a grant is due
+	 */
+	private void consumed(String sender,long bytes){
+		Object[] grant=getCreditWindow(sender).consumed(bytes);
+		if(grant!=null)
+			daemon.printMessage(grant, HEADER_GRANT_CREDITS, sender);
+	}
+	public void grantCredits(Message message){
+		Object[] grant=(Object[])message.getMessage();
+		CreditWindow credits=getCreditWindow(message.getUserID());
+		credits.granted((long)grant[0], (long)grant[1], (long)grant[2], (long)grant[3],
+				grant.length>4&&Boolean.TRUE.equals(grant[4]));
+		logger.logAll("Credits from "+message.getUserID()+": "+credits);
+	}
+	/**
+	 * @return true if a file can be sent to the target of member without overrunning it 
+	 */
+	private boolean canSend(QueueMember member){
+		if(member==null)return false;
+		CreditWindow credits=getCreditWindow(member.getTarget());
+		if(!credits.isEnabled())
+			//older versions do not grant credits
+			return outStandingFiles<=MAX_OUTSTANDING_FILES&&
+				System.currentTimeMillis()-timeLastFileWasSent>daemon.getExpectedFileTransferTime()/2;
+		//large files acquire credits for each packet
+		return credits.canSend(member.isLargeFile()?0:Settings.getMaxTransferSize());
+	}
+	
+	private static String getStreamKey(String id,String path){
+		return id+"\0"+path;
+	}
+	/**
+	 * Registers a large file upload. If the same file was already being uploaded to id, 
+	 * the old upload is replaced and stops at its next packet.
+	 * @param id the recipient
+	 * @param path the path of the file being uploaded
+	 * @param thread the thread uploading the file
+	 * @return the stream id of the upload
+	 */
+	public int startLargeFileUpload(String id,String path,UploadLargeFileThread thread){
+		synchronized (largeFileUploads) {
+			largeFileUploads.put(getStreamKey(id, path), thread);
+		}
+		return nextStreamId.incrementAndGet();
+	}
+	private void endLargeFileUpload(String id,String path) {
+		synchronized (largeFileUploads) {
+			largeFileUploads.remove(getStreamKey(id, path));
+		}
+	}
+	/**
+	 * @return the number of large files being uploaded or waiting for confirmation
+	 */
+	public int getLargeFileUploadCount(){
+		synchronized (largeFileUploads) {
+			return largeFileUploads.size();
+		}
+	}
+	public boolean isLargeFileUploadOngoing(String id,String path){
+		synchronized (largeFileUploads) {
+			return largeFileUploads.containsKey(getStreamKey(id, path));
+		}
+	}
+	/**
+	 * @return true if thread is still the thread uploading path to id 
+	 */
+	public boolean isLargeFileUploadOngoing(String id,String path,UploadLargeFileThread thread){
+		synchronized (largeFileUploads) {
+			return largeFileUploads.get(getStreamKey(id, path))==thread;
+		}
+	}
+	
+	private void startLargeFileDownload(String id,String path,Integer streamId){
+		synchronized (largeFileDownloads) {
+			largeFileDownloads.put(getStreamKey(id, path), streamId==null?-1:streamId);
+		}
+	}
+	private boolean endLargeFileDownload(String id,String path){
+		synchronized (deltaBases) {
+			deltaBases.remove(getStreamKey(id, path));
+		}
+		synchronized (largeFileDownloads) {
+			return largeFileDownloads.remove(getStreamKey(id, path))!=null;
+		}
+	}
+	/**
+	 * @return true if a packet with streamId belongs to the download of path from id. 
+	 * Packets from older versions do not have a stream id and are always accepted.
+	 */
+	private boolean isLargeFileDownloadOngoing(String id,String path,Integer streamId){
+		if(streamId==null)return true;
+		synchronized (largeFileDownloads) {
+			return streamId.equals(largeFileDownloads.get(getStreamKey(id, path)));
+		}
+	}
+	/**
+	 * @return the signatures sent to the sender of the large file or null if none were sent
+	 */
+	public BlockSignatures getDeltaBase(String id,String path){
+		synchronized (deltaBases) {
+			return deltaBases.get(getStreamKey(id, path));
+		}
+	}
+	/**
+	 * Computes the signatures of the local copy of a large file being downloaded on another
+	 * thread and sends them to the sender
+	 * @param id the sender
+	 * @param originalPath the path as sent by the sender
+	 * @param path the path of the file
+	 * @param streamId the id of the upload
+	 * @param localFile the local copy of the file
+	 */
+	private void sendBlockSignatures(final String id,final String originalPath,final String path,final int streamId,final File localFile){
+		new Thread("block signatures"){
+			public void run(){
+				BlockSignatures signatures=null;
+				try {
+					signatures=BlockSignatures.compute(localFile.toPath());
+				} catch (IOException e) {
+					logger.logError(e, "signatures of "+path+" could not be computed");
+				}
+				if(!isLargeFileDownloadOngoing(id, path, streamId))
+					return;
+				if(signatures!=null)
+					synchronized (deltaBases) {
+						deltaBases.put(getStreamKey(id, path), signatures);
+					}
+				logger.logTrace("Sending signatures of "+path+" to "+id);
+				daemon.printMessage(signatures==null?new Object[]{originalPath,streamId,null,null}:
+					new Object[]{originalPath,streamId,signatures.getBlockSize(),signatures.getSignatures()}, HEADER_BLOCK_SIGNATURES, id);
+			}
+		}.start();
 	}
-	private void unsetLargeFileTransferInfo(String id) {
-		if(Syncrop.isInstanceOfCloud())
-			if(id==null)
-				pathsOfLargeFilesBeingSent.clear();
-			else pathsOfLargeFilesBeingSent.remove(id);
-		else pathOfLargeFilesBeingSent=null;		
+	private boolean isLargeFileDownloadOngoing(String id,String path){
+		synchronized (largeFileDownloads) {
+			return largeFileDownloads.containsKey(getStreamKey(id, path));
+		}
 	}
 
 	public void addToSendQueue(String[] paths,String owner,String target)
@@ -304,9 +701,52 @@ public class FileTransferManager extends Thread{
 					return;
 				}
 			logger.logTrace("Adding "+file+" to send queue");
+			synchronized (pendingFiles) {
+				HashSet<String>paths=pendingFiles.get(target);
+				if(paths==null)
+					pendingFiles.put(target, paths=new HashSet<String>());
+				paths.add(file.getPath());
+			}
 			sendQueue.add(file,target);
 		}
 	}
+	/**
+	 * Calls back once every file queued for a target has been acknowledged or canceled by it, from the thread
+	 * that handles the last acknowledgement. Files queued for the target while waiting are waited for as well.
+	 * The callback is dropped if the target leaves.
+	 * @param target the user the files are sent to
+	 * @param callback called once the target has no pending files
+	 */
+	public void afterPendingFiles(String target,Runnable callback){
+		synchronized (pendingFiles) {
+			if(pendingFiles.containsKey(target)){
+				ArrayList<Runnable>callbacks=afterPendingFiles.get(target);
+				if(callbacks==null)
+					afterPendingFiles.put(target, callbacks=new ArrayList<Runnable>());
+				callbacks.add(callback);
+				return;
+			}
+		}
+		callback.run();
+	}
+	/**
+	 * Called once a file sent to a target has been acknowledged, canceled or skipped
+	 * @param target the user the file was sent to
+	 * @param path the path of the file
+	 */
+	private void onPendingFileDone(String target,String path){
+		ArrayList<Runnable>callbacks;
+		synchronized (pendingFiles) {
+			HashSet<String>paths=pendingFiles.get(target);
+			if(paths==null||!paths.remove(path)||!paths.isEmpty())
+				return;
+			pendingFiles.remove(target);
+			callbacks=afterPendingFiles.remove(target);
+		}
+		if(callbacks!=null)
+			for(Runnable callback:callbacks)
+				callback.run();
+	}
 	
 	
 	/**
@@ -324,15 +764,23 @@ public class FileTransferManager extends Thread{
 	
 	
 	
-	private void sendFile(QueueMember member){
-		
+	private SyncropItem getFileToSend(QueueMember member){
 		SyncropItem file=ResourceManager.getFile(member.getPath(),member.getOwner());
 		if(file == null) {
 			logger.logTrace("file no longer exists "+member.getPath());
-			return;
+			return null;
 		}
 		if(file.hasBeenUpdated()){
 			logger.logTrace("will not send file because file has recently been updated"+file.getPath());
+			return null;
+		}
+		return file;
+	}
+	private void sendFile(QueueMember member){
+		
+		SyncropItem file=getFileToSend(member);
+		if(file == null){
+			onPendingFileDone(member.getTarget(), member.getPath());
 			return;
 		}
 		String userSendingTo=member.getTarget();
@@ -343,6 +791,30 @@ public class FileTransferManager extends Thread{
 		logger.log("Sending: "+file.getPath()+" "+userSendingTo);
 	
 	}
+	/**
+	 * Sends the small file of member along with the other small files in the queue 
+	 * for the same target in one bundle
+	 */
+	private void sendFiles(QueueMember member){
+		String userSendingTo=member.getTarget();
+		ArrayList<QueueMember>members=sendQueue.pollSmallFiles(userSendingTo, 
+				Settings.getMaxTransferSize()-member.getSize(), MAX_BUNDLE_FILES-1,
+				Math.max(1000,daemon.getExpectedFileTransferTime()));
+		members.add(0, member);
+		ArrayList<SyncropItem>files=new ArrayList<SyncropItem>(members.size());
+		for(QueueMember m:members){
+			SyncropItem file=getFileToSend(m);
+			if(file!=null)
+				files.add(file);
+			else onPendingFileDone(userSendingTo, m.getPath());
+		}
+		if(files.isEmpty())
+			return;
+		daemon.uploadFiles(files, userSendingTo);
+		timeLastFileWasSent=System.currentTimeMillis();
+		outStandingFiles+=files.size();
+		logger.log("Sending bundle of "+files.size()+" files to "+userSendingTo);
+	}
 	
 	
 	
@@ -353,7 +825,9 @@ public class FileTransferManager extends Thread{
 		nameOfDownloadFile=path;
 	}
 	public void onSuccessfulFileUpload(Message message){
-		Object []o=(Object[]) message.getMessage();
+		onSuccessfulFileUpload(message.getUserID(), (Object[]) message.getMessage());
+	}
+	private void onSuccessfulFileUpload(String id,Object[] o){
 		SyncropItem fileSent=ResourceManager.getFile((String)o[INDEX_PATH],(String) o[INDEX_OWNER]);
 		if(!SyncDaemon.isInstanceOfCloud()&& fileSent instanceof SyncropFile){
 			
@@ -368,10 +842,10 @@ public class FileTransferManager extends Thread{
 		}
 		if(fileSent==null);//metadata does not exists
 		else if(!Syncrop.isInstanceOfCloud()&&!fileSent.exists());
-		else if(fileSent.getPath().equals(getPathOfLargeFileBeingSent(message.getUserID())))
-			unsetLargeFileTransferInfo(message.getUserID());
+		else endLargeFileUpload(id, fileSent.getPath());
 		logger.log("fileSent "+o[INDEX_PATH]);
 		updateUploadFileTransferStatistics((String)o[INDEX_PATH]);
+		onPendingFileDone(id, isNotWindows()?(String)o[INDEX_PATH]:SyncropItem.toWindowsPath((String)o[INDEX_PATH]));
 	}
 	private void updateUploadFileTransferStatistics(String path)
 	{
@@ -396,17 +870,8 @@ public class FileTransferManager extends Thread{
 		}
 	
 		logger.log("Upload failed: "+path);
-		if(path.equals(getPathOfLargeFileBeingSent(id)))
-			unsetLargeFileTransferInfo(id);
-	}
-	
-
-	public String getPathOfLargeFileBeingSent(String id){
-		return Syncrop.isInstanceOfCloud()?pathsOfLargeFilesBeingSent.get(id):pathOfLargeFilesBeingSent;
-	}
-	
-	public boolean isLargeFileUploadOngoing(String id,String path){
-		return path.equals(getPathOfLargeFileBeingSent(id));
+		endLargeFileUpload(id, path);
+		onPendingFileDone(id, path);
 	}
 	public void cancelDownload(String id,String path,boolean localCommand)
 	{	
@@ -415,9 +880,9 @@ public class FileTransferManager extends Thread{
 			cancel(path,HEADER_CANCEL_UPLOAD,id);
 		
 		if(!localCommand)logger.log("Remote cancel download: "+path);
-
-		if(path.equals(getPathOfLargeFileBeingSent(id)))
+		if(endLargeFileDownload(id, path))
 			ResourceManager.deleteTemporaryFile(id,path);
+		else ResourceManager.closeTemporaryFileChannel(id, path);
 	}
 		
 	private void cancel(String path,String header,String target)
@@ -432,22 +897,38 @@ public class FileTransferManager extends Thread{
 	public void run()
 	{
 		logger.log("File Transfer Manager started");
+		new Thread("held back packets"){
+			public void run(){
+				while(!Syncrop.isShuttingDown())
+					try {
+						HeldBackPacket packet=heldBackPackets.poll(1, TimeUnit.SECONDS);
+						if(packet!=null)
+							consumed(packet.sender, packet.bytes);
+					} catch (InterruptedException e) {
+						return;
+					}
+			}
+		}.start();
 		while(!SyncropClientDaemon.isShuttingDown())
 		{
 			try
 			{
-				if(!paused&&outStandingFiles<=12&&daemon.isConnectionAccepted()&&!isEmpty()
-					&&System.currentTimeMillis()-timeLastFileWasSent>daemon.getExpectedFileTransferTime()/2)	
+				if(!paused&&daemon.isConnectionAccepted()&&!isEmpty()&&canSend(sendQueue.peek()))	
 				{
 					QueueMember m=sendQueue.peek();
 					if(m==null)continue;
 					if(m.getTimeInQueue()>Math.max(1000,daemon.getExpectedFileTransferTime()))
-						if(m.isLargeFile()&&daemon.isSendingLargeFile()){
+						if(m.isLargeFile()&&getLargeFileUploadCount()>=Settings.getMaxConcurrentStreams()){
 							Syncrop.sleep();
 						}
 						else {
-							sendFile(sendQueue.poll());
-							Syncrop.sleepShort();
+							QueueMember member=sendQueue.poll();
+							if(!member.isLargeFile()&&getCreditWindow(member.getTarget()).acceptsBundles())
+								sendFiles(member);
+							else sendFile(member);
+							//the credits granted by the recipient pace the files sent to it
+							if(!getCreditWindow(member.getTarget()).isEnabled())
+								Syncrop.sleepShort();
 							if(daemon.getExpectedFileTransferTime()>10000)
 								logger.logTrace("File transfer time is high: "+daemon.getExpectedFileTransferTime());
 							
@@ -559,6 +1040,14 @@ public class FileTransferManager extends Thread{
 	
 	public void uploadRequest(Message message){
 		final String header=message.getHeader();
+		if(header.equals(HEADER_BUNDLE_SUCCESSFULLY_UPLOADED)){
+			for(Object[] syncData:(Object[][])message.getMessage())
+				if(daemon.verifyUser(message.getUserID(),(String)syncData[INDEX_OWNER]))
+					onSuccessfulFileUpload(message.getUserID(), syncData);
+				else logger.log("Received header:"+HEADER_BUNDLE_SUCCESSFULLY_UPLOADED+" but user:"+message.getUserID()+
+						"did not have permission for "+syncData[INDEX_PATH]);
+			return;
+		}
 		String originalPath=header.equals(HEADER_FILE_SUCCESSFULLY_UPLOADED)?
 						(String)((Object[])message.getMessage())[INDEX_PATH]:
 						(String)message.getMessage();
@@ -576,37 +1065,97 @@ public class FileTransferManager extends Thread{
 			}
 			onSuccessfulFileUpload(message);
 		}
+		else if(message.getHeader().equals(HEADER_RESUME_LARGE_FILE_UPLOAD)){
+			Object[] resume=(Object[])message.getMessage();
+			UploadLargeFileThread thread;
+			synchronized (largeFileUploads) {
+				thread=largeFileUploads.get(getStreamKey(message.getUserID(), path));
+			}
+			if(thread!=null&&thread.streamId==(int)resume[1])
+				thread.resume((long)resume[2],resume.length>3&&Boolean.TRUE.equals(resume[3]),
+						resume.length>4&&Boolean.TRUE.equals(resume[4]));
+			else logger.log("Resume request ignored because upload is not ongoing: "+path);
+		}
+		else if(message.getHeader().equals(HEADER_BLOCK_SIGNATURES)){
+			Object[] signatures=(Object[])message.getMessage();
+			UploadLargeFileThread thread;
+			synchronized (largeFileUploads) {
+				thread=largeFileUploads.get(getStreamKey(message.getUserID(), path));
+			}
+			if(thread!=null&&thread.streamId==(int)signatures[1])
+				thread.setBlockSignatures(signatures[2]==null?null:
+					new BlockSignatures((int)signatures[2], (byte[])signatures[3]));
+			else logger.log("Signatures ignored because upload is not ongoing: "+path);
+		}
+		else if(message.getHeader().equals(HEADER_HAVE_CHUNKS)){
+			Object[] have=(Object[])message.getMessage();
+			UploadLargeFileThread thread;
+			synchronized (largeFileUploads) {
+				thread=largeFileUploads.get(getStreamKey(message.getUserID(), path));
+			}
+			if(thread!=null&&thread.streamId==(int)have[1])
+				thread.setKnownChunks((byte[])have[2]);
+			else logger.log("Chunk reply ignored because upload is not ongoing: "+path);
+		}
 		else if(message.getHeader().equals(HEADER_CANCEL_UPLOAD)){
-			if(path!=null&&path.equals(getPathOfLargeFileBeingSent(message.getUserID()))){
+			if(path!=null&&isLargeFileUploadOngoing(message.getUserID(),path)){
 				logger.log("Large upload of"+path+" is being canceled");
 				cancelUpload(message.getUserID(),path,false);
 				return; 
 			}
-			else logger.log("Cancel request ignored becaues there is nothing to do:"+path);
+			else {
+				//small files are canceled once the recipient decides not to download them
+				onPendingFileDone(message.getUserID(), path);
+				logger.log("Cancel request ignored becaues there is nothing to do:"+path);
+			}
 		}
 		else logger.log("Unknown header:"+ header);
 		
 	}
 	
 	public void downloadRequest(Message message){
+		if(message.getHeader().equals(HEADER_REQUEST_BUNDLE_DOWNLOAD)){
+			downloadBundle(message);
+			return;
+		}
 		String originalPath=(String)(message.getMessage() instanceof Object[]?
 				((Object[])message.getMessage())[INDEX_PATH]:message.getMessage());
 		String path=isNotWindows()?originalPath:
 			SyncropItem.toWindowsPath(originalPath);
 		String sender=message.getUserID();
-		if(message.getHeader().equals(HEADER_CANCEL_DOWNLOAD))
-			if(path!=null&&path.equals(getPathOfLargeFileBeingSent(message.getUserID()))){
+		if(message.getHeader().equals(HEADER_CANCEL_DOWNLOAD)){
+			if(path!=null&&isLargeFileDownloadOngoing(sender,path))
 				cancelDownload(sender,path,false);
-				return;
+			else {
+				//small files are canceled once the recipient decides not to download them
+				onPendingFileDone(message.getUserID(), path);
+				logger.log("Cancel request ignored becaues there is nothing to do:"+path);
 			}
+			return;
+		}
 		
-		Object syncData[]=(Object[])message.getMessage();
+		if(message.getHeader().equals(HEADER_QUERY_CHUNKS)){
+			answerChunkQuery(sender, originalPath, path, (Object[])message.getMessage());
+			return;
+		}
 		
+		Object syncData[]=(Object[])message.getMessage();
+		try {
+			downloadPacket(sender, originalPath, path, message.getHeader(), syncData);
+		}
+		finally {
+			consumedOnceWritten(sender, getPacketSize(syncData));
+		}
+	}
+	/**
+	 * Handles a packet of a file being downloaded
+	 */
+	private void downloadPacket(String sender,String originalPath,String path,String header,Object syncData[]){
 		String owner=(String)syncData[INDEX_OWNER];
 		
 		if(!ResourceManager.getAccount(owner).isPathEnabled(path))
 			cancelDownload(sender,path,true);
-		if(!daemon.verifyUser(message.getUserID(),owner))
+		if(!daemon.verifyUser(sender,owner))
 			return;
 		
 		long dateModified=(long)syncData[INDEX_DATE_MODIFIED];
@@ -617,23 +1166,115 @@ public class FileTransferManager extends Thread{
 		String target=(String)syncData[INDEX_SYMBOLIC_LINK_TARGET];
 		
 		long size=(long)syncData[INDEX_SIZE];
+		Integer streamId=syncData.length>INDEX_STREAM_ID?(Integer)syncData[INDEX_STREAM_ID]:null;
+		String contentHash=syncData.length>INDEX_CONTENT_HASH?(String)syncData[INDEX_CONTENT_HASH]:null;
 		
-		switch (message.getHeader()) 
+		switch (header) 
 		{
 			case HEADER_REQUEST_SMALL_FILE_DOWNLOAD:
-				daemon.downloadFile(sender, path,owner, dateModified, key,updatedSinceLastUpdate,filePermissions,exists,(byte[])syncData[INDEX_BYTES], size,target, false,true);
+				daemon.downloadFile(sender, path,owner, dateModified, key,updatedSinceLastUpdate,filePermissions,exists,(byte[])syncData[INDEX_BYTES], size,target,contentHash, false,true);
 				break;
 			case HEADER_REQUEST_LARGE_FILE_DOWNLOAD_START:
-				daemon.startDownloadOfLargeFile(sender, path,owner, dateModified, key,updatedSinceLastUpdate,filePermissions,exists, size);
+				startLargeFileDownload(sender, path, streamId);
+				//the content is only copied from another file when the sender can resume from the end of the file
+				long offset=daemon.startDownloadOfLargeFile(sender, path,owner, dateModified, key,updatedSinceLastUpdate,filePermissions,exists, size,
+						streamId!=null?contentHash:null);
+				//older versions do not send stream ids and always start from the beginning
+				if(offset>=0&&streamId!=null){
+					//only the differences from the local copy need to be sent
+					SyncropItem localFile=ResourceManager.getFile(path, owner);
+					boolean sign=offset==0&&localFile instanceof SyncropFile&&localFile.exists()&&!localFile.isSmallFile();
+					//otherwise the chunks already stored for other files do not need to be sent
+					boolean queryChunks=offset==0&&!sign&&daemon.getChunkStore()!=null;
+					daemon.printMessage(new Object[]{originalPath,streamId,offset,sign,queryChunks}, HEADER_RESUME_LARGE_FILE_UPLOAD, sender);
+					if(sign)
+						sendBlockSignatures(sender, originalPath, path, streamId, localFile.getFile());
+				}
+				break;
+			case HEADER_COPY_LARGE_FILE_BLOCKS:
+				if(!isLargeFileDownloadOngoing(sender, path, streamId)){
+					logger.logTrace("Ignoring packet of old upload of "+path+" stream="+streamId);
+					break;
+				}
+				Object[] blocks=(Object[])syncData[INDEX_BYTES];
+				daemon.copyBlocksToLargeFile(sender, path, owner, dateModified, key, updatedSinceLastUpdate, filePermissions, exists, 
+						(int)blocks[0], (int)blocks[1], (Long)syncData[INDEX_POSITION], size);
+				break;
+			case HEADER_COPY_LARGE_FILE_CHUNK:
+				if(!isLargeFileDownloadOngoing(sender, path, streamId)){
+					logger.logTrace("Ignoring packet of old upload of "+path+" stream="+streamId);
+					break;
+				}
+				Object[] chunk=(Object[])syncData[INDEX_BYTES];
+				daemon.copyChunkToLargeFile(sender, path, owner, dateModified, key, updatedSinceLastUpdate, filePermissions, exists, 
+						(byte[])chunk[0], (int)chunk[1], (Long)syncData[INDEX_POSITION], size);
 				break;
 			case HEADER_REQUEST_LARGE_FILE_DOWNLOAD:
-				daemon.downloadLargeFile(sender, path,owner, dateModified, key,updatedSinceLastUpdate,filePermissions,exists,(byte[])syncData[INDEX_BYTES], size);
+				if(!isLargeFileDownloadOngoing(sender, path, streamId)){
+					logger.logTrace("Ignoring packet of old upload of "+path+" stream="+streamId);
+					break;
+				}
+				Long position=syncData.length>INDEX_POSITION?(Long)syncData[INDEX_POSITION]:null;
+				daemon.downloadLargeFile(sender, path,owner, dateModified, key,updatedSinceLastUpdate,filePermissions,exists,(byte[])syncData[INDEX_BYTES],position, size);
 				break;
 			case HEADER_REQUEST_END_LARGE_FILE_DOWNLOAD:
-				daemon.endDownloadOfLargeFile(sender, path, owner, dateModified, key, updatedSinceLastUpdate, filePermissions, exists, size);
+				if(!isLargeFileDownloadOngoing(sender, path, streamId)){
+					logger.logTrace("Ignoring end of old upload of "+path+" stream="+streamId);
+					break;
+				}
+				endLargeFileDownload(sender, path);
+				daemon.endDownloadOfLargeFile(sender, path, owner, dateModified, key, updatedSinceLastUpdate, filePermissions, exists, size, contentHash);
 				break;
 		}
+	}
+	/**
+	 * Downloads each file of a bundle and confirms the files that were downloaded with one message
+	 */
+	private void downloadBundle(Message message){
+		final String sender=message.getUserID();
+		Object[][] bundle=(Object[][])message.getMessage();
+		long bytes=0;
+		for(Object[] syncData:bundle)
+			bytes+=getPacketSize(syncData);
 		
+		final ArrayList<Object[]>confirmations=new ArrayList<Object[]>(bundle.length);
+		final ArrayList<String[]>locked=new ArrayList<String[]>(bundle.length);
+		for(Object[] syncData:bundle){
+			String path=isNotWindows()?(String)syncData[INDEX_PATH]:
+				SyncropItem.toWindowsPath((String)syncData[INDEX_PATH]);
+			String owner=(String)syncData[INDEX_OWNER];
+			if(!ResourceManager.getAccount(owner).isPathEnabled(path))
+				cancelDownload(sender,path,true);
+			if(!daemon.verifyUser(sender,owner))
+				continue;
+			String contentHash=syncData.length>INDEX_CONTENT_HASH?(String)syncData[INDEX_CONTENT_HASH]:null;
+			daemon.downloadFile(sender, path, owner, (long)syncData[INDEX_DATE_MODIFIED], (int)syncData[INDEX_KEY], 
+					(boolean)syncData[INDEX_MODIFIED_SINCE_LAST_KEY_UPDATE], (int)syncData[INDEX_FILE_PERMISSIONS], 
+					(boolean)syncData[INDEX_EXISTS], (byte[])syncData[INDEX_BYTES], (long)syncData[INDEX_SIZE], 
+					(String)syncData[INDEX_SYMBOLIC_LINK_TARGET], contentHash, false, true, confirmations);
+			locked.add(new String[]{path,owner});
+		}
+		consumedOnceWritten(sender, bytes);
+		//small files are confirmed once they have been written
+		daemon.getDiskWriter().afterPendingWrites(new DiskWriter.Callback() {
+			public void onWritten(boolean written) {}
+			public void afterGroup() {
+				for(String[] file:locked)
+					ResourceManager.unlockFile(file[0], file[1]);
+				if(!confirmations.isEmpty())
+					daemon.printMessage(confirmations.toArray(new Object[confirmations.size()][]), HEADER_BUNDLE_SUCCESSFULLY_UPLOADED, sender);
+			}
+		});
+	}
+	private void answerChunkQuery(String sender,String originalPath,String path,Object[] query){
+		String owner=(String)query[INDEX_OWNER];
+		int streamId=(int)query[2];
+		if(!daemon.verifyUser(sender, owner))
+			return;
+		byte[] have=null;
+		if(daemon.getChunkStore()!=null&&isLargeFileDownloadOngoing(sender, path, streamId))
+			have=daemon.getChunkStore().have((byte[])query[3], owner);
+		daemon.printMessage(new Object[]{originalPath,streamId,have}, HEADER_HAVE_CHUNKS, sender);
 	}
 	public void addToQueueRequest(Message message){
 
@@ -641,7 +1282,13 @@ public class FileTransferManager extends Thread{
 		switch (message.getHeader()) 
 		{
 			case HEADER_ADD_TO_SEND_QUEUE:
-				addToSendQueue(
+				//a path and its owner, sent when a download has to start over
+				if(message.getMessage() instanceof String[]){
+					String request[]=(String[])message.getMessage();
+					if(daemon.verifyUser(sender, request[1]))
+						addToSendQueue(request[0],request[1], sender);
+				}
+				else addToSendQueue(
 						(String)message.getMessage(),sender, message.getUserID());
 				break;
 			case HEADER_ADD_MANY_TO_SEND_QUEUE:
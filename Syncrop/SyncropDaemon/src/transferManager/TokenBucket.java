@@ -0,0 +1,93 @@
+package transferManager;
+
+/**
+ * Limits the rate bytes are transferred at.
+ * <br/>
+ * Tokens are added at the rate (bytes per second) up to a burst of one second's worth.
+ * A transfer takes the tokens for its bytes and waits while the bucket is in debt, so a
+ * packet larger than the burst is let through and paid for by the transfers after it.
+ * Transfers that must not wait use {@link #reserve(long)} and delay themselves instead.
+ * A rate of 0 means unlimited.
+ */
+public class TokenBucket {
+
+	private final String name;
+	private long rate;
+	private double tokens;
+	private long lastRefill=System.nanoTime();
+	private long bytesTransferred=0;
+
+	/**
+	 * @param name the name used when reporting the rate
+	 * @param rate the max number of bytes per second; 0 for unlimited
+	 */
+	public TokenBucket(String name,long rate){
+		this.name=name;
+		setRate(rate);
+		tokens=rate;
+	}
+
+	/**
+	 * Changes the rate; the bucket is not refilled so lowering the rate takes effect immediately
+	 * @param rate the max number of bytes per second; 0 for unlimited
+	 */
+	public synchronized void setRate(long rate){
+		if(rate<0)
+			throw new IllegalArgumentException("rate must not be negative");
+		if(this.rate==rate)return;
+		refill();
+		this.rate=rate;
+		tokens=Math.min(tokens, rate);
+		notifyAll();
+	}
+	public synchronized long getRate(){return rate;}
+	public synchronized boolean isLimited(){return rate>0;}
+
+	private void refill(){
+		long now=System.nanoTime();
+		if(rate>0)
+			tokens=Math.min(rate, tokens+(now-lastRefill)*rate/1e9);
+		lastRefill=now;
+	}
+
+	/**
+	 * Takes the tokens for a transfer and waits until the bucket is out of debt
+	 * @param bytes the number of bytes being transferred
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException{
+		bytesTransferred+=bytes;
+		if(rate==0)return;
+		refill();
+		tokens-=bytes;
+		while(rate>0&&tokens<0){
+			long wait=(long)Math.ceil(-tokens*1000/rate);
+			wait(Math.max(1, wait));
+			refill();
+		}
+	}
+
+	/**
+	 * Takes the tokens for a transfer without waiting
+	 * @param bytes the number of bytes being transferred
+	 * @return the time in milliseconds until the bucket is out of debt; the transfer should be
+	 * delayed by it
+	 */
+	public synchronized long reserve(long bytes){
+		bytesTransferred+=bytes;
+		if(rate==0)return 0;
+		refill();
+		tokens-=bytes;
+		return tokens<0?(long)Math.ceil(-tokens*1000/rate):0;
+	}
+
+	/**
+	 * @return the number of bytes that have gone through this bucket
+	 */
+	public synchronized long getBytesTransferred(){return bytesTransferred;}
+
+	@Override
+	public synchronized String toString(){
+		return name+": rate="+(rate==0?"unlimited":rate+"B/s")+" transferred="+bytesTransferred;
+	}
+}
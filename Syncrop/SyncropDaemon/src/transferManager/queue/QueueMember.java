@@ -10,6 +10,7 @@ public class QueueMember implements Comparable<QueueMember>{
 	private final long timeStamp;
 	private long dateModified;
 	private int fileSizeTier;
+	private long size;
 	
 	public QueueMember(SyncropItem fileToAddToQueue,String target){
 		this(fileToAddToQueue.getPath(),fileToAddToQueue.getOwner(),fileToAddToQueue.getDateModified(), target,fileToAddToQueue.getSize());
@@ -20,9 +21,14 @@ public class QueueMember implements Comparable<QueueMember>{
 		this.target=target;
 		timeStamp=System.currentTimeMillis();
 		fileSizeTier=(int) (size/Settings.getMaxTransferSize());
+		this.size=size;
 		this.dateModified=dateModifed;
 	}
 	public long getDateModified(){return dateModified;}
+	/**
+	 * @return the size of the file when it was added to the queue
+	 */
+	public long getSize(){return size;}
 	public boolean isLargeFile(){
 		return fileSizeTier>0;
 	}
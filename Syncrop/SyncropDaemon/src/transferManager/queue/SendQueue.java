@@ -1,5 +1,7 @@
 package transferManager.queue;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.PriorityQueue;
 
 import file.SyncropItem;
@@ -23,6 +25,28 @@ public class SendQueue {
 	public QueueMember poll(){
 		return queue.poll();
 	}
+	/**
+	 * Retrieves and removes small files to be sent to a target
+	 * @param target the target of the files
+	 * @param maxBytes the max total size of the files
+	 * @param maxFiles the max number of files
+	 * @param minTimeInQueue how long a file has to have been in the queue
+	 * @return the files removed from this set
+	 */
+	public ArrayList<QueueMember> pollSmallFiles(String target,long maxBytes,int maxFiles,long minTimeInQueue){
+		ArrayList<QueueMember>members=new ArrayList<QueueMember>();
+		Iterator<QueueMember>iterator=queue.iterator();
+		while(iterator.hasNext()&&members.size()<maxFiles){
+			QueueMember member=iterator.next();
+			if(member.isLargeFile()||!target.equals(member.getTarget())||member.getSize()>maxBytes||
+					member.getTimeInQueue()<=minTimeInQueue)
+				continue;
+			maxBytes-=member.getSize();
+			members.add(member);
+			iterator.remove();
+		}
+		return members;
+	}
 	/**
 	 * Returns the first (lowest) element currently in this set.
 	 * @return
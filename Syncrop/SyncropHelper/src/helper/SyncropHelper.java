@@ -31,6 +31,8 @@ public class SyncropHelper {
 		REMOVE_CONFLICTS("remove-conflicts","remove conflicts locally"),
 		SET_SETTING("set-setting","name value"),
 		SAVE_SETTINGS("save-setting","saves currently loaded settings"),
+		SET_LIVE_SETTING("set-live-setting","name value; changes a setting of the running instance without saving it"),
+		BANDWIDTH("bandwidth","displays the bandwidth limits of the running instance"),
 		CLEAN_METADATA("clean-metadata","removes metadata for nonexisting files"),
 		
 		SYNC("sync","syncs client and remote");
@@ -144,6 +146,12 @@ public class SyncropHelper {
 						boolean b=SettingsManager.dynamicallyLoadSetting(args[++i],args[++i]);
 						output(b?"successfully added setting":"failed to set setting");
 						break;
+					case SET_LIVE_SETTING:
+						output(daemon.setSetting(args[++i],args[++i])?"successfully changed setting":"failed to change setting");
+						break;
+					case BANDWIDTH:
+						output(daemon.getBandwidthLimits());
+						break;
 					case SAVE_SETTINGS:
 						SettingsManager.saveSettings(true);
 						output("saved setting");
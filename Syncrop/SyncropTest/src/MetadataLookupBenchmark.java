@@ -0,0 +1,96 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import account.Account;
+import file.SyncropFile;
+import settings.Settings;
+import syncrop.FileMetadataManager;
+import syncrop.ResourceManager;
+import syncrop.Syncrop;
+
+/**
+ * Compares the latency of looking up the metadata of a file with a new connection for each
+ * lookup (how {@link FileMetadataManager#getFile(String, String)} used to work) with the
+ * latency of using the pooled connections and their cached statements. Both read the database;
+ * the latency of {@link FileMetadataManager#getFile(String, String)}, which is usually answered
+ * by the metadata cache, is reported separately.
+ * <br/>
+ * Usage: MetadataLookupBenchmark [files] [lookups]
+ */
+public class MetadataLookupBenchmark extends Syncrop{
+
+	static final String OWNER="benchmark";
+
+	public MetadataLookupBenchmark(){
+		super("Benchmark");
+	}
+	protected String getLogFileName(){
+		return "benchmark.log";
+	}
+
+	public static void main(String args[]) throws SQLException{
+		int fileCount=args.length>0?Integer.parseInt(args[0]):1000;
+		int lookups=args.length>1?Integer.parseInt(args[1]):10000;
+		new MetadataLookupBenchmark();
+		Account account=new Account(OWNER, "benchmark@test.com", true);
+		account.addDirs("*");
+		ResourceManager.addAccount(account);
+		FileMetadataManager.recreateDatabase();
+		for(int i=0;i<fileCount;i++)
+			new SyncropFile("file"+i, OWNER).save();
+		//the saves are buffered; every file has to be in the database before it is read directly
+		FileMetadataManager.flush();
+
+		//warm up
+		lookUpWithNewConnections(fileCount, lookups/10);
+		lookUpWithPool(fileCount, lookups/10);
+		lookUp(fileCount, lookups/10);
+
+		long start=System.nanoTime();
+		long found=lookUpWithNewConnections(fileCount, lookups);
+		long newConnectionTime=(System.nanoTime()-start)/lookups;
+		start=System.nanoTime();
+		long foundWithPool=lookUpWithPool(fileCount, lookups);
+		long pooledTime=(System.nanoTime()-start)/lookups;
+		start=System.nanoTime();
+		long foundWithCache=lookUp(fileCount, lookups);
+		long cachedTime=(System.nanoTime()-start)/lookups;
+		if(found!=foundWithPool||found!=foundWithCache)
+			throw new IllegalStateException("the lookups found different files: "+found+", "+foundWithPool+", "+foundWithCache);
+		System.out.println("files\tnew connection (ns/lookup)\tpooled (ns/lookup)\tcached (ns/lookup)");
+		System.out.println(fileCount+"\t"+newConnectionTime+"\t"+pooledTime+"\t"+cachedTime);
+		System.exit(0);
+	}
+	static long lookUpWithNewConnections(int fileCount,int lookups) throws SQLException{
+		long found=0;
+		for(int i=0;i<lookups;i++){
+			Connection conn=DriverManager.getConnection("jdbc:"+Settings.getDatabasePath(),Settings.getDatabaseUsername(),Settings.getDatabasePassword());
+			//the SQLite driver cannot change the read only flag of an open connection
+			if(!Settings.getDatabasePath().startsWith("sqlite:"))
+				conn.setReadOnly(true);
+			//closes the connection
+			if(FileMetadataManager.getFile("file"+(i*31%fileCount), OWNER, conn)!=null)
+				found++;
+		}
+		return found;
+	}
+	/**
+	 * Reads the database with pooled connections, bypassing the metadata cache
+	 */
+	static long lookUpWithPool(int fileCount,int lookups) throws SQLException{
+		long found=0;
+		for(int i=0;i<lookups;i++)
+			//returns the connection to the pool
+			if(FileMetadataManager.getFile("file"+(i*31%fileCount), OWNER, FileMetadataManager.getConnectionInstance(true))!=null)
+				found++;
+		return found;
+	}
+	static long lookUp(int fileCount,int lookups){
+		long found=0;
+		for(int i=0;i<lookups;i++)
+			if(FileMetadataManager.getFile("file"+(i*31%fileCount), OWNER)!=null)
+				found++;
+		return found;
+	}
+}
@@ -0,0 +1,176 @@
+package daemon;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import file.SyncropItem;
+import syncrop.Syncrop;
+
+public class DiskWriterTest {
+
+	static final long WAIT=10000;
+	static final DiskWriter writer=new DiskWriter();
+
+	static {
+		new Syncrop("Test", false){
+			protected String getLogFileName(){
+				return "test.log";
+			}
+		};
+		writer.start();
+	}
+
+	/**
+	 * Records the order the callbacks are called in
+	 */
+	static class RecordingCallback implements DiskWriter.Callback{
+		final String name;
+		final List<String>calls;
+		final CountDownLatch done;
+		RecordingCallback(String name,List<String>calls,CountDownLatch done){
+			this.name=name;
+			this.calls=calls;
+			this.done=done;
+		}
+		public void onWritten(boolean written){
+			calls.add(name+(written?" written":" failed"));
+		}
+		public void afterGroup(){
+			calls.add(name+" after group");
+			done.countDown();
+		}
+	}
+
+	@Test
+	public void callbacksAreCalledInOrderOnceFilesAreInPlace() throws IOException, InterruptedException{
+		File dir=Files.createTempDirectory("writer").toFile();
+		final List<String>calls=Collections.synchronizedList(new ArrayList<String>());
+		int count=3*DiskWriter.MAX_GROUP_SIZE/2;
+		CountDownLatch done=new CountDownLatch(count+1);
+		for(int i=0;i<count;i++){
+			final File file=new File(dir,"file"+i);
+			final byte[] bytes=("content "+i).getBytes();
+			writer.write(file, bytes, 1000000L*(i+1), new RecordingCallback(""+i, calls, done){
+				public void onWritten(boolean written){
+					//the file is in place before the download is confirmed
+					try {
+						assertArrayEquals(bytes, Files.readAllBytes(file.toPath()));
+					} catch (IOException e) {
+						throw new AssertionError(e);
+					}
+					super.onWritten(written);
+				}
+			});
+		}
+		writer.afterPendingWrites(new RecordingCallback("last", calls, done));
+		assertTrue(done.await(WAIT, TimeUnit.MILLISECONDS));
+
+		ArrayList<String>written=new ArrayList<String>();
+		for(String call:calls)
+			if(!call.endsWith(" after group"))
+				written.add(call);
+		for(int i=0;i<count;i++)
+			assertEquals(i+" written", written.get(i));
+		assertEquals("last written", written.get(count));
+		//every file of a group is confirmed before the group is unlocked
+		assertTrue(calls.indexOf("0 written")<calls.indexOf("0 after group"));
+		assertTrue(calls.indexOf(count-1+" written")<calls.indexOf(count-1+" after group"));
+		for(int i=0;i<count;i++)
+			assertEquals(1000000L*(i+1), new File(dir,"file"+i).lastModified());
+		delete(dir);
+	}
+	@Test
+	public void pendingWritesAreAwaited() throws IOException, InterruptedException{
+		File dir=Files.createTempDirectory("writer").toFile();
+		File file=new File(dir,"file");
+		List<String>calls=Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch done=new CountDownLatch(2);
+		writer.write(file, new byte[]{1}, 1000000, new RecordingCallback("first", calls, done));
+		writer.write(file, new byte[]{2}, 2000000, new RecordingCallback("second", calls, done));
+		writer.awaitPendingWrites(file);
+		//the last write wins
+		assertArrayEquals(new byte[]{2}, Files.readAllBytes(file.toPath()));
+		assertTrue(calls.contains("second written"));
+		assertTrue(done.await(WAIT, TimeUnit.MILLISECONDS));
+		delete(dir);
+	}
+
+	@Test
+	public void replacedFileKeepsPermissionsAndLeavesNoPartFile() throws IOException, InterruptedException{
+		File dir=Files.createTempDirectory("writer").toFile();
+		File file=new File(dir,"file");
+		Files.write(file.toPath(), new byte[]{1});
+		Set<PosixFilePermission>permissions=PosixFilePermissions.fromString("rw-r-----");
+		Files.setPosixFilePermissions(file.toPath(), permissions);
+		File source=File.createTempFile("download", null);
+		Files.write(source.toPath(), new byte[]{2,3});
+		final boolean[] mismatch=new boolean[1];
+		List<String>calls=Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch done=new CountDownLatch(1);
+		writer.replace(source, file, 3000000, SyncropItem.hashContent(source), new ReplacingCallback(calls, done, mismatch));
+		assertTrue(done.await(WAIT, TimeUnit.MILLISECONDS));
+
+		assertEquals(Arrays.asList("replace written","replace after group"), calls);
+		assertFalse(mismatch[0]);
+		assertFalse(source.exists());
+		assertArrayEquals(new byte[]{2,3}, Files.readAllBytes(file.toPath()));
+		assertEquals(3000000, file.lastModified());
+		assertEquals(permissions, Files.getPosixFilePermissions(file.toPath()));
+		//only the file itself is left; the part file was renamed over it
+		assertArrayEquals(new String[]{"file"}, dir.list());
+		delete(dir);
+	}
+	@Test
+	public void mismatchedContentIsNotReplaced() throws IOException, InterruptedException{
+		File dir=Files.createTempDirectory("writer").toFile();
+		File file=new File(dir,"file");
+		Files.write(file.toPath(), new byte[]{1});
+		File source=File.createTempFile("download", null);
+		Files.write(source.toPath(), new byte[]{2,3});
+		final boolean[] mismatch=new boolean[1];
+		List<String>calls=Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch done=new CountDownLatch(1);
+		writer.replace(source, file, 3000000, SyncropItem.hashContent(file), new ReplacingCallback(calls, done, mismatch));
+		assertTrue(done.await(WAIT, TimeUnit.MILLISECONDS));
+
+		assertEquals(Arrays.asList("replace failed","replace after group"), calls);
+		assertTrue(mismatch[0]);
+		assertArrayEquals(new byte[]{1}, Files.readAllBytes(file.toPath()));
+		assertArrayEquals(new String[]{"file"}, dir.list());
+		source.delete();
+		delete(dir);
+	}
+
+	static class ReplacingCallback extends RecordingCallback implements DiskWriter.ReplaceCallback{
+		final boolean[] mismatch;
+		ReplacingCallback(List<String>calls,CountDownLatch done,boolean[] mismatch){
+			super("replace", calls, done);
+			this.mismatch=mismatch;
+		}
+		public void onContentMismatch(){
+			mismatch[0]=true;
+		}
+	}
+	static void delete(File dir){
+		for(File file:dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+}
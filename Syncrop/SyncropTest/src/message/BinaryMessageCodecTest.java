@@ -0,0 +1,94 @@
+package message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BinaryMessageCodecTest {
+
+	static Object[] syncData(){
+		return new Object[]{"dir/file",null,12,1234567890123L,true,false,new byte[]{1,2,3}};
+	}
+
+	@Test
+	public void messagesSurviveRoundTrip() throws IOException, ClassNotFoundException{
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		BinaryMessageCodec writer=new BinaryMessageCodec(null, bytes);
+		//the second Message refers to the Strings the first one defined
+		for(int i=0;i<2;i++)
+			writer.writeMessage(new Message(syncData(), "sender", Message.TYPE_MESSAGE_TO_CLIENT, "custom header",
+					new String[]{"target"}, "excluded"));
+		writer.writeMessage(new Message(new Object[][]{syncData(),syncData()}, "sender", "custom header"));
+		writer.writeMessage(new Message(new String[]{"a","b"}, "sender", Message.HEADER_PING));
+		writer.flush();
+		assertEquals(bytes.size(), writer.getBytesWritten());
+
+		BinaryMessageCodec reader=new BinaryMessageCodec(new ByteArrayInputStream(bytes.toByteArray()), null);
+		for(int i=0;i<2;i++){
+			Message message=reader.readMessage();
+			assertEquals("sender", message.getUserID());
+			assertEquals(Message.TYPE_MESSAGE_TO_CLIENT, message.getType());
+			assertEquals("custom header", message.getHeader());
+			assertEquals(Arrays.asList("target"), new ArrayList<String>(message.getTargetsToInclude()));
+			assertEquals(Arrays.asList("excluded"), new ArrayList<String>(message.getTargetsToExclude()));
+			assertSyncData((Object[])message.getMessage());
+		}
+		Object[][] array=(Object[][])reader.readMessage().getMessage();
+		assertEquals(2, array.length);
+		assertSyncData(array[0]);
+		assertSyncData(array[1]);
+		assertArrayEquals(new String[]{"a","b"}, (String[])reader.readMessage().getMessage());
+	}
+	@Test
+	public void otherValuesFallBackToSerialization() throws IOException, ClassNotFoundException{
+		ArrayList<Object>list=new ArrayList<Object>(Arrays.asList("a",1,2.5));
+		Message message=roundTrip(new Message(new Object[]{list,'c'}, "sender", "header"));
+		Object[] array=(Object[])message.getMessage();
+		assertEquals(list, array[0]);
+		assertEquals('c', array[1]);
+	}
+	@Test
+	public void forwardedMessageCanBeSerialized() throws IOException, ClassNotFoundException{
+		//a Message read by the Server from a peer using this codec, forwarded to one that does not
+		Message read=roundTrip(new Message(syncData(), "sender", "header"));
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		SerializedMessageCodec writer=new SerializedMessageCodec(new ByteArrayInputStream(getStreamHeader()), bytes);
+		writer.writeMessage(read);
+		writer.flush();
+		SerializedMessageCodec reader=new SerializedMessageCodec(new ByteArrayInputStream(bytes.toByteArray()), new ByteArrayOutputStream());
+		Message message=reader.readMessage();
+		assertEquals("header", message.getHeader());
+		assertSyncData((Object[])message.getMessage());
+	}
+
+	static Message roundTrip(Message message) throws IOException, ClassNotFoundException{
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		BinaryMessageCodec writer=new BinaryMessageCodec(null, bytes);
+		writer.writeMessage(message);
+		writer.flush();
+		return new BinaryMessageCodec(new ByteArrayInputStream(bytes.toByteArray()), null).readMessage();
+	}
+	/**
+	 * @return what a SerializedMessageCodec reads from the other end when it is created
+	 */
+	static byte[] getStreamHeader() throws IOException{
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		new ObjectOutputStream(bytes).flush();
+		return bytes.toByteArray();
+	}
+	static void assertSyncData(Object[] syncData){
+		Object[] expected=syncData();
+		assertEquals(expected.length, syncData.length);
+		for(int i=0;i<expected.length-1;i++)
+			assertEquals(expected[i], syncData[i]);
+		assertArrayEquals((byte[])expected[expected.length-1], (byte[])syncData[expected.length-1]);
+	}
+}
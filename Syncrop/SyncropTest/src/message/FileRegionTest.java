@@ -0,0 +1,52 @@
+package message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+public class FileRegionTest {
+
+	@Test
+	public void regionPastEndOfFileIsPaddedWithZeros() throws IOException{
+		File file=createFile(new byte[]{1,2,3});
+		try {
+			ByteArrayOutputStream out=new ByteArrayOutputStream();
+			assertFalse(new FileRegion(file.toPath(), 1, 4).transferTo(Channels.newChannel(out)));
+			assertArrayEquals(new byte[]{2,3,0,0}, out.toByteArray());
+			assertArrayEquals(new byte[]{2,3,0,0}, new FileRegion(file.toPath(), 1, 4).readBytes());
+		} finally {
+			file.delete();
+		}
+	}
+	@Test
+	public void closedSharedChannelIsReopened() throws IOException{
+		File file=createFile(new byte[]{1,2,3});
+		try {
+			FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			FileRegion region=new FileRegion(channel, file.toPath(), 0, 3);
+			channel.close();
+			ByteArrayOutputStream out=new ByteArrayOutputStream();
+			assertTrue(region.transferTo(Channels.newChannel(out)));
+			assertArrayEquals(new byte[]{1,2,3}, out.toByteArray());
+			assertArrayEquals(new byte[]{1,2,3}, region.readBytes());
+		} finally {
+			file.delete();
+		}
+	}
+
+	static File createFile(byte[] bytes) throws IOException{
+		File file=File.createTempFile("region", null);
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+}
@@ -0,0 +1,116 @@
+package message;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import logger.Logger;
+import message.HashedWheelTimer.Timeout;
+
+/**
+ * Only checks that tasks do not run early; how late they run depends on the load of the machine
+ */
+public class HashedWheelTimerTest {
+
+	static final long TICK=10;
+	/**
+	 * one turn of the wheel is 80ms
+	 */
+	static final int TICKS_PER_WHEEL=8;
+	static final long WAIT=10000;
+
+	@Test
+	public void runsTaskAfterDelay() throws InterruptedException{
+		HashedWheelTimer timer=new HashedWheelTimer("test timer", TICK, TICKS_PER_WHEEL);
+		final CountDownLatch ran=new CountDownLatch(1);
+		long start=System.currentTimeMillis();
+		Timeout timeout=timer.schedule(new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		}, 50);
+		assertTrue(ran.await(WAIT, TimeUnit.MILLISECONDS));
+		assertTrue(System.currentTimeMillis()-start>=50);
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+	}
+	@Test
+	public void cancelledTaskIsNotRun() throws InterruptedException{
+		HashedWheelTimer timer=new HashedWheelTimer("test timer", TICK, TICKS_PER_WHEEL);
+		final AtomicBoolean cancelledRan=new AtomicBoolean();
+		final CountDownLatch laterRan=new CountDownLatch(1);
+		Timeout timeout=timer.schedule(new Runnable() {
+			public void run() {
+				cancelledRan.set(true);
+			}
+		}, 50);
+		assertTrue(timeout.cancel());
+		assertTrue(timeout.isCancelled());
+		assertFalse(timeout.cancel());
+		//ticks are processed in order, so the cancelled task would have run before this one
+		timer.schedule(new Runnable() {
+			public void run() {
+				laterRan.countDown();
+			}
+		}, 100);
+		assertTrue(laterRan.await(WAIT, TimeUnit.MILLISECONDS));
+		assertFalse(cancelledRan.get());
+	}
+	@Test
+	public void timeoutsMoreThanOneTurnAwayWaitForTheirTurn() throws InterruptedException{
+		HashedWheelTimer timer=new HashedWheelTimer("test timer", TICK, TICKS_PER_WHEEL);
+		final long start=System.currentTimeMillis();
+		final AtomicLong shortDelay=new AtomicLong(),longDelay=new AtomicLong();
+		final CountDownLatch ran=new CountDownLatch(2);
+		//both are in the same bucket; the long one is 3 turns later
+		timer.schedule(new Runnable() {
+			public void run() {
+				shortDelay.set(System.currentTimeMillis()-start);
+				ran.countDown();
+			}
+		}, TICK);
+		timer.schedule(new Runnable() {
+			public void run() {
+				longDelay.set(System.currentTimeMillis()-start);
+				ran.countDown();
+			}
+		}, TICK+3*TICK*TICKS_PER_WHEEL);
+		assertTrue(ran.await(WAIT, TimeUnit.MILLISECONDS));
+		assertTrue("long timeout ran after "+longDelay.get()+"ms", longDelay.get()>=TICK+3*TICK*TICKS_PER_WHEEL);
+		assertTrue(shortDelay.get()<=longDelay.get());
+	}
+	@Test
+	public void failedTaskDoesNotStopTimer() throws InterruptedException{
+		HashedWheelTimer timer=new HashedWheelTimer("test timer", TICK, TICKS_PER_WHEEL);
+		final AtomicBoolean logged=new AtomicBoolean();
+		timer.setLogger(new Logger() {
+			public void logError(Throwable t, String s) {
+				logged.set(true);
+			}
+			public void logError(Throwable t) {
+				logged.set(true);
+			}
+			public void log(String message, int logLevel) {}
+			public void log(String s) {}
+		});
+		final CountDownLatch ran=new CountDownLatch(1);
+		timer.schedule(new Runnable() {
+			public void run() {
+				throw new IllegalStateException("expected by the test");
+			}
+		}, TICK);
+		timer.schedule(new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		}, 2*TICK);
+		assertTrue(ran.await(WAIT, TimeUnit.MILLISECONDS));
+		assertTrue(logged.get());
+	}
+}
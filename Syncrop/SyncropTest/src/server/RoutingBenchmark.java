@@ -0,0 +1,71 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+
+import message.Message;
+
+/**
+ * Compares the cost of finding the recipients of a targeted Message by checking every client
+ * (how {@link PrimaryConnectionThread#printMessageToClients(Message)} used to work) with 
+ * the cost of using a {@link RoutingIndex}.
+ * <br/>
+ * Usage: RoutingBenchmark [iterations]
+ */
+public class RoutingBenchmark {
+	
+	static final int CLIENT_COUNTS[]={10,100,1000,10000};
+	
+	public static void main(String args[]){
+		int iterations=args.length>0?Integer.parseInt(args[0]):100000;
+		System.out.println("clients\tscan (ns/msg)\tindex (ns/msg)");
+		for(int clientCount:CLIENT_COUNTS){
+			ArrayList<HashSet<String>>clients=new ArrayList<HashSet<String>>(clientCount);
+			RoutingIndex<HashSet<String>>index=new RoutingIndex<HashSet<String>>();
+			for(int i=0;i<clientCount;i++){
+				HashSet<String>names=new HashSet<String>();
+				names.add("client"+i);
+				names.add("group"+(i%10));
+				clients.add(names);
+				index.put(names, names);
+			}
+			Message messages[]=new Message[64];
+			for(int i=0;i<messages.length;i++)
+				messages[i]=new Message("chunk", "primary", "header", new String[]{"client"+(i*31%clientCount)});
+			
+			//warm up
+			scan(clients, messages, iterations);
+			lookup(index, messages, iterations);
+			
+			long start=System.nanoTime();
+			long found=scan(clients, messages, iterations);
+			long scanTime=(System.nanoTime()-start)/iterations;
+			start=System.nanoTime();
+			found-=lookup(index, messages, iterations);
+			long indexTime=(System.nanoTime()-start)/iterations;
+			if(found!=0)
+				throw new IllegalStateException("scan and index found different recipients");
+			System.out.println(clientCount+"\t"+scanTime+"\t"+indexTime);
+		}
+	}
+	static long scan(ArrayList<HashSet<String>>clients,Message messages[],int iterations){
+		long found=0;
+		for(int i=0;i<iterations;i++){
+			Message message=messages[i%messages.length];
+			for(HashSet<String>names:clients)
+				if(message.isTarget(names))
+					found++;
+		}
+		return found;
+	}
+	static long lookup(RoutingIndex<HashSet<String>>index,Message messages[],int iterations){
+		long found=0;
+		for(int i=0;i<iterations;i++){
+			Message message=messages[i%messages.length];
+			Collection<HashSet<String>>recipients=index.getRecipients(message.getTargetsToInclude(), message.getTargetsToExclude());
+			found+=recipients.size();
+		}
+		return found;
+	}
+}
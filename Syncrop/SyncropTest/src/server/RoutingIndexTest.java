@@ -0,0 +1,69 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import message.Message;
+
+public class RoutingIndexTest {
+
+	static final int CLIENTS=200,GROUPS=10;
+
+	/**
+	 * A client and the names it can be reached by
+	 */
+	static class Client{
+		final HashSet<String>names=new HashSet<String>();
+	}
+
+	@Test
+	public void recipientsMatchIsTarget(){
+		Random random=new Random(1);
+		ArrayList<Client>clients=new ArrayList<Client>();
+		RoutingIndex<Client>index=new RoutingIndex<Client>();
+		for(int i=0;i<CLIENTS;i++){
+			Client client=new Client();
+			client.names.add("client"+i);
+			client.names.add("group"+random.nextInt(GROUPS));
+			if(random.nextBoolean())
+				client.names.add("group"+random.nextInt(GROUPS));
+			clients.add(client);
+			index.put(client, client.names);
+		}
+		checkRecipients(clients, index, random);
+
+		//clients leave and change their groups
+		for(int i=0;i<CLIENTS/4;i++)
+			index.remove(clients.remove(random.nextInt(clients.size())));
+		for(int i=0;i<CLIENTS/4;i++){
+			Client client=clients.get(random.nextInt(clients.size()));
+			client.names.remove("group"+random.nextInt(GROUPS));
+			client.names.add("group"+random.nextInt(GROUPS));
+			index.put(client, client.names);
+		}
+		assertEquals(clients.size(), index.size());
+		checkRecipients(clients, index, random);
+	}
+	private static void checkRecipients(ArrayList<Client>clients,RoutingIndex<Client>index,Random random){
+		for(int i=0;i<1000;i++){
+			Message message=new Message("", "primary", "header", randomNames(random, 1+random.nextInt(3)), randomNames(random, random.nextInt(3)));
+			HashSet<Client>expected=new HashSet<Client>();
+			for(Client client:clients)
+				if(message.isTarget(client.names))
+					expected.add(client);
+			HashSet<Client>recipients=new HashSet<Client>(index.getRecipients(message.getTargetsToInclude(), message.getTargetsToExclude()));
+			assertEquals(expected, recipients);
+		}
+	}
+	private static String[] randomNames(Random random,int count){
+		String names[]=new String[count];
+		for(int i=0;i<count;i++)
+			names[i]=random.nextBoolean()?"client"+random.nextInt(CLIENTS):"group"+random.nextInt(GROUPS);
+		return names;
+	}
+}
@@ -0,0 +1,77 @@
+package syncrop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import account.Account;
+import file.SyncropFile;
+import file.SyncropItem;
+
+/**
+ * Checks that saves and deletes are seen by {@link FileMetadataManager#getFile(String, String)}
+ * before they are written to the database. Runs as a client.
+ */
+public class FileMetadataManagerTest {
+
+	static final String OWNER="test";
+
+	static {
+		new Syncrop("Test", false){
+			protected String getLogFileName(){
+				return "test.log";
+			}
+		};
+		Account account=new Account(OWNER, "test@test.com", true);
+		account.addDirs("*");
+		ResourceManager.addAccount(account);
+		try {
+			FileMetadataManager.recreateDatabase();
+		} catch (SQLException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	@Test
+	public void saveIsReadBeforeItIsWritten() throws SQLException{
+		new SyncropFile("saved", OWNER, 1000, 5, false, -1, false, 0).save();
+		assertEquals(5, FileMetadataManager.getFile("saved", OWNER).getKey());
+		FileMetadataManager.flush();
+		assertEquals(5, readFromDatabase("saved").getKey());
+
+		new SyncropFile("saved", OWNER, 2000, 6, false, -1, false, 0).save();
+		assertEquals(6, FileMetadataManager.getFile("saved", OWNER).getKey());
+		FileMetadataManager.flush();
+		assertEquals(6, readFromDatabase("saved").getKey());
+	}
+	@Test
+	public void deleteIsReadBeforeItIsWritten() throws SQLException{
+		SyncropItem item=new SyncropFile("deleted", OWNER, 1000, 5, false, -1, false, 0);
+		item.save();
+		FileMetadataManager.flush();
+		item.deleteMetadata();
+		assertNull(FileMetadataManager.getFile("deleted", OWNER));
+		FileMetadataManager.flush();
+		assertNull(readFromDatabase("deleted"));
+		assertNull(FileMetadataManager.getFile("deleted", OWNER));
+	}
+	@Test
+	public void clientLooksUpFilesByPathAlone() throws SQLException{
+		//a client's files all have the same owner, so the owner of a lookup is ignored
+		new SyncropFile("any owner", OWNER, 1000, 5, false, -1, false, 0).save();
+		assertEquals(5, FileMetadataManager.getFile("any owner", "other").getKey());
+		FileMetadataManager.flush();
+		assertEquals(5, FileMetadataManager.getFile("any owner", "other").getKey());
+
+		new SyncropFile("any owner", OWNER, 2000, 6, false, -1, false, 0).save();
+		assertEquals(6, FileMetadataManager.getFile("any owner", "other").getKey());
+		FileMetadataManager.flush();
+		assertEquals(6, FileMetadataManager.getFile("any owner", "other").getKey());
+	}
+	private static SyncropItem readFromDatabase(String path) throws SQLException{
+		return FileMetadataManager.getFile(path, OWNER, FileMetadataManager.getConnectionInstance(true));
+	}
+}
@@ -0,0 +1,58 @@
+package syncrop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import syncrop.FileMetadataManager.Metadata;
+
+public class MetadataCacheTest {
+
+	static final String OWNER="test";
+
+	@Test
+	public void evictsLeastRecentlyUsed(){
+		MetadataCache cache=new MetadataCache(3);
+		for(int i=0;i<3;i++)
+			cache.put("file"+i, new Metadata("file"+i, OWNER));
+		cache.get("file0");
+		cache.put("file3", new Metadata("file3", OWNER));
+		assertNull(cache.peek("file1"));
+		assertNotNull(cache.peek("file0"));
+		assertNotNull(cache.peek("file2"));
+		assertNotNull(cache.peek("file3"));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(1, cache.getHits());
+	}
+	@Test
+	public void deletedFileIsCachedAsDeleted(){
+		MetadataCache cache=new MetadataCache(3);
+		cache.put("file", new Metadata("file", OWNER));
+		Metadata metadata=cache.get("file");
+		//a cached deleted file is not looked up in the database
+		assertNotNull(metadata);
+		assertFalse(metadata.saved);
+		assertEquals(0, cache.getMisses());
+	}
+	@Test
+	public void readMetadataIsNotCachedAfterChanges(){
+		MetadataCache cache=new MetadataCache(3);
+		long modCount=cache.getModCount();
+		cache.put("other", new Metadata("other", OWNER));
+		//the file may have been saved while it was read
+		cache.putIfUnmodified("file", new Metadata("file", OWNER), modCount);
+		assertNull(cache.peek("file"));
+
+		Metadata read=new Metadata("file", OWNER);
+		cache.putIfUnmodified("file", read, cache.getModCount());
+		assertSame(read, cache.peek("file"));
+		Metadata deleted=new Metadata("file", OWNER);
+		cache.put("file", deleted);
+		cache.putIfUnmodified("file", new Metadata("file", OWNER), cache.getModCount());
+		assertSame(deleted, cache.peek("file"));
+	}
+}
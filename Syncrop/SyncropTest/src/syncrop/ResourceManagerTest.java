@@ -0,0 +1,96 @@
+package syncrop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+import file.SyncropItem;
+
+/**
+ * Checks where downloads of large files are resumed and that their temporary files are hashed
+ * as they are appended
+ */
+public class ResourceManagerTest {
+
+	static final String USER="sender",OWNER="test";
+	static final int KEY=1;
+	static final long DATE_MODIFIED=1000,SIZE=1000*1000;
+
+	static {
+		new Syncrop("Test", false){
+			protected String getLogFileName(){
+				return "test.log";
+			}
+		};
+	}
+
+	@Test
+	public void resumesAtRecordedOffset() throws IOException{
+		String path="resumed";
+		File tempFile=startDownload(path);
+		append(path, 10);
+		ResourceManager.closeTemporaryFileChannel(USER, path);
+		//bytes written after the offset was last recorded, such as before a crash
+		Files.write(tempFile.toPath(), new byte[5], StandardOpenOption.APPEND);
+
+		assertEquals(10, ResourceManager.getTemporaryFileOffset(USER, path, OWNER, KEY, DATE_MODIFIED, SIZE));
+		assertEquals(10, tempFile.length());
+		assertEquals(-1, ResourceManager.getTemporaryFileOffset(USER, path, OWNER, KEY, DATE_MODIFIED+1, SIZE));
+		ResourceManager.deleteTemporaryFile(USER, path);
+	}
+	@Test
+	public void truncatedDownloadIsResumedAtNewEnd() throws IOException{
+		String path="truncated";
+		File tempFile=startDownload(path);
+		append(path, 20);
+		ResourceManager.truncateTemporaryFile(USER, path, 8);
+		assertEquals(8, tempFile.length());
+		//the bytes that were hashed are no longer all in the file
+		assertNull(ResourceManager.getTemporaryFileHash(USER, path));
+		ResourceManager.closeTemporaryFileChannel(USER, path);
+
+		assertEquals(8, ResourceManager.getTemporaryFileOffset(USER, path, OWNER, KEY, DATE_MODIFIED, SIZE));
+		ResourceManager.deleteTemporaryFile(USER, path);
+	}
+	@Test
+	public void temporaryFileIsHashedAsItIsAppended() throws IOException{
+		String path="hashed";
+		File tempFile=startDownload(path);
+		append(path, 100*1000);
+		append(path, 7);
+		assertEquals(SyncropItem.hashContent(tempFile), ResourceManager.getTemporaryFileHash(USER, path));
+
+		//a download resumed by this run continues the hash
+		ResourceManager.closeTemporaryFileChannel(USER, path);
+		assertEquals(100*1000+7, ResourceManager.getTemporaryFileOffset(USER, path, OWNER, KEY, DATE_MODIFIED, SIZE));
+		append(path, 3);
+		assertEquals(SyncropItem.hashContent(tempFile), ResourceManager.getTemporaryFileHash(USER, path));
+		ResourceManager.deleteTemporaryFile(USER, path);
+	}
+
+	static File startDownload(String path) throws IOException{
+		File tempFile=ResourceManager.getTemporaryFile(USER, path);
+		tempFile.delete();
+		tempFile.createNewFile();
+		ResourceManager.writeTemporaryFileInfo(USER, path, OWNER, KEY, DATE_MODIFIED, SIZE, 0);
+		return tempFile;
+	}
+	static void append(String path,int length) throws IOException{
+		byte bytes[]=new byte[length];
+		for(int i=0;i<length;i++)
+			bytes[i]=(byte)i;
+		FileChannel channel=ResourceManager.getTemporaryFileChannel(USER, path);
+		ByteBuffer buffer=ByteBuffer.wrap(bytes);
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		ResourceManager.hashTemporaryFile(USER, path);
+	}
+}
@@ -0,0 +1,74 @@
+package transferManager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BlockSignaturesTest {
+
+	@Test
+	public void deltaReconstructsModifiedFile() throws IOException{
+		Random random=new Random(1);
+		byte[] original=new byte[300*1024];
+		random.nextBytes(original);
+		byte[] changed=new byte[5000];
+		random.nextBytes(changed);
+		//bytes are inserted, changed and removed so the blocks after each edit are not aligned
+		ByteArrayOutputStream modified=new ByteArrayOutputStream();
+		modified.write(original, 0, 10000);
+		modified.write("inserted".getBytes());
+		modified.write(original, 10000, 90000);
+		modified.write(changed);
+		modified.write(original, 105000, 100000);
+		modified.write(original, 225000, original.length-225000);
+		byte[] bytes=modified.toByteArray();
+
+		Path recipientCopy=Files.createTempFile("signatures", null);
+		Path senderFile=Files.createTempFile("signatures", null);
+		Path rebuilt=Files.createTempFile("signatures", null);
+		try {
+			Files.write(recipientCopy, original);
+			Files.write(senderFile, bytes);
+			BlockSignatures signatures=BlockSignatures.compute(recipientCopy);
+			ArrayList<long[]>matches=signatures.findMatches(senderFile);
+			assertTrue("most blocks should be found", (long)matches.size()*signatures.getBlockSize()>bytes.length/2);
+
+			//what the recipient does with the matches and the bytes in between them
+			FileChannel out=FileChannel.open(rebuilt, StandardOpenOption.WRITE);
+			try {
+				long position=0;
+				for(long[] match:matches){
+					assertTrue(match[0]>=position);
+					write(out, ByteBuffer.wrap(bytes, (int)position, (int)(match[0]-position)));
+					assertTrue(signatures.copyBlocks(recipientCopy, out, (int)match[1], 1));
+					position=match[0]+signatures.getBlockSize();
+				}
+				write(out, ByteBuffer.wrap(bytes, (int)position, (int)(bytes.length-position)));
+			}
+			finally {
+				out.close();
+			}
+			assertArrayEquals(bytes, Files.readAllBytes(rebuilt));
+		}
+		finally {
+			Files.delete(recipientCopy);
+			Files.delete(senderFile);
+			Files.delete(rebuilt);
+		}
+	}
+	private static void write(FileChannel out,ByteBuffer buffer) throws IOException{
+		while(buffer.hasRemaining())
+			out.write(buffer);
+	}
+}
@@ -0,0 +1,76 @@
+package transferManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import transferManager.ContentDefinedChunker.Chunk;
+
+public class ContentDefinedChunkerTest {
+
+	static final int INSERT_POSITION=500*1024,INSERT_LENGTH=100;
+
+	@Test
+	public void boundariesAreStableAfterInsert() throws IOException{
+		Random random=new Random(1);
+		byte[] original=new byte[2*1024*1024];
+		random.nextBytes(original);
+		byte[] inserted=new byte[INSERT_LENGTH];
+		random.nextBytes(inserted);
+		byte[] modified=new byte[original.length+INSERT_LENGTH];
+		System.arraycopy(original, 0, modified, 0, INSERT_POSITION);
+		System.arraycopy(inserted, 0, modified, INSERT_POSITION, INSERT_LENGTH);
+		System.arraycopy(original, INSERT_POSITION, modified, INSERT_POSITION+INSERT_LENGTH, original.length-INSERT_POSITION);
+
+		ArrayList<Chunk>originalChunks=chunk(original);
+		ArrayList<Chunk>modifiedChunks=chunk(modified);
+		HashMap<ByteBuffer, Chunk>chunksByHash=new HashMap<ByteBuffer, Chunk>();
+		for(Chunk chunk:originalChunks)
+			chunksByHash.put(ByteBuffer.wrap(chunk.hash), chunk);
+		int newChunks=0;
+		for(Chunk chunk:modifiedChunks){
+			Chunk match=chunksByHash.get(ByteBuffer.wrap(chunk.hash));
+			if(match==null){
+				newChunks++;
+				continue;
+			}
+			//the chunks after the insert are only shifted by it
+			long shift=chunk.position<INSERT_POSITION?0:INSERT_LENGTH;
+			assertEquals(match.position+shift, chunk.position);
+			assertEquals(match.length, chunk.length);
+		}
+		//only the chunk with the insert, and possibly the one after it, change
+		assertTrue("changed chunks: "+newChunks, newChunks>=1&&newChunks<=2);
+	}
+	@Test
+	public void chunksCoverFile() throws IOException{
+		byte[] bytes=new byte[1024*1024+123];
+		new Random(2).nextBytes(bytes);
+		long position=0;
+		for(Chunk chunk:chunk(bytes)){
+			assertEquals(position, chunk.position);
+			assertTrue(chunk.length<=ContentDefinedChunker.MAX_CHUNK_SIZE);
+			position+=chunk.length;
+		}
+		assertEquals(bytes.length, position);
+	}
+	private static ArrayList<Chunk> chunk(byte[] bytes) throws IOException{
+		Path file=Files.createTempFile("chunks", null);
+		try {
+			Files.write(file, bytes);
+			return ContentDefinedChunker.chunk(file);
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+}
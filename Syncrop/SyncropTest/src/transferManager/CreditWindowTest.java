@@ -0,0 +1,81 @@
+package transferManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CreditWindowTest {
+
+	static final long PACKET=1024;
+
+	@Test
+	public void grantsAfterAQuarterOfTheWindow(){
+		CreditWindow receiver=new CreditWindow();
+		//the first packet is granted right away
+		Object[] grant=receiver.consumed(PACKET);
+		assertNotNull(grant);
+		assertEquals(PACKET, grant[0]);
+		assertEquals(1L, grant[1]);
+		for(int i=1;i<CreditWindow.WINDOW_MESSAGES/4;i++)
+			assertNull(receiver.consumed(PACKET));
+		grant=receiver.consumed(PACKET);
+		assertNotNull(grant);
+		assertEquals(PACKET*(CreditWindow.WINDOW_MESSAGES/4+1), grant[0]);
+		assertEquals((long)CreditWindow.WINDOW_MESSAGES/4+1, grant[1]);
+		assertEquals(CreditWindow.getWindowBytes(), grant[2]);
+	}
+	@Test
+	public void senderStopsAtTheWindow(){
+		CreditWindow sender=new CreditWindow();
+		//peers that have not granted credits are not limited
+		assertFalse(sender.isEnabled());
+		for(int i=0;i<2*CreditWindow.WINDOW_MESSAGES;i++)
+			assertTrue(sender.canSend(PACKET));
+		sender.granted(0, 0, 100*PACKET, 8, true);
+		assertTrue(sender.isEnabled());
+		assertTrue(sender.acceptsBundles());
+		for(int i=0;i<8;i++){
+			assertTrue(sender.canSend(PACKET));
+			sender.sent(PACKET);
+		}
+		assertFalse(sender.canSend(PACKET));
+		sender.granted(4*PACKET, 4, 100*PACKET, 8, true);
+		assertEquals(4*PACKET, sender.getBytesInFlight());
+		assertEquals(4, sender.getMessagesInFlight());
+		assertTrue(sender.canSend(PACKET));
+	}
+	@Test
+	public void restartedPeerResetsWhatIsInFlight(){
+		CreditWindow sender=new CreditWindow();
+		sender.granted(0, 0, 100*PACKET, 8, false);
+		for(int i=0;i<8;i++)
+			sender.sent(PACKET);
+		sender.granted(6*PACKET, 6, 100*PACKET, 8, false);
+		assertEquals(2, sender.getMessagesInFlight());
+		//a restarted peer starts counting from 0 again
+		sender.granted(PACKET, 1, 100*PACKET, 8, false);
+		assertEquals(0, sender.getBytesInFlight());
+		assertEquals(0, sender.getMessagesInFlight());
+		assertTrue(sender.canSend(PACKET));
+	}
+	@Test
+	public void packetLargerThanWindowIsLetThrough(){
+		CreditWindow sender=new CreditWindow();
+		long window=100*PACKET;
+		sender.granted(0, 0, window, 64, true);
+		assertTrue(sender.canSend(2*window));
+		sender.sent(2*window);
+		assertFalse(sender.canSend(PACKET));
+		sender.granted(2*window, 1, window, 64, true);
+
+		//less than a quarter of the window is in flight
+		sender.sent(window/4-1);
+		assertTrue(sender.canSend(2*window));
+		sender.sent(1);
+		assertFalse(sender.canSend(2*window));
+	}
+}
@@ -0,0 +1,57 @@
+package transferManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Only the bounds a slow or busy machine cannot break are checked: waits can take longer than the
+ * rate requires but never shorter.
+ */
+public class TokenBucketTest {
+
+	static final long RATE=100000;
+
+	@Test
+	public void acquireLimitsRate() throws InterruptedException{
+		TokenBucket bucket=new TokenBucket("test", RATE);
+		long start=System.currentTimeMillis();
+		//the first second's worth is a burst
+		bucket.acquire(RATE);
+		for(int i=0;i<5;i++)
+			bucket.acquire(RATE/5);
+		//the second second's worth has to be waited for
+		long elapsed=System.currentTimeMillis()-start;
+		assertTrue("took "+elapsed+"ms", elapsed>=800);
+		assertEquals(2*RATE, bucket.getBytesTransferred());
+	}
+	@Test
+	public void reserveReturnsDelay(){
+		TokenBucket bucket=new TokenBucket("test", RATE);
+		assertEquals(0, bucket.reserve(RATE));
+		//the delay shrinks by the time that passed since the burst
+		long delay=bucket.reserve(RATE/2);
+		assertTrue("delay was "+delay, delay>0&&delay<=500);
+		//the debt is paid by the transfers after it
+		assertTrue(bucket.reserve(RATE/2)>delay);
+	}
+	@Test
+	public void zeroRateIsUnlimited() throws InterruptedException{
+		TokenBucket bucket=new TokenBucket("test", 0);
+		assertFalse(bucket.isLimited());
+		bucket.acquire(100*RATE);
+		assertEquals(0, bucket.reserve(100*RATE));
+		assertEquals(200*RATE, bucket.getBytesTransferred());
+	}
+	@Test
+	public void loweringRateTakesEffectImmediately(){
+		TokenBucket bucket=new TokenBucket("test", 10*RATE);
+		bucket.setRate(RATE);
+		assertEquals(RATE, bucket.getRate());
+		assertEquals(0, bucket.reserve(RATE));
+		long delay=bucket.reserve(RATE);
+		assertTrue("delay was "+delay, delay>0&&delay<=1000);
+	}
+}